@@ -17,6 +17,10 @@
 
 		4) kill pid             :   Send a kill signal to a process group (same as shell command "kill -- -pid")
 
+		5) launcher				:	Execute commands requested on STDIN (same as 'exec', without
+									starting a new 'bds' process for each command). Used by
+									the local executioner (see 'localLauncher' in bds.config)
+
 	Examples:
 
 	This will load, compile and execute 'myprogram.bds' (bds program)
@@ -55,6 +59,9 @@ func main() {
 			// Execute 'exec' command and exit
 			exitCode := bdsexec.ExecuteCommandArgs()
 			os.Exit(exitCode)
+		} else if os.Args[1] == "launcher" {
+			// Execute commands requested on STDIN and exit
+			os.Exit(bdsexec.Launcher())
 		} else if os.Args[1] == "kill" {
 			// Kill a process group
 			if len(os.Args) != 3 {
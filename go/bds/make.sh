@@ -5,3 +5,6 @@ export GOPATH=`pwd`
 clear
 go clean
 go build 
+
+# Compile and test packages (e.g. 'bds launcher' protocol)
+go test exec
@@ -12,6 +12,7 @@ import (
 	"regexp"
 	"strconv"
 	"strings"
+	"sync"
 	"syscall"
 	"time"
 
@@ -39,6 +40,12 @@ const BDS_NATIVE_LIB_DIR = "lib"
 // Command indicating to remove file (taskLogger file)
 const CMD_REMOVE_FILE = "rm"
 
+// Maximum number of IDs in each kill command (unless the taskLogger file says otherwise)
+const KILL_BATCH_SIZE = 100
+
+// Maximum number of kill commands running in parallel
+const KILL_THREADS = 4
+
 type BdsExec struct {
 	args []string 			// Command line arguments invoking 'bds'
 	execName string 		// This binary's absolute path
@@ -483,10 +490,13 @@ func LoadConfig(filename string, dest map[string]string) {
 
 	File format:
 		"pid \t {+,-} \n"
+		"pid \t + \t killCommand \n"
+		"pid \t + \t killCommand \t killBatchSize \n"
 
 	where '+' inidicates the process was started and '-' that
 	the process finished. So all pid that do not have a '-' entry
-	must be killed.
+	must be killed. 'killBatchSize' is the maximum number of IDs
+	for each kill command (Java's 'clusterKillBatchSize').
 */
 func (be *BdsExec) taskLoggerCleanUpAll() {
 	if DEBUG {
@@ -506,6 +516,7 @@ func (be *BdsExec) taskLoggerCleanUpAll() {
 	//---
 	pids := make(map[string]bool)
 	cmds := make(map[string]string)
+	batchSizes := make(map[string]int)
 
 	if file, err = os.Open(be.taskLoggerFile); err != nil {
 		log.Printf("Error: Cannot open TaskLogger file '%s' (PID: %d)\n", be.taskLoggerFile, syscall.Getpid())
@@ -537,12 +548,18 @@ func (be *BdsExec) taskLoggerCleanUpAll() {
 			pids[pid] = true
 			if len(recs) > 2 && len(recs[2]) > 0 {
 				cmds[pid] = recs[2]
+				if len(recs) > 3 {
+					if batchSize, err := strconv.Atoi(recs[3]); err == nil && batchSize > 0 {
+						batchSizes[recs[2]] = batchSize
+					}
+				}
 			}
 		}
 	}
 
 	// Kill all pending processes
-	runCmds := make(map[string]string)
+	runCmds := make(map[string][]string)
+	rmFiles := make([]string, 0)
 	for pid, running := range pids {
 
 		// Is it marked as running? Kill it
@@ -555,21 +572,14 @@ func (be *BdsExec) taskLoggerCleanUpAll() {
 				be.KillProcessGroup(pidInt) // No need to run a command, just kill local porcess group
 			} else if cmd == CMD_REMOVE_FILE {
 				// This is a file to be removed, not a command
-				if VERBOSE {
-					log.Printf("Info: Deleting file '%s'\n", pid)
-				}
-				os.Remove(pid)
+				rmFiles = append(rmFiles, pid)
 			} else {
 				if DEBUG {
-					log.Printf("Info: Killing PID '%s' using command '%s'\n", pid, runCmds[cmd])
+					log.Printf("Info: Killing PID '%s' using command '%s'\n", pid, cmd)
 				}
 
-				// Create command to be executed
-				if _, ok = runCmds[cmd]; ok {
-					runCmds[cmd] = runCmds[cmd] + "\t" + pid
-				} else {
-					runCmds[cmd] = cmd + "\t" + pid
-				}
+				// Add to command's list of IDs
+				runCmds[cmd] = append(runCmds[cmd], pid)
 			}
 		} else {
 			if DEBUG {
@@ -578,21 +588,60 @@ func (be *BdsExec) taskLoggerCleanUpAll() {
 		}
 	}
 
-	// Run all commands (usually it's only one command)
-	for cmd, args := range runCmds {
-		if len(cmd) > 0 {
-			// fmt.Fprintf(os.Stderr, "\t\trunning command '%s'\n", cmd)
+	var wg sync.WaitGroup
+
+	// Remove files while kill commands are running
+	wg.Add(1)
+	go func() {
+		defer wg.Done()
+		for _, f := range rmFiles {
 			if VERBOSE {
-				log.Printf("Info: Running command '%s'\n", cmd)
+				log.Printf("Info: Deleting file '%s'\n", f)
 			}
-			cmdExec := exec.Command(cmd)
-			cmdExec.Args = strings.Split(args, "\t")
-			err := cmdExec.Run()
-			if err != nil {
-				log.Fatal(err)
+			os.Remove(f)
+		}
+	}()
+
+	// Run all commands (usually it's only one command), in batches of
+	// at most 'batchSize' IDs. At most KILL_THREADS batches run in parallel
+	killSem := make(chan bool, KILL_THREADS)
+	for cmd, ids := range runCmds {
+		cmdArgs := strings.Fields(cmd)
+		if len(cmdArgs) <= 0 {
+			continue
+		}
+
+		batchSize, ok := batchSizes[cmd]
+		if !ok {
+			batchSize = KILL_BATCH_SIZE
+		}
+
+		for i := 0; i < len(ids); i += batchSize {
+			end := i + batchSize
+			if end > len(ids) {
+				end = len(ids)
 			}
+
+			args := make([]string, 0, len(cmdArgs)+end-i)
+			args = append(args, cmdArgs...)
+			args = append(args, ids[i:end]...)
+
+			wg.Add(1)
+			killSem <- true
+			go func(args []string) {
+				defer wg.Done()
+				defer func() { <-killSem }()
+				if VERBOSE {
+					log.Printf("Info: Running command '%s' (%d IDs)\n", args[0], len(args)-len(cmdArgs))
+				}
+				if err := exec.Command(args[0], args[1:]...).Run(); err != nil {
+					log.Printf("Error: Running command '%s': %s\n", args[0], err)
+				}
+			}(args)
 		}
 	}
+
+	wg.Wait()
 }
 
 /*
@@ -622,6 +671,10 @@ func (be *BdsExec) Usage(msg string) {
 	fmt.Fprintf(os.Stderr, "             Note: If any file name is '-' it is ignored (not redirected).\n")
 	fmt.Fprintf(os.Stderr, "             Syntax:\n")
 	fmt.Fprintf(os.Stderr, "                 bds exec timeout file.stdout file.stderr file.exit command arguments...\n\n")
-	fmt.Fprintf(os.Stderr, "  kill pid :  Kill process group 'pid'.\n")
+	fmt.Fprintf(os.Stderr, "  kill pid :  Kill process group 'pid'.\n\n")
+	fmt.Fprintf(os.Stderr, "  launcher :  Execute commands requested on STDIN (one per line, tab separated).\n")
+	fmt.Fprintf(os.Stderr, "             Syntax:\n")
+	fmt.Fprintf(os.Stderr, "                 RUN id timeout file.stdout file.stderr file.exit command arguments...\n")
+	fmt.Fprintf(os.Stderr, "                 KILL id\n")
 	os.Exit(1)
 }
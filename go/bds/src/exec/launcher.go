@@ -0,0 +1,318 @@
+package exec
+
+import (
+	"bufio"
+	"fmt"
+	"io"
+	"log"
+	"os"
+	"os/exec"
+	"os/signal"
+	"strconv"
+	"strings"
+	"sync"
+	"syscall"
+	"time"
+
+	"fileutil"
+)
+
+/*
+	Launcher protocol (one message per line, fields separated by tabs)
+
+	Requests (read from STDIN):
+		RUN \t id \t timeout \t file.stdout \t file.stderr \t file.exit \t command \t arguments...
+		KILL \t id
+
+	Replies (written to STDOUT):
+		READY                   : Launcher started, ready to accept requests
+		PID \t id \t pid        : Task 'id' is running (process group 'pid')
+		EXIT \t id \t exitCode  : Task 'id' finished (same exit codes as 'bds exec')
+		ERROR \t id \t message  : Task 'id' could not be started
+
+	When STDIN is closed (or a signal is received) all running tasks
+	are killed and the launcher exits.
+*/
+const LAUNCHER_READY = "READY"
+const LAUNCHER_RUN = "RUN"
+const LAUNCHER_KILL = "KILL"
+const LAUNCHER_PID = "PID"
+const LAUNCHER_EXIT = "EXIT"
+const LAUNCHER_ERROR = "ERROR"
+
+type Launcher struct {
+	mutex   sync.Mutex
+	running map[string]*exec.Cmd // Running tasks by id
+	replies chan string          // Lines to write to STDOUT
+	tasks   sync.WaitGroup       // Wait for tasks to finish
+	done    sync.WaitGroup       // Wait for replies to be written
+}
+
+/*
+	Run as a launcher: Execute tasks requested on STDIN.
+	This avoids invoking one 'bds exec' process per task
+*/
+func (be *BdsExec) Launcher() int {
+	la := NewLauncher()
+
+	// Kill all tasks if we receive a signal
+	osSignal := make(chan os.Signal, 1)
+	signal.Notify(osSignal, syscall.SIGINT, syscall.SIGTERM, syscall.SIGHUP)
+	go func() {
+		sig := <-osSignal
+		if VERBOSE || DEBUG {
+			log.Printf("bds launcher: Received OS signal '%s'\n", sig.String())
+		}
+		la.killAll()
+		os.Exit(EXITCODE_ERROR)
+	}()
+
+	return la.Run(os.Stdin, os.Stdout)
+}
+
+/*
+	Create a new Launcher structure
+*/
+func NewLauncher() *Launcher {
+	la := &Launcher{}
+	la.running = make(map[string]*exec.Cmd)
+	la.replies = make(chan string, 1024)
+	return la
+}
+
+/*
+	Execute tasks requested on 'in', write replies to 'out'.
+	Returns when 'in' is closed (all running tasks are killed)
+*/
+func (la *Launcher) Run(in io.Reader, out io.Writer) int {
+	la.done.Add(1)
+	go la.writeReplies(out)
+
+	la.replies <- LAUNCHER_READY
+
+	// Read requests
+	scanner := bufio.NewScanner(in)
+	scanner.Buffer(make([]byte, 64*1024), 1024*1024)
+	for scanner.Scan() {
+		line := scanner.Text()
+		if DEBUG {
+			log.Printf("Debug, Launcher: Request '%s'\n", line)
+		}
+
+		fields := strings.Split(line, "\t")
+		switch fields[0] {
+		case LAUNCHER_RUN:
+			la.run(fields)
+		case LAUNCHER_KILL:
+			if len(fields) > 1 {
+				la.kill(fields[1])
+			}
+		case "":
+			// Empty line, nothing to do
+		default:
+			log.Printf("bds launcher: Unknown request '%s'\n", line)
+		}
+	}
+
+	// Input closed: Parent process finished (or died), kill all tasks
+	la.killAll()
+	la.tasks.Wait()
+	close(la.replies)
+	la.done.Wait()
+	return EXITCODE_OK
+}
+
+/*
+	Kill a task (process group)
+*/
+func (la *Launcher) kill(id string) {
+	la.mutex.Lock()
+	cmd, ok := la.running[id]
+	la.mutex.Unlock()
+
+	if ok && cmd.Process != nil {
+		if DEBUG {
+			log.Printf("Debug, Launcher: Killing task '%s', process group %d\n", id, cmd.Process.Pid)
+		}
+		syscall.Kill(-cmd.Process.Pid, syscall.SIGKILL)
+	}
+}
+
+/*
+	Kill all running tasks
+*/
+func (la *Launcher) killAll() {
+	la.mutex.Lock()
+	defer la.mutex.Unlock()
+
+	for _, cmd := range la.running {
+		if cmd.Process != nil {
+			syscall.Kill(-cmd.Process.Pid, syscall.SIGKILL)
+		}
+	}
+}
+
+/*
+	Open output file (nil means discard output)
+*/
+func openOutput(fileName string) (*os.File, error) {
+	if fileName == "" || fileName == "-" {
+		return nil, nil
+	}
+	return os.Create(fileName)
+}
+
+/*
+	Start a task, reply with its PID
+	Format: RUN \t id \t timeout \t file.stdout \t file.stderr \t file.exit \t command \t arguments...
+*/
+func (la *Launcher) run(fields []string) {
+	if len(fields) < 7 {
+		log.Printf("bds launcher: Invalid number of fields in request %v\n", fields)
+		return
+	}
+
+	id := fields[1]
+	timeSecs, err := strconv.Atoi(fields[2])
+	if err != nil {
+		la.replies <- LAUNCHER_ERROR + "\t" + id + "\tInvalid time '" + fields[2] + "'"
+		return
+	}
+	outFile := fields[3]
+	errFile := fields[4]
+	exitFile := fields[5]
+
+	// Create command. Each task runs in a new process group, so we can kill all its child processes
+	cmd := exec.Command(fields[6])
+	cmd.Args = fields[6:]
+	cmd.SysProcAttr = &syscall.SysProcAttr{Setpgid: true}
+
+	// Redirect STDOUT and STDERR to files (parent process 'follows' the files)
+	stdout, err := openOutput(outFile)
+	if err != nil {
+		la.replies <- LAUNCHER_ERROR + "\t" + id + "\t" + err.Error()
+		return
+	}
+	stderr, err := openOutput(errFile)
+	if err != nil {
+		if stdout != nil {
+			stdout.Close()
+		}
+		la.replies <- LAUNCHER_ERROR + "\t" + id + "\t" + err.Error()
+		return
+	}
+	if stdout != nil {
+		cmd.Stdout = stdout
+	}
+	if stderr != nil {
+		cmd.Stderr = stderr
+	}
+
+	// Start process
+	la.mutex.Lock()
+	err = cmd.Start()
+	if err == nil {
+		la.running[id] = cmd
+	}
+	la.mutex.Unlock()
+
+	if stdout != nil {
+		stdout.Close()
+	}
+	if stderr != nil {
+		stderr.Close()
+	}
+
+	if err != nil {
+		la.replies <- LAUNCHER_ERROR + "\t" + id + "\t" + err.Error()
+		return
+	}
+
+	la.replies <- LAUNCHER_PID + "\t" + id + "\t" + strconv.Itoa(cmd.Process.Pid)
+
+	la.tasks.Add(1)
+	go la.wait(id, cmd, timeSecs, exitFile)
+}
+
+/*
+	Wait for a task to finish (or timeout), write exit file and reply
+*/
+func (la *Launcher) wait(id string, cmd *exec.Cmd, timeSecs int, exitFile string) {
+	defer la.tasks.Done()
+
+	// Enforce timeout
+	timedOut := false
+	var timer *time.Timer
+	if timeSecs > 0 {
+		timer = time.AfterFunc(time.Duration(timeSecs)*time.Second, func() {
+			la.mutex.Lock()
+			timedOut = true
+			la.mutex.Unlock()
+			syscall.Kill(-cmd.Process.Pid, syscall.SIGKILL)
+		})
+	}
+
+	// Wait for command to finish
+	exitStr := "0"
+	if err := cmd.Wait(); err != nil {
+		exitStr = err.Error()
+	}
+	if timer != nil {
+		timer.Stop()
+	}
+
+	la.mutex.Lock()
+	delete(la.running, id)
+	if timedOut {
+		exitStr = "Time out"
+	}
+	la.mutex.Unlock()
+
+	// Write exitCode to file
+	if (exitFile != "") && (exitFile != "-") {
+		if DEBUG {
+			log.Printf("Info: Writing exit status '%s' to exit file '%s'\n", exitStr, exitFile)
+		}
+		fileutil.WriteFile(exitFile, exitStr)
+	}
+
+	// Same exit codes as 'bds exec'
+	exitCode := EXITCODE_ERROR
+	if exitStr == "0" {
+		exitCode = EXITCODE_OK
+	} else if exitStr == "Time out" {
+		exitCode = EXITCODE_TIMEOUT
+	}
+
+	la.replies <- LAUNCHER_EXIT + "\t" + id + "\t" + strconv.Itoa(exitCode)
+}
+
+/*
+	Write replies (e.g. to STDOUT).
+	All replies available are written before flushing, so
+	many tasks starting (or finishing) at once are sent in one batch
+*/
+func (la *Launcher) writeReplies(w io.Writer) {
+	defer la.done.Done()
+
+	out := bufio.NewWriter(w)
+	for line := range la.replies {
+		fmt.Fprintln(out, line)
+
+		// Write all pending replies, then flush
+		for pending := true; pending; {
+			select {
+			case l, ok := <-la.replies:
+				if !ok {
+					out.Flush()
+					return
+				}
+				fmt.Fprintln(out, l)
+			default:
+				pending = false
+			}
+		}
+		out.Flush()
+	}
+	out.Flush()
+}
@@ -0,0 +1,97 @@
+package exec
+
+import (
+	"bufio"
+	"io"
+	"io/ioutil"
+	"os"
+	"path/filepath"
+	"strings"
+	"testing"
+)
+
+/*
+	Run tasks using the launcher protocol: Exit codes, output and exit files
+*/
+func TestLauncher(t *testing.T) {
+	dir, err := ioutil.TempDir("", "bds_launcher")
+	if err != nil {
+		t.Fatal(err)
+	}
+	defer os.RemoveAll(dir)
+
+	inRead, inWrite := io.Pipe()
+	outRead, outWrite := io.Pipe()
+	exitCode := make(chan int, 1)
+	go func() {
+		exitCode <- NewLauncher().Run(inRead, outWrite)
+		outWrite.Close()
+	}()
+
+	replies := bufio.NewScanner(outRead)
+	if !replies.Scan() || replies.Text() != LAUNCHER_READY {
+		t.Fatalf("Expected '%s', got '%s'", LAUNCHER_READY, replies.Text())
+	}
+
+	// Requests: A task that succeeds, one that fails and one that times out
+	tasks := map[string]string{
+		"ok":      "0\tsh\t-c\techo hi",
+		"fail":    "0\tsh\t-c\texit 3",
+		"timeout": "1\tsleep\t10",
+	}
+	for id, cmd := range tasks {
+		f := filepath.Join(dir, id)
+		fields := strings.SplitN(cmd, "\t", 2)
+		req := strings.Join([]string{LAUNCHER_RUN, id, fields[0], f + ".stdout", f + ".stderr", f + ".exit", fields[1]}, "\t")
+		if _, err := io.WriteString(inWrite, req+"\n"); err != nil {
+			t.Fatal(err)
+		}
+	}
+
+	// Wait for all tasks to finish
+	pids := make(map[string]bool)
+	exits := make(map[string]string)
+	for len(exits) < len(tasks) && replies.Scan() {
+		fields := strings.Split(replies.Text(), "\t")
+		if len(fields) != 3 {
+			t.Fatalf("Invalid reply '%s'", replies.Text())
+		}
+		switch fields[0] {
+		case LAUNCHER_PID:
+			pids[fields[1]] = true
+		case LAUNCHER_EXIT:
+			if !pids[fields[1]] {
+				t.Errorf("Task '%s' finished before reporting its PID", fields[1])
+			}
+			exits[fields[1]] = fields[2]
+		default:
+			t.Fatalf("Unexpected reply '%s'", replies.Text())
+		}
+	}
+
+	// Same exit codes and exit files as 'bds exec'
+	check := func(id, code, exitStr string) {
+		if exits[id] != code {
+			t.Errorf("Task '%s': Expected exit code '%s', got '%s'", id, code, exits[id])
+		}
+		data, _ := ioutil.ReadFile(filepath.Join(dir, id+".exit"))
+		if string(data) != exitStr {
+			t.Errorf("Task '%s': Expected exit file '%s', got '%s'", id, exitStr, string(data))
+		}
+	}
+	check("ok", "0", "0")
+	check("fail", "1", "exit status 3")
+	check("timeout", "2", "Time out")
+
+	data, _ := ioutil.ReadFile(filepath.Join(dir, "ok.stdout"))
+	if string(data) != "hi\n" {
+		t.Errorf("Expected STDOUT 'hi', got '%s'", string(data))
+	}
+
+	// Closing the input stops the launcher
+	go io.Copy(ioutil.Discard, outRead)
+	inWrite.Close()
+	if code := <-exitCode; code != EXITCODE_OK {
+		t.Errorf("Expected launcher exit code %d, got %d", EXITCODE_OK, code)
+	}
+}
@@ -883,6 +883,9 @@ public class Bds {
 			return 0;
 		}
 
+		// Remove temporary files left by a previous run (e.g. crashed)
+		config.getCleanupManager().recover();
+
 		if (verbose) Timer.showStdErr("Running");
 		int exitCode = runThread(bdsThread);
 
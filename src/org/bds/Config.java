@@ -9,12 +9,21 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Properties;
+import java.util.concurrent.Semaphore;
 
+import org.bds.data.DigestDb;
+import org.bds.data.FileMetadataCache;
+import org.bds.executioner.ExecutionerLocal;
 import org.bds.executioner.MonitorTask;
 import org.bds.executioner.TaskLogger;
+import org.bds.osCmd.LocalLauncher;
 import org.bds.task.Tail;
 import org.bds.task.TailFile;
 import org.bds.task.Task;
+import org.bds.task.TaskCache;
+import org.bds.task.TaskDirLayout;
+import org.bds.util.CleanupManager;
+import org.bds.util.DirectoryWatcher;
 import org.bds.util.Gpr;
 import org.bds.util.Timer;
 
@@ -54,6 +63,9 @@ public class Config {
 	public static final String DISABLE_CHECKPOINT_CREATE = "disableCheckpoint";
 	public static final String DISABLE_RM_ON_EXIT = "disableRmOnExit";
 	public static final String TAIL_LINES = "tailLines"; // Number of lie to use in 'tail'
+	public static final String TAIL_MAX_OPEN_FILES = "tailMaxOpenFiles"; // Maximum number of files kept open when following tasks' output
+	public static final String TAIL_BUFFER_SIZE = "tailBufferSize"; // Maximum number of bytes (per task's output file) kept in memory, waiting to be shown
+	public static final String TAIL_MAX_BYTES_PER_SEC = "tailMaxBytesPerSec"; // Maximum output shown on the console (bytes per second)
 	public static final String FILTER_OUT_TASK_HINT = "filterOutTaskHint"; // Lines to filter out from task hint
 	public static final String SHOW_TASK_CODE = "showTaskCode"; // Always show task's code (sys commands)
 
@@ -69,6 +81,15 @@ public class Config {
 	public static final String CLUSTER_STAT_ADDITIONAL_ARGUMENTS = "clusterStatAdditionalArgs"; // Cluster additional command line arguments (when requesting information about all tasks)
 	public static final String CLUSTER_POSTMORTEMINFO_ADDITIONAL_ARGUMENTS = "clusterPostMortemInfoAdditionalArgs"; // Cluster additional command line arguments (when requesting information about a failed task)
 	public static final String CLUSTER_POSTMORTEMINFO_DISABLED = "clusterPostMortemDisabled"; // Some clusters do not provide information after the process dies
+	public static final String CLUSTER_STAT_STRUCTURED = "clusterStatStructured"; // Query cluster status using structured output (e.g. 'qstat -xml') when available
+	public static final String CLUSTER_ARRAY_JOBS = "clusterArrayJobs"; // Submit tasks requesting the same resources as array jobs
+	public static final String CLUSTER_ARRAY_MAX_SIZE = "clusterArrayMaxSize"; // Maximum number of tasks in an array job
+	public static final String CLUSTER_SUBMIT_THREADS = "clusterSubmitThreads"; // Number of threads submitting tasks to the cluster (e.g. running 'qsub')
+	public static final String CLUSTER_SUBMIT_RATE = "clusterSubmitRate"; // Maximum number of submissions per second (zero means unlimited)
+	public static final String CLUSTER_SUBMIT_BURST = "clusterSubmitBurst"; // Maximum number of submissions in a burst
+	public static final String CLUSTER_SUBMIT_RETRY = "clusterSubmitRetry"; // Number of times a failed submission is re-tried
+	public static final String CLUSTER_SUBMIT_BACKOFF = "clusterSubmitBackoff"; // Time to wait before re-trying a failed submission (milliseconds). Doubled after each failure
+	public static final String CLUSTER_KILL_BATCH_SIZE = "clusterKillBatchSize"; // Maximum number of job IDs in each kill command (e.g. 'qdel id1 id2 ...')
 
 	// Generic cluster
 	public static final String CLUSTER_GENERIC_RUN = "clusterGenericRun";
@@ -88,6 +109,25 @@ public class Config {
 
 	public static final String TASK_MAX_HINT_LEN = "taskMaxHintLen";
 
+	public static final String EXECUTIONER_EVENT_DRIVEN = "executionerEventDriven"; // Wake up executioners on task events instead of polling
+	public static final String TASK_PRIORITY = "taskPriority"; // Task priority policy (e.g. 'fifo', 'criticalPath')
+	public static final String HOST_PLACEMENT = "hostPlacement"; // Host placement policy (e.g. 'firstFit', 'bestFit', 'health')
+	public static final String FILE_WATCH = "fileWatch"; // Detect exit files and tasks' output using file system notifications (e.g. 'inotify')
+	public static final String SSH_MAX_CHANNELS = "sshMaxChannels"; // Maximum number of ssh channels (i.e. commands running) for each host
+	public static final String SSH_KEEP_ALIVE = "sshKeepAlive"; // Send 'keep alive' messages on ssh sessions (seconds)
+	public static final String TASK_LOGGER_FLUSH_WINDOW = "taskLoggerFlushWindow"; // Write PID file entries in groups, within this time (milliseconds)
+	public static final String TASK_DIR_LAYOUT = "taskDirLayout"; // Layout of tasks' files (e.g. 'flat', 'hash', 'sequential')
+	public static final String TASK_DIR_FAN_OUT = "taskDirFanOut"; // Number of sub-directories ('hash') or tasks per sub-directory ('sequential')
+	public static final String DEPENDENCY_DIGEST = "dependencyDigest"; // Decide if dependencies need to be updated using files' content digests (instead of modification times)
+	public static final String DEPENDENCY_DIGEST_DB = "dependencyDigestDb"; // File storing content digests
+	public static final String FILE_METADATA_CACHE_TTL = "fileMetadataCacheTtl"; // Files' metadata used to evaluate dependencies is cached for this time (milliseconds)
+	public static final String TASK_INLINE_MAX_SIZE = "taskInlineMaxSize"; // Local tasks' programs up to this size (bytes) are passed as an argument to 'bds exec', instead of creating a program file
+	public static final String TASK_CACHE = "taskCache"; // Cache tasks' results across runs (tasks having the same program, resources and inputs are not executed again)
+	public static final String TASK_CACHE_DIR = "taskCacheDir"; // Task cache directory
+	public static final String TASK_CACHE_MAX_SIZE = "taskCacheMaxSize"; // Maximum task cache size (bytes), least recently used entries are removed
+	public static final String TASK_CACHE_HARD_LINK = "taskCacheHardLink"; // Restore outputs from the task cache using hard links (instead of copying them)
+	public static final String LOCAL_LAUNCHER = "localLauncher"; // Run local tasks using a single long running 'bds launcher' process (instead of one 'bds exec' per task)
+
 	private static Config configInstance = null; // Config is some kind of singleton because we want to make it accessible from everywhere
 
 	public static final String[] EMPTY_STRING_ARRAY = new String[0];
@@ -103,8 +143,10 @@ public class Config {
 	boolean reportYaml = false; // Use YAML report format
 	boolean reportHtml = true; // Use HTML report format
 	boolean showTaskCode; // Always show task's code (sys statements)
+	boolean executionerEventDriven; // Executioner's main loop reacts to task events (instead of fixed sleeps)
 	int taskFailCount = 0; // Number of times a task is allowed to fail (i.e. number of re-tries)
 	int maxThreads = -1; // Maximum number of simultaneous threads (e.g. when running 'qsub' commands)
+	Semaphore cmdAdmission; // Limit number of commands running simultaneously (see 'maxThreads')
 	int waitAfterTaskRun = -1; // Wait some milisec after task run
 	int waitTextFileBusy = -1; // Wait some milisecs after writing a shell file to disk (before execution)
 	int tailLines; // Number of lines to use in 'tail'
@@ -119,6 +161,15 @@ public class Config {
 	TaskLogger taskLogger;
 	MonitorTask monitorTask;
 	Tail tail;
+	TaskDirLayout taskDirLayout;
+	CleanupManager cleanupManager;
+	FileMetadataCache fileMetadataCache;
+	DigestDb digestDb;
+	TaskCache taskCache;
+	DirectoryWatcher directoryWatcher;
+	boolean directoryWatcherCreated;
+	LocalLauncher localLauncher;
+	boolean localLauncherCreated;
 
 	/**
 	 * Get singleton
@@ -157,6 +208,19 @@ public class Config {
 		return Gpr.parseBoolSafe(val.trim());
 	}
 
+	/**
+	 * Cleanup manager: Removes temporary files
+	 * Paths to remove on exit are persisted in a file next to the PID file
+	 */
+	public synchronized CleanupManager getCleanupManager() {
+		if (cleanupManager == null) {
+			cleanupManager = new CleanupManager(Gpr.removeExt(getPidFile()) + ".cleanup");
+			cleanupManager.setDebug(isDebug());
+			cleanupManager.setVerbose(isVerbose());
+		}
+		return cleanupManager;
+	}
+
 	public String getConfigDirName() {
 		return configDirName;
 	}
@@ -168,12 +232,32 @@ public class Config {
 	/**
 	 * Get a property as a double
 	 */
-	protected double getDouble(String propertyName, double defaultValue) {
+	public double getDouble(String propertyName, double defaultValue) {
 		String val = getString(propertyName);
 		if (val == null) return defaultValue;
 		return Gpr.parseDoubleSafe(val);
 	}
 
+	/**
+	 * Content digests database (null if dependencies are checked using modification times)
+	 */
+	public synchronized DigestDb getDigestDb() {
+		if (digestDb == null && getBool(DEPENDENCY_DIGEST, false)) {
+			digestDb = new DigestDb(getString(DEPENDENCY_DIGEST_DB, DigestDb.DEFAULT_DB_FILE));
+			digestDb.setDebug(isDebug());
+			digestDb.setVerbose(isVerbose());
+		}
+		return digestDb;
+	}
+
+	/**
+	 * Cache for files' metadata (used when evaluating dependencies)
+	 */
+	public synchronized FileMetadataCache getFileMetadataCache() {
+		if (fileMetadataCache == null) fileMetadataCache = new FileMetadataCache(getLong(FILE_METADATA_CACHE_TTL, FileMetadataCache.DEFAULT_TTL));
+		return fileMetadataCache;
+	}
+
 	public ArrayList<String> getFilterOutTaskHint() {
 		return filterOutTaskHint;
 	}
@@ -217,6 +301,15 @@ public class Config {
 		return Gpr.parseLongSafe(val.trim());
 	}
 
+	/**
+	 * Admission control: Limits the number of commands running
+	 * simultaneously (all executioners) to 'maxThreads'
+	 */
+	public synchronized Semaphore getCmdAdmission() {
+		if (cmdAdmission == null) cmdAdmission = new Semaphore(getMaxThreads());
+		return cmdAdmission;
+	}
+
 	/**
 	 * Max number of concurrent threads
 	 */
@@ -235,11 +328,39 @@ public class Config {
 		return maxThreads;
 	}
 
+	/**
+	 * File system watcher, shared by exit file monitor and 'tail'
+	 * @return A watcher or null if disabled (or not supported)
+	 */
+	public DirectoryWatcher getDirectoryWatcher() {
+		if (!directoryWatcherCreated) {
+			directoryWatcherCreated = true;
+			if (getBool(FILE_WATCH, true)) {
+				directoryWatcher = DirectoryWatcher.create();
+				if (directoryWatcher != null) directoryWatcher.setDebug(isDebug());
+			}
+		}
+		return directoryWatcher;
+	}
+
+	/**
+	 * Local launcher, shared by all local executioners
+	 * @return A launcher or null if disabled (or it could not be started)
+	 */
+	public synchronized LocalLauncher getLocalLauncher() {
+		if (!localLauncherCreated) {
+			localLauncherCreated = true;
+			if (getBool(LOCAL_LAUNCHER, false)) localLauncher = LocalLauncher.create(ExecutionerLocal.LOCAL_LAUNCHER_COMMAND, isDebug());
+		}
+		return localLauncher;
+	}
+
 	public MonitorTask getMonitorTask() {
 		if (monitorTask == null) {
 			monitorTask = new MonitorTask();
 			monitorTask.setDebug(isDebug());
 			monitorTask.setVerbose(isVerbose());
+			monitorTask.setWatcher(getDirectoryWatcher());
 		}
 		return monitorTask;
 	}
@@ -334,6 +455,10 @@ public class Config {
 			tail.setDebug(isDebug());
 			tail.setVerbose(isVerbose());
 			tail.setQuiet(isQuiet());
+			tail.setMaxOpenFiles((int) getLong(TAIL_MAX_OPEN_FILES, Tail.DEFAULT_MAX_OPEN_FILES));
+			tail.setBufferSize((int) getLong(TAIL_BUFFER_SIZE, TailFile.DEFAULT_BUFFER_SIZE));
+			tail.setMaxBytesPerSec(getLong(TAIL_MAX_BYTES_PER_SEC, Tail.DEFAULT_MAX_BYTES_PER_SEC));
+			tail.setWatcher(getDirectoryWatcher());
 			tail.start(); // Create a 'tail' process (to show STDOUT & STDERR from all processes)
 		}
 		return tail;
@@ -343,18 +468,57 @@ public class Config {
 		return tailLines;
 	}
 
+	/**
+	 * Task results cache (null if disabled)
+	 * Inputs' digests are shared with dependency checks, if they use content digests
+	 */
+	public synchronized TaskCache getTaskCache() {
+		if (taskCache == null && getBool(TASK_CACHE, false)) {
+			String dir = getString(TASK_CACHE_DIR, TaskCache.DEFAULT_DIR);
+			DigestDb db = getDigestDb();
+			if (db == null) {
+				db = new DigestDb(dir + "/" + DigestDb.DEFAULT_DB_FILE);
+				db.setDebug(isDebug());
+				db.setVerbose(isVerbose());
+			}
+
+			taskCache = new TaskCache(dir, getLong(TASK_CACHE_MAX_SIZE, TaskCache.DEFAULT_MAX_SIZE), db);
+			taskCache.setHardLink(getBool(TASK_CACHE_HARD_LINK, false));
+			taskCache.setDebug(isDebug());
+			taskCache.setVerbose(isVerbose());
+		}
+		return taskCache;
+	}
+
 	public int getTaskFailCount() {
 		return taskFailCount;
 	}
 
+	public TaskDirLayout getTaskDirLayout() {
+		if (taskDirLayout == null) {
+			TaskDirLayout.Layout layout = TaskDirLayout.Layout.parseSafe(getString(TASK_DIR_LAYOUT, "flat"));
+			taskDirLayout = new TaskDirLayout(layout, (int) getLong(TASK_DIR_FAN_OUT, TaskDirLayout.DEFAULT_FAN_OUT));
+		}
+		return taskDirLayout;
+	}
+
 	public TaskLogger getTaskLogger() {
 		if (taskLogger == null) {
 			taskLogger = new TaskLogger(getPidFile());
 			taskLogger.setDebug(isDebug());
+			taskLogger.setFlushWindow(getLong(TASK_LOGGER_FLUSH_WINDOW, TaskLogger.DEFAULT_FLUSH_WINDOW));
 		}
 		return taskLogger;
 	}
 
+	public String getHostPlacement() {
+		return getString(HOST_PLACEMENT, "firstFit");
+	}
+
+	public String getTaskPriority() {
+		return getString(TASK_PRIORITY, "fifo");
+	}
+
 	public int getTaskMaxHintLen() {
 		if (taskMaxHintLen == null) {
 			taskMaxHintLen = Gpr.parseIntSafe(properties.getProperty(TASK_MAX_HINT_LEN, Task.MAX_HINT_LEN + ""));
@@ -394,6 +558,10 @@ public class Config {
 		return waitTextFileBusy;
 	}
 
+	public boolean isExecutionerEventDriven() {
+		return executionerEventDriven;
+	}
+
 	public boolean isDebug() {
 		return debug;
 	}
@@ -445,9 +613,21 @@ public class Config {
 		}
 
 		if (monitorTask != null) {
-			// monitorTask.kill();
+			monitorTask.kill();
 			monitorTask = null;
 		}
+
+		if (directoryWatcher != null) {
+			directoryWatcher.close();
+			directoryWatcher = null;
+		}
+		directoryWatcherCreated = false;
+
+		if (localLauncher != null) {
+			localLauncher.close();
+			localLauncher = null;
+		}
+		localLauncherCreated = false;
 	}
 
 	/**
@@ -457,6 +637,7 @@ public class Config {
 		noCheckpoint = getBool(DISABLE_CHECKPOINT_CREATE, false);
 		noRmOnExit = getBool(DISABLE_RM_ON_EXIT, false);
 		showTaskCode = getBool(SHOW_TASK_CODE, false);
+		executionerEventDriven = getBool(EXECUTIONER_EVENT_DRIVEN, true);
 		tailLines = (int) getLong(TAIL_LINES, TailFile.DEFAULT_TAIL);
 
 		// Split and add all items
@@ -516,6 +697,10 @@ public class Config {
 		this.dryRun = dryRun;
 	}
 
+	public void setExecutionerEventDriven(boolean executionerEventDriven) {
+		this.executionerEventDriven = executionerEventDriven;
+	}
+
 	public void setExtractSource(boolean extractSource) {
 		this.extractSource = extractSource;
 	}
@@ -0,0 +1,109 @@
+package org.bds.cluster;
+
+import java.util.List;
+
+import org.bds.cluster.host.Host;
+import org.bds.cluster.host.HostResources;
+import org.bds.task.Task;
+import org.bds.util.Timer;
+
+/**
+ * Host placement policy: Select a host to run a task
+ *
+ * Each policy gives a score to every host that has enough resources
+ * available to run the task, the host with the lowest score is selected.
+ *
+ * @author pcingola
+ */
+public abstract class HostPlacement {
+
+	/**
+	 * Available placement policies
+	 */
+	public enum PlacementPolicy {
+		FIRST_FIT // First host having enough resources
+		, BEST_FIT // Host having the least resources left after placing the task (bin packing)
+		, HEALTH // Least loaded host, weighted by host's health (load average, memory usage)
+		;
+
+		/**
+		 * Parse a placement policy name (e.g. 'bestFit')
+		 * @return Corresponding PlacementPolicy or FIRST_FIT if there is any error
+		 */
+		public static PlacementPolicy parseSafe(String name) {
+			if (name == null || name.isEmpty()) return FIRST_FIT;
+			try {
+				return PlacementPolicy.valueOf(name.trim().replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase());
+			} catch (Exception e) {
+				Timer.showStdErr("Unknown host placement '" + name + "', using 'firstFit'");
+				return FIRST_FIT;
+			}
+		}
+	}
+
+	/**
+	 * Create a placement policy
+	 */
+	public static HostPlacement factory(PlacementPolicy policy) {
+		switch (policy) {
+		case FIRST_FIT:
+			return new HostPlacementFirstFit();
+
+		case BEST_FIT:
+			return new HostPlacementBestFit();
+
+		case HEALTH:
+			return new HostPlacementHealth();
+
+		default:
+			throw new RuntimeException("Unknown placement policy '" + policy + "'");
+		}
+	}
+
+	/**
+	 * Fraction of resources left after placing the task (cpus and memory)
+	 */
+	protected static double leftover(Host host, Task task) {
+		HostResources total = host.getResources();
+		HostResources avail = host.getResourcesAvaialble();
+		HostResources req = task.getResources();
+
+		double left = 0;
+		if (total.getCpus() > 0) left += ((double) (avail.getCpus() - Math.max(req.getCpus(), 0))) / total.getCpus();
+		if (total.getMem() > 0 && avail.getMem() > 0) left += ((double) (avail.getMem() - Math.max(req.getMem(), 0))) / total.getMem();
+		return left;
+	}
+
+	/**
+	 * Should the largest task that does not fit reserve a host (so
+	 * that smaller tasks don't keep it waiting forever)?
+	 */
+	public boolean isReserve() {
+		return true;
+	}
+
+	/**
+	 * Score for running 'task' on 'host' (lower is better)
+	 */
+	protected abstract double score(Host host, Task task);
+
+	/**
+	 * Select a host to run the task
+	 * @param hosts : Hosts having enough resources available to run the task
+	 * @return Selected host (null if none)
+	 */
+	public Host select(Task task, List<Host> hosts) {
+		Host best = null;
+		double bestScore = Double.MAX_VALUE;
+		for (Host host : hosts) {
+			double score = score(host, task);
+			if (Double.isNaN(score) || Double.isInfinite(score)) continue; // Host should not be used
+			if (best == null || score < bestScore || (score == bestScore && host.compareTo(best) < 0)) {
+				best = host;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+}
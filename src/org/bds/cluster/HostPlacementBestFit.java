@@ -0,0 +1,22 @@
+package org.bds.cluster;
+
+import org.bds.cluster.host.Host;
+import org.bds.task.Task;
+
+/**
+ * Host placement: Best fit bin packing
+ *
+ * Select the host having the least resources left after placing
+ * the task, so that hosts having many free resources are kept for
+ * large tasks.
+ *
+ * @author pcingola
+ */
+public class HostPlacementBestFit extends HostPlacement {
+
+	@Override
+	protected double score(Host host, Task task) {
+		return leftover(host, task);
+	}
+
+}
@@ -0,0 +1,30 @@
+package org.bds.cluster;
+
+import java.util.List;
+
+import org.bds.cluster.host.Host;
+import org.bds.task.Task;
+
+/**
+ * Host placement: First host having enough resources
+ *
+ * @author pcingola
+ */
+public class HostPlacementFirstFit extends HostPlacement {
+
+	@Override
+	public boolean isReserve() {
+		return false;
+	}
+
+	@Override
+	protected double score(Host host, Task task) {
+		return 0;
+	}
+
+	@Override
+	public Host select(Task task, List<Host> hosts) {
+		return hosts.isEmpty() ? null : hosts.get(0);
+	}
+
+}
@@ -0,0 +1,65 @@
+package org.bds.cluster;
+
+import org.bds.cluster.healthCondition.HealthCondition.Light;
+import org.bds.cluster.healthCondition.HealthConditionLoadAvgByCpu;
+import org.bds.cluster.healthCondition.HealthConditionMem;
+import org.bds.cluster.host.Host;
+import org.bds.cluster.host.HostHealth;
+import org.bds.cluster.host.HostResources;
+import org.bds.cluster.host.HostSsh;
+import org.bds.task.Task;
+
+/**
+ * Host placement: Health weighted score
+ *
+ * Select the least loaded host. The score is the fraction of cpus
+ * allocated to tasks plus host's health (load average by cpu, memory
+ * usage). Hosts in 'yellow' condition are penalized and hosts in 'red'
+ * condition are not used (unless the cluster allows it).
+ *
+ * Host's health is only available for ssh hosts, other hosts are
+ * scored by allocation only.
+ *
+ * @author pcingola
+ */
+public class HostPlacementHealth extends HostPlacement {
+
+	public static final double MAX_LOAD_BY_CPU = 2.0; // Cap load average (by cpu) contribution to score
+	public static final double YELLOW_PENALTY = 1.0; // Score penalty for hosts in 'yellow' condition
+
+	/**
+	 * Score based on host's health (only for ssh hosts)
+	 */
+	protected double healthScore(HostSsh host) {
+		HostHealth health = host.getHealth();
+		if (health == null || host.getCluster() == null) return 0;
+
+		Light loadLight = new HealthConditionLoadAvgByCpu(host).test();
+		Light memLight = new HealthConditionMem(host).test();
+		if (loadLight == Light.Red || memLight == Light.Red) {
+			if (host.getCluster().isDoNotRunOnRed()) return Double.POSITIVE_INFINITY;
+		}
+
+		double score = 0;
+		int cpus = host.getResources().getCpus();
+		if (cpus > 0) score += Math.min(MAX_LOAD_BY_CPU, health.getLoadAvg() / cpus);
+		score += health.getMemUsage();
+		if (loadLight != Light.Green || memLight != Light.Green) score += YELLOW_PENALTY;
+		return score;
+	}
+
+	@Override
+	protected double score(Host host, Task task) {
+		// Fraction of cpus allocated after placing the task
+		double score = 0;
+		HostResources total = host.getResources();
+		if (total.getCpus() > 0) {
+			HostResources avail = host.getResourcesAvaialble();
+			score += 1.0 - ((double) (avail.getCpus() - Math.max(task.getResources().getCpus(), 0))) / total.getCpus();
+		}
+
+		if (host instanceof HostSsh) score += healthScore((HostSsh) host);
+		return score;
+	}
+
+}
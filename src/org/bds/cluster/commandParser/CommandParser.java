@@ -42,20 +42,41 @@ public class CommandParser {
 		return sb.toString();
 	}
 
+	/**
+	 * Command to execute (including section markers)
+	 */
+	public String getCmd() {
+		return cmd;
+	}
+
 	public void parse() {
 		parse(true);
 	}
 
 	/**
-	 * Parse command's output
+	 * Run command (via ssh) and parse command's output
 	 */
 	public void parse(boolean updateAlive) {
+		String result = null;
 		try {
 			//---
 			// Connect and get answer from server
 			//---
 			Ssh ssh = new Ssh(host);
-			String result = ssh.exec(cmd);
+			result = ssh.exec(cmd);
+		} catch (Exception e) {
+			if (debug) Gpr.debug("Error trying to connect:\n" + e);
+		}
+
+		parseResult(result, updateAlive);
+	}
+
+	/**
+	 * Parse command's output
+	 * @param result : Command's output (null or empty if the command could not be executed)
+	 */
+	public void parseResult(String result, boolean updateAlive) {
+		try {
 			if (debug) Gpr.debug("\n---------- RESULT:Start ----------\n" + result + "---------- RESULT:End ----------");
 
 			// Parse results (if any)
@@ -65,7 +86,7 @@ public class CommandParser {
 				//---
 				String command = null;
 
-				result.replace('\r', ' ');
+				result = result.replace('\r', ' ');
 				String res[] = result.split("\n");
 				ArrayList<String> lines = new ArrayList<String>();
 
@@ -97,8 +118,8 @@ public class CommandParser {
 			String key = this.getClass().getSimpleName().substring("CommandParser".length()); // Command parser name (minus the 'CommandParser' prefix)
 			host.getHealth().setNote(key, result);
 		} catch (Exception e) {
-			if (debug) Gpr.debug("Error trying to connect:\n" + e);
-			// Could not connect
+			if (debug) Gpr.debug("Error parsing results:\n" + e);
+			// Could not parse
 			host.getHealth().setAlive(false);
 		}
 	}
@@ -114,6 +135,7 @@ public class CommandParser {
 	 */
 	public void parse(String command, ArrayList<String> lines) {
 		String cmdResult[] = lines.toArray(EMPTY_STRING_ARRAY);
+		if (cmdResult.length == 0) return; // No output (e.g. command not available in this system)
 
 		CommandParser cp = null;
 
@@ -19,7 +19,7 @@ public class HealthConditionLoadAvgByCpu extends HealthCondition {
 
 		double loadAvgByCpu = host.getHealth().getLoadAvg() / cpus;
 		if (loadAvgByCpu >= healthRed.getLoadAvg()) return Light.Red;
-		if (loadAvgByCpu >= healthRed.getLoadAvg()) return Light.Yellow;
+		if (loadAvgByCpu >= healthYellow.getLoadAvg()) return Light.Yellow;
 		return Light.Green;
 	}
 }
@@ -1,98 +1,294 @@
 package org.bds.cluster.host;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.bds.cluster.ClusterSsh;
 import org.bds.cluster.commandParser.CommandParser;
-import org.bds.cluster.commandParser.CommandParserCpuInfo;
-import org.bds.cluster.commandParser.CommandParserSystemProfiler;
-import org.bds.cluster.commandParser.CommandParserUname;
+import org.bds.osCmd.Ssh;
 import org.bds.util.Gpr;
 
 /**
- * Update host's info every now and then (in a separate thread)
+ * Update host's info every now and then
+ *
+ * All hosts are updated by a shared scheduler (instead of one thread
+ * per host). Each update runs a single probe (one remote command)
+ * including all the metrics that are due, and parses all the results
+ * in one pass.
+ *
+ * Each metric has its own update interval, which adapts to how fast
+ * the metric changes: The interval is halved when the metric changes
+ * and increased when it doesn't (between 'minInterval' and 'maxInterval').
+ * Information that doesn't change (e.g. system type, cpus) is obtained
+ * only once.
  *
  * @author pcingola
  */
-public class HostHealthUpdater extends Thread {
+public class HostHealthUpdater implements Runnable {
 
 	public static boolean debug = false;
 
+	public static final int SCHEDULER_THREADS = 4; // Number of threads used to update all hosts
+	public static final double CHANGE_THRESHOLD = 0.1; // Relative change that is considered a 'change'
+	public static final double INTERVAL_INCREASE = 1.5; // Interval multiplier when a metric doesn't change
+	public static final double MIN_INTERVAL_FACTOR = 0.25; // Minimum interval (relative to cluster's refresh time)
+	public static final double MAX_INTERVAL_FACTOR = 4.0; // Maximum interval (relative to cluster's refresh time). Should be less than HostHealth.REFRESH_MULTIPLIER
+
+	private static ScheduledExecutorService scheduler;
+
+	/**
+	 * Metrics obtained from a probe
+	 */
+	enum Metric {
+		NONE, LOAD, MEM, USERS, FS
+	}
+
+	/**
+	 * A command used to obtain one metric
+	 */
+	class Probe {
+		String command;
+		String systemType; // Only run in this type of system (null means any)
+		Metric metric;
+		boolean once; // Only run once (information does not change)
+		boolean done; // Run once and finished
+		long interval; // Update interval (milliseconds)
+		long next; // Next update time
+		double value = Double.NaN; // Latest metric value
+
+		Probe(String command, String systemType, Metric metric, boolean once) {
+			this.command = command;
+			this.systemType = systemType;
+			this.metric = metric;
+			this.once = once;
+		}
+
+		/**
+		 * Metric's value (from host's health)
+		 */
+		double currentValue() {
+			HostHealth health = host.getHealth();
+			switch (metric) {
+			case LOAD:
+				return health.getLoadAvg();
+			case MEM:
+				return health.getMemUsage();
+			case USERS:
+				return health.getLoggedInUsersCount();
+			case FS:
+				return health.getFsAvail();
+			default:
+				return Double.NaN;
+			}
+		}
+
+		/**
+		 * Should this probe be run?
+		 */
+		boolean isDue(long now, String systemType) {
+			if (done) return false;
+			if (this.systemType != null && !systemType.isEmpty() && !this.systemType.equalsIgnoreCase(systemType)) return false; // Not for this system
+			return next <= now;
+		}
+
+		/**
+		 * Probe was run: Update interval depending on how much the metric changed
+		 */
+		void updated(long now) {
+			if (once) {
+				done = true;
+				return;
+			}
+
+			double newValue = currentValue();
+			if (!Double.isNaN(value)) {
+				double delta = Math.abs(newValue - value);
+				boolean changed = delta > CHANGE_THRESHOLD * Math.max(Math.abs(value), 1.0);
+				if (changed) interval = Math.max(minInterval(), interval / 2);
+				else interval = Math.min(maxInterval(), (long) (interval * INTERVAL_INCREASE));
+			}
+			value = newValue;
+			next = now + interval;
+		}
+	}
+
 	HostSsh host;
-	boolean run = true;
-	String systemType;
+	volatile boolean run = true;
+	boolean started;
+	List<Probe> probes;
+	ScheduledFuture<?> future;
+
+	/**
+	 * Shared scheduler for all hosts
+	 */
+	static synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			final AtomicInteger count = new AtomicInteger();
+			scheduler = Executors.newScheduledThreadPool(SCHEDULER_THREADS, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "HostHealthUpdater-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return scheduler;
+	}
 
 	public HostHealthUpdater(HostSsh host) {
-		super();
 		this.host = host;
+
+		// Commands used to obtain host's information.
+		// Note: Commands for other systems fail silently and produce no output (we don't know the system type until the first probe)
+		probes = new ArrayList<Probe>();
+		probes.add(new Probe("uname", null, Metric.NONE, true));
+		probes.add(new Probe("cat /proc/cpuinfo 2>/dev/null", "Linux", Metric.NONE, true));
+		probes.add(new Probe("sysctl hw machdep.cpu 2>/dev/null", "Darwin", Metric.NONE, true));
+		probes.add(new Probe("uptime", null, Metric.LOAD, false));
+		probes.add(new Probe("who", null, Metric.USERS, false));
+		probes.add(new Probe("df -kl", null, Metric.FS, false));
+		probes.add(new Probe("cat /proc/meminfo 2>/dev/null", "Linux", Metric.MEM, false));
+		probes.add(new Probe("top -l 1 2>/dev/null", "Darwin", Metric.MEM, false));
+
+		for (Probe p : probes)
+			p.interval = refreshTime();
 	}
 
 	/**
-	 * Connect to host (via ssh) and execute several commands in order to obtain host's information
+	 * Combine all probes that are due into one command
+	 * @return A command or null if there is nothing to run
 	 */
-	void info() {
-		if (debug) Gpr.debug("Info\tHost: " + host);
+	String createProbeCommand(List<Probe> due) {
+		if (due.isEmpty()) return null;
+
+		StringBuilder sb = new StringBuilder();
+		for (Probe p : due) {
+			if (sb.length() > 0) sb.append(";");
+			sb.append(p.command);
+		}
+		return sb.toString();
+	}
 
-		// Information that is obtained only once
-		new CommandParserUname(host).parse(false); // System type
-		systemType = host.getHealth().getSystemType();
+	/**
+	 * Probes that should be run now
+	 */
+	List<Probe> dueProbes(long now) {
+		String systemType = host.getHealth().getSystemType();
+		List<Probe> due = new ArrayList<Probe>();
+		for (Probe p : probes)
+			if (p.isDue(now, systemType)) due.add(p);
+		return due;
+	}
 
-		// Run next command
-		if (systemType.equalsIgnoreCase("Linux")) new CommandParserCpuInfo(host).parse(false);
-		else if (systemType.equalsIgnoreCase("Darwin")) new CommandParserSystemProfiler(host).parse(false);
+	/**
+	 * Execute a command in the remote host
+	 */
+	protected String exec(String command) {
+		return new Ssh(host).exec(command);
 	}
 
 	/**
-	 * Stop execution of this thread
+	 * Stop updating this host
 	 */
-	public void kill() {
-		setRun(false); // Set run to false and wake up from 'wait'. See run() method
-		synchronized (this) {
-			notifyAll();
+	public synchronized void kill() {
+		run = false;
+		if (future != null) future.cancel(false);
+	}
+
+	long maxInterval() {
+		return (long) (MAX_INTERVAL_FACTOR * refreshTime());
+	}
+
+	long minInterval() {
+		return Math.max(1, (long) (MIN_INTERVAL_FACTOR * refreshTime()));
+	}
+
+	/**
+	 * Time until next probe is due (milliseconds)
+	 */
+	long nextDelay(long now) {
+		long next = Long.MAX_VALUE;
+		String systemType = host.getHealth().getSystemType();
+		for (Probe p : probes) {
+			if (p.done) continue;
+			if (p.systemType != null && !systemType.isEmpty() && !p.systemType.equalsIgnoreCase(systemType)) continue;
+			next = Math.min(next, p.next);
 		}
+		if (next == Long.MAX_VALUE) return refreshTime();
+		return Math.max(0, next - now);
+	}
+
+	/**
+	 * Refresh time (milliseconds)
+	 */
+	long refreshTime() {
+		ClusterSsh cluster = (ClusterSsh) host.getCluster();
+		return (cluster != null ? cluster.getRefreshTime() : 60) * 1000;
 	}
 
 	@Override
 	public void run() {
 		try {
-			while (run) {
-				// This should be run only once
-				if (systemType == null) info();
-				if (run) update();
-
-				// I'd rather sleep this way in order to allow for notifications (i.e. 'wake up call')
-				synchronized (this) {
-					ClusterSsh cluster = (ClusterSsh) host.getCluster();
-					wait(cluster.getRefreshTime() * 1000);
-				}
-			}
-		} catch (Exception t) {
-			t.printStackTrace(); // Something happened? => Stop this thread
-		} finally {
-			run = false;
+			if (run) update();
+		} catch (Throwable t) {
+			t.printStackTrace(); // Something happened? => Try again later
 		}
+
+		// Schedule next update
+		schedule(nextDelay(System.currentTimeMillis()));
 	}
 
-	public void setRun(boolean run) {
-		this.run = run;
+	synchronized void schedule(long delay) {
+		if (!run) return;
+		future = getScheduler().schedule(this, delay, TimeUnit.MILLISECONDS);
 	}
 
 	/**
-	 * Connect to host (via ssh) and execute several commands in order to update host's information
-	 * (e.g. cpu information does not usually change, so it's not obtained)
+	 * Start updating host's information
 	 */
-	void update() {
-		// We don't have system info yet?
-		if (systemType == null) return;
+	public synchronized void start() {
+		if (started) return;
+		started = true;
+		schedule(0);
+	}
 
-		if (debug) Gpr.debug("Update: Start\tHost: " + host + "\talive: " + host.getHealth().isAlive());
+	boolean update() {
+		return update(System.currentTimeMillis());
+	}
 
-		// Select which command parsers to run depending on system type
-		CommandParser commandParser = null;
-		if (systemType.equalsIgnoreCase("Linux")) commandParser = new CommandParser(host, "uptime;df;who;uname -a;cat /proc/meminfo");
-		else if (systemType.equalsIgnoreCase("Darwin")) commandParser = new CommandParser(host, "uptime;df;who;uname -a;top -l 1");
-		else return;
+	/**
+	 * Connect to host (via ssh) and execute one command in order to update host's
+	 * information (only metrics that are due at time 'now' are updated)
+	 * @return true if a probe was run
+	 */
+	public boolean update(long now) {
+		List<Probe> due = dueProbes(now);
+		String command = createProbeCommand(due);
+		if (command == null) return false;
 
-		// Run command parser (updates host health)
-		commandParser.parse();
+		if (debug) Gpr.debug("Update: Start\tHost: " + host + "\talive: " + host.getHealth().isAlive() + "\tcommand: " + command);
+
+		// Run command and parse results (updates host health)
+		CommandParser commandParser = new CommandParser(host, command);
+		commandParser.parseResult(exec(commandParser.getCmd()), true);
+
+		// Update probes (only if we could connect, otherwise re-try later)
+		if (host.getHealth().isAlive()) {
+			host.getHealth().setLatestUpdate(new Date().getTime());
+			for (Probe p : due)
+				p.updated(now);
+		} else {
+			for (Probe p : due)
+				p.next = now + p.interval;
+		}
 
 		if (debug) Gpr.debug("Host info updated: " + host //
 				+ "\nResources: " + host.getResources() //
@@ -100,6 +296,6 @@ public class HostHealthUpdater extends Thread {
 				+ "\nCondition: " + host.getHealth().condition() //
 				);
 
-		if (debug) Gpr.debug("Update: End\tHost: " + host + "\talive: " + host.getHealth().isAlive());
+		return true;
 	}
 }
@@ -5,6 +5,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 
+import org.bds.Config;
+
 /**
  * A data file.
  * Local data files do not require download / uploaded
@@ -51,12 +53,13 @@ public class DataFile extends Data {
 
 	@Override
 	public boolean delete() {
+		Config.get().getFileMetadataCache().invalidate(this);
 		return file.delete();
 	}
 
 	@Override
 	public void deleteOnExit() {
-		file.deleteOnExit();
+		Config.get().getCleanupManager().rmOnExit(file.getAbsolutePath());
 	}
 
 	@Override
@@ -147,6 +150,7 @@ public class DataFile extends Data {
 
 	@Override
 	public boolean mkdirs() {
+		Config.get().getFileMetadataCache().invalidate(this);
 		return file.mkdirs();
 	}
 
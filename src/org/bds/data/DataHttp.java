@@ -147,6 +147,7 @@ public class DataHttp extends DataRemote {
 
 			// Update file's last modified
 			updateLocalFileLastModified();
+			Config.get().getFileMetadataCache().invalidate(localFile);
 
 			return true;
 		} catch (Exception e) {
@@ -58,6 +58,7 @@ public class DataS3 extends DataRemote {
 	public boolean delete() {
 		if (!isFile()) return false; // Do not delete bucket
 		getS3().deleteObject(bucketName, key);
+		Config.get().getFileMetadataCache().invalidate(this);
 		return true;
 	}
 
@@ -107,6 +108,7 @@ public class DataS3 extends DataRemote {
 
 			// Update last modified info
 			updateLocalFileLastModified();
+			Config.get().getFileMetadataCache().invalidate(getLocalPath());
 
 			return true;
 		} catch (Exception e) {
@@ -366,6 +368,7 @@ public class DataS3 extends DataRemote {
 
 		// Upload
 		getS3().putObject(new PutObjectRequest(bucketName, key, file));
+		Config.get().getFileMetadataCache().invalidate(this);
 		return true;
 	}
 }
@@ -0,0 +1,381 @@
+package org.bds.data;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bds.util.Timer;
+
+/**
+ * Content digests used to decide if a dependency needs to be updated
+ * (instead of comparing modification times, which is unreliable when
+ * clocks are skewed, e.g. NFS, or files are copied).
+ *
+ * Two kinds of entries are stored in a (per project) file:
+ * 	- File digests: A file is only hashed again if its size or
+ * 	  modification time changed.
+ * 	- Builds: Input digests used when each output file was created.
+ * 	  An output is up to date if all its inputs have the same digests.
+ *
+ * The file is append only (latest entry wins), and it is compacted on close.
+ *
+ * @author pcingola
+ */
+public class DigestDb {
+
+	public static final String DEFAULT_DB_FILE = ".bds.digests"; // Default database file (in the current directory)
+	public static final String DIGEST_ALGORITHM = "SHA-256";
+	public static final int HASH_THREADS = 4; // Files are hashed in parallel
+	public static final int BUFFER_SIZE = 1024 * 1024; // Read buffer size
+	public static final String TYPE_FILE = "F";
+	public static final String TYPE_BUILD = "B";
+
+	/**
+	 * A file's digest
+	 */
+	static class FileDigest {
+		long size, lastModified;
+		String digest;
+
+		FileDigest(long size, long lastModified, String digest) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.digest = digest;
+		}
+	}
+
+	boolean debug;
+	boolean verbose;
+	String dbFile;
+	Map<String, FileDigest> fileDigests; // Digests by file (absolute, normalized path)
+	Map<String, Map<String, String>> builds; // Input digests (by absolute, normalized path) by output file
+	PrintWriter out;
+	int entries; // Number of entries written (including replaced entries)
+	ExecutorService hashPool;
+	boolean closed;
+
+	public DigestDb(String dbFile) {
+		this.dbFile = dbFile;
+		fileDigests = new HashMap<String, FileDigest>();
+		builds = new HashMap<String, Map<String, String>>();
+
+		final AtomicInteger count = new AtomicInteger();
+		hashPool = Executors.newFixedThreadPool(HASH_THREADS, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "DigestDb-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		load();
+
+		// Compact database on exit
+		Runtime.getRuntime().addShutdownHook(new Thread("DigestDb-close") {
+			@Override
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Absolute (normalized) path, used as key for files and builds
+	 */
+	static String absolutePath(String fileName) {
+		return new File(fileName).toPath().toAbsolutePath().normalize().toString();
+	}
+
+	/**
+	 * Absolute paths (duplicates and aliases, e.g. 'a.txt' and './a.txt', are removed)
+	 */
+	static Set<String> absolutePaths(Collection<String> fileNames) {
+		Set<String> paths = new LinkedHashSet<String>();
+		for (String fileName : fileNames)
+			paths.add(absolutePath(fileName));
+		return paths;
+	}
+
+	/**
+	 * Record input digests used to create 'outputs' (in background)
+	 */
+	public void built(final Collection<String> outputs, final Collection<String> inputs) {
+		if (outputs == null || outputs.isEmpty() || inputs == null || inputs.isEmpty()) return;
+		try {
+			hashPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					// Note: Inputs are usually hashed already (when the dependency was evaluated)
+					Map<String, String> digests = new HashMap<String, String>();
+					for (String in : absolutePaths(inputs)) {
+						String digest = digest(in);
+						if (digest == null) {
+							// Some inputs cannot be hashed: Outputs will be checked using modification times
+							if (verbose) Timer.showStdErr("DigestDb: Cannot calculate digest for input '" + in + "', build information not recorded for outputs " + outputs);
+							return;
+						}
+						digests.put(in, digest);
+					}
+
+					for (String output : outputs)
+						putBuild(output, digests);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Database was closed, nothing to do
+		}
+	}
+
+	/**
+	 * Write all entries (compact) and close database
+	 */
+	public synchronized void close() {
+		if (closed) return;
+		closed = true;
+		hashPool.shutdown();
+		if (out == null) return;
+		out.close();
+		out = null;
+
+		// Many entries were replaced? Compact
+		if (entries <= 2 * (fileDigests.size() + builds.size())) return;
+		String tmpFile = dbFile + ".tmp";
+		try (PrintWriter pw = new PrintWriter(new FileWriter(tmpFile))) {
+			for (String path : fileDigests.keySet())
+				pw.println(line(path, fileDigests.get(path)));
+			for (String output : builds.keySet())
+				pw.println(line(output, builds.get(output)));
+		} catch (IOException e) {
+			if (debug) e.printStackTrace();
+			return;
+		}
+		new File(tmpFile).renameTo(new File(dbFile));
+	}
+
+	/**
+	 * Digest of a file. The file is only hashed if it's new or it
+	 * changed (size or modification time) since it was last hashed
+	 * @return Digest or null if it cannot be calculated (e.g. not a local file)
+	 */
+	public String digest(String fileName) {
+		File file = new File(fileName);
+		if (!file.isFile()) return null;
+		String path = absolutePath(fileName);
+		long size = file.length();
+		long lastModified = file.lastModified();
+
+		// Fast path: File didn't change
+		synchronized (this) {
+			FileDigest fd = fileDigests.get(path);
+			if (fd != null && fd.size == size && fd.lastModified == lastModified) return fd.digest;
+		}
+
+		// Calculate digest
+		String digest = hash(file);
+		if (digest == null) return null;
+		putFileDigest(path, new FileDigest(size, lastModified, digest));
+		return digest;
+	}
+
+	/**
+	 * Calculate digests for all files (in parallel)
+	 * @return Digests by file or null if any digest cannot be calculated
+	 */
+	public Map<String, String> digests(Collection<String> fileNames) {
+		Map<String, String> digests = new LinkedHashMap<String, String>();
+
+		// Hash files in parallel
+		List<Future<String>> futures = new ArrayList<Future<String>>();
+		try {
+			for (final String fileName : fileNames) {
+				futures.add(hashPool.submit(new Callable<String>() {
+					@Override
+					public String call() {
+						return digest(fileName);
+					}
+				}));
+			}
+		} catch (RejectedExecutionException e) {
+			return null; // Database was closed
+		}
+
+		int i = 0;
+		try {
+			for (String fileName : fileNames) {
+				String digest = futures.get(i++).get();
+				if (digest == null) return null;
+				digests.put(fileName, digest);
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			if (debug) e.printStackTrace();
+			return null;
+		}
+
+		return digests;
+	}
+
+	public String getDbFile() {
+		return dbFile;
+	}
+
+	/**
+	 * Hash a file's contents
+	 */
+	String hash(File file) {
+		if (verbose) Timer.showStdErr("DigestDb: Calculating digest for '" + file + "'");
+		try (FileInputStream fis = new FileInputStream(file)) {
+			MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+			FileChannel channel = fis.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				md.update(buffer);
+				buffer.clear();
+			}
+
+			// Convert to hex
+			StringBuilder sb = new StringBuilder();
+			for (byte b : md.digest())
+				sb.append(String.format("%02x", b & 0xff));
+			return sb.toString();
+		} catch (IOException | NoSuchAlgorithmException e) {
+			if (debug) e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Is this output built from these inputs (i.e. all input digests match)?
+	 * @return true if up to date, false if it needs to be updated, null if unknown (no build information)
+	 */
+	public Boolean isUpToDate(Collection<String> outputs, Collection<String> inputs) {
+		// Build information for all outputs
+		List<Map<String, String>> outBuilds = new ArrayList<Map<String, String>>();
+		synchronized (this) {
+			for (String output : outputs) {
+				Map<String, String> build = builds.get(absolutePath(output));
+				if (build == null) return null;
+				outBuilds.add(build);
+			}
+		}
+
+		// Current digests (by absolute path, same as build information)
+		Map<String, String> digests = digests(absolutePaths(inputs));
+		if (digests == null) return null;
+
+		// Compare
+		for (Map<String, String> build : outBuilds) {
+			if (build.size() != digests.size()) return false;
+			for (String in : digests.keySet())
+				if (!digests.get(in).equals(build.get(in))) return false;
+		}
+
+		return true;
+	}
+
+	String line(String path, FileDigest fd) {
+		return TYPE_FILE + "\t" + path + "\t" + fd.size + "\t" + fd.lastModified + "\t" + fd.digest;
+	}
+
+	String line(String output, Map<String, String> build) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(TYPE_BUILD + "\t" + output);
+		for (String in : build.keySet())
+			sb.append("\t" + in + "\t" + build.get(in));
+		return sb.toString();
+	}
+
+	/**
+	 * Load database file
+	 */
+	synchronized void load() {
+		if (!new File(dbFile).exists()) return;
+
+		try (BufferedReader in = new BufferedReader(new FileReader(dbFile))) {
+			for (String line = in.readLine(); line != null; line = in.readLine()) {
+				String fields[] = line.split("\t");
+				if (fields[0].equals(TYPE_FILE) && fields.length == 5) {
+					fileDigests.put(fields[1], new FileDigest(Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4]));
+				} else if (fields[0].equals(TYPE_BUILD) && fields.length % 2 == 0) {
+					Map<String, String> build = new HashMap<String, String>();
+					for (int i = 2; i < fields.length; i += 2)
+						build.put(fields[i], fields[i + 1]);
+					builds.put(fields[1], build);
+				} else continue; // Invalid line (e.g. partially written)
+				entries++;
+			}
+		} catch (IOException | NumberFormatException e) {
+			Timer.showStdErr("DigestDb: Error reading file '" + dbFile + "'");
+			if (debug) e.printStackTrace();
+		}
+
+		if (verbose) Timer.showStdErr("DigestDb: Loaded " + fileDigests.size() + " file digests and " + builds.size() + " builds from '" + dbFile + "'");
+	}
+
+	/**
+	 * Record input digests used to create 'output'
+	 */
+	synchronized void putBuild(String output, Map<String, String> digests) {
+		output = absolutePath(output);
+		Map<String, String> build = new HashMap<String, String>();
+		for (String in : digests.keySet())
+			build.put(absolutePath(in), digests.get(in));
+
+		builds.put(output, build);
+		write(line(output, build));
+	}
+
+	synchronized void putFileDigest(String path, FileDigest fd) {
+		fileDigests.put(path, fd);
+		write(line(path, fd));
+	}
+
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Append an entry to database file
+	 */
+	synchronized void write(String line) {
+		if (closed) return;
+		try {
+			if (out == null) out = new PrintWriter(new FileWriter(dbFile, true));
+			out.println(line);
+			out.flush();
+			entries++;
+		} catch (IOException e) {
+			if (debug) e.printStackTrace();
+		}
+	}
+
+}
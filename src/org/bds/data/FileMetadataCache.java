@@ -0,0 +1,170 @@
+package org.bds.data;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache file's metadata (exists, size, modification time, directory listing)
+ *
+ * Evaluating dependencies (e.g. 'task' or '<-') requires checking all
+ * input and output files. When many tasks share the same files (e.g. a
+ * reference genome), the same paths are checked thousands of times.
+ *
+ * Entries are invalidated when:
+ * 	- A task declaring the file as an output finishes
+ * 	- bds writes or deletes the file (e.g. 'write', 'rm', 'sys')
+ * 	- A remote file is downloaded (local copy), uploaded or deleted
+ * 	- The entry is older than 'ttl' milliseconds (the file can be
+ * 	  modified by other processes)
+ *
+ * Metadata is obtained on demand (e.g. remote files are not queried
+ * for 'size' unless it is needed).
+ *
+ * @author pcingola
+ */
+public class FileMetadataCache {
+
+	public static final long DEFAULT_TTL = 2000; // Default time to live (milliseconds)
+	public static final int MAX_ENTRIES = 1000 * 1000; // Cache is cleared when it reaches this size
+
+	/**
+	 * Metadata for one file
+	 */
+	public static class FileMetadata {
+		Data data;
+		long created; // Creation time (milliseconds)
+		Boolean exists, isDirectory, isFile;
+		Long lastModified, size;
+		List<String> list;
+
+		FileMetadata(Data data) {
+			this.data = data;
+			created = System.currentTimeMillis();
+		}
+
+		public synchronized boolean exists() {
+			if (exists == null) exists = data.exists();
+			return exists;
+		}
+
+		public synchronized Date getLastModified() {
+			if (lastModified == null) lastModified = data.getLastModified().getTime();
+			return new Date(lastModified);
+		}
+
+		public synchronized boolean isDirectory() {
+			if (isDirectory == null) isDirectory = data.isDirectory();
+			return isDirectory;
+		}
+
+		public synchronized boolean isFile() {
+			if (isFile == null) isFile = data.isFile();
+			return isFile;
+		}
+
+		/**
+		 * Directory listing
+		 */
+		public synchronized List<String> list() {
+			if (list == null) list = data.list();
+			return list;
+		}
+
+		public synchronized long size() {
+			if (size == null) size = data.size();
+			return size;
+		}
+	}
+
+	long ttl; // Time to live (milliseconds). Zero means no caching
+	ConcurrentHashMap<String, FileMetadata> cache;
+	AtomicLong hits, misses;
+
+	public FileMetadataCache(long ttl) {
+		this.ttl = ttl;
+		cache = new ConcurrentHashMap<String, FileMetadata>();
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+	}
+
+	/**
+	 * Remove all entries (e.g. after running a 'sys' command, which can modify any file)
+	 */
+	public void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Get metadata for a file
+	 */
+	public FileMetadata get(Data data) {
+		if (ttl <= 0) return new FileMetadata(data); // No caching
+
+		String key = data.getAbsolutePath();
+		FileMetadata fm = cache.get(key);
+		if (fm != null && (System.currentTimeMillis() - fm.created) < ttl) {
+			hits.incrementAndGet();
+			return fm;
+		}
+
+		// Not found or expired
+		misses.incrementAndGet();
+		if (cache.size() >= MAX_ENTRIES) cache.clear();
+		fm = new FileMetadata(data);
+		cache.put(key, fm);
+		return fm;
+	}
+
+	/**
+	 * Get metadata for a file (URL or path)
+	 */
+	public FileMetadata get(String fileName) {
+		return get(Data.factory(fileName));
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getTtl() {
+		return ttl;
+	}
+
+	/**
+	 * Invalidate all files
+	 */
+	public void invalidate(Collection<String> fileNames) {
+		if (fileNames == null || cache.isEmpty()) return;
+		for (String fileName : fileNames)
+			invalidate(fileName);
+	}
+
+	/**
+	 * Invalidate a file (and its parent directory's listing)
+	 */
+	public void invalidate(Data data) {
+		if (cache.isEmpty()) return;
+		cache.remove(data.getAbsolutePath());
+		if (!data.isRemote() && data.getParent() != null) cache.remove(data.getParent());
+	}
+
+	/**
+	 * Invalidate a file (URL or path)
+	 */
+	public void invalidate(String fileName) {
+		if (cache.isEmpty()) return;
+		invalidate(Data.factory(fileName));
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+}
@@ -6,6 +6,7 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -24,6 +25,11 @@ import org.bds.util.Timer;
  * The idea is that if a task is killed, removed or somehow is no
  * longer running, we should catch it here (this is the last resort).
  *
+ * The command runs in the executioner's background worker (with a
+ * timeout), so a slow or hung cluster command does not block the
+ * executioner's main loop. Results are applied by the main loop,
+ * tasks that changed state since the command started are ignored.
+ *
  * @author pcingola
  */
 public class CheckTasksRunning {
@@ -31,6 +37,7 @@ public class CheckTasksRunning {
 	public static final int CHECK_TASK_RUNNING_INTERVAL = 60;
 	public static final int TASK_STATE_MIN_START_TIME = 30; // We assume that in less then this number of seconds we might not have a task reported by the cluster system
 	public static final int TASK_NOT_FOUND_DISAPPEARED = 3; // How many times do we have to 'not find' a task to consider it gone
+	public static final int COMMAND_TIMEOUT = CHECK_TASK_RUNNING_INTERVAL; // Kill command if it doesn't finish in this time (seconds)
 
 	protected boolean debug;
 	protected boolean verbose;
@@ -42,6 +49,8 @@ public class CheckTasksRunning {
 	protected Map<String, Integer> missingCount; // How many times was a task missing?
 	protected String pidPatternStr;
 	protected Pattern pidPattern;
+	protected Map<Task, TaskState> tasksChecked; // Tasks running (and their state) when the command was started
+	protected Future<?> checking; // Check running in background
 
 	public CheckTasksRunning(Config config, Executioner executioner) {
 		this.executioner = executioner;
@@ -74,16 +83,34 @@ public class CheckTasksRunning {
 	 * 		iv) If any task was not found, mark it as an finished/error
 	 */
 	public void check() {
+		if (checking != null && !checking.isDone()) return; // Previous check is still running
 		if (!shouldCheck()) return; // Check every now and then
 
-		// Run a command to query running PIDs
-		if (!runCommand()) return;
+		// Tasks to check (only tasks running before the command started)
+		final Map<Task, TaskState> tasks = new HashMap<Task, TaskState>();
+		for (Task task : executioner.getTasksRunning().values())
+			tasks.put(task, task.getTaskState());
+
+		checking = executioner.runBackground(new Runnable() {
+			@Override
+			public void run() {
+				tasksChecked = tasks;
+
+				// Run a command to query running PIDs
+				if (!runCommand()) return;
 
-		// Parse command output, extract all PIDs
-		Set<Task> taskFoundId = parseCommandOutput();
+				// Parse command output, extract all PIDs
+				final Set<Task> taskFoundId = parseCommandOutput();
 
-		// If any 'running' tasks was not not found, mark is as finished ('ERROR')
-		tasksRunning(taskFoundId);
+				// If any 'running' tasks was not not found, mark is as finished ('ERROR')
+				executioner.runMainLoop(new Runnable() {
+					@Override
+					public void run() {
+						tasksRunning(tasks, taskFoundId);
+					}
+				});
+			}
+		});
 	}
 
 	/**
@@ -93,7 +120,7 @@ public class CheckTasksRunning {
 		HashSet<Task> tasks = new HashSet<Task>();
 
 		// Find task by PID
-		for (Task t : executioner.getTasksRunning().values()) {
+		for (Task t : tasksChecked.keySet()) {
 			String pid = t.getPid();
 
 			if (pid != null) {
@@ -209,9 +236,10 @@ public class CheckTasksRunning {
 
 	/**
 	 *  Use only the first part before '.' as PID
+	 *  Note: Tasks in array jobs also match their array's job ID (part before '[')
 	 */
 	String parsePidPart(String pid) {
-		return pid.split("\\.")[0];
+		return pid.split("[\\.\\[]")[0];
 	}
 
 	/**
@@ -235,7 +263,7 @@ public class CheckTasksRunning {
 		}
 
 		// Execute command
-		cmdExecResult = Exec.exec(args, true);
+		cmdExecResult = Exec.exec(args, true, COMMAND_TIMEOUT);
 		if (debug) Timer.showStdErr("Check task running:" //
 				+ "\n\tCommand    : '" + cmdsb.toString().trim() + "'" //
 				+ "\n\tExit value : " + cmdExecResult.exitValue //
@@ -248,7 +276,7 @@ public class CheckTasksRunning {
 		//---
 
 		// Failed command?
-		if (cmdExecResult.exitValue > 0) {
+		if (cmdExecResult.exitValue > 0 || cmdExecResult.exitValue == Exec.EXITCODE_TIMEOUT) {
 			Timer.showStdErr("WARNING: There was an error executing cluster stat command: '" + cmdsb.toString().trim() + "'.\nExit code: " + cmdExecResult.exitValue);
 			return false;
 		}
@@ -294,12 +322,15 @@ public class CheckTasksRunning {
 
 	/**
 	 * Update tasks according to cluster status
+	 * @param tasks : Tasks running (and their state) when the command was started
 	 */
-	protected synchronized void tasksRunning(Set<Task> taskFoundId) {
+	protected synchronized void tasksRunning(Map<Task, TaskState> tasks, Set<Task> taskFoundId) {
 		LinkedList<Task> finished = null;
 
 		// Any 'running' task that was not found should be marked as finished/ERROR
 		for (Task task : executioner.getTasksRunning().values()) {
+			// Task changed state after the command started? Results are stale
+			if (tasks.get(task) != task.getTaskState()) continue;
 
 			if (!taskFoundId.contains(task) // Task not found by command?
 					&& (task.elapsedSecs() > TASK_STATE_MIN_START_TIME) // Make sure that it's been running for a while (otherwise it might that the task has just started and the cluster is not reporting it yet)
@@ -1,21 +1,88 @@
 package org.bds.executioner;
 
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
 import org.bds.Config;
+import org.bds.task.Task;
+import org.bds.task.TaskState;
 
 /**
  * Check that tasks are still running.
  * Use a 'qstat' command
  *
- * TODO: We should try to implement an XML parsing. Unfortunately, some
- * 		 clusters do not have 'qstat -xml' option (yikes!)
+ * When a ClusterStatePoller is available, the cluster is not queried
+ * by this object: Tasks are checked against the poller's latest
+ * snapshot (shared by all executioners, parsed from structured
+ * output when the cluster supports it).
  *
  * @author pcingola
  */
 public class CheckTasksRunningCluster extends CheckTasksRunning {
 
+	protected ClusterStatePoller statePoller;
+	protected long snapshotSerial; // Latest snapshot checked
+	protected Map<String, Long> missingSince; // When was a task first missing (milliseconds)
+
 	public CheckTasksRunningCluster(Config config, Executioner executioner, String cmdArgs[]) {
 		super(config, executioner);
 		defaultCmdArgs = cmdArgs;
+		missingSince = new HashMap<String, Long>();
+	}
+
+	@Override
+	public void check() {
+		if (statePoller == null) {
+			super.check();
+			return;
+		}
+
+		// Any new snapshot?
+		ClusterStatePoller.Snapshot snapshot = statePoller.getSnapshot();
+		if (snapshot == null || snapshot.serial == snapshotSerial) return;
+		snapshotSerial = snapshot.serial;
+
+		// Tasks to check (only tasks running before the snapshot was taken)
+		Map<Task, TaskState> tasks = new HashMap<Task, TaskState>();
+		for (Task task : executioner.getTasksRunning().values()) {
+			Date start = task.getRunningStartTime();
+			if (start != null && start.getTime() < snapshot.startTime) tasks.put(task, task.getTaskState());
+		}
+
+		// If any 'running' tasks was not not found, mark is as finished ('ERROR')
+		tasksChecked = tasks;
+		Set<Task> taskFoundId = findRunningTaskByPid(snapshot.getJobIds());
+		tasksRunning(tasks, taskFoundId);
+	}
+
+	/**
+	 * Snapshots can be more frequent than CHECK_TASK_RUNNING_INTERVAL, so
+	 * a task must also be missing for a minimum amount of time
+	 */
+	@Override
+	protected boolean incMissingCount(Task task) {
+		long now = System.currentTimeMillis();
+		Long since = missingSince.get(task.getId());
+		if (since == null) {
+			since = now;
+			missingSince.put(task.getId(), since);
+		}
+
+		boolean missing = super.incMissingCount(task);
+		if (statePoller == null) return missing;
+		return missing && (now - since) >= 1000L * CHECK_TASK_RUNNING_INTERVAL * TASK_NOT_FOUND_DISAPPEARED;
+	}
+
+	@Override
+	protected void resetMissingCount(Task task) {
+		super.resetMissingCount(task);
+		missingSince.remove(task.getId());
+	}
+
+	public void setStatePoller(ClusterStatePoller statePoller) {
+		this.statePoller = statePoller;
 	}
 
 }
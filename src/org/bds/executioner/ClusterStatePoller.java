@@ -0,0 +1,421 @@
+package org.bds.executioner;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.bds.osCmd.Exec;
+import org.bds.osCmd.ExecResult;
+import org.bds.util.Timer;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Cluster state: Jobs reported by the cluster's status command (e.g. 'qstat')
+ *
+ * One poller is shared by all executioners using the same status
+ * command, so the cluster system is queried once (instead of once per
+ * executioner). Executioners read the latest snapshot.
+ *
+ * 	- Structured output (XML or JSON) is parsed when the cluster system
+ * 	  supports it. If the structured command fails, the poller falls
+ * 	  back to the plain command and parses columns.
+ * 	- Each snapshot is compared to the previous one: The polling interval
+ * 	  is reduced when jobs change (or new jobs are submitted) and increased
+ * 	  when the cluster is quiet.
+ * 	- Jobs that disappear from the cluster's queue are remembered for a
+ * 	  while (e.g. to provide post-mortem information).
+ *
+ * @author pcingola
+ */
+public class ClusterStatePoller implements Runnable {
+
+	/**
+	 * Status command output format
+	 */
+	public enum Format {
+		TEXT, XML, JSON
+	}
+
+	/**
+	 * Jobs reported by the cluster at one point in time
+	 */
+	public static class Snapshot {
+		public final long serial; // Snapshot number
+		public final long startTime; // Time when the status command was started
+		public final Map<String, String> jobs; // Job information, by job ID (also indexed by the part before the first dot)
+
+		public Snapshot(long serial, long startTime, Map<String, String> jobs) {
+			this.serial = serial;
+			this.startTime = startTime;
+			this.jobs = Collections.unmodifiableMap(jobs);
+		}
+
+		public Set<String> getJobIds() {
+			return jobs.keySet();
+		}
+	}
+
+	public static final int MIN_INTERVAL = 10; // Minimum polling interval (seconds)
+	public static final int MAX_INTERVAL = 2 * CheckTasksRunning.CHECK_TASK_RUNNING_INTERVAL; // Maximum polling interval (seconds)
+	public static final double INTERVAL_INCREASE = 1.5; // Interval multiplier when the cluster is quiet
+	public static final int COMMAND_TIMEOUT = CheckTasksRunning.COMMAND_TIMEOUT; // Kill status command if it doesn't finish in this time (seconds)
+	public static final int GONE_MAX = 10000; // Maximum number of jobs remembered after they leave the queue
+
+	// Elements or attributes identifying a job in XML outputs (SGE 'qstat -xml', PBS/Torque 'qstat -x', Moab 'showq --xml')
+	public static final String XML_JOB_ID[] = { "JB_job_number", "Job_Id", "JobID" };
+	// Fields identifying a job in JSON outputs (Slurm 'squeue --json')
+	public static final String JSON_JOBS = "jobs";
+	public static final String JSON_JOB_ID = "job_id";
+
+	private static Map<String, ClusterStatePoller> pollers = new HashMap<String, ClusterStatePoller>();
+	private static ScheduledExecutorService scheduler;
+
+	boolean debug;
+	String statCommand[]; // Status command (output parsed as columns)
+	volatile String statCommandStructured[]; // Status command producing structured output (null if not supported or failed)
+	Format format; // Format of 'statCommandStructured'
+	CheckTasksRunning columnParser; // Parse columns from 'statCommand'
+	volatile Snapshot snapshot;
+	Map<String, String> gone; // Jobs that left the queue (most recent last)
+	int users; // Executioners using this poller
+	long interval; // Current polling interval (milliseconds)
+	long serial;
+	ScheduledFuture<?> future;
+
+	/**
+	 * Get (or create) a poller for this status command
+	 */
+	public static synchronized ClusterStatePoller get(String statCommand[], String statCommandStructured[], Format format, CheckTasksRunning columnParser) {
+		String key = String.join(" ", statCommand);
+		ClusterStatePoller poller = pollers.get(key);
+		if (poller == null) {
+			poller = new ClusterStatePoller(statCommand, statCommandStructured, format, columnParser);
+			pollers.put(key, poller);
+		}
+		return poller;
+	}
+
+	/**
+	 * Shared scheduler for all pollers
+	 */
+	static synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ClusterStatePoller");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return scheduler;
+	}
+
+	public ClusterStatePoller(String statCommand[], String statCommandStructured[], Format format, CheckTasksRunning columnParser) {
+		this.statCommand = statCommand;
+		this.statCommandStructured = (format != Format.TEXT ? statCommandStructured : null);
+		this.format = format;
+		this.columnParser = columnParser;
+		interval = CheckTasksRunning.CHECK_TASK_RUNNING_INTERVAL * 1000L;
+		gone = new LinkedHashMap<String, String>();
+	}
+
+	/**
+	 * Index a job by ID and by the part before the first dot (e.g. '123.server' => '123')
+	 */
+	void addJob(Map<String, String> jobs, String id, String info) {
+		if (id == null || id.isEmpty()) return;
+		jobs.put(id, info);
+
+		String idPart = id.split("[\\.\\[]")[0];
+		if (!idPart.isEmpty() && !jobs.containsKey(idPart)) jobs.put(idPart, info);
+	}
+
+	/**
+	 * Current polling interval (milliseconds)
+	 */
+	public synchronized long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Information about a job (from the latest snapshot or, if the
+	 * job left the queue, from the last snapshot that reported it)
+	 * @return Job information or null if unknown
+	 */
+	public String getJobInfo(String id) {
+		Snapshot snap = snapshot;
+		if (snap != null && snap.jobs.containsKey(id)) return snap.jobs.get(id);
+
+		synchronized (gone) {
+			return gone.get(id);
+		}
+	}
+
+	/**
+	 * Latest snapshot (null if the cluster was not queried yet)
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	void log(String msg) {
+		Timer.showStdErr(getClass().getSimpleName() + ": " + msg);
+	}
+
+	/**
+	 * Parse status command output
+	 * @return A map of job information by job ID or null on error
+	 */
+	public Map<String, String> parse(String output, Format format) {
+		try {
+			switch (format) {
+			case XML:
+				return parseXml(output);
+
+			case JSON:
+				return parseJson(output);
+
+			default:
+				return parseText(output);
+			}
+		} catch (Exception e) {
+			if (debug) e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Parse JSON output (e.g. Slurm's 'squeue --json')
+	 */
+	protected Map<String, String> parseJson(String output) throws Exception {
+		JsonNode root = new ObjectMapper().readTree(output);
+		JsonNode jobsNode = root.get(JSON_JOBS);
+		if (jobsNode == null || !jobsNode.isArray()) throw new RuntimeException("Cannot find '" + JSON_JOBS + "' array");
+
+		Map<String, String> jobs = new HashMap<String, String>();
+		for (JsonNode job : jobsNode) {
+			JsonNode id = job.get(JSON_JOB_ID);
+			if (id == null) continue;
+
+			StringBuilder sb = new StringBuilder();
+			for (Iterator<Map.Entry<String, JsonNode>> it = job.fields(); it.hasNext();) {
+				Map.Entry<String, JsonNode> field = it.next();
+				if (field.getValue().isContainerNode()) continue;
+				sb.append(field.getKey() + ": " + field.getValue().asText() + "\n");
+			}
+			addJob(jobs, id.asText(), sb.toString());
+		}
+		return jobs;
+	}
+
+	/**
+	 * Parse output as lines and columns (see CheckTasksRunning.parseCommandOutput)
+	 */
+	protected Map<String, String> parseText(String output) {
+		Map<String, String> jobs = new HashMap<String, String>();
+		for (String line : output.split("\n")) {
+			if (line.trim().isEmpty()) continue;
+
+			if (columnParser != null) {
+				String lines[] = { line };
+				for (String pid : columnParser.parseCommandOutput(lines))
+					jobs.put(pid, line);
+			} else addJob(jobs, line.trim().split("\\s+")[0], line);
+		}
+		return jobs;
+	}
+
+	/**
+	 * Parse XML output (e.g. SGE's 'qstat -xml', PBS' 'qstat -x', Moab's 'showq --xml')
+	 * Any element having a job ID (either as an attribute or as a child element) is a job
+	 */
+	protected Map<String, String> parseXml(String output) throws Exception {
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+		DocumentBuilder db = dbf.newDocumentBuilder();
+		db.setErrorHandler(null); // Errors are reported as exceptions (don't print them)
+		Element root = db.parse(new ByteArrayInputStream(output.getBytes())).getDocumentElement();
+
+		Map<String, String> jobs = new HashMap<String, String>();
+		List<Element> elements = new ArrayList<Element>();
+		elements.add(root);
+		while (!elements.isEmpty()) {
+			Element e = elements.remove(elements.size() - 1);
+
+			// Job information: Attributes and child elements having text
+			String id = null;
+			StringBuilder sb = new StringBuilder();
+			NamedNodeMap attrs = e.getAttributes();
+			for (int i = 0; i < attrs.getLength(); i++) {
+				Node attr = attrs.item(i);
+				sb.append(attr.getNodeName() + ": " + attr.getNodeValue() + "\n");
+				if (isXmlJobId(attr.getNodeName())) id = attr.getNodeValue().trim();
+			}
+
+			NodeList children = e.getChildNodes();
+			for (int i = 0; i < children.getLength(); i++) {
+				Node child = children.item(i);
+				if (!(child instanceof Element)) continue;
+				elements.add((Element) child);
+
+				if (((Element) child).getElementsByTagName("*").getLength() == 0) { // Leaf element
+					String value = child.getTextContent().trim();
+					sb.append(child.getNodeName() + ": " + value + "\n");
+					if (isXmlJobId(child.getNodeName())) id = value;
+				}
+			}
+
+			if (id != null) addJob(jobs, id, sb.toString());
+		}
+		return jobs;
+	}
+
+	boolean isXmlJobId(String name) {
+		for (String n : XML_JOB_ID)
+			if (n.equals(name)) return true;
+		return false;
+	}
+
+	/**
+	 * Query cluster and update snapshot
+	 * @return true if the cluster was queried successfully
+	 */
+	public boolean poll() {
+		long startTime = System.currentTimeMillis();
+		Map<String, String> jobs = null;
+
+		// Try structured output first
+		// Note: Commands are not run while holding the lock (they may take a long time)
+		String cmdStructured[] = statCommandStructured;
+		if (cmdStructured != null) {
+			jobs = run(cmdStructured, format);
+			if (jobs == null) {
+				log("WARNING: Cannot parse cluster status (" + format + ") from command '" + String.join(" ", cmdStructured) + "'. Using command '" + String.join(" ", statCommand) + "' instead.");
+				statCommandStructured = null;
+			}
+		}
+
+		if (jobs == null) jobs = run(statCommand, Format.TEXT);
+		if (jobs == null) return false; // Error: Keep previous snapshot
+
+		updateSnapshot(startTime, jobs);
+		return true;
+	}
+
+	/**
+	 * Compare to previous snapshot and update polling interval
+	 */
+	synchronized void updateSnapshot(long startTime, Map<String, String> jobs) {
+		Snapshot prev = snapshot;
+		boolean changed = (prev == null || !prev.jobs.equals(jobs));
+		if (prev != null) {
+			synchronized (gone) {
+				for (Map.Entry<String, String> e : prev.jobs.entrySet())
+					if (!jobs.containsKey(e.getKey())) gone.put(e.getKey(), e.getValue());
+
+				// Forget old jobs
+				for (Iterator<String> it = gone.keySet().iterator(); gone.size() > GONE_MAX && it.hasNext();) {
+					it.next();
+					it.remove();
+				}
+			}
+		}
+
+		// Jobs changed: Poll more often. Otherwise, poll less often
+		if (changed) interval = Math.max(MIN_INTERVAL * 1000L, interval / 2);
+		else interval = Math.min(MAX_INTERVAL * 1000L, (long) (interval * INTERVAL_INCREASE));
+
+		snapshot = new Snapshot(++serial, startTime, jobs);
+		if (debug) log("Snapshot " + serial + ": " + jobs.size() + " entries" + (changed ? " (changed)" : "") + ", next poll in " + (interval / 1000) + " secs.");
+	}
+
+	/**
+	 * Register an executioner: Start polling
+	 */
+	public synchronized void register() {
+		users++;
+		if (users == 1) schedule(0);
+	}
+
+	/**
+	 * Run status command and parse output
+	 * @return A map of job information by job ID or null on error
+	 */
+	protected Map<String, String> run(String cmd[], Format format) {
+		List<String> args = new ArrayList<String>();
+		Collections.addAll(args, cmd);
+
+		ExecResult res = Exec.exec(args, true, COMMAND_TIMEOUT);
+		if (res.exitValue != 0 || (format == Format.TEXT && !res.stdErr.isEmpty())) {
+			log("WARNING: There was an error executing cluster stat command: '" + String.join(" ", cmd) + "'.\nExit code: " + res.exitValue + (res.stdErr.isEmpty() ? "" : "\nSTDERR:\n" + res.stdErr));
+			return null;
+		}
+
+		return parse(res.stdOut, format);
+	}
+
+	@Override
+	public void run() {
+		try {
+			poll();
+		} catch (Throwable t) {
+			t.printStackTrace(); // Something happened? => Try again later
+		}
+
+		synchronized (this) {
+			if (users > 0) schedule(interval);
+		}
+	}
+
+	synchronized void schedule(long delay) {
+		if (future != null) future.cancel(false);
+		future = getScheduler().schedule(this, delay, TimeUnit.MILLISECONDS);
+	}
+
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+	}
+
+	/**
+	 * Jobs were submitted: Poll soon
+	 */
+	public synchronized void submitted() {
+		interval = MIN_INTERVAL * 1000L;
+		if (users <= 0 || future == null) return;
+		if (future.getDelay(TimeUnit.MILLISECONDS) > interval) schedule(interval);
+	}
+
+	/**
+	 * Unregister an executioner: Stop polling when there are no more executioners
+	 */
+	public synchronized void unregister() {
+		users--;
+		if (users <= 0 && future != null) {
+			future.cancel(false);
+			future = null;
+		}
+	}
+
+}
@@ -2,19 +2,34 @@ package org.bds.executioner;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.bds.Config;
 import org.bds.cluster.Cluster;
+import org.bds.cluster.HostPlacement;
 import org.bds.cluster.host.Host;
 import org.bds.cluster.host.HostLocal;
+import org.bds.data.DigestDb;
 import org.bds.osCmd.Cmd;
-import org.bds.osCmd.Exec;
-import org.bds.task.DependencyState;
+import org.bds.osCmd.ProcessReaper;
 import org.bds.task.Tail;
 import org.bds.task.Task;
+import org.bds.task.TaskCache;
 import org.bds.task.TaskState;
 import org.bds.util.Gpr;
 import org.bds.util.TextTable;
@@ -33,18 +48,25 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 	public static final int SLEEP_TIME_MID = 200; // Milliseconds
 	public static final int SLEEP_TIME_SHORT = 10; // Milliseconds
 	public static final int REPORT_INTERVAL = 60; // Interval in seconds
+	public static final int BACKGROUND_STOP_TIMEOUT = 60; // Time to wait for background commands when the executioner finishes (seconds)
 
 	protected boolean debug;
 	protected boolean verbose;
 	protected boolean log;
 	protected boolean running, valid;
+	protected boolean eventDriven; // Wake up main loop on task events (instead of polling)
+	protected boolean eventPending; // An event arrived while the main loop was busy
+	protected final Object eventLock = new Object(); // Main loop waits on this object for task events
 	protected boolean removeTaskCannotExecute; // Should a task be finished if there are no resources to execute it? In most cases yes, but some clusters host are dynamic (they appear and disappear), so even if there are no resources now there might be resources in the future.
 	protected int hostIdx = 0;
-	protected List<Task> tasksToRun; // Tasks queued for execution
+	protected Set<Task> tasksToRun; // Tasks queued for execution
+	protected ReadyQueue readyQueue; // Tasks queued for execution, indexed by dependency state
 	protected Map<Task, Host> tasksSelected; // Tasks that has been selected and it will be immediately start execution in host
+	protected Set<Task> tasksNotRestored; // Tasks whose results could not be restored from the task cache (they must run)
 	protected Map<String, Task> tasksRunning; // Tasks running
 	protected Map<String, Task> tasksDone; // Tasks that fin
-	protected List<Tuple<Task, TaskState>> taskUpdateStates; // Tasks to be updated
+	protected Queue<Tuple<Task, TaskState>> taskUpdateStates; // Task state updates (lock free: any thread adds, main loop applies them)
+	protected Map<Task, LinkedList<TaskState>> taskUpdateStatesPending; // Updates that could not be applied yet (out of order), by task
 	private Map<String, Cmd> cmdById;
 	protected Tail tail;
 	protected Config config;
@@ -54,22 +76,33 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 	protected Timer timer; // Task timer (when was the task started)
 	protected CheckTasksRunning checkTasksRunning;
 	protected LinkedList<Task> finishTask;
+	protected HostPlacement hostPlacement; // How to select a host for a task
+	protected Set<Host> hostsReserved; // Hosts reserved for tasks that did not fit (only while selecting tasks)
+	protected ExecutorService backgroundWorker; // Run slow commands (e.g. cluster status, post-mortem info) outside the main loop
+	protected boolean backgroundStopped;
+	protected Queue<Runnable> backgroundResults; // Apply results from background commands (run by main loop)
 
 	public Executioner(Config config) {
 		super();
 		valid = true;
 		this.config = config;
-		tasksToRun = new ArrayList<Task>();
-		taskUpdateStates = new ArrayList<Tuple<Task, TaskState>>();
+		tasksToRun = new LinkedHashSet<Task>();
+		readyQueue = new ReadyQueue(ReadyQueue.TaskPriority.parseSafe(config.getTaskPriority()));
+		hostPlacement = HostPlacement.factory(HostPlacement.PlacementPolicy.parseSafe(config.getHostPlacement()));
+		taskUpdateStates = new ConcurrentLinkedQueue<Tuple<Task, TaskState>>();
+		taskUpdateStatesPending = new HashMap<Task, LinkedList<TaskState>>();
+		backgroundResults = new ConcurrentLinkedQueue<Runnable>();
 		tail = config.getTail();
 		taskLogger = config.getTaskLogger();
 		tasksSelected = new HashMap<Task, Host>();
+		tasksNotRestored = new HashSet<Task>();
 		tasksRunning = new HashMap<String, Task>();
 		tasksDone = new HashMap<String, Task>();
 		cmdById = new HashMap<String, Cmd>();
 		debug = config.isDebug();
 		verbose = config.isVerbose();
 		removeTaskCannotExecute = true;
+		eventDriven = config.isExecutionerEventDriven();
 
 		// Create a cluster having only one host (this computer)
 		cluster = new Cluster();
@@ -83,12 +116,24 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 		if (verbose) log("Queuing task: " + task.getId());
 		task.state(TaskState.SCHEDULED);
 		tasksToRun.add(task);
+		readyQueue.add(task);
+		wakeUp();
 	}
 
 	protected synchronized void addCmd(Task task, Cmd cmd) {
 		cmdById.put(task.getId(), cmd);
 	}
 
+	/**
+	 * Apply results from background commands (see runBackground)
+	 * Note: Invoked only from the main loop
+	 */
+	protected void backgroundResults() {
+		Runnable result;
+		while ((result = backgroundResults.poll()) != null)
+			result.run();
+	}
+
 	/**
 	 * Count the number of failed tasks
 	 */
@@ -109,6 +154,17 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 		throw new RuntimeException("Unimplemented method for class: " + getClass().getCanonicalName());
 	}
 
+	/**
+	 * Delete a finished task's temporary files (in background)
+	 * Note: STDOUT / STDERR are needed by reports and error messages, so
+	 * they are only deleted if the task finished OK and there are no reports.
+	 * Otherwise they are removed on exit, along with the task's directory
+	 */
+	protected void deleteTmpFiles(Task task) {
+		boolean stdOutErr = task.isDoneOk() && !config.isReportHtml() && !config.isReportYaml();
+		config.getCleanupManager().delete(tmpFiles(task, stdOutErr));
+	}
+
 	/**
 	 * Find a task by ID
 	 */
@@ -129,7 +185,7 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 	 * Start following a running task (e.g. tail STDOUT & STDERR)
 	 */
 	protected synchronized void follow(Task task) {
-		if (taskLogger != null) taskLogger.add(task, this); // Log PID (if any)
+		logTask(task); // Log PID (if any)
 
 		tail.add(task.getStdoutFile(), false);
 		tail.add(task.getStderrFile(), true);
@@ -237,10 +293,21 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 		ArrayList<Task> tokill = new ArrayList<Task>();
 		tokill.addAll(tasksToRun);
 		tokill.addAll(tasksRunning.values());
-		for (Task t : tokill)
-			kill(t);
+		kill(tokill);
 
 		running = valid = false;
+		wakeUp();
+	}
+
+	/**
+	 * Kill tasks
+	 */
+	protected synchronized void kill(List<Task> tasks) {
+		for (Task t : tasks)
+			kill(t);
+
+		// Remove all tasks from PID file at once
+		if (taskLogger != null) taskLogger.remove(tasks);
 	}
 
 	/**
@@ -273,6 +340,25 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 		Timer.showStdErr(getClass().getSimpleName() + " '" + getExecutionerId() + "': " + msg);
 	}
 
+	/**
+	 * Log a task's PID and output files into the PID file
+	 * Note: The entry is synced to disk before returning, so the parent
+	 *       process can kill the task even if we die right after this.
+	 */
+	protected void logTask(Task task) {
+		if (taskLogger == null) return;
+		taskLogger.add(task, this);
+		taskLogger.sync();
+	}
+
+	/**
+	 * Maximum number of IDs in each OS 'kill' command (e.g. 'qdel id1 id2 ...')
+	 * Note: Zero means that the parent process uses its default
+	 */
+	public int osKillBatchSize() {
+		return 0;
+	}
+
 	/**
 	 * Return the appropriate 'kill' command to be used by the OS
 	 * E.g.: For a local task it would be 'kill' whereas for a cluster task it would be 'qdel'
@@ -307,13 +393,15 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 	 * Remove a command (task)
 	 */
 	protected synchronized void removeCmd(Task task) {
-		cmdById.remove(task.getId());
+		Cmd cmd = cmdById.remove(task.getId());
+		if (cmd != null) cmd.releaseAdmission(); // Command may not have finished (e.g. killed before it was executed)
 	}
 
 	/**
 	 * Perform reports, checks and state updates
 	 */
 	protected void reportsChecksUpdates() {
+		backgroundResults();
 		taskUpdateStates();
 
 		// Check if tasks finished running
@@ -352,6 +440,34 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 		if (verbose) log("Finished running");
 	}
 
+	/**
+	 * Run a (slow) command using a background worker, so that the
+	 * main loop is not blocked. Results should be applied using
+	 * 'runMainLoop()'. Background commands run one at a time.
+	 * @return A future or null if background commands are no longer accepted
+	 */
+	public synchronized Future<?> runBackground(Runnable command) {
+		if (backgroundStopped) return null;
+
+		if (backgroundWorker == null) {
+			final String name = "Background-" + getExecutionerId();
+			backgroundWorker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		try {
+			return backgroundWorker.submit(command);
+		} catch (RejectedExecutionException e) {
+			return null;
+		}
+	}
+
 	/**
 	 * Run task queues
 	 */
@@ -368,7 +484,7 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 					if (debug) log("Queue: No more tasks to run.");
 				}
 
-				sleepLong();
+				waitEvent(SLEEP_TIME_LONG);
 			}
 
 		} catch (Throwable t) {
@@ -403,6 +519,8 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 			if (taskHostPair != null) {
 				// Get next task and run it
 				runTask(taskHostPair.first, taskHostPair.second);
+			} else if (eventDriven) {
+				waitEvent(SLEEP_TIME_MID); // Nothing can run now: wait until a task changes state
 			} else {
 				sleepMid();
 			}
@@ -418,6 +536,7 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 	 */
 	protected void runExecutionerLoopAfter() {
 		reportsChecksUpdates(); // Make sure all tasks states are updated
+		stopBackground();
 	}
 
 	/**
@@ -426,22 +545,31 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 	protected void runExecutionerLoopBefore() {
 	}
 
+	/**
+	 * Run in main loop (e.g. apply results from a background command)
+	 */
+	public void runMainLoop(Runnable runnable) {
+		backgroundResults.add(runnable);
+		wakeUp();
+	}
+
 	/**
 	 * Run a task on a given host. I.e. execute command
 	 * @param task : Task to run
 	 * @param host : Host to run task (can be null)
 	 */
 	protected void runTask(Task task, Host host) {
-		if (config.getMaxThreads() > 0) {
-			// Don't run too many threads at once
-			// The reason for this is that we can reach the maximum
-			// number of threads available in the operating system.
-			// If that happens, well get an exception
-			while (Exec.countRunningThreads() >= config.getMaxThreads()) {
-				// Too many threads running? Sleep for a while (block until some threads finish)
-				if (verbose) log("INFO: Too many threads running (limit set to " + config.getMaxThreads() + "). Waiting for some threads to finish.");
-				sleepLong();
-			}
+		// Results may be available from a previous run (restored in background)
+		if (runTaskCached(task, host)) return;
+
+		// Don't run too many commands at once (admission control)
+		// Permits are released by the command when it finishes (see Cmd.stateDone)
+		Semaphore admission = config.getCmdAdmission();
+		while (!admission.tryAcquire()) {
+			// Too many commands running? Wait for a while (block until some commands finish)
+			if (verbose) log("INFO: Too many commands running (limit set to " + config.getMaxThreads() + "). Waiting for some commands to finish.");
+			waitEvent(SLEEP_TIME_LONG);
+			taskUpdateStates(); // Apply updates from finished tasks (e.g. release resources)
 		}
 
 		// TODO: If an exception is thrown here, we should be able to
@@ -449,14 +577,18 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 		Cmd cmd = createRunCmd(task);
 		if (cmd != null) {
 			addCmd(task, cmd);
+			cmd.setAdmission(admission);
 			cmd.setHost(host);
 			cmd.setExecutioner(this);
 			cmd.setTask(task);
 			cmd.setDebug(debug);
-		}
+		} else admission.release();
 
 		host.add(task);
-		if (cmd != null) cmd.start();
+
+		// Launch command using a pooled thread
+		// Note: Local processes do not block the thread until they finish (see ProcessReaper)
+		if (cmd != null) ProcessReaper.get().execute(cmd);
 
 		// Wait some milliseconds?
 		int waitTime = config.getWaitAfterTaskRun();
@@ -469,6 +601,39 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 		}
 	}
 
+	/**
+	 * Restore a task's results from the task cache, instead of running it.
+	 * Looking up the cache (hashing inputs) and restoring outputs (copying
+	 * files) is slow, so it is done in background. The task keeps its host
+	 * until the results are applied by the main loop (see taskRestored,
+	 * taskNotRestored).
+	 * @return true if the task's results are being restored (the task must not run now)
+	 */
+	protected boolean runTaskCached(final Task task, final Host host) {
+		final TaskCache taskCache = config.getTaskCache();
+		if (taskCache == null) return false;
+
+		synchronized (this) {
+			if (tasksNotRestored.remove(task)) return false; // Not in the task cache: Run it
+		}
+
+		Future<?> future = runBackground(new Runnable() {
+			@Override
+			public void run() {
+				final boolean restored = taskCache.restore(task);
+				runMainLoop(new Runnable() {
+					@Override
+					public void run() {
+						if (restored) taskRestored(task, host);
+						else taskNotRestored(task, host);
+					}
+				});
+			}
+		});
+
+		return future != null;
+	}
+
 	/**
 	 * Select next task to run and assign host.
 	 * Note: Some clusters can be viewed as having "single host with almost infinite capacity", so
@@ -477,55 +642,41 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 	 *       many clusters the deciding where to run is trivial.
 	 */
 	protected synchronized Tuple<Task, Host> selectTask() {
-		// Nothing to run?
-		if (tasksToRun.isEmpty()) return null;
+		// Update dependency counts (tasks finished since last time)
+		readyQueue.update();
 
+		// Tasks having failed dependencies cannot run => Finish them
 		finishTask = null;
+		List<Task> failed = readyQueue.drainFailed();
+		if (failed != null) finishTask = new LinkedList<Task>(failed);
 
-		// Try to find a task matching a host
-		for (Task task : tasksToRun) {
-			// Already selected? Skip
-			if (tasksSelected.containsKey(task)) continue;
-
+		// Try to find a 'ready' task (dependencies satisfied) matching a host
+		Tuple<Task, Host> taskHost = null;
+		hostsReserved = null;
+		for (Task task : readyQueue) {
 			// Can we run this task?
-			if (task.canRun()) {
-				// Are dependencies satisfied for this task?
-				DependencyState dep = task.dependencyState();
-				switch (dep) {
-				case OK:
-					break;
-
-				case WAIT:
-					continue;
-
-				case ERROR:
-					// Dependency error => Finish this task
-					if (finishTask == null) finishTask = new LinkedList<Task>();
-					finishTask.add(task);
-					continue; // Do not schedule
-
-				default:
-					throw new RuntimeException("Unimplemented dependency state '" + dep + "'");
+			if (!task.canRun()) continue;
 
-				}
-
-				// Select a suitable host in the cluster that satisfies task resources
-				Tuple<Task, Host> taskHost = selectTask(task);
-				if (taskHost != null) return taskHost;
-			}
+			// Select a suitable host in the cluster that satisfies task resources
+			taskHost = selectTask(task);
+			if (taskHost != null) break;
 		}
+		hostsReserved = null;
+
+		// Selected tasks are no longer 'ready'
+		if (taskHost != null) readyQueue.remove(taskHost.first);
 
-		// These tasks cannot be executed due to "lack of resources"
+		// These tasks cannot be executed due to "lack of resources" or failed dependencies
 		if (finishTask != null) {
 			for (Task task : finishTask) {
+				readyQueue.remove(task);
 				task.setExitValue(Task.EXITCODE_ERROR);
 				taskFinished(task, TaskState.START_FAILED);
 			}
 			finishTask = null;
 		}
 
-		// Cannot run any task in any host
-		return null;
+		return taskHost;
 	}
 
 	/**
@@ -535,8 +686,10 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 		boolean canBeExecuted = false;
 
 		//---
-		// Select the first host in the cluster that satisfies requirements
+		// Find all hosts in the cluster that satisfy requirements
 		//---
+		List<Host> hosts = new ArrayList<Host>();
+		Host reserve = null; // Host to reserve if the task does not fit
 		for (Host host : cluster) {
 			// Host is not alive?
 			if (!host.isAlive()) {
@@ -544,25 +697,50 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 				continue;
 			}
 
+			// Host reserved for another (larger) task?
+			if (hostsReserved != null && hostsReserved.contains(host)) {
+				canBeExecuted = true;
+				continue;
+			}
+
 			// Do we have enough resources to run this task in this host?
 			if (host.getResourcesAvaialble().hasResources(task.getResources())) {
-				// OK, execute this task in this host
-				if (debug) log("Selected task:" //
-						+ "\n\ttask ID        : " + task.getId() //
-						+ "\n\ttask hint      : " + task.getProgramHint()//
-						+ "\n\ttask resources : " + task.getResources() //
-						+ "\n\thost           : " + host //
-						+ "\n\thost resources : " + host.getResourcesAvaialble() //
-				);
-
-				selectTask(task, host); // Add task to host (make sure resources are reserved)
-				return new Tuple<Task, Host>(task, host);
-			} else if (!canBeExecuted) {
-				// Can any host actually run this task?
-				canBeExecuted = host.getResources().hasResources(task.getResources());
+				hosts.add(host);
+			} else if (host.getResources().hasResources(task.getResources())) {
+				// This host can run the task when some of its tasks finish
+				canBeExecuted = true;
+				if (reserve == null || host.getResourcesAvaialble().compareTo(reserve.getResourcesAvaialble()) > 0) reserve = host;
 			}
 		}
 
+		//---
+		// Select a host using placement policy
+		//---
+		Host host = hostPlacement.select(task, hosts);
+		if (host != null) {
+			// OK, execute this task in this host
+			if (debug) log("Selected task:" //
+					+ "\n\ttask ID        : " + task.getId() //
+					+ "\n\ttask hint      : " + task.getProgramHint()//
+					+ "\n\ttask resources : " + task.getResources() //
+					+ "\n\thost           : " + host //
+					+ "\n\thost resources : " + host.getResourcesAvaialble() //
+			);
+
+			selectTask(task, host); // Add task to host (make sure resources are reserved)
+			return new Tuple<Task, Host>(task, host);
+		}
+
+		//---
+		// Task does not fit now: Reserve a host, so that smaller tasks
+		// do not keep this task waiting forever (only for multiple hosts)
+		//---
+		if (reserve != null && hostPlacement.isReserve() && cluster.size() > 1) {
+			if (debug) log("Host '" + reserve + "' reserved for task '" + task.getId() + "'");
+			if (hostsReserved == null) hostsReserved = new HashSet<Host>();
+			hostsReserved.add(reserve);
+		}
+
 		//---
 		// There is no host that can execute this task?
 		//---
@@ -591,6 +769,10 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 		this.debug = debug;
 	}
 
+	public void setEventDriven(boolean eventDriven) {
+		this.eventDriven = eventDriven;
+	}
+
 	public void setLog(boolean log) {
 		this.log = log;
 	}
@@ -623,11 +805,43 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 		}
 	}
 
+	/**
+	 * Wait for background commands to finish and apply their results
+	 */
+	protected void stopBackground() {
+		ExecutorService worker;
+		synchronized (this) {
+			backgroundStopped = true;
+			worker = backgroundWorker;
+		}
+		if (worker == null) return;
+
+		worker.shutdown();
+		try {
+			if (!worker.awaitTermination(BACKGROUND_STOP_TIMEOUT, TimeUnit.SECONDS)) worker.shutdownNow();
+		} catch (InterruptedException e) {
+			worker.shutdownNow();
+		}
+
+		backgroundResults();
+		taskUpdateStates();
+	}
+
+	/**
+	 * A task (from any executioner) is done. Tasks depending on it may be ready to run.
+	 * Note: This is not synchronized, since it is invoked from other executioners
+	 */
+	public void taskDone(Task task) {
+		readyQueue.taskDone(task);
+		wakeUp();
+	}
+
 	/**
 	 * Task finished executing
+	 * Note: This is not synchronized, updates are queued and applied by the main loop (see taskUpdateStates)
 	 */
 	@Override
-	public synchronized void taskFinished(Task task, TaskState taskState) {
+	public void taskFinished(Task task, TaskState taskState) {
 		if (taskState == null) {
 			// Set task state. Infer form exit code if no state is available.
 			// Note: This is the last thing we do in order for wait() methods to
@@ -639,20 +853,52 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 		}
 
 		taskUpdateStates.add(new Tuple<Task, TaskState>(task, taskState));
+		wakeUp();
+	}
+
+	/**
+	 * Task's results could not be restored from the task cache:
+	 * Queue it again, so it runs (as any other task)
+	 * Note: Invoked only from the main loop
+	 */
+	protected synchronized void taskNotRestored(Task task, Host host) {
+		remove(task, host); // Release host
+		if (task.isDone()) return; // E.g. killed while looking up the task cache
+
+		tasksNotRestored.add(task);
+		readyQueue.add(task);
+	}
+
+	/**
+	 * Task's results were restored from the task cache: Finish it.
+	 * The task never runs, so it goes straight to 'finished' (there are
+	 * no STDOUT / STDERR to follow and nothing to monitor)
+	 * Note: Invoked only from the main loop
+	 */
+	protected synchronized void taskRestored(Task task, Host host) {
+		remove(task, host); // Task is not running on this host
+		if (task.isDone()) return; // E.g. killed while restoring results
+
+		if (verbose) log("Task '" + task.getId() + "' results restored from task cache");
+		task.setExitValue(0);
+		task.state(TaskState.STARTED);
+		task.state(TaskState.RUNNING);
+		taskUpdateFinished(task, TaskState.FINISHED);
 	}
 
 	/**
 	 * Move a task from 'tasksToRun' to 'tasksRunning'
 	 */
 	@Override
-	public synchronized void taskRunning(Task task) {
+	public void taskRunning(Task task) {
 		taskUpdateStates.add(new Tuple<Task, TaskState>(task, TaskState.RUNNING));
-
+		wakeUp();
 	}
 
 	@Override
-	public synchronized void taskStarted(Task task) {
+	public void taskStarted(Task task) {
 		taskUpdateStates.add(new Tuple<Task, TaskState>(task, TaskState.STARTED));
+		wakeUp();
 	}
 
 	protected synchronized boolean taskUpdateFinished(Task task, TaskState taskState) {
@@ -674,34 +920,57 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 
 		// Move from 'running' (or 'toRun') to 'done'
 		tasksToRun.remove(task);
+		readyQueue.remove(task);
 		tasksSelected.remove(task);
+		tasksNotRestored.remove(task);
 		tasksRunning.remove(task.getId());
 		tasksDone.put(task.getId(), task);
 
-		// Schedule removal of TMP files (if not logging)
-		if (!log) task.deleteOnExit();
-
 		// Set task state
-		task.state(taskState);
-
-		// Task finished in error condition?
-		if (task.isFailed()) {
-			// Can we re-try?
-			if (!task.isCanFail() && task.canRetry()) {
-				// Retry task
-				log("Task failed, retrying ( " + task.getMaxFailCount() + " remaining retries ): task ID '" + task.getId() + "'" + (verbose ? "\n" : ", ") + task.toString(verbose));
-
-				// Move task form 'taskDone' back to 'tasksToRun' queue
+		// Note: If the task is re-tried, it is reset while holding the task's lock, so
+		//       threads waiting for the task (see Task.waitDone) never see it 'done'
+		String retryMsg = null;
+		synchronized (task) {
+			task.state(taskState);
+
+			// Task finished in error condition? Can we re-try?
+			if (task.isFailed() && !task.isCanFail() && task.canRetry()) {
+				retryMsg = "Task failed, retrying ( " + task.getMaxFailCount() + " remaining retries ): task ID '" + task.getId() + "'" + (verbose ? "\n" : ", ") + task.toString(verbose);
 				task.reset(); // Prepare to re-run task
-				tasksDone.remove(task.getId());
-				tasksToRun.add(task);
-				task.state(TaskState.SCHEDULED);
-			} else {
-				// May be we can look for additional information to asses the error
-				postMortemInfo(task);
 			}
 		}
 
+		if (retryMsg != null) {
+			// Retry task
+			log(retryMsg);
+
+			// Move task form 'taskDone' back to 'tasksToRun' queue
+			tasksDone.remove(task.getId());
+			tasksToRun.add(task);
+			task.state(TaskState.SCHEDULED);
+			readyQueue.add(task);
+			return true;
+		} else if (task.isFailed()) {
+			// May be we can look for additional information to asses the error
+			postMortemInfo(task);
+		}
+
+		// Store results in task cache (before removing TMP files, since they include STDOUT and STDERR)
+		TaskCache taskCache = config.getTaskCache();
+		if (taskCache != null) taskCache.store(task);
+
+		// Remove TMP files (if not logging)
+		if (!log) deleteTmpFiles(task);
+
+		// Record inputs' digests used to create the outputs
+		DigestDb digestDb = config.getDigestDb();
+		if ((digestDb != null) && task.isDoneOk()) digestDb.built(task.getOutputs(), task.getInputs());
+
+		// Notify all executioners: tasks depending on this one may be ready to run
+		readyQueue.done(task);
+		Executioners executioners = Executioners.getInstance();
+		if (executioners != null) executioners.taskDone(task, this);
+
 		return true;
 	}
 
@@ -741,32 +1010,75 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 		return true;
 	}
 
+	/**
+	 * Apply one state update
+	 * @return true if the state could be changed
+	 */
+	protected boolean taskUpdateState(Task task, TaskState state) {
+		if (state.isStarted()) return taskUpdateStarted(task);
+		if (state.isRunning()) return taskUpdateRunning(task);
+		return taskUpdateFinished(task, state);
+	}
+
 	/**
 	 * Update task states
+	 *
+	 * Updates are applied in the order they arrived. An update that cannot be
+	 * applied yet (e.g. 'finished' arrives before 'running') is kept in a per
+	 * task list and re-tried only after another update for the same task succeeds.
 	 */
 	protected synchronized void taskUpdateStates() {
-		if (taskUpdateStates.isEmpty()) return;
-
-		// Get a list ready for next iteration
-		ArrayList<Tuple<Task, TaskState>> taskUpdateStatesNew = new ArrayList<Tuple<Task, TaskState>>();
-
-		// Update each task sequentially, to avoid race conditions
-		for (Tuple<Task, TaskState> taskAndState : taskUpdateStates) {
+		Tuple<Task, TaskState> taskAndState;
+		while ((taskAndState = taskUpdateStates.poll()) != null) {
 			Task task = taskAndState.first;
 			TaskState state = taskAndState.second;
 
-			// Try to change state
-			boolean ok = false;
-			if (state.isStarted()) ok = taskUpdateStarted(task);
-			else if (state.isRunning()) ok = taskUpdateRunning(task);
-			else ok = taskUpdateFinished(task, state);
+			// Could not change state? Keep it until task's state changes
+			if (!taskUpdateState(task, state)) {
+				LinkedList<TaskState> pending = taskUpdateStatesPending.get(task);
+				if (pending == null) {
+					pending = new LinkedList<TaskState>();
+					taskUpdateStatesPending.put(task, pending);
+				}
+				pending.add(state);
+				continue;
+			}
 
-			// Could not change state? Keep task update
-			if (!ok) taskUpdateStatesNew.add(taskAndState);
+			taskUpdateStatesPending(task, state);
 		}
+	}
 
-		// Keep unchanged states for next time
-		taskUpdateStates = taskUpdateStatesNew;
+	/**
+	 * Task's state changed: Re-try updates that could not be applied before
+	 */
+	protected void taskUpdateStatesPending(Task task, TaskState state) {
+		LinkedList<TaskState> pending = taskUpdateStatesPending.get(task);
+		if (pending == null) return;
+
+		// Apply pending updates until none can be applied or the task finished
+		boolean finished = !state.isStarted() && !state.isRunning();
+		for (boolean changed = true; changed && !finished;) {
+			changed = false;
+			for (Iterator<TaskState> it = pending.iterator(); it.hasNext();) {
+				TaskState st = it.next();
+				if (taskUpdateState(task, st)) {
+					it.remove();
+					finished = !st.isStarted() && !st.isRunning();
+					changed = true;
+					break;
+				}
+			}
+		}
+
+		// Task finished: Updates left are stale (they cannot be applied any more)
+		if (pending.isEmpty() || finished) taskUpdateStatesPending.remove(task);
+	}
+
+	/**
+	 * Task's temporary files
+	 */
+	protected List<String> tmpFiles(Task task, boolean stdOutErr) {
+		return task.tmpFiles(stdOutErr);
 	}
 
 	@Override
@@ -820,6 +1132,31 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 		return tt.toString();
 	}
 
+	/**
+	 * Wait until a task event arrives (or 'timeout' milliseconds elapse).
+	 * If the executioner is not event driven, just sleep (polling mode).
+	 * Note: The timeout keeps periodic checks (e.g. MonitorTask, CheckTasksRunning) alive
+	 */
+	void waitEvent(long timeout) {
+		if (!eventDriven) {
+			try {
+				sleep(timeout);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return;
+		}
+
+		synchronized (eventLock) {
+			try {
+				if (!eventPending && running) eventLock.wait(timeout);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			eventPending = false;
+		}
+	}
+
 	/**
 	 * Wait for a task to start
 	 */
@@ -829,4 +1166,15 @@ public abstract class Executioner extends Thread implements NotifyTaskState, Pid
 			sleepShort();
 	}
 
+	/**
+	 * Notify main loop that there is something to do (e.g. a task was added or changed state)
+	 */
+	public void wakeUp() {
+		if (!eventDriven) return;
+		synchronized (eventLock) {
+			eventPending = true;
+			eventLock.notifyAll();
+		}
+	}
+
 }
@@ -1,8 +1,17 @@
 package org.bds.executioner;
 
-import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -13,10 +22,14 @@ import org.bds.cluster.host.HostInifinte;
 import org.bds.cluster.host.HostResources;
 import org.bds.osCmd.Cmd;
 import org.bds.osCmd.CmdCluster;
+import org.bds.osCmd.CmdClusterArray;
 import org.bds.osCmd.Exec;
 import org.bds.osCmd.ExecResult;
 import org.bds.task.Task;
+import org.bds.task.TaskState;
 import org.bds.util.Timer;
+import org.bds.util.TokenBucket;
+import org.bds.util.Tuple;
 
 /**
  * Execute tasks in a MOAB cluster.
@@ -27,10 +40,23 @@ import org.bds.util.Timer;
  */
 public class ExecutionerCluster extends Executioner {
 
+	// Environment variables holding the array index (SGE, Torque, PBS Pro, Moab)
+	public static final String ARRAY_INDEX = "${SGE_TASK_ID:-${PBS_ARRAYID:-${PBS_ARRAY_INDEX:-${MOAB_JOBARRAYINDEX:-0}}}}";
+	public static final int DEFAULT_ARRAY_MAX_SIZE = 1000;
+	public static final int DEFAULT_SUBMIT_THREADS = 4;
+	public static final int DEFAULT_SUBMIT_RETRY = 3;
+	public static final int DEFAULT_SUBMIT_BACKOFF = 1000; // Milliseconds
+	public static final int POST_MORTEM_TIMEOUT = 60; // Kill post-mortem info command if it doesn't finish in this time (seconds)
+	public static final int DEFAULT_KILL_BATCH_SIZE = 100;
+	public static final int KILL_TIMEOUT = 60; // Kill command timeout (seconds)
+	public static final int KILL_THREADS = 4; // Maximum number of kill commands running in parallel
+
 	protected String clusterRunCommand[];
 	protected String clusterKillCommand[];
 	protected String clusterStatCommand[];
 	protected String clusterPostMortemInfoCommand[];
+	protected String clusterStatCommandStructured[]; // Status command producing structured output (null if not supported)
+	protected ClusterStatePoller.Format clusterStatFormat = ClusterStatePoller.Format.TEXT; // Format of 'clusterStatCommandStructured'
 
 	protected String clusterRunCommandStdOutOption = "-o";
 	protected String clusterRunCommandStdErrOption = "-e";
@@ -47,6 +73,16 @@ public class ExecutionerCluster extends Executioner {
 	protected String wallTimeParam;
 
 	protected boolean postMortemDisabled; // Disable post-mortem taks info?
+	protected boolean statStructured; // Use status commands producing structured output (if available)?
+	protected ClusterStatePoller statePoller; // Cluster state (shared by all executioners using the same status command)
+	protected boolean arrayJobs; // Submit tasks sharing resources as array jobs?
+	protected int arrayMaxSize; // Maximum number of tasks in an array job
+	protected int submitRetry; // Number of times a failed submission is re-tried
+	protected long submitBackoff; // Time to wait before re-trying a failed submission
+	protected ExecutorService submitPool; // Threads running submission commands (e.g. 'qsub')
+	protected TokenBucket submitRateLimit; // Limit submission rate (null means unlimited)
+	protected int killBatchSize; // Maximum number of job IDs in each kill command
+	protected List<Future<?>> killCommands = new ArrayList<Future<?>>(); // Kill commands running (see kill())
 
 	public int MIN_EXTRA_TIMEOUT = 15;
 	public int MAX_EXTRA_TIMEOUT = 120;
@@ -62,11 +98,14 @@ public class ExecutionerCluster extends Executioner {
 		String killCommand[] = { "qdel" };
 		String statCommand[] = { "qstat" };
 		String postMortemInfoCommand[] = { "qstat", "-f" };
+		String statCommandStructured[] = { "qstat", "-x" };
 
 		clusterRunCommand = runCommand;
 		clusterKillCommand = killCommand;
 		clusterStatCommand = statCommand;
 		clusterPostMortemInfoCommand = postMortemInfoCommand;
+		clusterStatCommandStructured = statCommandStructured;
+		clusterStatFormat = ClusterStatePoller.Format.XML;
 
 		// Additional command line arguments
 		clusterRunAdditionalArgs = config.getStringArray(Config.CLUSTER_RUN_ADDITIONAL_ARGUMENTS);
@@ -75,6 +114,29 @@ public class ExecutionerCluster extends Executioner {
 		clusterPostMortemAdditionalArgs = config.getStringArray(Config.CLUSTER_POSTMORTEMINFO_ADDITIONAL_ARGUMENTS);
 
 		postMortemDisabled = config.getBool(Config.CLUSTER_POSTMORTEMINFO_DISABLED, false);
+		statStructured = config.getBool(Config.CLUSTER_STAT_STRUCTURED, true);
+
+		// Array jobs are only enabled for cluster systems that support them
+		arrayJobs = false;
+		arrayMaxSize = (int) config.getLong(Config.CLUSTER_ARRAY_MAX_SIZE, DEFAULT_ARRAY_MAX_SIZE);
+
+		// Submission: threads, rate limit and retries
+		int submitThreads = Math.max(1, (int) config.getLong(Config.CLUSTER_SUBMIT_THREADS, DEFAULT_SUBMIT_THREADS));
+		submitPool = Executors.newFixedThreadPool(submitThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ClusterSubmit");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		double submitRate = config.getDouble(Config.CLUSTER_SUBMIT_RATE, 0);
+		if (submitRate > 0) submitRateLimit = new TokenBucket(submitRate, config.getDouble(Config.CLUSTER_SUBMIT_BURST, submitRate));
+
+		submitRetry = (int) config.getLong(Config.CLUSTER_SUBMIT_RETRY, DEFAULT_SUBMIT_RETRY);
+		submitBackoff = config.getLong(Config.CLUSTER_SUBMIT_BACKOFF, DEFAULT_SUBMIT_BACKOFF);
+		killBatchSize = Math.max(1, (int) config.getLong(Config.CLUSTER_KILL_BATCH_SIZE, DEFAULT_KILL_BATCH_SIZE));
 
 		memParam = "mem=";
 		cpuParam = "nodes=1:ppn=";
@@ -146,6 +208,43 @@ public class ExecutionerCluster extends Executioner {
 		}
 	}
 
+	/**
+	 * Command line options to submit an array job of 'size' tasks
+	 */
+	protected String[] arrayArgs(int size) {
+		String args[] = { "-t", "1-" + size };
+		return args;
+	}
+
+	/**
+	 * Job ID of an array job, from the PID reported when submitting it (e.g. '123[].server' => '123')
+	 */
+	public String arrayJobId(String pid) {
+		int idx = pid.indexOf('[');
+		return idx > 0 ? pid.substring(0, idx) : pid;
+	}
+
+	/**
+	 * Key used to group tasks into array jobs: Only tasks
+	 * requesting the same resources can be in the same array
+	 */
+	protected String arrayKey(Task task) {
+		ArrayList<String> args = new ArrayList<String>();
+		addResources(task, args);
+
+		StringBuilder sb = new StringBuilder();
+		for (String arg : args)
+			sb.append(arg + "\t");
+		return sb.toString();
+	}
+
+	/**
+	 * PID of a task within an array job
+	 */
+	public String arrayTaskPid(String jobId, int idx) {
+		return jobId + "[" + idx + "]";
+	}
+
 	/**
 	 * Create bds-exec commnad
 	 */
@@ -198,15 +297,10 @@ public class ExecutionerCluster extends Executioner {
 		return fileName + ".cluster";
 	}
 
-	@Override
-	protected Cmd createRunCmd(Task task) {
-		task.createProgramFile(); // We must create a program file
-
-		if (debug) log("Running task " + task.getId());
-
-		//---
-		// Create command line to dispatch 'task' to the cluster management system
-		//---
+	/**
+	 * Create command line to dispatch a task to the cluster management system
+	 */
+	protected ArrayList<String> clusterRunArgs(Task task, String clusterStdout, String clusterStderr) {
 		ArrayList<String> args = new ArrayList<String>();
 
 		// Append command line arguments
@@ -219,29 +313,36 @@ public class ExecutionerCluster extends Executioner {
 		// Tell cluster to redirect Stdout to a file
 		if (clusterRunCommandStdOutOption != null) {
 			args.add(clusterRunCommandStdOutOption);
-			args.add(clusterStdFile(task.getStdoutFile()));
+			args.add(clusterStdout);
 		}
 
 		// Tell cluster to redirect Stderr to a file
 		if (clusterRunCommandStdErrOption != null) {
 			args.add(clusterRunCommandStdErrOption);
-			args.add(clusterStdFile(task.getStderrFile()));
+			args.add(clusterStderr);
 		}
 
+		return args;
+	}
+
+	@Override
+	protected Cmd createRunCmd(Task task) {
+		task.createProgramFile(); // We must create a program file
+
+		if (debug) log("Running task " + task.getId());
+
+		//---
+		// Create command line to dispatch 'task' to the cluster management system
+		//---
+		ArrayList<String> args = clusterRunArgs(task, clusterStdFile(task.getStdoutFile()), clusterStdFile(task.getStderrFile()));
+
 		//---
 		// Cluster command is feed some parameters via STDIN. This is
 		// similar to running "echo ... | qsub" on a shell.
 		// This part creates those 'stdin' parameters
 		//---
 		String cmdStdin = bdsCommand(task);
-		if (debug) {
-			// Show command string
-			StringBuilder cmdStr = new StringBuilder();
-			for (String arg : args)
-				cmdStr.append(arg + " ");
-
-			log("Running task " + task.getId() + ", command:\n\techo \"" + cmdStdin + "\" | " + cmdStr);
-		}
+		if (debug) log("Running task " + task.getId() + ", command:\n\techo \"" + cmdStdin + "\" | " + commandLine(args));
 
 		//---
 		// Create full command
@@ -252,23 +353,49 @@ public class ExecutionerCluster extends Executioner {
 		return cmd;
 	}
 
-	@Override
-	protected void followStop(Task task) {
-		super.followStop(task);
-
-		// Make sure 'cluster' files are also removed if we are not logging
-		if (!log && (task != null)) {
-			new File(clusterStdFile(task.getStdoutFile())).deleteOnExit();
-			new File(clusterStdFile(task.getStderrFile())).deleteOnExit();
+	/**
+	 * Create a command to dispatch several tasks as an array job.
+	 * The script fed to the cluster (via STDIN) maps the array index to each task's 'bds exec' command
+	 */
+	protected Cmd createRunCmdArray(List<Task> tasks) {
+		Task first = tasks.get(0);
+
+		// Dispatcher script: Array index => task
+		StringBuilder cmdStdin = new StringBuilder();
+		cmdStdin.append("IDX=" + ARRAY_INDEX + "\n");
+		cmdStdin.append("case \"$IDX\" in\n");
+		int idx = 1;
+		for (Task task : tasks) {
+			task.createProgramFile(); // We must create a program file
+			cmdStdin.append("\t" + (idx++) + ") " + bdsCommand(task) + ";;\n");
 		}
+		cmdStdin.append("\t*) echo \"Unknown array index '$IDX'\" 1>&2 ; exit 1 ;;\n");
+		cmdStdin.append("esac\n");
+
+		// All tasks in the array share cluster's STDOUT / STDERR files
+		String clusterStdout = clusterStdFile(first.getStdoutFile() + ".array");
+		String clusterStderr = clusterStdFile(first.getStderrFile() + ".array"); // Removed on exit, along with the task's directory (if not logging)
+
+		ArrayList<String> args = clusterRunArgs(first, clusterStdout, clusterStderr);
+		for (String arg : arrayArgs(tasks.size()))
+			args.add(arg);
+
+		if (debug) log("Running array job (" + tasks.size() + " tasks), command:\n\t" + commandLine(args) + "\n\tSTDIN:\n" + cmdStdin);
+
+		CmdClusterArray cmd = new CmdClusterArray("array_" + first.getId(), args.toArray(Cmd.ARGS_ARRAY_TYPE), tasks, this);
+		cmd.setStdin(cmdStdin.toString());
+		cmd.setReadPid(true); // Cluster reports array's job ID
+		return cmd;
 	}
 
 	@Override
 	protected CheckTasksRunning getCheckTasksRunning() {
 		if (checkTasksRunning == null) {
-			checkTasksRunning = new CheckTasksRunningCluster(config, this, getCommandStat());
-			checkTasksRunning.setDebug(config.isDebug());
-			checkTasksRunning.setVerbose(config.isVerbose());
+			CheckTasksRunningCluster ctr = new CheckTasksRunningCluster(config, this, getCommandStat());
+			ctr.setDebug(config.isDebug());
+			ctr.setVerbose(config.isVerbose());
+			ctr.setStatePoller(getStatePoller());
+			checkTasksRunning = ctr;
 		}
 		return checkTasksRunning;
 	}
@@ -289,6 +416,131 @@ public class ExecutionerCluster extends Executioner {
 		return additionalCommandLineArgs(clusterStatCommand, clusterStatAdditionalArgs);
 	}
 
+	/**
+	 * Status command producing structured output (null if not available)
+	 */
+	public String[] getCommandStatStructured() {
+		if (!statStructured || clusterStatCommandStructured == null) return null;
+		return additionalCommandLineArgs(clusterStatCommandStructured, clusterStatAdditionalArgs);
+	}
+
+	/**
+	 * Get (or create) the poller querying the cluster's state
+	 */
+	protected synchronized ClusterStatePoller getStatePoller() {
+		if (statePoller == null) {
+			String cmdStat[] = getCommandStat();
+			if (cmdStat.length <= 0) return null;
+
+			statePoller = ClusterStatePoller.get(cmdStat, getCommandStatStructured(), clusterStatFormat, new CheckTasksRunningCluster(config, this, cmdStat));
+			statePoller.setDebug(debug);
+			statePoller.register();
+		}
+		return statePoller;
+	}
+
+	/**
+	 * Stop executioner and kill all tasks.
+	 * Wait for kill commands to finish (outside the lock)
+	 */
+	@Override
+	public void kill() {
+		super.kill();
+		waitKillCommands();
+	}
+
+	/**
+	 * Kill a task. Tasks in array jobs are killed individually
+	 * (other tasks in the same array keep running)
+	 */
+	@Override
+	public synchronized void kill(Task task) {
+		Cmd cmd = getCmd(task);
+		if (!(cmd instanceof CmdClusterArray) || task.isDone()) {
+			super.kill(task);
+			return;
+		}
+
+		// Note: The command notifies that the task was killed
+		if (debug) log("Killing task '" + task.getId() + "'");
+		((CmdClusterArray) cmd).kill(task);
+	}
+
+	/**
+	 * Kill tasks: Jobs are killed using one kill command (e.g. 'qdel') for
+	 * many job IDs. Up to KILL_THREADS kill commands run in parallel (and in
+	 * parallel to removing tasks from the PID file). Kill commands are not
+	 * waited for here, see waitKillCommands()
+	 */
+	@Override
+	protected synchronized void kill(List<Task> tasks) {
+		// Kill tasks, but not their jobs (jobs are killed in batches)
+		Set<String> jobIds = new LinkedHashSet<String>();
+		for (Task task : tasks) {
+			if (task.isDone()) continue;
+
+			Cmd cmd = getCmd(task);
+			if (cmd instanceof CmdCluster) ((CmdCluster) cmd).setKillJob(false);
+
+			String pid = task.getPid();
+			if (pid != null && !pid.isEmpty()) jobIds.add(pid);
+
+			kill(task);
+		}
+
+		// Run kill commands
+		killJobs(new ArrayList<String>(jobIds));
+
+		// Remove all tasks from PID file at once
+		if (taskLogger != null) taskLogger.remove(tasks);
+	}
+
+	/**
+	 * Kill cluster jobs using one kill command (e.g. 'qdel') for many job IDs.
+	 * Up to KILL_THREADS kill commands run in parallel. Kill commands are not
+	 * waited for here, see waitKillCommands()
+	 */
+	public synchronized void killJobs(List<String> ids) {
+		String cmdKill[] = getCommandKill();
+		if (cmdKill.length > 0 && !ids.isEmpty()) {
+			// Forget kill commands that already finished
+			for (Iterator<Future<?>> it = killCommands.iterator(); it.hasNext();)
+				if (it.next().isDone()) it.remove();
+
+			int batches = (ids.size() + killBatchSize - 1) / killBatchSize;
+			ExecutorService killPool = Executors.newFixedThreadPool(Math.min(KILL_THREADS, batches), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ClusterKill");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+			for (int start = 0; start < ids.size(); start += killBatchSize) {
+				final List<String> args = new ArrayList<String>();
+				Collections.addAll(args, cmdKill);
+				args.addAll(ids.subList(start, Math.min(start + killBatchSize, ids.size())));
+
+				killCommands.add(killPool.submit(new Runnable() {
+					@Override
+					public void run() {
+						if (debug) log("Killing jobs: " + commandLine(args));
+						ExecResult res = Exec.exec(args, true, KILL_TIMEOUT);
+						if (res.exitValue != 0) log("Error killing jobs, exit code " + res.exitValue + ", command: " + commandLine(args) + (res.stdErr.isEmpty() ? "" : "\n" + res.stdErr));
+					}
+				}));
+			}
+
+			killPool.shutdown(); // Threads finish after running all kill commands
+		}
+	}
+
+	@Override
+	public int osKillBatchSize() {
+		return killBatchSize;
+	}
+
 	/**
 	 * An OS command to kill this task
 	 */
@@ -327,22 +579,31 @@ public class ExecutionerCluster extends Executioner {
 	/**
 	 * Try to find some 'post-mortem' info about this
 	 * task, in order to asses systematic errors.
+	 * The command runs in background, results are added to the
+	 * task when available.
 	 *
 	 * @param task
 	 */
 	@Override
-	protected void postMortemInfo(Task task) {
+	protected void postMortemInfo(final Task task) {
 		// Post-mortem info disabled?
 		if (postMortemDisabled) return;
+		if (task.getPid() == null || task.getPid().isEmpty()) return;
+
+		// Cluster state already has information about this task? Use it
+		String jobInfo = (statePoller != null ? statePoller.getJobInfo(task.getPid()) : null);
+		if (jobInfo != null) {
+			task.setPostMortemInfo(jobInfo);
+			return;
+		}
 
 		// Get command line arguments and execute them
 		String cmd[] = getCommandPostMortemInfo();
 		if (cmd.length <= 0) return;
-		if (task.getPid() == null || task.getPid().isEmpty()) return;
 
 		// Prepare command line arguments
-		ArrayList<String> args = new ArrayList<String>();
-		StringBuilder cmdsb = new StringBuilder();
+		final ArrayList<String> args = new ArrayList<String>();
+		final StringBuilder cmdsb = new StringBuilder();
 		for (String arg : cmd) {
 			args.add(arg);
 			cmdsb.append(" " + arg);
@@ -350,27 +611,89 @@ public class ExecutionerCluster extends Executioner {
 		args.add(task.getPid());
 		cmdsb.append(task.getPid());
 
-		// Run command
-		ExecResult cmdExecResult = Exec.exec(args, true);
-		if (debug) log("Finding postMortemInfo for task " + task.getId() //
-				+ "\n\tCommand executed : '" + cmdsb + "'" //
-				+ "\n\tExit value       : " + cmdExecResult.exitValue //
-				+ "\n\tStdout           : " + cmdExecResult.stdOut //
-				+ "\n\tStderr           : " + cmdExecResult.stdErr //
-		);
-
-		// Collect the data
-		if (cmdExecResult.exitValue == 0) task.setPostMortemInfo(cmdExecResult.stdOut);
-		else log("Error trying to find out post-mortem info on task (PID '" + task.getPid() + "')." //
-				+ "\n\tCommand executed : '" + cmdsb + "'" //
-				+ "\n\tExit code        : " + cmdExecResult.exitValue //
-				+ "\n\tStdout           : " + cmdExecResult.stdOut //
-				+ "\n\tStderr           : " + cmdExecResult.stdErr //
-		);
+		// Run command in background (it may take a long time or hang)
+		final TaskState taskState = task.getTaskState();
+		final String pid = task.getPid();
+		runBackground(new Runnable() {
+			@Override
+			public void run() {
+				final ExecResult cmdExecResult = Exec.exec(args, true, POST_MORTEM_TIMEOUT);
+				if (debug) log("Finding postMortemInfo for task " + task.getId() //
+						+ "\n\tCommand executed : '" + cmdsb + "'" //
+						+ "\n\tExit value       : " + cmdExecResult.exitValue //
+						+ "\n\tStdout           : " + cmdExecResult.stdOut //
+						+ "\n\tStderr           : " + cmdExecResult.stdErr //
+				);
+
+				// Collect the data
+				runMainLoop(new Runnable() {
+					@Override
+					public void run() {
+						// Task changed (e.g. re-run) since the command started? Results are stale
+						if (task.getTaskState() != taskState || !pid.equals(task.getPid())) {
+							if (debug) log("Ignoring postMortemInfo for task " + task.getId() + ", task changed state");
+							return;
+						}
+
+						if (cmdExecResult.exitValue == 0) task.setPostMortemInfo(cmdExecResult.stdOut);
+						else log("Error trying to find out post-mortem info on task (PID '" + pid + "')." //
+								+ "\n\tCommand executed : '" + cmdsb + "'" //
+								+ "\n\tExit code        : " + cmdExecResult.exitValue //
+								+ "\n\tStdout           : " + cmdExecResult.stdOut //
+								+ "\n\tStderr           : " + cmdExecResult.stdErr //
+						);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Run loop: Dispatch all tasks ready to run, grouping them into array jobs
+	 */
+	@Override
+	protected boolean runExecutionerLoop() {
+		if (!arrayJobs) return super.runExecutionerLoop();
+
+		// Nothing to run?
+		if (!hasTaskToRun()) {
+			reportsChecksUpdates();
+			return false;
+		}
+
+		// Are there any more task to run?
+		while (running && hasTaskToRun()) {
+			// Select all tasks that can run now
+			List<Tuple<Task, Host>> taskHostPairs = new ArrayList<Tuple<Task, Host>>();
+			for (Tuple<Task, Host> taskHostPair = selectTask(); taskHostPair != null; taskHostPair = selectTask())
+				taskHostPairs.add(taskHostPair);
+
+			// Any task selected?
+			if (!taskHostPairs.isEmpty()) {
+				runTasks(taskHostPairs);
+			} else if (eventDriven) {
+				waitEvent(SLEEP_TIME_MID); // Nothing can run now: wait until a task changes state
+			} else {
+				sleepMid();
+			}
+
+			reportsChecksUpdates();
+		}
+
+		return true;
 	}
 
 	@Override
 	protected void runTask(Task task, Host host) {
+		// Results may be available from a previous run (restored in background)
+		if (runTaskCached(task, host)) return;
+		runTaskCmd(task, host);
+	}
+
+	/**
+	 * Submit a task to the cluster (the task cache has already been checked)
+	 */
+	protected void runTaskCmd(Task task, Host host) {
 		// Create a (shell) command to run task in cluster
 		Cmd cmd = createRunCmd(task);
 		if (cmd != null) {
@@ -384,17 +707,85 @@ public class ExecutionerCluster extends Executioner {
 		host.add(task);
 
 		// Run command
-		// Note: We run in blocking mode to avoid choking the head node with 
-		// too many threads, too many file descriptors, etc..
-		if (cmd != null) {
-			try {
-				cmd.start();
-				cmd.join(); // Wait for this thread to finish
-			} catch (InterruptedException e) {
-				throw new RuntimeException("Error while waiting for command execution:\n\tCommand: " + cmd, e);
+		if (cmd != null) submit(cmd);
+	}
+
+	@Override
+	protected void runExecutionerLoopAfter() {
+		super.runExecutionerLoopAfter();
+		submitPool.shutdown();
+
+		synchronized (this) {
+			if (statePoller != null) statePoller.unregister();
+			statePoller = null;
+		}
+	}
+
+	/**
+	 * Run tasks as array jobs (tasks requesting the same resources are grouped)
+	 */
+	protected void runTasks(List<Tuple<Task, Host>> taskHostPairs) {
+		// Group by resources
+		Map<String, List<Tuple<Task, Host>>> byKey = new LinkedHashMap<String, List<Tuple<Task, Host>>>();
+		for (Tuple<Task, Host> th : taskHostPairs) {
+			if (runTaskCached(th.first, th.second)) continue; // Results may be available from a previous run (restored in background)
+
+			String key = arrayKey(th.first);
+			List<Tuple<Task, Host>> group = byKey.get(key);
+			if (group == null) {
+				group = new ArrayList<Tuple<Task, Host>>();
+				byKey.put(key, group);
+			}
+			group.add(th);
+		}
+
+		// Run each group, split into arrays of at most 'arrayMaxSize' tasks
+		for (List<Tuple<Task, Host>> group : byKey.values()) {
+			for (int start = 0; start < group.size(); start += arrayMaxSize) {
+				List<Tuple<Task, Host>> chunk = group.subList(start, Math.min(start + arrayMaxSize, group.size()));
+				if (chunk.size() == 1) runTaskCmd(chunk.get(0).first, chunk.get(0).second);
+				else runTaskArray(chunk);
 			}
 		}
+	}
+
+	/**
+	 * Run several tasks as one array job
+	 */
+	protected void runTaskArray(List<Tuple<Task, Host>> taskHostPairs) {
+		List<Task> tasks = new ArrayList<Task>();
+		for (Tuple<Task, Host> th : taskHostPairs)
+			tasks.add(th.first);
+
+		Cmd cmd = createRunCmdArray(tasks);
+		cmd.setExecutioner(this);
+		cmd.setDebug(debug);
+		cmd.setHost(taskHostPairs.get(0).second);
+		for (Tuple<Task, Host> th : taskHostPairs) {
+			addCmd(th.first, cmd);
+			th.second.add(th.first);
+		}
+
+		submit(cmd);
+	}
+
+	/**
+	 * Submit a command to the cluster (e.g. run 'qsub')
+	 * Note: Commands are run by a fixed number of threads, to avoid
+	 * choking the head node with too many processes, file descriptors,
+	 * etc. The executioner's thread does not wait for the submission.
+	 */
+	protected void submit(Cmd cmd) {
+		if (cmd instanceof CmdCluster) {
+			CmdCluster cmdCluster = (CmdCluster) cmd;
+			cmdCluster.setRateLimit(submitRateLimit);
+			cmdCluster.setSubmitRetry(submitRetry, submitBackoff);
+		}
+
+		submitPool.execute(cmd);
 
+		// New jobs: Query cluster state soon
+		if (statePoller != null) statePoller.submitted();
 	}
 
 	@Override
@@ -413,4 +804,47 @@ public class ExecutionerCluster extends Executioner {
 		return true;
 	}
 
+	/**
+	 * Also include cluster's STDOUT / STDERR files
+	 */
+	@Override
+	protected List<String> tmpFiles(Task task, boolean stdOutErr) {
+		List<String> files = super.tmpFiles(task, stdOutErr);
+		if (stdOutErr) {
+			if (task.getStdoutFile() != null) files.add(clusterStdFile(task.getStdoutFile()));
+			if (task.getStderrFile() != null) files.add(clusterStdFile(task.getStderrFile()));
+		}
+		return files;
+	}
+
+	/**
+	 * Command line as a string
+	 */
+	protected String commandLine(List<String> args) {
+		StringBuilder cmdStr = new StringBuilder();
+		for (String arg : args)
+			cmdStr.append(arg + " ");
+		return cmdStr.toString();
+	}
+
+	/**
+	 * Wait for kill commands to finish.
+	 * Note: Must be called without holding the executioner's lock
+	 */
+	protected void waitKillCommands() {
+		List<Future<?>> futures;
+		synchronized (this) {
+			futures = killCommands;
+			killCommands = new ArrayList<Future<?>>();
+		}
+
+		for (Future<?> f : futures) {
+			try {
+				f.get();
+			} catch (Exception e) {
+				if (debug) e.printStackTrace();
+			}
+		}
+	}
+
 }
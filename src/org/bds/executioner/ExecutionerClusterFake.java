@@ -25,6 +25,7 @@ public class ExecutionerClusterFake extends ExecutionerCluster {
 		clusterKillCommand = killCommand;
 		clusterStatCommand = statCommand;
 		clusterPostMortemInfoCommand = postMortemInfoCommand;
+		clusterStatCommandStructured = null; // Only plain output
 	}
 
 }
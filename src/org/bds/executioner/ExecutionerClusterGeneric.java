@@ -26,6 +26,7 @@ public class ExecutionerClusterGeneric extends ExecutionerCluster {
 		clusterKillCommand = getCommandLine(Config.CLUSTER_GENERIC_KILL);
 		clusterStatCommand = getCommandLine(Config.CLUSTER_GENERIC_STAT);
 		clusterPostMortemInfoCommand = getCommandLine(Config.CLUSTER_GENERIC_POSTMORTEMINFO);
+		clusterStatCommandStructured = null; // User defined scripts: Only plain output
 
 		// Additional arguments are ignored in this cluster type
 		clusterRunAdditionalArgs = new String[0];
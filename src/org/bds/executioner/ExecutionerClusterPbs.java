@@ -19,10 +19,23 @@ public class ExecutionerClusterPbs extends ExecutionerCluster {
 		String killCommand[] = { "canceljob" };
 		String statCommand[] = { "showq" };
 		String postMortemInfoCommand[] = { "checkjob", "-v" };
+		String statCommandStructured[] = { "showq", "--xml" };
 
 		clusterRunCommand = execCommand;
 		clusterKillCommand = killCommand;
 		clusterStatCommand = statCommand;
 		clusterPostMortemInfoCommand = postMortemInfoCommand;
+		clusterStatCommandStructured = statCommandStructured;
+
+		arrayJobs = config.getBool(Config.CLUSTER_ARRAY_JOBS, false);
+	}
+
+	/**
+	 * Array jobs using 'msub' syntax (e.g. 'msub -t bds[1-10]')
+	 */
+	@Override
+	protected String[] arrayArgs(int size) {
+		String args[] = { "-t", "bds[1-" + size + "]" };
+		return args;
 	}
 }
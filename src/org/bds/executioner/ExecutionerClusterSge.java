@@ -15,7 +15,7 @@ import org.bds.util.Timer;
  */
 public class ExecutionerClusterSge extends ExecutionerCluster {
 
-	public static final String PID_REGEX_DEFAULT = "Your job (\\S+)";
+	public static final String PID_REGEX_DEFAULT = "Your job(?:-array)? (\\S+)";
 
 	String sgePe = "", sgeMem = "", sgeTimeOut = "", sgeTimeOut2 = "";
 
@@ -26,11 +26,21 @@ public class ExecutionerClusterSge extends ExecutionerCluster {
 		String postMortemInfoCommand[] = { "qstat", "-f", "-j" };
 		clusterPostMortemInfoCommand = postMortemInfoCommand;
 
+		// Status as XML
+		String statCommandStructured[] = { "qstat", "-xml" };
+		clusterStatCommandStructured = statCommandStructured;
+		clusterStatFormat = ClusterStatePoller.Format.XML;
+
 		// When running qsub you get a line lie this:
 		//
 		//		$ echo ls | qsub
 		// 		Your job 33 ("STDIN") has been submitted
 		//
+		// or, for array jobs:
+		//
+		//		$ echo ls | qsub -t 1-10
+		// 		Your job-array 33.1-10:1 ("STDIN") has been submitted
+		//
 		// So, this is a pattern matcher to parse the PID
 		pidRegexStr = config.getPidRegex(PID_REGEX_DEFAULT);
 		pidRegex = Pattern.compile(pidRegexStr);
@@ -47,6 +57,25 @@ public class ExecutionerClusterSge extends ExecutionerCluster {
 		if (sgeTimeOut.isEmpty()) throw new RuntimeException("Missing config file entry '" + Config.CLUSTER_SGE_TIMEOUT + "'.");
 
 		sgeTimeOut2 = config.getString(Config.CLUSTER_SGE_TIMEOUT2, "");
+
+		arrayJobs = config.getBool(Config.CLUSTER_ARRAY_JOBS, false);
+	}
+
+	/**
+	 * Job ID of an array job (e.g. '33.1-10:1' => '33')
+	 */
+	@Override
+	public String arrayJobId(String pid) {
+		int idx = pid.indexOf('.');
+		return idx > 0 ? pid.substring(0, idx) : pid;
+	}
+
+	/**
+	 * SGE array tasks are referenced as 'jobId.taskId' (e.g. 'qdel 33.5')
+	 */
+	@Override
+	public String arrayTaskPid(String jobId, int idx) {
+		return jobId + "." + idx;
 	}
 
 	/**
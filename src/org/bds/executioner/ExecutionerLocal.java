@@ -5,6 +5,9 @@ import java.util.ArrayList;
 import org.bds.Config;
 import org.bds.osCmd.Cmd;
 import org.bds.osCmd.CmdLocal;
+import org.bds.osCmd.CmdLocalLauncher;
+import org.bds.osCmd.LocalLauncher;
+import org.bds.osCmd.ProcessReaper;
 import org.bds.task.Task;
 import org.bds.util.Gpr;
 import org.bds.util.Timer;
@@ -21,12 +24,23 @@ public class ExecutionerLocal extends Executioner {
 
 	public static String LOCAL_EXEC_COMMAND[] = { "bds", "exec" };
 	public static String LOCAL_KILL_COMMAND[] = { "bds", "kill" };
+	public static String LOCAL_LAUNCHER_COMMAND[] = { "bds", "launcher" };
 	public static String LOCAL_STAT_COMMAND[] = { "ps" };
 
+	protected long inlineMaxSize; // Tasks' programs up to this size are passed as an argument (no program file is created)
+
 	/**
 	 * Create command line arguments for "bds -exec"
 	 */
 	public static String[] createBdsExecCmdArgs(Task task) {
+		return createBdsExecCmdArgs(task, new String[] { task.getProgramFileName() });
+	}
+
+	/**
+	 * Create command line arguments for "bds -exec"
+	 * @param program : Program to execute and its arguments
+	 */
+	public static String[] createBdsExecCmdArgs(Task task, String program[]) {
 		// Create command line
 		ArrayList<String> args = new ArrayList<String>();
 		for (String arg : LOCAL_EXEC_COMMAND)
@@ -38,7 +52,8 @@ public class ExecutionerLocal extends Executioner {
 		args.add(task.getStdoutFile() != null ? task.getStdoutFile() : "-"); // Redirect STDOUT to this file
 		args.add(task.getStderrFile() != null ? task.getStderrFile() : "-"); // Redirect STDERR to this file
 		args.add(task.getExitCodeFile() != null ? task.getExitCodeFile() : "-"); // Redirect exit code
-		args.add(task.getProgramFileName()); // Program to execute
+		for (String arg : program)
+			args.add(arg); // Program to execute
 
 		return args.toArray(Cmd.ARGS_ARRAY_TYPE);
 	}
@@ -48,6 +63,8 @@ public class ExecutionerLocal extends Executioner {
 		checkTasksRunning = new CheckTasksRunningLocal(config, this);
 		checkTasksRunning.setDebug(config.isDebug());
 		checkTasksRunning.setVerbose(config.isVerbose());
+		inlineMaxSize = config.getLong(Config.TASK_INLINE_MAX_SIZE, 0);
+		ProcessReaper.get().setMaxWaiters(config.getMaxThreads()); // One waiter for each running command
 	}
 
 	/**
@@ -97,12 +114,27 @@ public class ExecutionerLocal extends Executioner {
 	 */
 	@Override
 	protected synchronized Cmd createRunCmd(Task task) {
-		task.createProgramFile(); // We must create a program file
+		// Use local launcher (if available)
+		LocalLauncher launcher = config.getLocalLauncher();
+		if (launcher != null && launcher.isRunning()) {
+			task.createProgramFile(); // We must create a program file
+			return createRunCmdLauncher(task, launcher);
+		}
 
 		// Create command line
-		String args[] = createBdsExecCmdArgs(task);
-
-		avoidTextFileBusyError();
+		String args[];
+		if (isInline(task)) {
+			// Program is passed to the shell as an argument: No program file
+			// to create, so no "text file busy" errors either (the file is
+			// only created when logging, but it is not executed)
+			task.createProgramDir();
+			if (log) task.createProgramFile();
+			args = createBdsExecCmdArgs(task, inlineCommand(task));
+		} else {
+			task.createProgramFile(); // We must create a program file
+			args = createBdsExecCmdArgs(task);
+			avoidTextFileBusyError();
+		}
 
 		// Join args
 		String cmdStr = "";
@@ -114,6 +146,30 @@ public class ExecutionerLocal extends Executioner {
 		CmdLocal cmd = new CmdLocal(task.getId(), args);
 		cmd.setDebug(debug);
 		cmd.setReadPid(true); // We execute using "bds exec" which prints PID number before executing the sub-process
+		cmd.setProcessReaper(ProcessReaper.get()); // Do not use one thread per process
+
+		return cmd;
+	}
+
+	/**
+	 * Create a command to execute the script using the local launcher
+	 *
+	 * Note: The launcher invokes the shell using the script as an argument
+	 *       (instead of executing the script), so there are no "text file
+	 *       busy" errors and we don't need to wait (see avoidTextFileBusyError)
+	 */
+	protected Cmd createRunCmdLauncher(Task task, LocalLauncher launcher) {
+		// Command line: Task shell and program file
+		ArrayList<String> args = new ArrayList<String>();
+		for (String arg : config.getTaskShell().split("\\s+"))
+			if (!arg.isEmpty()) args.add(arg);
+		args.add(task.getProgramFileName());
+
+		if (debug) Timer.showStdErr("Running command (local launcher): " + String.join(" ", args));
+		CmdLocalLauncher cmd = new CmdLocalLauncher(task.getId(), args.toArray(Cmd.ARGS_ARRAY_TYPE), launcher);
+		cmd.setDebug(debug);
+		cmd.setTimeout(task.getResources().getTimeout() > 0 ? task.getResources().getTimeout() : 0);
+		cmd.setFiles(task.getStdoutFile(), task.getStderrFile(), task.getExitCodeFile());
 
 		return cmd;
 	}
@@ -123,7 +179,13 @@ public class ExecutionerLocal extends Executioner {
 	 */
 	@Override
 	protected synchronized void follow(Task task) {
-		if (taskLogger != null) taskLogger.add(task, this); // Log PID (if any)
+		// Local launcher writes STDOUT and STDERR to files
+		if (getCmd(task) instanceof CmdLocalLauncher) {
+			super.follow(task);
+			return;
+		}
+
+		logTask(task); // Log PID (if any)
 
 		// We need to feed the InputStreams from the process, instead of file names
 		CmdLocal cmd = (CmdLocal) getCmd(task);
@@ -144,6 +206,27 @@ public class ExecutionerLocal extends Executioner {
 		if (monitorTask != null) monitorTask.add(this, task); // Start monitoring exit file
 	}
 
+	/**
+	 * Command executing the task's program inline: E.g. "/bin/sh -e -c 'program'"
+	 */
+	protected String[] inlineCommand(Task task) {
+		ArrayList<String> args = new ArrayList<String>();
+		for (String arg : config.getTaskShell().split("\\s+"))
+			if (!arg.isEmpty()) args.add(arg);
+		args.add("-c");
+		args.add(task.programInline());
+		return args.toArray(Cmd.ARGS_ARRAY_TYPE);
+	}
+
+	/**
+	 * Should this task's program be passed inline (instead of creating a program file)?
+	 * Only small programs are passed inline, since command line arguments are limited in size
+	 */
+	protected boolean isInline(Task task) {
+		if (inlineMaxSize <= 0) return false;
+		return task.programInline().getBytes().length <= inlineMaxSize;
+	}
+
 	@Override
 	public String[] osKillCommand(Task task) {
 		// This is killed internally by 'bds' (see GO program)
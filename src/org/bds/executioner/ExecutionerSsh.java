@@ -7,6 +7,7 @@ import org.bds.cluster.ClusterSsh;
 import org.bds.cluster.host.HostSsh;
 import org.bds.osCmd.Cmd;
 import org.bds.osCmd.CmdSsh;
+import org.bds.osCmd.SshSessionPool;
 import org.bds.task.Task;
 import org.bds.util.Timer;
 
@@ -78,7 +79,7 @@ public class ExecutionerSsh extends Executioner {
 
 	@Override
 	protected void follow(Task task) {
-		if (taskLogger != null) taskLogger.add(task, this); // Log PID (if any)
+		logTask(task); // Log PID (if any)
 		if (monitorTask != null) monitorTask.remove(task);
 	}
 
@@ -86,6 +87,7 @@ public class ExecutionerSsh extends Executioner {
 	public synchronized void kill() {
 		((ClusterSsh) cluster).stopHostInfoUpdaters();
 		super.kill();
+		SshSessionPool.get().close();
 	}
 
 	@Override
@@ -98,6 +100,7 @@ public class ExecutionerSsh extends Executioner {
 		((ClusterSsh) cluster).startHostInfoUpdaters();
 		super.run();
 		((ClusterSsh) cluster).stopHostInfoUpdaters();
+		SshSessionPool.get().close(); // Close ssh connections
 	}
 
 }
@@ -4,6 +4,7 @@ import java.util.Collection;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.bds.Config;
+import org.bds.task.Task;
 import org.bds.util.Timer;
 
 /**
@@ -167,4 +168,14 @@ public class Executioners {
 		return executioners.values();
 	}
 
+	/**
+	 * A task is done: Notify all other executioners (some tasks may depend on it)
+	 * Note: Not synchronized, to avoid locking while executioners are notifying
+	 * @param executioner : Executioner that ran the task (it already updated its own tasks)
+	 */
+	public void taskDone(Task task, Executioner executioner) {
+		for (Executioner ex : executioners.values())
+			if (ex != executioner) ex.taskDone(task);
+	}
+
 }
@@ -1,33 +1,67 @@
 package org.bds.executioner;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.bds.task.Task;
 import org.bds.task.TaskState;
+import org.bds.util.DirectoryWatcher;
+import org.bds.util.DirectoryWatcher.DirectoryWatcherListener;
 import org.bds.util.Gpr;
 import org.bds.util.Timer;
 
 /**
  * Monitor a task: Check if a task finished by checking if 'exitFile' exists
  *
+ * Task directories are watched using file system notifications (e.g.
+ * 'inotify'), so we only check exit files that were created or modified.
+ * Directories that cannot be watched (e.g. NFS) are polled: We read one
+ * directory listing per directory, instead of checking each task's file.
+ *
  * @author pcingola
  */
-public class MonitorTask {
+public class MonitorTask implements DirectoryWatcherListener {
 
 	// Cluster scheduling is usually quite slow, so we don't need a short monitoring interval.
 	// Reducing this sleep time adds processing and probably has not many benefits.
 	public static final int SLEEP_TIME = 500;
 
+	// Watched directories are also polled (less frequently), in case notifications are not delivered
+	public static final int WATCH_POLL_TIME = 10 * 1000;
+
 	boolean debug = false;
 	boolean verbose;
 	HashMap<Task, Executioner> execByTask;
+	Map<Path, Set<Task>> tasksByDir; // Tasks monitored, by exit file's directory
+	Map<Path, Task> taskByExitFile;
+	Set<Task> added; // Tasks added since latest update (exit file may have been created before watching the directory)
+	Set<Executioner> executioners; // Executioners to wake up on exit file events
+	DirectoryWatcher watcher; // Null if we only poll
+	ConcurrentLinkedQueue<Path> events; // Files created or modified (not processed yet)
 	Timer latestUpdate;
+	Timer latestWatchedPoll;
 
 	public MonitorTask() {
 		execByTask = new HashMap<Task, Executioner>();
+		tasksByDir = new ConcurrentHashMap<Path, Set<Task>>(); // Note: Concurrent maps, accessed from 'changed()'
+		taskByExitFile = new ConcurrentHashMap<Path, Task>();
+		added = new HashSet<Task>();
+		executioners = Collections.newSetFromMap(new ConcurrentHashMap<Executioner, Boolean>());
+		events = new ConcurrentLinkedQueue<Path>();
 		latestUpdate = new Timer();
+		latestWatchedPoll = new Timer();
 	}
 
 	/**
@@ -40,17 +74,110 @@ public class MonitorTask {
 		if (debug) Timer.showStdErr("MonitorTask: Adding task " + task.getId());
 		if (task == null) return;
 		execByTask.put(task, executioner);
+		executioners.add(executioner);
+
+		// Index by exit file and directory
+		Path exitFile = exitFile(task);
+		Path dir = exitFile.getParent();
+		taskByExitFile.put(exitFile, task);
+		Set<Task> tasks = tasksByDir.get(dir);
+		if (tasks == null) {
+			tasks = new HashSet<Task>();
+			tasksByDir.put(dir, tasks);
+			if (watcher != null) watcher.watch(dir);
+		}
+		tasks.add(task);
+
+		if (watcher != null && watcher.isWatched(dir)) added.add(task);
 	}
 
 	/**
-	 * Run once every SLEEP_TIME
+	 * A file was created or modified (invoked from the watcher's thread)
+	 */
+	@Override
+	public void changed(Path path) {
+		if (!taskByExitFile.containsKey(path) && !tasksByDir.containsKey(path)) return; // Not an exit file (e.g. a task's STDOUT)
+		events.add(path);
+		for (Executioner ex : executioners)
+			ex.wakeUp();
+	}
+
+	/**
+	 * Run once every SLEEP_TIME (or as soon as an exit file is created)
 	 */
 	public synchronized void check() {
 		// Is it time to update?
-		if (latestUpdate.elapsed() < SLEEP_TIME) return;
+		boolean poll = latestUpdate.elapsed() >= SLEEP_TIME;
+		if (!poll && events.isEmpty()) return;
+
+		updateFinished(poll);
+		if (poll) latestUpdate.start();
+	}
+
+	/**
+	 * Exit file's path (absolute)
+	 */
+	protected Path exitFile(Task task) {
+		return Paths.get(task.getExitCodeFile()).toAbsolutePath();
+	}
+
+	/**
+	 * Check that 'exitFile' exists and it is not zero length
+	 * From 'Fedor Gusev':
+	 *     ...here NFS is somewhat slow, and the file is still empty
+	 *     and it report exit code as 1. But if I check the file manually, it
+	 *     has 0 in it. I've introduced a check for non-zero length of
+	 *     the file and the problem is gone.
+	 */
+	protected boolean isExitFileOk(Task task) {
+		File exitFile = new File(task.getExitCodeFile());
+		return exitFile.length() > 0; // Note: Zero if the file does not exist
+	}
+
+	/**
+	 * Stop monitoring
+	 */
+	public synchronized void kill() {
+		setWatcher(null);
+	}
+
+	/**
+	 * Poll a directory: Read directory listing and check exit files of all tasks in it
+	 * @param watched : Directory is being watched, exit files found here should have been notified already
+	 */
+	protected void poll(Path dir, Set<Task> toUpdate, boolean watched) {
+		Set<Task> tasks = tasksByDir.get(dir);
+		if (tasks == null) return;
+
+		String[] names = dir.toFile().list();
+		if (names == null) return;
+		Set<String> files = new HashSet<String>(Arrays.asList(names));
+
+		for (Task task : tasks) {
+			if (toUpdate.contains(task)) continue;
+			if (!files.contains(exitFile(task).getFileName().toString())) continue;
+			if (!isExitFileOk(task)) continue;
+
+			toUpdate.add(task);
 
-		updateFinished();
-		latestUpdate.start();
+			// Notification not delivered? Stop watching this directory, poll it instead
+			if (watched && watcher.isWatched(dir) && !isRecent(task)) {
+				if (debug) Gpr.debug("MonitorTask: Notifications are not working for directory '" + dir + "', polling instead");
+				watcher.unwatchable(dir);
+			}
+		}
+	}
+
+	/**
+	 * Was the exit file created very recently (i.e. its notification may be on its way)?
+	 */
+	protected boolean isRecent(Task task) {
+		try {
+			long modified = Files.getLastModifiedTime(exitFile(task)).toMillis();
+			return System.currentTimeMillis() - modified < 2 * SLEEP_TIME;
+		} catch (IOException e) {
+			return true;
+		}
 	}
 
 	/**
@@ -58,7 +185,20 @@ public class MonitorTask {
 	 */
 	public synchronized void remove(Task task) {
 		if (debug) Timer.showStdErr("MonitorTask: Removing task " + task.getId());
-		execByTask.remove(task);
+		if (execByTask.remove(task) == null) return;
+		added.remove(task);
+
+		Path exitFile = exitFile(task);
+		Path dir = exitFile.getParent();
+		taskByExitFile.remove(exitFile);
+		Set<Task> tasks = tasksByDir.get(dir);
+		if (tasks != null) {
+			tasks.remove(task);
+			if (tasks.isEmpty()) {
+				tasksByDir.remove(dir);
+				if (watcher != null) watcher.unwatch(dir);
+			}
+		}
 	}
 
 	public void setDebug(boolean debug) {
@@ -69,38 +209,78 @@ public class MonitorTask {
 		this.verbose = verbose;
 	}
 
+	/**
+	 * Use file system notifications to detect exit files (null means 'always poll')
+	 */
+	public synchronized void setWatcher(DirectoryWatcher watcher) {
+		if (this.watcher != null) {
+			this.watcher.removeListener(this);
+			for (Path dir : tasksByDir.keySet())
+				this.watcher.unwatch(dir);
+		}
+
+		this.watcher = watcher;
+		if (watcher != null) {
+			watcher.addListener(this);
+			for (Path dir : tasksByDir.keySet())
+				watcher.watch(dir);
+		}
+	}
+
 	/**
 	 * Update finished tasks.
 	 * Check if 'exitFile' exist and update states accordingly
 	 */
 	synchronized void updateFinished() {
-		ArrayList<Task> toUpdate = null;
-
-		for (Task task : execByTask.keySet()) {
-			String exitFileName = task.getExitCodeFile();
-
-			// Check that 'exitFile' exists and it is not zero length
-			// From 'Fedor Gusev':
-			//     ...here NFS is somewhat slow, and the file is still empty
-			//     and it report exit code as 1. But if I check the file manually, it
-			//     has 0 in it. I've introduced a check for non-zero length of
-			//     the file and the problem is gone.
-			File exitFile = new File(exitFileName);
-			boolean exitFileOk = exitFile.exists() && exitFile.length() > 0;
-
-			if (exitFileOk || task.isTimedOut()) {
-				// Create (or add) to tasks to delete
-				if (toUpdate == null) toUpdate = new ArrayList<Task>();
-				toUpdate.add(task);
+		updateFinished(true);
+	}
+
+	/**
+	 * Update finished tasks.
+	 * @param poll : Poll directories that are not watched (otherwise only process notifications)
+	 */
+	synchronized void updateFinished(boolean poll) {
+		Set<Task> toUpdate = new LinkedHashSet<Task>();
+		Set<Path> dirsToPoll = new HashSet<Path>();
+
+		// Exit files created or modified
+		if (watcher != null) {
+			for (Path path = events.poll(); path != null; path = events.poll()) {
+				Task task = taskByExitFile.get(path);
+				if (task != null) {
+					if (isExitFileOk(task)) toUpdate.add(task);
+				} else if (tasksByDir.containsKey(path)) dirsToPoll.add(path); // Notifications lost, we need to poll this directory
 			}
+
+			// Recently added tasks: Exit file may have been created before we started watching
+			for (Task task : added)
+				if (isExitFileOk(task)) toUpdate.add(task);
+			added.clear();
 		}
 
-		// An task to delete?
-		if (toUpdate != null) {
-			for (Task task : toUpdate) {
-				updateFinished(task);
-				remove(task); // We don't need to monitor this task any more
+		if (poll) {
+			// Watched directories are also polled, but less frequently
+			boolean pollWatched = latestWatchedPoll.elapsed() >= WATCH_POLL_TIME;
+			if (pollWatched) latestWatchedPoll.start();
+
+			for (Path dir : tasksByDir.keySet().toArray(new Path[0])) {
+				boolean watched = watcher != null && watcher.isWatched(dir);
+				if (!watched || pollWatched || dirsToPoll.contains(dir)) poll(dir, toUpdate, watched && pollWatched);
 			}
+
+			// Timed out tasks
+			for (Task task : execByTask.keySet())
+				if (task.isTimedOut()) toUpdate.add(task);
+		} else {
+			for (Path dir : dirsToPoll)
+				poll(dir, toUpdate, false);
+		}
+
+		// Any task to update?
+		for (Task task : toUpdate) {
+			if (!execByTask.containsKey(task)) continue; // Already removed
+			updateFinished(task);
+			remove(task); // We don't need to monitor this task any more
 		}
 	}
 
@@ -0,0 +1,377 @@
+package org.bds.executioner;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.bds.task.Task;
+import org.bds.util.Timer;
+
+/**
+ * Tasks queued in an executioner, indexed by dependency state.
+ *
+ * Each task keeps a count of unfinished dependencies. When a task
+ * finishes, we get a 'done' event and the counts of all tasks waiting
+ * for it are decremented. Only tasks having all dependencies satisfied
+ * are in the 'ready' queue, so scheduling does not need to re-walk
+ * the dependency graph.
+ *
+ * If a dependency fails, the tasks waiting for it are marked as 'failed'
+ * immediately (when they are finished, the failure propagates to their
+ * own dependent tasks).
+ *
+ * Ready tasks are sorted by:
+ *     i) User defined priority ('priority' task option, higher first)
+ *     ii) Critical path: Longest path of tasks waiting downstream (only
+ *         when using a 'critical path' policy, longer first)
+ *     iii) Insertion order
+ *
+ * Note: Only 'taskDone' is thread safe (it can be invoked from other
+ *       executioners). All other methods must be invoked while holding
+ *       the executioner's lock. Events for tasks nobody here is waiting
+ *       for are dropped, so the events queue does not grow if 'update'
+ *       is never invoked.
+ *
+ * @author pcingola
+ */
+public class ReadyQueue implements Iterable<Task> {
+
+	/**
+	 * How to prioritize tasks
+	 */
+	public enum TaskPriority {
+		FIFO // Insertion order
+		, CRITICAL_PATH // Critical path, weighted by task's timeout
+		, CRITICAL_PATH_RUNTIME // Critical path, weighted by runtime of previous tasks (from the same 'task' statement)
+		;
+
+		/**
+		 * Parse a priority policy name (e.g. 'criticalPath')
+		 * @return Corresponding TaskPriority or FIFO if there is any error
+		 */
+		public static TaskPriority parseSafe(String name) {
+			if (name == null || name.isEmpty()) return FIFO;
+			try {
+				return TaskPriority.valueOf(name.trim().replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase());
+			} catch (Exception e) {
+				Timer.showStdErr("Unknown task priority '" + name + "', using 'fifo'");
+				return FIFO;
+			}
+		}
+	}
+
+	public static final double DEFAULT_WEIGHT = 1.0; // Weight used when we know nothing about a task
+
+	protected TaskPriority taskPriority;
+	protected long sequence; // Insertion order
+	protected Map<Task, Long> sequenceByTask; // Insertion order, by task
+	protected Map<Task, Double> criticalPath; // Critical path (sum of weights), by task
+	protected Map<String, Double> runtimeSum; // Sum of runtimes (seconds) by 'task' statement
+	protected Map<String, Integer> runtimeCount; // Number of tasks finished by 'task' statement
+	protected TreeSet<Task> ready; // Tasks having all dependencies satisfied
+	protected Map<Task, Integer> pendingCount; // Number of unfinished dependencies, for tasks waiting
+	protected Map<Task, List<Task>> waitersByTask; // Tasks waiting for a task to finish
+	protected List<Task> failed; // Tasks that cannot run because a dependency failed
+	protected ConcurrentLinkedQueue<Task> doneEvents; // Tasks finished (not processed yet)
+	protected Set<Task> waitedFor; // Tasks having waiters (i.e. keys in 'waitersByTask'), can be read from any thread
+
+	public ReadyQueue() {
+		this(TaskPriority.FIFO);
+	}
+
+	public ReadyQueue(TaskPriority taskPriority) {
+		this.taskPriority = taskPriority;
+		sequenceByTask = new HashMap<Task, Long>();
+		criticalPath = new HashMap<Task, Double>();
+		runtimeSum = new HashMap<String, Double>();
+		runtimeCount = new HashMap<String, Integer>();
+		ready = new TreeSet<Task>(new Comparator<Task>() {
+			@Override
+			public int compare(Task t1, Task t2) {
+				// User priority: Higher first
+				int cmp = Integer.compare(t2.getPriority(), t1.getPriority());
+				if (cmp != 0) return cmp;
+
+				// Critical path: Longer first
+				cmp = Double.compare(getCriticalPath(t2), getCriticalPath(t1));
+				if (cmp != 0) return cmp;
+
+				// Insertion order
+				return Long.compare(getSequence(t1), getSequence(t2));
+			}
+		});
+		pendingCount = new HashMap<Task, Integer>();
+		waitersByTask = new HashMap<Task, List<Task>>();
+		failed = new ArrayList<Task>();
+		doneEvents = new ConcurrentLinkedQueue<Task>();
+		waitedFor = ConcurrentHashMap.newKeySet();
+	}
+
+	/**
+	 * Add a task: Count unfinished dependencies
+	 */
+	public void add(Task task) {
+		if (sequenceByTask.containsKey(task)) return; // Already added
+		sequenceByTask.put(task, sequence++);
+		if (isCriticalPath()) updateCriticalPath(task);
+
+		int count = 0;
+		if (task.getDependencies() != null) {
+			// Note: A task may be listed more than once as a dependency
+			Set<Task> deps = new LinkedHashSet<Task>(task.getDependencies());
+			for (Task dep : deps) {
+				// Note: Mark as 'waited for' before checking if it is done, otherwise
+				//       we could miss a 'done' event from another executioner (see 'taskDone')
+				boolean added = waitedFor.add(dep);
+				if (dep.isDone()) {
+					if (added) waitedFor.remove(dep); // Nobody waits for it
+
+					// Dependency failed? This task cannot run
+					if (!isDoneOk(dep)) {
+						sequenceByTask.remove(task);
+						criticalPath.remove(task);
+						failed.add(task);
+						return;
+					}
+				} else {
+					// Wait for dependency to finish
+					List<Task> waiters = waitersByTask.get(dep);
+					if (waiters == null) {
+						waiters = new ArrayList<Task>();
+						waitersByTask.put(dep, waiters);
+					}
+					waiters.add(task);
+					count++;
+				}
+			}
+		}
+
+		if (count > 0) pendingCount.put(task, count);
+		else addReady(task);
+	}
+
+	/**
+	 * Add a task to the 'ready' queue
+	 */
+	protected void addReady(Task task) {
+		ready.add(task);
+	}
+
+	/**
+	 * Remove tasks that cannot run because a dependency failed
+	 */
+	public List<Task> drainFailed() {
+		if (failed.isEmpty()) return null;
+		List<Task> fail = failed;
+		failed = new ArrayList<Task>();
+		return fail;
+	}
+
+	/**
+	 * A task run by this executioner finished: Update runtime
+	 * statistics and dependent tasks
+	 */
+	protected void done(Task task) {
+		if (taskPriority == TaskPriority.CRITICAL_PATH_RUNTIME) updateRuntime(task);
+		doneWaiters(task);
+	}
+
+	/**
+	 * A task finished: Update dependent tasks
+	 */
+	protected void doneWaiters(Task task) {
+		List<Task> waiters = waitersByTask.remove(task);
+		waitedFor.remove(task);
+		if (waiters == null) return;
+
+		boolean ok = isDoneOk(task);
+		for (Task waiter : waiters) {
+			Integer count = pendingCount.get(waiter);
+			if (count == null) continue; // Not waiting any more (e.g. task removed)
+
+			if (!ok) {
+				// Dependency failed: Propagate
+				remove(waiter);
+				failed.add(waiter);
+			} else if (count <= 1) {
+				// All dependencies satisfied
+				pendingCount.remove(waiter);
+				addReady(waiter);
+			} else pendingCount.put(waiter, count - 1);
+		}
+	}
+
+	protected double getCriticalPath(Task task) {
+		Double cp = criticalPath.get(task);
+		return cp != null ? cp : 0.0;
+	}
+
+	protected long getSequence(Task task) {
+		Long seq = sequenceByTask.get(task);
+		return seq != null ? seq : -1;
+	}
+
+	public TaskPriority getTaskPriority() {
+		return taskPriority;
+	}
+
+	protected boolean isCriticalPath() {
+		return taskPriority == TaskPriority.CRITICAL_PATH || taskPriority == TaskPriority.CRITICAL_PATH_RUNTIME;
+	}
+
+	/**
+	 * Did the task finish in a way that allows dependent tasks to run?
+	 */
+	protected boolean isDoneOk(Task task) {
+		return task.isCanFail() || task.isDoneOk();
+	}
+
+	public boolean isEmpty() {
+		return ready.isEmpty();
+	}
+
+	@Override
+	public Iterator<Task> iterator() {
+		return ready.iterator();
+	}
+
+	/**
+	 * Remove a task (e.g. it was selected or finished)
+	 */
+	public void remove(Task task) {
+		ready.remove(task); // Note: Remove before updating 'sequenceByTask' and 'criticalPath' (used by the comparator)
+		pendingCount.remove(task);
+		sequenceByTask.remove(task);
+		criticalPath.remove(task);
+	}
+
+	/**
+	 * Key used to group tasks created by the same 'task' statement
+	 */
+	protected String runtimeKey(Task task) {
+		return task.getBdsFileName() + ":" + task.getBdsLineNum();
+	}
+
+	public int size() {
+		return ready.size();
+	}
+
+	/**
+	 * A task finished. This can be invoked from any thread, the
+	 * event is processed next time 'update()' is invoked
+	 * Note: The task must be already done (see 'add')
+	 */
+	public void taskDone(Task task) {
+		if (waitedFor.contains(task)) doneEvents.add(task);
+	}
+
+	@Override
+	public String toString() {
+		return "Ready: " + ready.size() + "\tWaiting: " + pendingCount.size() + "\tFailed: " + failed.size();
+	}
+
+	/**
+	 * Set a task's critical path. If the task is 'ready', it must be re-inserted (sort key changes)
+	 */
+	protected void setCriticalPath(Task task, double cp) {
+		boolean isReady = ready.remove(task);
+		criticalPath.put(task, cp);
+		if (isReady) ready.add(task);
+	}
+
+	/**
+	 * Calculate critical path for a new task and propagate it
+	 * upstream to the (unfinished) tasks it depends on.
+	 *
+	 * Note: Dependencies are always added before the tasks that depend
+	 *       on them, so the cost is proportional to the dependency depth
+	 */
+	protected void updateCriticalPath(Task task) {
+		// Tasks already waiting for this one (unusual, but possible)
+		double cpDown = 0;
+		List<Task> waiters = waitersByTask.get(task);
+		if (waiters != null) {
+			for (Task waiter : waiters)
+				cpDown = Math.max(cpDown, getCriticalPath(waiter));
+		}
+		setCriticalPath(task, weight(task) + cpDown);
+
+		// Propagate upstream
+		Deque<Task> toUpdate = new ArrayDeque<Task>();
+		toUpdate.add(task);
+		while (!toUpdate.isEmpty()) {
+			Task t = toUpdate.removeFirst();
+			if (t.getDependencies() == null) continue;
+
+			double cp = getCriticalPath(t);
+			for (Task dep : t.getDependencies()) {
+				if (!criticalPath.containsKey(dep)) continue; // Not queued here (e.g. done or in another executioner)
+
+				double cpDep = weight(dep) + cp;
+				if (cpDep > getCriticalPath(dep)) {
+					setCriticalPath(dep, cpDep);
+					toUpdate.add(dep);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Update runtime statistics
+	 */
+	protected void updateRuntime(Task task) {
+		if (!task.isDoneOk() || task.getRunningStartTime() == null || task.getRunningEndTime() == null) return;
+
+		double runtime = (task.getRunningEndTime().getTime() - task.getRunningStartTime().getTime()) / 1000.0;
+		String key = runtimeKey(task);
+		Double sum = runtimeSum.get(key);
+		Integer count = runtimeCount.get(key);
+		runtimeSum.put(key, (sum != null ? sum : 0.0) + runtime);
+		runtimeCount.put(key, (count != null ? count : 0) + 1);
+	}
+
+	/**
+	 * Process all pending 'done' events
+	 * @return true if any event was processed
+	 */
+	public boolean update() {
+		boolean updated = false;
+		for (Task task = doneEvents.poll(); task != null; task = doneEvents.poll()) {
+			doneWaiters(task);
+			updated = true;
+		}
+		return updated;
+	}
+
+	/**
+	 * Task's weight used in critical path calculation
+	 */
+	protected double weight(Task task) {
+		switch (taskPriority) {
+		case CRITICAL_PATH:
+			long timeout = task.getResources() != null ? task.getResources().getTimeout() : 0;
+			return timeout > 0 ? timeout : DEFAULT_WEIGHT;
+
+		case CRITICAL_PATH_RUNTIME:
+			// Average runtime of tasks created by the same 'task' statement
+			String key = runtimeKey(task);
+			Integer count = runtimeCount.get(key);
+			if (count != null && count > 0) return Math.max(runtimeSum.get(key) / count, DEFAULT_WEIGHT);
+			return DEFAULT_WEIGHT;
+
+		default:
+			return 0;
+		}
+	}
+
+}
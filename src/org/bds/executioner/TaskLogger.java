@@ -1,9 +1,13 @@
 package org.bds.executioner;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.io.PrintWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.bds.task.Task;
 import org.bds.util.Gpr;
@@ -16,33 +20,75 @@ import org.bds.util.Timer;
  * 		i) Kill remaining processes invoking appropriate commands (kill, qdel, etc.)
  * 		ii) Remove stale file from unfinished tasks
  *
+ * Entries are written using 'group commits': The file is kept open and
+ * entries from many tasks are buffered and written at once, at most
+ * 'flushWindow' milliseconds after they were added. Entries for new tasks
+ * are written and synced to disk as soon as the task is followed (see
+ * 'Executioner.follow'), so the parent process can always find the tasks
+ * that were running.
+ *
+ * Locking: 'writeLock' is always acquired before 'this'. Buffer updates
+ * are done holding 'this' only, and 'flush' is never invoked while
+ * holding 'this'.
+ *
  * @author pcingola
  */
 public class TaskLogger {
 
 	public static final String CMD_REMOVE_FILE = "rm";
+	public static final int DEFAULT_FLUSH_WINDOW = 100; // Write buffered entries after this time (milliseconds)
+
+	private static ScheduledExecutorService scheduler;
 
 	boolean debug = false;
 	String pidFile;
 	HashSet<String> pids;
+	long flushWindow = DEFAULT_FLUSH_WINDOW;
+	StringBuilder buffer; // Entries not yet written
+	boolean flushScheduled; // A flush is scheduled to write 'buffer'
+	boolean synced = true; // All written entries are synced to disk
+	FileOutputStream out; // Kept open (null until the first write)
+	Object writeLock = new Object(); // Writes are serialized (file entries must be in order)
+
+	/**
+	 * Shared scheduler (flushes buffered entries)
+	 */
+	static synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "TaskLogger");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return scheduler;
+	}
 
 	public TaskLogger(String pidFile) {
 		if (pidFile == null) throw new RuntimeException("Cannot initialize using a null file!");
 		this.pidFile = pidFile;
 		pids = new HashSet<String>();
+		buffer = new StringBuilder();
 		if (debug) Gpr.debug("Creating PID logger " + pidFile);
+
+		// Write pending entries before exiting
+		Runtime.getRuntime().addShutdownHook(new Thread("TaskLogger-close") {
+			@Override
+			public void run() {
+				close();
+			}
+		});
 	}
 
 	/**
 	 * Add a task and the corresponding executioner
 	 */
-	public synchronized void add(Task task, Executioner executioner) {
+	public void add(Task task, Executioner executioner) {
 		StringBuilder lines = new StringBuilder();
 
-		// Add pid
-		String pid = task.getPid();
-		pids.add(pid);
-
 		//---
 		// Append process PID
 		//---
@@ -56,8 +102,10 @@ public class TaskLogger {
 		}
 		String cmd = cmdsb.toString().trim();
 
-		// Append process entry
-		lines.append(task.getPid() + "\t+\t" + cmd + "\n");
+		// Append process entry (and kill command's batch size, if any)
+		int killBatchSize = executioner.osKillBatchSize();
+		if (!cmd.isEmpty() && killBatchSize > 0) lines.append(task.getPid() + "\t+\t" + cmd + "\t" + killBatchSize + "\n");
+		else lines.append(task.getPid() + "\t+\t" + cmd + "\n");
 
 		//---
 		// Append task output files.
@@ -72,20 +120,71 @@ public class TaskLogger {
 		//---
 		// Append all lines to file
 		//---
-		append(lines.toString());
+		boolean flushNow;
+		synchronized (this) {
+			pids.add(task.getPid());
+			flushNow = append(lines.toString());
+		}
+		if (flushNow) flush();
 	}
 
 	/**
 	 * Append a string to the pidFile
+	 * Note: The string is buffered and written within 'flushWindow' milliseconds
+	 * @return true if the caller should invoke 'flush' (after releasing the lock)
 	 */
-	protected void append(String str) {
-		try {
-			if (debug) Timer.showStdErr("TaskLogger: Appending to PidFile '" + pidFile + "', lines:\n" + Gpr.prependEachLine("\t\t|", str));
-			PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(pidFile, true)));
-			out.print(str);
-			out.close(); // We need to flush this as fast as possible to avoid missing PID values in the file
-		} catch (Exception e) {
-			throw new RuntimeException("Error appending information to file '" + pidFile + "'\n", e);
+	protected synchronized boolean append(String str) {
+		buffer.append(str);
+		if (flushScheduled) return false;
+		if (flushWindow <= 0) return true;
+
+		// Schedule a write (all entries appended until then are written at once)
+		flushScheduled = true;
+		getScheduler().schedule(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, flushWindow, TimeUnit.MILLISECONDS);
+		return false;
+	}
+
+	/**
+	 * Write pending entries and close the file
+	 */
+	public void close() {
+		synchronized (writeLock) {
+			sync();
+			try {
+				if (out != null) out.close();
+			} catch (IOException e) {
+				throw new RuntimeException("Error closing file '" + pidFile + "'\n", e);
+			}
+			out = null;
+		}
+	}
+
+	/**
+	 * Write all buffered entries to the pidFile
+	 */
+	public void flush() {
+		synchronized (writeLock) {
+			String str;
+			synchronized (this) {
+				flushScheduled = false;
+				if (buffer.length() <= 0) return;
+				str = buffer.toString();
+				buffer = new StringBuilder();
+				synced = false;
+			}
+
+			try {
+				if (debug) Timer.showStdErr("TaskLogger: Appending to PidFile '" + pidFile + "', lines:\n" + Gpr.prependEachLine("\t\t|", str));
+				if (out == null) out = new FileOutputStream(pidFile, true);
+				out.write(str.getBytes());
+			} catch (Exception e) {
+				throw new RuntimeException("Error appending information to file '" + pidFile + "'\n", e);
+			}
 		}
 	}
 
@@ -96,12 +195,41 @@ public class TaskLogger {
 	/**
 	 * Remove a task
 	 */
-	public synchronized void remove(Task task) {
-		// Remove PID
-		String pid = task.getPid();
-		pids.remove(pid);
+	public void remove(Task task) {
+		boolean flushNow = false;
+		synchronized (this) {
+			StringBuilder lines = new StringBuilder();
+			remove(task, lines);
 
-		StringBuilder lines = new StringBuilder();
+			// Append all lines to file
+			if (lines.length() > 0) flushNow = append(lines.toString());
+		}
+		if (flushNow) flush();
+	}
+
+	/**
+	 * Remove tasks (all lines are appended at once)
+	 */
+	public void remove(Collection<Task> tasks) {
+		boolean flushNow = false;
+		synchronized (this) {
+			StringBuilder lines = new StringBuilder();
+			for (Task task : tasks)
+				remove(task, lines);
+
+			// Append all lines to file
+			if (lines.length() > 0) flushNow = append(lines.toString());
+		}
+		if (flushNow) flush();
+	}
+
+	/**
+	 * Remove a task: Add lines to 'lines'
+	 */
+	void remove(Task task, StringBuilder lines) {
+		// Remove PID (nothing to do if the task was not added or it was already removed)
+		String pid = task.getPid();
+		if (!pids.remove(pid)) return;
 
 		// Append process PID
 		lines.append(task.getPid() + "\t-\n");
@@ -111,13 +239,35 @@ public class TaskLogger {
 			for (String file : task.getOutputs())
 				lines.append(file + "\t-\n");
 		}
-
-		// Append all lines to file
-		append(lines.toString());
 	}
 
 	public void setDebug(boolean debug) {
 		this.debug = debug;
 	}
 
+	public void setFlushWindow(long flushWindow) {
+		this.flushWindow = flushWindow;
+	}
+
+	/**
+	 * Write pending entries and make sure they are on disk
+	 * Note: This is a no-op unless there are entries that were not synced yet.
+	 */
+	public void sync() {
+		synchronized (writeLock) {
+			flush();
+
+			synchronized (this) {
+				if (synced) return;
+				synced = true;
+			}
+
+			try {
+				if (out != null) out.getFD().sync();
+			} catch (IOException e) {
+				throw new RuntimeException("Error syncing file '" + pidFile + "'\n", e);
+			}
+		}
+	}
+
 }
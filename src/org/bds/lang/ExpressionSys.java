@@ -65,15 +65,15 @@ public class ExpressionSys extends Expression {
 			else taskName = Gpr.sanityzeName(taskName); // Make sure that 'taskName' can be used in a filename
 		}
 
-		String execId = bdsThread.getBdsThreadId() //
-				+ "/" + name //
+		String execName = name //
 				+ (module == null ? "" : "." + module) //
 				+ (taskName == null ? "" : "." + taskName) //
 				+ ".line_" + getLineNum() //
 				+ ".id_" + nextId //
 				;
 
-		return execId;
+		// Files may be distributed in sub-directories (see 'taskDirLayout')
+		return Config.get().getTaskDirLayout().path(bdsThread.getBdsThreadId(), execName, nextId);
 	}
 
 	public String getCommands(BdsThread bdsThread) {
@@ -135,6 +135,7 @@ public class ExpressionSys extends Expression {
 
 		// Run command line
 		ExecResult execResult = Exec.exec(args, bdsThread.getConfig().isQuiet());
+		Config.get().getFileMetadataCache().clear(); // Command could have modified any file
 
 		// Error running process?
 		int exitValue = execResult.exitValue;
@@ -32,6 +32,7 @@ public class ExpressionTask extends ExpressionWithScope {
 	public static final String TASK_OPTION_ALLOW_EMPTY = "allowEmpty";
 	public static final String TASK_OPTION_NODE = "node";
 	public static final String TASK_OPTION_PHYSICAL_PATH = "ppwd";
+	public static final String TASK_OPTION_PRIORITY = "priority";
 	public static final String TASK_OPTION_QUEUE = "queue";
 	public static final String TASK_OPTION_RETRY = "retry";
 	public static final String TASK_OPTION_SYSTEM = "system";
@@ -187,6 +188,7 @@ public class ExpressionTask extends ExpressionWithScope {
 		task.setQueue(bdsThread.getString(TASK_OPTION_QUEUE));
 		task.setMaxFailCount((int) bdsThread.getInt(TASK_OPTION_RETRY) + 1); // Note: Max fail count is the number of retries plus one (we always run at least once)
 		task.setCurrentDir(bdsThread.getCurrentDir());
+		if (bdsThread.hasVariable(TASK_OPTION_PRIORITY)) task.setPriority((int) bdsThread.getInt(TASK_OPTION_PRIORITY));
 
 		// Set task options: Resources
 		task.getResources().setCpus((int) bdsThread.getInt(TASK_OPTION_CPUS));
@@ -34,6 +34,7 @@ public class MethodNative_string_write_str extends MethodNative {
 
 		// Save to file
 		String str = bdsThread.getString("str");
+		bdsThread.getConfig().getFileMetadataCache().invalidate(data);
 		if (data.isRemote()) {
 			DataRemote dr = (DataRemote) data;
 			if (!dr.isFile()) bdsThread.fatalError(this, "Cannot write to non-file: " + dr.getAbsolutePath());
@@ -1,5 +1,7 @@
 package org.bds.osCmd;
 
+import java.util.concurrent.Semaphore;
+
 import org.bds.cluster.host.Host;
 import org.bds.cluster.host.HostResources;
 import org.bds.executioner.Executioner;
@@ -24,6 +26,7 @@ public abstract class Cmd extends Thread {
 	protected String commandArgs[]; // Command and arguments
 	protected String error = ""; // Errors
 	protected boolean executing = false;
+	protected boolean async = false; // Command finishes asynchronously (see 'execFinished')
 	protected boolean started = false; // Command states
 	protected int exitValue = 0; // Command exit value
 	protected Task task = null; // Task corresponding to this cmd
@@ -31,6 +34,7 @@ public abstract class Cmd extends Thread {
 	protected HostResources resources; // Resources required by this command
 	protected NotifyTaskState notifyTaskState; // Notify executioner when command finishes executing
 	protected PidParser pidParser; // Parse PID from command line
+	protected Semaphore admission; // Admission permit held while the command is executing (null if none)
 
 	public Cmd(String id, String args[]) {
 		this.id = id;
@@ -75,6 +79,7 @@ public abstract class Cmd extends Thread {
 			stateRunningBefore(); // Change state before executing command
 			if (debug) log("Running");
 			execCmd();
+			if (async) return exitValue; // Command is still running, 'execFinished' is invoked when it finishes
 			stateRunningAfter(); // Change state after executing command (e.g. when sending a task to a cluster system)
 		} catch (Throwable t) {
 			execError(t, TaskState.ERROR, Task.EXITCODE_ERROR);
@@ -92,6 +97,25 @@ public abstract class Cmd extends Thread {
 	 */
 	protected abstract void execCmd() throws Exception;
 
+	/**
+	 * An asynchronous command finished executing (see 'async')
+	 * @param exitValue : Command's exit value
+	 * @param t : Error while waiting for the command (null if none)
+	 */
+	protected void execFinished(int exitValue, Throwable t) {
+		try {
+			if (t != null) throw t;
+			this.exitValue = exitValue;
+			stateRunningAfter();
+		} catch (Throwable tt) {
+			execError(tt, TaskState.ERROR, Task.EXITCODE_ERROR);
+			return;
+		}
+
+		if (debug) log("Done");
+		execDone();
+	}
+
 	/**
 	 * Finished executing a command, update states, notify
 	 */
@@ -186,11 +210,27 @@ public abstract class Cmd extends Thread {
 		Timer.showStdErr(getClass().getSimpleName() + " '" + getCmdId() + "': " + msg);
 	}
 
+	/**
+	 * Release admission permit (if any). Safe to call more than once
+	 */
+	public synchronized void releaseAdmission() {
+		if (admission == null) return;
+		admission.release();
+		admission = null;
+	}
+
 	@Override
 	public void run() {
 		exec();
 	}
 
+	/**
+	 * Command holds an admission permit, it is released when the command finishes
+	 */
+	public synchronized void setAdmission(Semaphore admission) {
+		this.admission = admission;
+	}
+
 	public void setCommandArgs(String[] commandArgs) {
 		this.commandArgs = commandArgs;
 	}
@@ -230,6 +270,7 @@ public abstract class Cmd extends Thread {
 	protected void stateDone() {
 		started = true;
 		executing = false;
+		releaseAdmission();
 	}
 
 	protected void stateRunning() {
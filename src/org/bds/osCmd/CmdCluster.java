@@ -1,5 +1,8 @@
 package org.bds.osCmd;
 
+import org.bds.task.TaskState;
+import org.bds.util.TokenBucket;
+
 /**
  * A command that runs a script in a cluster
  *
@@ -7,14 +10,48 @@ package org.bds.osCmd;
  * So, in this case, when the command finishes execution, it
  * only means that the task is queued.
  *
+ * Submissions can be rate limited (token bucket) and failed
+ * submissions are re-tried, waiting longer after each failure
+ *
  * @author pcingola
  */
 public class CmdCluster extends CmdLocal {
 
+	protected boolean killed; // Command was killed (do not submit)
+	protected boolean killJob = true; // Kill job using cluster's kill command (false if the executioner kills jobs, e.g. in batches)
+	protected boolean retrySubmission; // Latest submission failed and should be re-tried
+	protected int submitRetry; // Number of remaining submission retries
+	protected long submitBackoff; // Time to wait before re-trying a submission (milliseconds). Doubled after each failure
+	protected TokenBucket rateLimit; // Limit submission rate (can be null)
+
 	public CmdCluster(String id, String[] args) {
 		super(id, args);
 	}
 
+	/**
+	 * Execute command. Failed submissions (e.g. 'qsub' could not
+	 * connect to the scheduler) are re-tried
+	 */
+	@Override
+	public int exec() {
+		long backoff = submitBackoff;
+		while (true) {
+			if (killed) return ERROR_EXECUTING; // Killed before submission, nothing to do
+
+			retrySubmission = false;
+			int exitVal = super.exec();
+			if (!retrySubmission) return exitVal;
+
+			log("Submission failed, retrying in " + backoff + " ms (" + submitRetry + " retries left)");
+			try {
+				sleep(backoff);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			backoff *= 2;
+		}
+	}
+
 	@Override
 	protected void execCmd() throws Exception {
 		// Wait for the process to finish and store exit value
@@ -35,6 +72,67 @@ public class CmdCluster extends CmdLocal {
 		if (notifyTaskState != null) notifyTaskState.taskRunning(task);
 	}
 
+	@Override
+	protected void execError(Throwable t, TaskState taskState, int exitCode) {
+		if (retrySubmission(t, taskState)) return;
+		super.execError(t, taskState, exitCode);
+	}
+
+	@Override
+	protected boolean execPrepare() throws Exception {
+		if (rateLimit != null) rateLimit.acquire(); // Do not submit too fast
+		return super.execPrepare();
+	}
+
+	@Override
+	public void kill() {
+		killed = true;
+		super.kill();
+	}
+
+	@Override
+	protected void killCmd() {
+		if (killJob) {
+			super.killCmd();
+		} else if (process != null) {
+			// Job is killed by the executioner, only kill local process (e.g. 'qsub')
+			addError("Killed!\n");
+			process.destroy();
+		}
+	}
+
+	/**
+	 * Should a failed submission be re-tried?
+	 * Only when the task could not be submitted (START_FAILED) and there are retries left
+	 */
+	protected boolean retrySubmission(Throwable t, TaskState taskState) {
+		if (killed || taskState != TaskState.START_FAILED || submitRetry <= 0) return false;
+
+		if (debug && t != null) t.printStackTrace();
+		if (process != null) process.destroy();
+
+		submitRetry--;
+		retrySubmission = true;
+		error = "";
+		return true;
+	}
+
+	public void setKillJob(boolean killJob) {
+		this.killJob = killJob;
+	}
+
+	public void setRateLimit(TokenBucket rateLimit) {
+		this.rateLimit = rateLimit;
+	}
+
+	/**
+	 * Re-try failed submissions up to 'submitRetry' times, waiting 'submitBackoff' milliseconds before the first retry
+	 */
+	public void setSubmitRetry(int submitRetry, long submitBackoff) {
+		this.submitRetry = submitRetry;
+		this.submitBackoff = submitBackoff;
+	}
+
 	@Override
 	protected void stateDone() {
 		started = true;
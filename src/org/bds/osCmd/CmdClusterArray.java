@@ -0,0 +1,137 @@
+package org.bds.osCmd;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bds.executioner.ExecutionerCluster;
+import org.bds.task.Task;
+import org.bds.task.TaskState;
+
+/**
+ * A command that submits several tasks to a cluster as a
+ * single 'array job' (e.g. 'qsub -t 1-N')
+ *
+ * The cluster reports one job ID for the whole array. Each
+ * task gets its own PID (e.g. 'jobId.index' or 'jobId[index]'),
+ * so it can be monitored and killed individually.
+ *
+ * @author pcingola
+ */
+public class CmdClusterArray extends CmdCluster {
+
+	protected List<Task> tasks; // Tasks in this array. Array index is one-based (first task is index 1)
+	protected ExecutionerCluster executionerCluster;
+	protected Set<Task> tasksKilled; // Tasks in this array that have been killed individually
+
+	public CmdClusterArray(String id, String[] args, List<Task> tasks, ExecutionerCluster executionerCluster) {
+		super(id, args);
+		this.tasks = tasks;
+		this.executionerCluster = executionerCluster;
+		tasksKilled = new HashSet<Task>();
+		task = tasks.get(0);
+	}
+
+	/**
+	 * Array was submitted: All tasks are queued in the cluster
+	 */
+	@Override
+	protected void execDone() {
+		stateDone();
+		if (notifyTaskState != null) {
+			for (Task t : tasks)
+				notifyTaskState.taskRunning(t);
+		}
+	}
+
+	@Override
+	protected void execError(Throwable t, TaskState taskState, int exitCode) {
+		if (retrySubmission(t, taskState)) return;
+
+		stateDone();
+		exitValue = exitCode;
+
+		addError(t != null ? t.getMessage() : null);
+
+		if (debug && t != null) t.printStackTrace();
+
+		for (Task tt : tasks) {
+			tt.setExitValue(exitCode);
+			tt.setErrorMsg(error);
+			if (notifyTaskState != null) notifyTaskState.taskFinished(tt, taskState);
+		}
+	}
+
+	public List<Task> getTasks() {
+		return tasks;
+	}
+
+	@Override
+	public void kill() {
+		if (debug) log("Process killed");
+		killed = true;
+
+		killCmd();
+
+		// Notify end of execution
+		for (Task t : tasks) {
+			if (t.isDone()) continue;
+			t.setExitValue(Task.EXITCODE_KILLED);
+			if (notifyTaskState != null) notifyTaskState.taskFinished(t, TaskState.KILLED);
+		}
+	}
+
+	/**
+	 * Kill one task in the array.
+	 * The whole array job is killed only if all other tasks in the
+	 * array are done (or killed), otherwise only the task's array
+	 * element is killed (e.g. 'qdel 33.5')
+	 */
+	public synchronized void kill(Task task) {
+		tasksKilled.add(task);
+
+		boolean killAll = true;
+		for (Task t : tasks)
+			killAll &= (t.isDone() || tasksKilled.contains(t));
+
+		if (killAll) {
+			kill();
+			return;
+		}
+
+		// Kill array element (the kill command runs in the background)
+		if (debug) log("Killing array task '" + task.getId() + "'");
+		String taskPid = task.getPid();
+		if (killJob && taskPid != null && !taskPid.isEmpty()) executionerCluster.killJobs(Collections.singletonList(taskPid));
+
+		task.setExitValue(Task.EXITCODE_KILLED);
+		if (notifyTaskState != null) notifyTaskState.taskFinished(task, TaskState.KILLED);
+	}
+
+	/**
+	 * Read array's job ID and set each task's PID
+	 */
+	@Override
+	protected boolean readPid() throws InterruptedException, IOException {
+		if (!super.readPid()) return false;
+		if (!readPid) return true;
+
+		String jobId = executionerCluster.arrayJobId(pid);
+		for (int i = 0; i < tasks.size(); i++)
+			tasks.get(i).setPid(executionerCluster.arrayTaskPid(jobId, i + 1));
+
+		return true;
+	}
+
+	@Override
+	protected void stateRunning() {
+		started = true;
+		if (notifyTaskState != null) {
+			for (Task t : tasks)
+				notifyTaskState.taskStarted(t);
+		}
+	}
+
+}
@@ -6,6 +6,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.function.BiConsumer;
 
 import org.bds.executioner.Executioner;
 import org.bds.executioner.ExecutionerLocal;
@@ -37,6 +38,7 @@ public class CmdLocal extends Cmd {
 	protected boolean readPid;
 	protected String pid; // Only if child process reports PID and readPid is true
 	protected String feedStdin; // Feed this string to stdin when the process starts
+	protected ProcessReaper processReaper; // If not null, do not wait for the process (the reaper notifies when it finishes)
 
 	public CmdLocal(String id, String args[]) {
 		super(id, args);
@@ -44,6 +46,18 @@ public class CmdLocal extends Cmd {
 
 	@Override
 	protected void execCmd() throws Exception {
+		if (processReaper != null) {
+			// Do not block this thread waiting for the process: The reaper notifies when it finishes
+			async = true;
+			processReaper.onExit(process).whenCompleteAsync(new BiConsumer<Integer, Throwable>() {
+				@Override
+				public void accept(Integer exitVal, Throwable t) {
+					execFinished(exitVal != null ? exitVal : ERROR_EXECUTING, t);
+				}
+			}, processReaper.getPool());
+			return;
+		}
+
 		// Wait for the process to finish and store exit value
 		exitValue = process.waitFor();
 	}
@@ -213,6 +227,10 @@ public class CmdLocal extends Cmd {
 		return true;
 	}
 
+	public void setProcessReaper(ProcessReaper processReaper) {
+		this.processReaper = processReaper;
+	}
+
 	public void setReadPid(boolean readPid) {
 		this.readPid = readPid;
 	}
@@ -0,0 +1,103 @@
+package org.bds.osCmd;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * Execute a command in a local computer using a 'LocalLauncher'
+ *
+ * The command is sent to the launcher process (no new process is
+ * started by the JVM). STDOUT and STDERR are written to files
+ * and the exit code is reported back by the launcher.
+ *
+ * @author pcingola
+ */
+public class CmdLocalLauncher extends Cmd {
+
+	protected LocalLauncher launcher;
+	protected long timeout; // Timeout in seconds (zero means no timeout)
+	protected String stdoutFile, stderrFile, exitFile;
+	protected String pid;
+	protected CompletableFuture<String> pidFuture; // Completes when the launcher reports the PID (null if the command could not be started)
+	protected CompletableFuture<Integer> exitFuture; // Completes when the launcher reports the exit code
+
+	public CmdLocalLauncher(String id, String args[], LocalLauncher launcher) {
+		super(id, args);
+		this.launcher = launcher;
+		pidFuture = new CompletableFuture<String>();
+		exitFuture = new CompletableFuture<Integer>();
+	}
+
+	@Override
+	protected void execCmd() throws Exception {
+		// Do not block this thread waiting for the process: The launcher notifies when it finishes
+		async = true;
+		exitFuture.whenCompleteAsync(new BiConsumer<Integer, Throwable>() {
+			@Override
+			public void accept(Integer exitVal, Throwable t) {
+				execFinished(exitVal != null ? exitVal : ERROR_EXECUTING, t);
+			}
+		}, ProcessReaper.get().getPool());
+	}
+
+	@Override
+	protected boolean execPrepare() throws Exception {
+		launcher.launch(this, timeout, stdoutFile, stderrFile, exitFile);
+
+		// Wait until the launcher reports the PID
+		pid = pidFuture.get();
+		if (pid == null) return false;
+
+		if (task != null) task.setPid(pid); // Update task's pid
+		return true;
+	}
+
+	/**
+	 * Launcher reports that the command finished
+	 */
+	void exited(int exitValue) {
+		pidFuture.complete(""); // PID not reported (e.g. command finished very fast)
+		exitFuture.complete(exitValue);
+	}
+
+	public String getPid() {
+		return pid;
+	}
+
+	@Override
+	protected void killCmd() {
+		if (debug) log("Killing process '" + pid + "'");
+		launcher.kill(this);
+		addError("Killed!\n");
+	}
+
+	/**
+	 * Launcher reports that the command is running
+	 */
+	void launched(String pid) {
+		pidFuture.complete(pid);
+	}
+
+	/**
+	 * Launcher could not start the command (or the launcher died)
+	 */
+	void launcherError(String msg) {
+		addError(msg);
+		pidFuture.complete(null);
+		exitFuture.complete(ERROR_EXECUTING);
+	}
+
+	/**
+	 * Redirect STDOUT, STDERR and exit code to these files
+	 */
+	public void setFiles(String stdoutFile, String stderrFile, String exitFile) {
+		this.stdoutFile = stdoutFile;
+		this.stderrFile = stderrFile;
+		this.exitFile = exitFile;
+	}
+
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+}
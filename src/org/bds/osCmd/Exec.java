@@ -3,6 +3,9 @@ package org.bds.osCmd;
 import java.io.File;
 import java.lang.management.ManagementFactory;
 import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.bds.run.BdsThread;
 import org.bds.run.BdsThreads;
@@ -18,6 +21,8 @@ public class Exec {
 
 	public static final String USER_DIR = "user.dir";
 
+	public static final int EXITCODE_TIMEOUT = -2; // Exit value when the command timed out
+
 	public static boolean debug = false;
 
 	int exitValue;
@@ -35,10 +40,21 @@ public class Exec {
 	 * Execute a program
 	 */
 	public static ExecResult exec(List<String> args, boolean quiet) {
-		return new Exec().run(args, quiet);
+		return new Exec().run(args, quiet, 0);
+	}
+
+	/**
+	 * Execute a program, kill it if it doesn't finish in 'timeout' seconds
+	 */
+	public static ExecResult exec(List<String> args, boolean quiet, int timeout) {
+		return new Exec().run(args, quiet, timeout);
 	}
 
-	protected ExecResult run(List<String> args, boolean quiet) {
+	/**
+	 * Run command
+	 * @param timeout : Timeout in seconds (zero or negative means no timeout)
+	 */
+	protected ExecResult run(List<String> args, boolean quiet, int timeout) {
 		// Create a command string
 		StringBuilder cmdsb = new StringBuilder();
 		for (String arg : args)
@@ -47,6 +63,7 @@ public class Exec {
 
 		// Run commands line
 		exitValue = -1;
+		boolean timedOut = false;
 		StreamGobbler stdout = null, stderr = null;
 		try {
 			ProcessBuilder pb = new ProcessBuilder(args);
@@ -61,6 +78,7 @@ public class Exec {
 			Process process = pb.start();
 
 			// Make sure we read STDOUT and STDERR, so that process does not block
+			// Note: STDOUT is read by this thread (unless there is a timeout), STDERR by a pooled thread
 			stdout = new StreamGobbler(process.getInputStream(), false);
 			stderr = new StreamGobbler(process.getErrorStream(), true);
 			stdout.setSaveLinesInMemory(true);
@@ -69,15 +87,36 @@ public class Exec {
 				stdout.setQuietMode();
 				stderr.setQuietMode();
 			}
-			stdout.start();
-			stderr.start();
-
-			// Wait for process to finish
-			exitValue = process.waitFor();
-
-			// Wait for Gobblers to finish (otherwise we may have an incomplete stdout/stderr)
-			stdout.join();
-			stderr.join();
+			Future<?> stderrDone = ProcessReaper.get().submit(stderr);
+
+			if (timeout <= 0) {
+				stdout.run();
+
+				// Wait for process to finish
+				exitValue = process.waitFor();
+
+				// Wait for STDERR to finish (otherwise we may have an incomplete stderr)
+				stderrDone.get();
+			} else {
+				Future<?> stdoutDone = ProcessReaper.get().submit(stdout);
+
+				// Wait for process to finish, kill it on timeout
+				if (process.waitFor(timeout, TimeUnit.SECONDS)) {
+					exitValue = process.exitValue();
+				} else {
+					timedOut = true;
+					process.destroyForcibly();
+					exitValue = EXITCODE_TIMEOUT;
+				}
+
+				// Wait for STDOUT and STDERR to finish (child processes may keep them open, so don't wait forever)
+				try {
+					stdoutDone.get(timeout, TimeUnit.SECONDS);
+					stderrDone.get(timeout, TimeUnit.SECONDS);
+				} catch (TimeoutException e) {
+					timedOut = true;
+				}
+			}
 
 			if (debug) Gpr.debug("Exit value: " + exitValue);
 		} catch (Exception e) {
@@ -87,6 +126,7 @@ public class Exec {
 		// Collect output
 		if (stdout != null) stdOutStr = stdout.getAllLines();
 		if (stderr != null) stdErrStr = stderr.getAllLines();
+		if (timedOut) stdErrStr = (stdErrStr != null ? stdErrStr : "") + "Timeout: Command did not finish in " + timeout + " seconds: '" + commands + "'\n";
 
 		return new ExecResult(stdOutStr, stdErrStr, exitValue);
 	}
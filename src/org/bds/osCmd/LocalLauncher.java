@@ -0,0 +1,278 @@
+package org.bds.osCmd;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.bds.util.Timer;
+
+/**
+ * A long running process that launches local commands (see 'bds launcher').
+ *
+ * Instead of starting one 'bds exec' process for each task, requests
+ * are sent to the launcher's STDIN (one line per request) and replies
+ * (PID and exit codes) are read from the launcher's STDOUT.
+ *
+ * Requests are sent in batches: All requests queued while the previous
+ * batch was being written, are written (and flushed) at once.
+ *
+ * Protocol (tab separated fields):
+ * 		Requests:	RUN id timeout file.stdout file.stderr file.exit command arguments...
+ * 					KILL id
+ * 		Replies:	READY
+ * 					PID id pid
+ * 					EXIT id exitCode
+ * 					ERROR id message
+ *
+ * @author pcingola
+ */
+public class LocalLauncher extends Thread {
+
+	public static final int READY_TIMEOUT = 10 * 1000; // Maximum time to wait for the launcher to start (milliseconds)
+
+	public static final String RUN = "RUN";
+	public static final String KILL = "KILL";
+	public static final String READY = "READY";
+	public static final String PID = "PID";
+	public static final String EXIT = "EXIT";
+	public static final String ERROR = "ERROR";
+
+	boolean debug;
+	volatile boolean running;
+	String commandArgs[];
+	Process process;
+	OutputStream stdin;
+	CompletableFuture<Boolean> ready;
+	Map<String, CmdLocalLauncher> cmdById; // Commands sent to the launcher, not finished yet
+	List<String> requests; // Requests waiting to be sent
+	boolean sending; // A thread is sending requests
+
+	/**
+	 * Start a launcher
+	 * @return A launcher or null if the launcher could not be started
+	 */
+	public static LocalLauncher create(String commandArgs[], boolean debug) {
+		LocalLauncher launcher = new LocalLauncher(commandArgs);
+		launcher.setDebug(debug);
+		if (launcher.startLauncher()) return launcher;
+
+		if (launcher.process != null) launcher.process.destroy();
+		launcher.close();
+		return null;
+	}
+
+	public LocalLauncher(String commandArgs[]) {
+		super("LocalLauncher");
+		setDaemon(true);
+		this.commandArgs = commandArgs;
+		cmdById = new ConcurrentHashMap<String, CmdLocalLauncher>();
+		requests = new ArrayList<String>();
+		ready = new CompletableFuture<Boolean>();
+	}
+
+	/**
+	 * Stop the launcher (all running commands are killed)
+	 */
+	public synchronized void close() {
+		running = false;
+		if (process == null) return;
+
+		try {
+			stdin.close(); // Launcher kills all commands and exits when STDIN is closed
+		} catch (IOException e) {
+			// Nothing to do
+		}
+		process = null;
+	}
+
+	/**
+	 * The launcher finished (or died): Commands still running are lost
+	 */
+	protected void finished() {
+		for (String id : cmdById.keySet().toArray(new String[0])) {
+			CmdLocalLauncher cmd = cmdById.remove(id);
+			if (cmd != null) cmd.launcherError("Local launcher finished unexpectedly");
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Kill a command
+	 */
+	public void kill(CmdLocalLauncher cmd) {
+		send(KILL + "\t" + cmd.getCmdId());
+	}
+
+	/**
+	 * Launch a command
+	 */
+	public void launch(CmdLocalLauncher cmd, long timeout, String stdoutFile, String stderrFile, String exitFile) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(RUN);
+		sb.append("\t" + cmd.getCmdId());
+		sb.append("\t" + timeout);
+		sb.append("\t" + (stdoutFile != null ? stdoutFile : "-"));
+		sb.append("\t" + (stderrFile != null ? stderrFile : "-"));
+		sb.append("\t" + (exitFile != null ? exitFile : "-"));
+		for (String arg : cmd.getCommandArgs())
+			sb.append("\t" + arg);
+
+		String request = sb.toString();
+		if (request.indexOf('\n') >= 0) throw new RuntimeException("Invalid request, new line characters are not allowed:\n" + request);
+
+		cmdById.put(cmd.getCmdId(), cmd);
+		try {
+			send(request);
+		} catch (RuntimeException e) {
+			cmdById.remove(cmd.getCmdId());
+			throw e;
+		}
+	}
+
+	public void log(String msg) {
+		Timer.showStdErr(getClass().getSimpleName() + ": " + msg);
+	}
+
+	/**
+	 * Parse a reply from the launcher
+	 */
+	protected void reply(String line) {
+		if (debug) log("Reply '" + line + "'");
+
+		String fields[] = line.split("\t", 3);
+		if (fields[0].equals(READY)) {
+			ready.complete(true);
+			return;
+		}
+
+		if (fields.length < 3) {
+			log("Invalid reply '" + line + "'");
+			return;
+		}
+
+		String id = fields[1];
+		String value = fields[2];
+		CmdLocalLauncher cmd = cmdById.get(id);
+		if (cmd == null) {
+			if (debug) log("Cannot find command '" + id + "'");
+			return;
+		}
+
+		switch (fields[0]) {
+		case PID:
+			cmd.launched(value);
+			break;
+
+		case EXIT:
+			cmdById.remove(id);
+			cmd.exited(Integer.parseInt(value));
+			break;
+
+		case ERROR:
+			cmdById.remove(id);
+			cmd.launcherError(value);
+			break;
+
+		default:
+			log("Unknown reply '" + line + "'");
+		}
+	}
+
+	/**
+	 * Read replies
+	 */
+	@Override
+	public void run() {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			String line;
+			while ((line = reader.readLine()) != null)
+				reply(line);
+		} catch (Exception e) {
+			if (debug) e.printStackTrace();
+		} finally {
+			if (running) log("Local launcher finished unexpectedly");
+			running = false;
+			ready.complete(false);
+			finished();
+		}
+	}
+
+	/**
+	 * Queue a request and send all pending requests (unless another thread is already sending them)
+	 */
+	protected void send(String request) {
+		synchronized (this) {
+			if (!running) throw new RuntimeException("Local launcher is not running");
+			requests.add(request);
+			if (sending) return; // The thread sending requests will send this one too
+			sending = true;
+		}
+
+		while (true) {
+			// Get all pending requests
+			StringBuilder batch = new StringBuilder();
+			OutputStream out;
+			synchronized (this) {
+				if (requests.isEmpty() || !running) {
+					sending = false;
+					return;
+				}
+
+				for (String req : requests)
+					batch.append(req + "\n");
+				requests.clear();
+				out = stdin;
+			}
+
+			// Send them at once
+			if (debug) log("Sending requests:\n" + batch);
+			try {
+				out.write(batch.toString().getBytes());
+				out.flush();
+			} catch (IOException e) {
+				synchronized (this) {
+					sending = false;
+				}
+				throw new RuntimeException("Error sending requests to local launcher", e);
+			}
+		}
+	}
+
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+	}
+
+	/**
+	 * Start launcher process and wait until it is ready
+	 */
+	protected boolean startLauncher() {
+		try {
+			if (debug) log("Starting local launcher: " + String.join(" ", commandArgs));
+			ProcessBuilder pb = new ProcessBuilder(commandArgs);
+			pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+			process = pb.start();
+			stdin = process.getOutputStream();
+			running = true;
+			start();
+
+			if (ready.get(READY_TIMEOUT, TimeUnit.MILLISECONDS)) return true;
+		} catch (Exception e) {
+			if (debug) e.printStackTrace();
+		}
+
+		log("WARNING: Could not start local launcher '" + String.join(" ", commandArgs) + "'");
+		return false;
+	}
+
+}
@@ -0,0 +1,148 @@
+package org.bds.osCmd;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bds.Config;
+
+/**
+ * Wait for processes to finish, using bounded thread pools.
+ *
+ * A pooled 'waiter' thread blocks on 'Process.waitFor()' for each
+ * running process and completes a future when the process exits, so
+ * there is no polling. At most 'maxWaiters' processes are waited for
+ * at once (the number of running commands is limited to 'maxThreads'
+ * anyway, see Config.getCmdAdmission).
+ *
+ * It also provides a shared (bounded) thread pool, used to launch
+ * commands and to drain processes' output streams. Idle threads are
+ * re-used, so we don't create new threads for every command.
+ *
+ * @author pcingola
+ */
+public class ProcessReaper {
+
+	public static final int POOL_SIZE = 64; // Maximum number of threads launching commands, reading streams, etc.
+	public static final int KEEP_ALIVE = 60; // Idle threads are terminated after this time (seconds)
+
+	private static ProcessReaper processReaper;
+
+	Map<Process, CompletableFuture<Integer>> futureByProcess;
+	ThreadPoolExecutor pool;
+	ThreadPoolExecutor waitPool;
+
+	/**
+	 * Get (or create) the process reaper
+	 */
+	public static synchronized ProcessReaper get() {
+		if (processReaper == null) processReaper = new ProcessReaper();
+		return processReaper;
+	}
+
+	/**
+	 * Create a bounded pool (threads are created on demand and terminated when idle)
+	 */
+	static ThreadPoolExecutor newPool(final String name, int size) {
+		final AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	protected ProcessReaper() {
+		futureByProcess = new IdentityHashMap<Process, CompletableFuture<Integer>>();
+		pool = newPool("ProcessPool", POOL_SIZE);
+		waitPool = newPool("ProcessWait", Config.DEFAULT_MAX_NUMBER_OF_RUNNING_THREADS);
+	}
+
+	/**
+	 * Run (e.g. launch a command or read a stream) using a pooled thread
+	 */
+	public void execute(Runnable runnable) {
+		pool.execute(runnable);
+	}
+
+	/**
+	 * Get the pool used to run callbacks and commands
+	 */
+	public ExecutorService getPool() {
+		return pool;
+	}
+
+	/**
+	 * Get a future that completes (with the process' exit value) when the process exits
+	 */
+	public synchronized CompletableFuture<Integer> onExit(final Process process) {
+		CompletableFuture<Integer> future = futureByProcess.get(process);
+		if (future == null) {
+			final CompletableFuture<Integer> exitFuture = new CompletableFuture<Integer>();
+			futureByProcess.put(process, exitFuture);
+			waitPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					waitFor(process, exitFuture);
+				}
+			});
+			future = exitFuture;
+		}
+		return future;
+	}
+
+	/**
+	 * Set the maximum number of processes waited for at once
+	 */
+	public synchronized void setMaxWaiters(int maxWaiters) {
+		if (maxWaiters <= 0 || maxWaiters == waitPool.getMaximumPoolSize()) return;
+
+		// Core size must never be larger than maximum size
+		if (maxWaiters > waitPool.getMaximumPoolSize()) {
+			waitPool.setMaximumPoolSize(maxWaiters);
+			waitPool.setCorePoolSize(maxWaiters);
+		} else {
+			waitPool.setCorePoolSize(maxWaiters);
+			waitPool.setMaximumPoolSize(maxWaiters);
+		}
+	}
+
+	/**
+	 * Run using a pooled thread
+	 * @return A future to wait for completion
+	 */
+	public Future<?> submit(Runnable runnable) {
+		return pool.submit(runnable);
+	}
+
+	/**
+	 * Block until the process exits, then complete the future (invoked by a pooled 'waiter' thread)
+	 */
+	void waitFor(Process process, CompletableFuture<Integer> future) {
+		try {
+			int exitValue = process.waitFor();
+			synchronized (this) {
+				futureByProcess.remove(process);
+			}
+			future.complete(exitValue);
+		} catch (InterruptedException e) {
+			synchronized (this) {
+				futureByProcess.remove(process);
+			}
+			future.completeExceptionally(e);
+		}
+	}
+
+}
@@ -11,9 +11,6 @@ import org.bds.util.Gpr;
 
 import com.jcraft.jsch.Channel;
 import com.jcraft.jsch.ChannelExec;
-import com.jcraft.jsch.JSch;
-import com.jcraft.jsch.Session;
-import com.jcraft.jsch.UserInfo;
 
 /**
  * Executes an command in a remote host, via ssh
@@ -21,6 +18,9 @@ import com.jcraft.jsch.UserInfo;
  * Most of this code is copied from JSch
  * examples (http://www.jcraft.com/jsch/examples/)
  *
+ * Ssh sessions are shared between commands (see SshSessionPool), each
+ * command opens a new channel on a (pooled) session.
+ *
  * Important: We force the allocation of a pseudo-tty (see channel.setPty(true) )
  * in order to get the commands killed if the SSH connection is lost (e.g. local
  * command killed). By doing this, we don't have to worry about leaving
@@ -44,8 +44,6 @@ public class Ssh {
 	boolean debug = false;
 	boolean showStdout = false;
 	int exitValue;
-	JSch jsch;
-	Session session;
 	Channel channel;
 	Host host;
 	byte[] tmp = new byte[BUFFER_SIZE];
@@ -89,32 +87,17 @@ public class Ssh {
 	}
 
 	/**
-	 * Connect to a remote host and return a channel (session and jsch are set)
+	 * Open a channel to a remote host (sessions are shared, see SshSessionPool)
 	 */
 	Channel connect(String channleType, String sshCommand) throws Exception {
-		JSch.setConfig("StrictHostKeyChecking", "no"); // Not recommended, but useful
-		jsch = new JSch();
-
-		// Some "reasonable" defaults
-		if (Gpr.exists(defaultKnownHosts)) jsch.setKnownHosts(defaultKnownHosts);
-		for (String identity : defaultKnownIdentity)
-			if (Gpr.exists(identity)) jsch.addIdentity(identity);
-
-		// Create session and connect
-		if (debug) Gpr.debug("Create conection:\n\tuser: '" + host.getUserName() + "'\n\thost : '" + host.getHostName() + "'\n\tport : " + host.getPort());
-		session = jsch.getSession(host.getUserName(), host.getHostName(), host.getPort());
-		session.setUserInfo(new SshUserInfo());
-		session.connect();
-
-		// Create channel
-		channel = session.openChannel(channleType);
+		channel = SshSessionPool.get().openChannel(host, channleType);
 		if ((sshCommand != null) && (channel instanceof ChannelExec)) ((ChannelExec) channel).setCommand(sshCommand);
-
 		return channel;
 	}
 
 	/**
 	 * Diconnect, clear objects and set exit value
+	 * Note: Only the channel is closed, the session is kept open (see SshSessionPool)
 	 */
 	int disconnect(boolean force) {
 
@@ -126,19 +109,11 @@ public class Ssh {
 			if (!force && channel.isClosed()) exitValue = channel.getExitStatus();
 			else exitValue = EXIT_CODE_DISCONNECT; // There was an error and we were forced to close the channel
 
-			// OK, we can disconnect now
-			channel.disconnect();
+			// OK, we can release the channel now
+			SshSessionPool.get().release(host, channel);
 			channel = null;
 		}
 
-		// Close session
-		if (session != null) {
-			session.disconnect();
-			session = null;
-		}
-
-		if (jsch != null) jsch = null;
-
 		return exitValue;
 	}
 
@@ -169,6 +144,7 @@ public class Ssh {
 			return result;
 		} catch (Exception e) {
 			if (debug) e.printStackTrace();
+			disconnect(true); // Release channel
 			return null;
 		}
 	}
@@ -236,6 +212,19 @@ public class Ssh {
 		if (debug) Gpr.debug("SCP " + localFileName + " " + remoteFileName);
 		String scpcommand = "scp -t " + remoteFileName;
 		channel = connect("exec", scpcommand);
+		try {
+			scpChannel(localFileName);
+		} catch (Exception e) {
+			disconnect(true); // Release channel
+			throw e;
+		}
+	}
+
+	/**
+	 * Copy a local file using an 'scp' channel
+	 */
+	void scpChannel(String localFileName) throws Exception {
+		String scpcommand;
 		File lfile = new File(localFileName);
 
 		// Get I/O streams for remote scp
@@ -297,41 +286,3 @@ public class Ssh {
 		if (debug) Gpr.debug("\t\tSSH disconnect:\tclosed: " + channel.isClosed() + "\teof: " + channel.isEOF() + "\tconnected: " + channel.isConnected());
 	}
 }
-
-class SshUserInfo implements UserInfo {
-
-	boolean debug = false;
-
-	@Override
-	public String getPassphrase() {
-		return null;
-	}
-
-	@Override
-	public String getPassword() {
-		return null;
-	}
-
-	@Override
-	public boolean promptPassphrase(String arg0) {
-		if (debug) Gpr.debug("SSH Message: " + arg0);
-		return false;
-	}
-
-	@Override
-	public boolean promptPassword(String arg0) {
-		if (debug) Gpr.debug("SSH Message: " + arg0);
-		return true;
-	}
-
-	@Override
-	public boolean promptYesNo(String arg0) {
-		if (debug) Gpr.debug("SSH Message: " + arg0);
-		return true;
-	}
-
-	@Override
-	public void showMessage(String arg0) {
-		System.err.println("SSH Message: " + arg0);
-	}
-}
@@ -0,0 +1,287 @@
+package org.bds.osCmd;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bds.Config;
+import org.bds.cluster.host.Host;
+import org.bds.util.Gpr;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * A pool of (authenticated) ssh sessions.
+ *
+ * Opening an ssh connection requires a handshake and authentication,
+ * which can take a long time. Instead of connecting for every command,
+ * sessions are kept open and each command opens a new channel on an
+ * existing session (i.e. channels are multiplexed over one connection).
+ *
+ * 	- Each session carries up to SESSION_MAX_CHANNELS channels (OpenSSH's
+ * 	  'MaxSessions' default is 10), new sessions are opened when needed.
+ * 	- The number of channels per host is limited to 'sshMaxChannels',
+ * 	  callers wait until a channel is released.
+ * 	- Sessions send 'keep alive' messages (see 'sshKeepAlive').
+ * 	- Sessions that are disconnected (e.g. network problems) are
+ * 	  discarded and a new session is opened transparently.
+ *
+ * Tasks and host health probes share the same pool.
+ *
+ * @author pcingola
+ */
+public class SshSessionPool {
+
+	public static final int SESSION_MAX_CHANNELS = 8; // Maximum number of channels on each session
+	public static final int DEFAULT_MAX_CHANNELS = 32; // Maximum number of channels for each host
+	public static final int DEFAULT_KEEP_ALIVE = 240; // Keep alive interval (seconds)
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10; // Connection timeout (seconds)
+	public static final int KEEP_ALIVE_COUNT_MAX = 3; // Disconnect after this many keep alive messages are not answered
+
+	private static SshSessionPool sshSessionPool;
+
+	/**
+	 * A session and the number of channels in use (or reserved)
+	 */
+	protected class PooledSession {
+		volatile Session session; // Null until connected
+		int channels;
+		volatile boolean discarded; // Session removed from pool (disconnect when no channels are used)
+
+		PooledSession(Session session) {
+			this.session = session;
+		}
+	}
+
+	/**
+	 * All sessions to one host
+	 */
+	class HostSessions {
+		List<PooledSession> sessions = new ArrayList<PooledSession>();
+		int channels; // Channels in use (all sessions)
+	}
+
+	boolean debug;
+	int maxChannels = DEFAULT_MAX_CHANNELS;
+	int keepAlive = DEFAULT_KEEP_ALIVE;
+	int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	JSch jsch;
+	Map<String, HostSessions> sessionsByHost;
+	Map<Channel, PooledSession> sessionByChannel;
+
+	/**
+	 * Get (or create) the session pool
+	 */
+	public static synchronized SshSessionPool get() {
+		if (sshSessionPool == null) {
+			Config config = Config.get();
+			sshSessionPool = new SshSessionPool();
+			sshSessionPool.setDebug(config.isDebug());
+			sshSessionPool.setMaxChannels((int) config.getLong(Config.SSH_MAX_CHANNELS, DEFAULT_MAX_CHANNELS));
+			sshSessionPool.setKeepAlive((int) config.getLong(Config.SSH_KEEP_ALIVE, DEFAULT_KEEP_ALIVE));
+		}
+		return sshSessionPool;
+	}
+
+	public SshSessionPool() {
+		sessionsByHost = new HashMap<String, HostSessions>();
+		sessionByChannel = new HashMap<Channel, PooledSession>();
+	}
+
+	/**
+	 * Close all sessions
+	 * Note: The pool can still be used, new sessions are opened when needed
+	 */
+	public synchronized void close() {
+		for (HostSessions hs : sessionsByHost.values())
+			for (PooledSession ps : hs.sessions)
+				if (ps.session != null) ps.session.disconnect();
+
+		sessionsByHost.clear();
+		sessionByChannel.clear();
+		notifyAll();
+	}
+
+	/**
+	 * Open a new session (connect and authenticate)
+	 */
+	protected Session connect(Host host) throws JSchException {
+		if (debug) Gpr.debug("Create conection:\n\tuser: '" + host.getUserName() + "'\n\thost : '" + host.getHostName() + "'\n\tport : " + host.getPort());
+		Session session = getJsch().getSession(host.getUserName(), host.getHostName(), host.getPort());
+		session.setUserInfo(new SshUserInfo());
+		session.setServerAliveInterval(keepAlive * 1000);
+		session.setServerAliveCountMax(KEEP_ALIVE_COUNT_MAX);
+		session.connect(connectTimeout * 1000);
+		return session;
+	}
+
+	/**
+	 * Reserve a channel on a session having free channels.
+	 * Sessions that are still connecting are also shared, so a burst of
+	 * commands to the same host opens one connection instead of one each.
+	 * If there are no sessions available, a new (not connected) session is
+	 * added, the caller must connect it (outside the lock, since connecting
+	 * may take a long time), see session()
+	 */
+	protected synchronized PooledSession reserve(Host host) throws InterruptedException {
+		String key = key(host);
+		HostSessions hs = sessionsByHost.get(key);
+		if (hs == null) {
+			hs = new HostSessions();
+			sessionsByHost.put(key, hs);
+		}
+
+		// Too many channels for this host? Wait
+		while (hs.channels >= maxChannels)
+			wait();
+
+		// Remove sessions that are no longer connected
+		for (int i = hs.sessions.size() - 1; i >= 0; i--) {
+			PooledSession ps = hs.sessions.get(i);
+			if (ps.session != null && !ps.session.isConnected() && ps.channels == 0) hs.sessions.remove(i);
+		}
+
+		// Find a session with free channels (connected or still connecting)
+		PooledSession psFree = null;
+		for (PooledSession ps : hs.sessions)
+			if (!ps.discarded && (ps.session == null || ps.session.isConnected()) && ps.channels < SESSION_MAX_CHANNELS) {
+				psFree = ps;
+				break;
+			}
+
+		// None available? Add a new session
+		if (psFree == null) {
+			psFree = new PooledSession(null);
+			hs.sessions.add(psFree);
+		}
+
+		psFree.channels++;
+		hs.channels++;
+		return psFree;
+	}
+
+	/**
+	 * Release a channel reserved on a session
+	 * @param discard : Discard session (e.g. connection problems)
+	 */
+	protected synchronized void unreserve(Host host, PooledSession ps, boolean discard) {
+		ps.channels--;
+
+		HostSessions hs = sessionsByHost.get(key(host));
+		if (hs != null) {
+			hs.channels--;
+
+			// Session is disconnected and no longer used? Discard it
+			if (discard || (ps.channels <= 0 && (ps.session == null || !ps.session.isConnected()))) {
+				ps.discarded = true;
+				hs.sessions.remove(ps);
+			}
+		}
+
+		if (ps.discarded && ps.channels <= 0 && ps.session != null) ps.session.disconnect();
+
+		notifyAll();
+	}
+
+	/**
+	 * Get the session for a reservation, connecting it if needed.
+	 * Only the first caller connects, callers sharing the same
+	 * reservation wait until the session is connected.
+	 */
+	protected Session session(Host host, PooledSession ps) throws JSchException {
+		synchronized (ps) {
+			if (ps.discarded) throw new JSchException("Session discarded, host '" + key(host) + "'");
+
+			if (ps.session == null) {
+				try {
+					ps.session = connect(host); // New session: Connect
+				} catch (JSchException e) {
+					ps.discarded = true; // Callers waiting for this session must not connect again
+					throw e;
+				}
+			}
+
+			return ps.session;
+		}
+	}
+
+	protected synchronized JSch getJsch() {
+		if (jsch == null) {
+			JSch.setConfig("StrictHostKeyChecking", "no"); // Not recommended, but useful
+			jsch = new JSch();
+
+			// Some "reasonable" defaults
+			try {
+				if (Gpr.exists(Ssh.defaultKnownHosts)) jsch.setKnownHosts(Ssh.defaultKnownHosts);
+				for (String identity : Ssh.defaultKnownIdentity)
+					if (Gpr.exists(identity)) jsch.addIdentity(identity);
+			} catch (JSchException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return jsch;
+	}
+
+	/**
+	 * Host identifier
+	 */
+	String key(Host host) {
+		return host.getUserName() + "@" + host.getHostName() + ":" + host.getPort();
+	}
+
+	/**
+	 * Open a channel to 'host'
+	 * Blocks if there are too many channels open to this host
+	 */
+	public Channel openChannel(Host host, String channelType) throws JSchException, InterruptedException {
+		// Try using a pooled session. If it fails (e.g. disconnected), try a new session
+		for (int retry = 0;; retry++) {
+			PooledSession ps = reserve(host);
+			try {
+				Channel channel = session(host, ps).openChannel(channelType);
+				synchronized (this) {
+					sessionByChannel.put(channel, ps);
+				}
+				return channel;
+			} catch (JSchException e) {
+				if (debug) Gpr.debug("Error opening channel (" + e.getMessage() + "), host '" + key(host) + "'");
+				unreserve(host, ps, true);
+				if (retry > 0) throw e;
+			}
+		}
+	}
+
+	/**
+	 * Release a channel (the session is kept open)
+	 */
+	public void release(Host host, Channel channel) {
+		channel.disconnect();
+
+		PooledSession ps;
+		synchronized (this) {
+			ps = sessionByChannel.remove(channel);
+		}
+		if (ps != null) unreserve(host, ps, false);
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+	}
+
+	public void setKeepAlive(int keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	public void setMaxChannels(int maxChannels) {
+		this.maxChannels = Math.max(1, maxChannels);
+	}
+
+}
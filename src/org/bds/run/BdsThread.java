@@ -251,8 +251,8 @@ public class BdsThread extends Thread implements BdsSerialize {
 		File logdir = new File(dirname);
 		if (!logdir.exists()) logdir.mkdirs();
 
-		// No logging? Delete on exit
-		if ((config != null) && !config.isLog()) logdir.deleteOnExit();
+		// No logging? Delete on exit (all task files are in this dir)
+		if ((config != null) && !config.isLog()) config.getCleanupManager().rmTreeOnExit(dirname);
 	}
 
 	/**
@@ -920,6 +920,12 @@ public class BdsThread extends Thread implements BdsSerialize {
 
 		// Remove local (cached) copy of the file
 		if (data.isRemote() && (data.getLocalPath() != null)) removeOnExit.add(data.getLocalPath());
+
+		// Local files are also removed by the cleanup manager (in case we crash before 'removeStaleData')
+		if (config != null && !config.isNoRmOnExit()) {
+			if (!data.isRemote()) config.getCleanupManager().rmOnExit(data.getPath());
+			else if (data.getLocalPath() != null) config.getCleanupManager().rmOnExit(data.getLocalPath());
+		}
 	}
 
 	@Override
@@ -0,0 +1,193 @@
+package org.bds.task;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bds.Config;
+import org.bds.data.FileMetadataCache.FileMetadata;
+
+/**
+ * Decide which goals need to be updated.
+ *
+ * A goal needs to be updated with respect to all the 'leaf' nodes
+ * (files that are not created by any task) it depends on. Since
+ * TaskDependency.depOperator() only needs the 'newest' leaf (or
+ * any leaf that forces an update), we only keep one leaf per node.
+ *
+ * Leaves are calculated for all nodes in one depth first traversal
+ * (Tarjan's strongly connected components, so nodes in a circular
+ * dependency share the same leaves), instead of one traversal per goal.
+ * Results are only valid while the graph doesn't change, so a new
+ * resolver is created for each 'goal'.
+ *
+ * When using content digests, leaves cannot be used (digests are
+ * recorded for each task's inputs), so a node needs to be updated if
+ * any of the tasks creating it (or the nodes they require) needs to
+ * be updated (see 'needsUpdate').
+ *
+ * @author pcingola
+ */
+class GoalResolver {
+
+	/**
+	 * A 'leaf' node and its modification time
+	 */
+	static class Leaf {
+		String name;
+		long time; // Modification time (Long.MAX_VALUE if the leaf forces an update)
+
+		Leaf(String name, long time) {
+			this.name = name;
+			this.time = time;
+		}
+
+		/**
+		 * Newest of two leaves (leaves forcing an update are 'newest')
+		 */
+		static Leaf newest(Leaf l1, Leaf l2) {
+			if (l1 == null) return l2;
+			if (l2 == null) return l1;
+			return l2.time > l1.time ? l2 : l1;
+		}
+	}
+
+	TaskDependecies taskDependecies;
+	Map<String, Leaf> leafByNode; // Final results
+	Map<String, Leaf> partial; // Partial results (nodes in strongly connected components being calculated)
+	Map<String, Boolean> needsUpdate; // Content digests: Does a node need to be updated?
+	Map<String, Integer> index, lowLink;
+	Deque<String> stack;
+	Set<String> onStack;
+	int nextIndex;
+
+	GoalResolver(TaskDependecies taskDependecies) {
+		this.taskDependecies = taskDependecies;
+		leafByNode = new HashMap<>();
+		partial = new HashMap<>();
+		index = new HashMap<>();
+		lowLink = new HashMap<>();
+		stack = new ArrayDeque<>();
+		onStack = new HashSet<>();
+		needsUpdate = new HashMap<>();
+	}
+
+	/**
+	 * Newest leaf required for 'node' (null if there are no leaves)
+	 */
+	Leaf leaf(String node) {
+		if (!index.containsKey(node)) strongConnect(node);
+		return leafByNode.get(node);
+	}
+
+	/**
+	 * Leaf's modification time, same criteria as TaskDependency.depOperator()
+	 * @return Long.MAX_VALUE if the leaf forces an update
+	 */
+	long leafTime(String node) {
+		// Is this file scheduled to be modified by a pending task? => We'll need to update
+		List<Task> taskOutList = TaskDependecies.get().getTasksByOutput(node);
+		if (taskOutList != null) {
+			for (Task t : taskOutList)
+				if (!t.isDone()) return Long.MAX_VALUE;
+		}
+
+		// File doesn't exist? => We'll need to update
+		FileMetadata data = Config.get().getFileMetadataCache().get(node);
+		if (!data.exists()) return Long.MAX_VALUE;
+		return data.getLastModified().getTime();
+	}
+
+	/**
+	 * Does 'node' need to be updated? Check the tasks creating it
+	 * and all the nodes they require (content digests)
+	 */
+	boolean needsUpdate(String node) {
+		Boolean update = needsUpdate.get(node);
+		if (update != null) return update;
+		needsUpdate.put(node, false); // Circular dependency: Don't check again
+
+		update = false;
+		List<Task> tasks = taskDependecies.getTasksByOutput(node);
+		if (tasks != null) {
+			for (Task t : tasks)
+				update |= t.taskDependency.depOperator();
+
+			for (String n : next(node))
+				update |= needsUpdate(n);
+		}
+
+		needsUpdate.put(node, update);
+		return update;
+	}
+
+	/**
+	 * Nodes required by 'node' (inputs and task dependencies)
+	 */
+	List<String> next(String node) {
+		List<String> next = new ArrayList<>();
+		List<Task> tasks = taskDependecies.getTasksByOutput(node);
+		if (tasks == null) return next;
+
+		for (Task t : tasks) {
+			if (t.getInputs() != null) next.addAll(t.getInputs());
+
+			List<Task> depTasks = t.getDependencies();
+			if (depTasks != null) {
+				for (Task dt : depTasks)
+					next.add(dt.getId());
+			}
+		}
+
+		return next;
+	}
+
+	/**
+	 * Calculate leaves for 'node' and all the nodes it depends on
+	 */
+	void strongConnect(String node) {
+		int idx = nextIndex++;
+		index.put(node, idx);
+		lowLink.put(node, idx);
+		stack.push(node);
+		onStack.add(node);
+
+		// Is this node a leaf?
+		Leaf leaf = taskDependecies.hasTasksByOutput(node) ? null : new Leaf(node, leafTime(node));
+
+		for (String n : next(node)) {
+			if (!index.containsKey(n)) {
+				strongConnect(n);
+				lowLink.put(node, Math.min(lowLink.get(node), lowLink.get(n)));
+				leaf = Leaf.newest(leaf, onStack.contains(n) ? partial.get(n) : leafByNode.get(n));
+			} else if (onStack.contains(n)) {
+				lowLink.put(node, Math.min(lowLink.get(node), index.get(n))); // Same component, added when the component is finished
+			} else {
+				leaf = Leaf.newest(leaf, leafByNode.get(n)); // Finished component
+			}
+		}
+		partial.put(node, leaf);
+
+		// Root of a strongly connected component? All its nodes share the same leaves
+		if (lowLink.get(node) == idx) {
+			List<String> component = new ArrayList<>();
+			Leaf newest = null;
+			String n;
+			do {
+				n = stack.pop();
+				onStack.remove(n);
+				component.add(n);
+				newest = Leaf.newest(newest, partial.remove(n));
+			} while (!n.equals(node));
+
+			for (String c : component)
+				leafByNode.put(c, newest);
+		}
+	}
+
+}
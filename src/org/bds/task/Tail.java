@@ -1,10 +1,21 @@
 package org.bds.task;
 
 import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.bds.util.DirectoryWatcher;
+import org.bds.util.DirectoryWatcher.DirectoryWatcherListener;
 import org.bds.util.Timer;
+import org.bds.util.TokenBucket;
+import org.bds.util.Tuple;
 
 /**
  * A "tail -f" for java
@@ -12,20 +23,42 @@ import org.bds.util.Timer;
  * Can 'follow' several files
  * If a file does not exist, tail waits until the file is created
  *
+ * Files in 'watched' directories (see DirectoryWatcher) are only read
+ * after they change. Only a limited number of files are kept open
+ * (least recently used files are closed).
+ *
+ * Output is shown on the console at a limited rate, so that a task
+ * producing a lot of output cannot flood the console. Output is read
+ * and buffered by one thread and shown outside the lock, so adding and
+ * removing files never waits for the console.
+ *
  * @author pcingola
  */
-public class Tail extends Thread {
+public class Tail extends Thread implements DirectoryWatcherListener {
 
 	public static final int SLEEP_TIME_DEFAULT = 100;
+	public static final int DEFAULT_MAX_OPEN_FILES = 256;
+	public static final long DEFAULT_MAX_BYTES_PER_SEC = 1024 * 1024;
 
 	boolean debug, verbose, quiet;
-	boolean running;
+	volatile boolean running;
+	int bufferSize = TailFile.DEFAULT_BUFFER_SIZE; // Maximum output buffered per file
+	int maxOpenFiles = DEFAULT_MAX_OPEN_FILES;
+	int drainStart; // Rotate files when showing output, so all files get a chance
 	HashMap<String, TailFile> files;
 	HashSet<String> toRemove;
+	Map<Path, TailFileMulti> filesByPath; // Files by (absolute) path. Concurrent: used from 'changed()'
+	LinkedHashMap<TailFileMulti, Boolean> openFiles; // Files having an open handle, least recently used first
+	List<TailFile> closed; // Files removed, having output not shown yet
+	TokenBucket rateLimit; // Limit output (bytes per second). Null means unlimited
+	DirectoryWatcher watcher; // Null means polling
 
 	public Tail() {
 		files = new HashMap<String, TailFile>();
 		toRemove = new HashSet<String>();
+		filesByPath = new ConcurrentHashMap<Path, TailFileMulti>();
+		openFiles = new LinkedHashMap<TailFileMulti, Boolean>(16, 0.75f, true);
+		closed = new ArrayList<TailFile>();
 		setDaemon(true);
 	}
 
@@ -42,6 +75,7 @@ public class Tail extends Thread {
 		if (debug) log("Adding (" + tf.getClass().getSimpleName() + ") '" + tailId + "'");
 		tf.setDebug(debug);
 		tf.setVerbose(verbose);
+		tf.setBufferSize(bufferSize);
 		files.put(tailId, tf);
 	}
 
@@ -55,23 +89,82 @@ public class Tail extends Thread {
 		if (inputFileName == null) return;
 		if (quiet) return; // Quiet mode? Nothing to do
 
-		TailFile tf = new TailFileMulti(inputFileName, showStderr);
+		TailFileMulti tf = new TailFileMulti(inputFileName, showStderr);
 		if (debug) log("Adding (" + tf.getClass().getSimpleName() + ") '" + inputFileName + "'");
 		tf.setDebug(debug);
 		tf.setVerbose(verbose);
+		tf.setBufferSize(bufferSize);
 		files.put(inputFileName, tf);
+
+		// Watch file's directory
+		Path path = tf.getPath();
+		filesByPath.put(path, tf);
+		if (watcher != null) tf.setWatched(watcher.watch(path.getParent()));
+	}
+
+	/**
+	 * A file was created or modified (invoked from the watcher's thread)
+	 */
+	@Override
+	public void changed(Path path) {
+		TailFileMulti tf = filesByPath.get(path);
+		if (tf != null) {
+			tf.changed();
+			return;
+		}
+
+		// Notifications lost? Check all files in the directory
+		for (TailFileMulti tfm : filesByPath.values())
+			if (path.equals(tfm.getPath().getParent())) tfm.changed();
 	}
 
 	/**
 	 * Close all files
 	 */
-	void close() {
+	synchronized void close() {
 		if (debug) log("Closing.");
 
 		// Close all files
+		for (String name : files.keySet().toArray(new String[0]))
+			remove(name);
+
+		// Show remaining output
+		print(drain(true));
+	}
+
+	/**
+	 * Remove output from files' buffers, up to the output rate limit
+	 * @param all : Ignore rate limit (e.g. when we are closing)
+	 * @return Output to show
+	 */
+	synchronized List<Tuple<TailFile, byte[]>> drain(boolean all) {
+		List<Tuple<TailFile, byte[]>> out = new ArrayList<Tuple<TailFile, byte[]>>();
+
+		// Output from closed files is shown regardless of the rate limit (it is bounded by the buffer size)
+		for (TailFile tf : closed)
+			if (tf.hasOutput()) out.add(new Tuple<TailFile, byte[]>(tf, tf.drain(Integer.MAX_VALUE)));
+		closed.clear();
+
+		// Files having output, starting from a different file each time
+		List<TailFile> tfs = new ArrayList<TailFile>();
 		for (TailFile tf : files.values())
-			tf.close();
-		files = new HashMap<String, TailFile>();
+			if (tf.hasOutput()) tfs.add(tf);
+		if (tfs.isEmpty()) return out;
+
+		drainStart++;
+		for (int i = 0; i < tfs.size(); i++) {
+			TailFile tf = tfs.get((i + drainStart) % tfs.size());
+
+			int max = bufferSize;
+			if (!all && rateLimit != null) {
+				max = (int) rateLimit.tryAcquire(bufferSize);
+				if (max <= 0) break; // Rate limit reached: Show the rest later
+			}
+
+			out.add(new Tuple<TailFile, byte[]>(tf, tf.drain(max)));
+		}
+
+		return out;
 	}
 
 	/**
@@ -87,17 +180,44 @@ public class Tail extends Thread {
 		Timer.showStdErr(getClass().getSimpleName() + ": " + msg);
 	}
 
+	/**
+	 * Number of files having an open file handle
+	 */
+	public synchronized int numOpenFiles() {
+		return openFiles.size();
+	}
+
+	/**
+	 * Show output
+	 */
+	protected void print(List<Tuple<TailFile, byte[]>> out) {
+		for (Tuple<TailFile, byte[]> tfout : out) {
+			byte[] bytes = tfout.second;
+			if (tfout.first.isShowStderr()) System.err.write(bytes, 0, bytes.length);
+			else System.out.write(bytes, 0, bytes.length);
+		}
+	}
+
 	/**
 	 * Remove 'fileName' (do not 'follow' any more)
 	 */
 	public synchronized void remove(String fileName) {
 		try {
-			TailFile tf = files.get(fileName);
-			if (tf != null) {
-				if (debug) log("Removing (" + tf.getClass().getSimpleName() + ") '" + fileName + "'");
-				tf.close();
+			TailFile tf = files.remove(fileName);
+			if (tf == null) return;
+			if (debug) log("Removing (" + tf.getClass().getSimpleName() + ") '" + fileName + "'");
+
+			if (tf instanceof TailFileMulti) {
+				TailFileMulti tfm = (TailFileMulti) tf;
+				Path path = tfm.getPath();
+				filesByPath.remove(path);
+				openFiles.remove(tfm);
+				if (watcher != null) watcher.unwatch(path.getParent());
 			}
-			files.remove(fileName);
+
+			// Read remaining output and close (output is shown later)
+			tf.close();
+			if (tf.hasOutput()) closed.add(tf);
 		} catch (Exception e) {
 			// Nothing to do
 			e.printStackTrace();
@@ -111,7 +231,10 @@ public class Tail extends Thread {
 
 			// Loop until kill()
 			while (running) {
-				if (!quiet) tail();
+				if (!quiet) {
+					tail();
+					print(drain(false)); // Note: Output is shown without holding the lock
+				}
 				sleep(SLEEP_TIME_DEFAULT);
 			}
 
@@ -122,10 +245,28 @@ public class Tail extends Thread {
 		}
 	}
 
+	/**
+	 * Maximum number of bytes buffered per file (output not shown yet)
+	 */
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
 	public void setDebug(boolean debug) {
 		this.debug = debug;
 	}
 
+	public void setMaxOpenFiles(int maxOpenFiles) {
+		this.maxOpenFiles = Math.max(1, maxOpenFiles);
+	}
+
+	/**
+	 * Limit output to 'bytesPerSec' (zero or negative means unlimited)
+	 */
+	public void setMaxBytesPerSec(long bytesPerSec) {
+		rateLimit = (bytesPerSec > 0 ? new TokenBucket(bytesPerSec, bytesPerSec) : null);
+	}
+
 	public void setQuiet(boolean quiet) {
 		this.quiet = quiet;
 	}
@@ -135,20 +276,59 @@ public class Tail extends Thread {
 	}
 
 	/**
-	 * Check if there is output available on any file
+	 * Use file system notifications to detect changes (null means polling)
+	 */
+	public synchronized void setWatcher(DirectoryWatcher watcher) {
+		if (this.watcher != null) {
+			this.watcher.removeListener(this);
+			for (Path path : filesByPath.keySet())
+				this.watcher.unwatch(path.getParent());
+		}
+
+		this.watcher = watcher;
+		if (watcher != null) watcher.addListener(this);
+
+		for (Map.Entry<Path, TailFileMulti> e : filesByPath.entrySet())
+			e.getValue().setWatched(watcher != null && watcher.watch(e.getKey().getParent()));
+	}
+
+	/**
+	 * Read available output from all files (into each file's buffer)
 	 */
 	synchronized boolean tail() {
 		boolean anyOutput = false;
+		Map<Path, Boolean> watchedDirs = new HashMap<Path, Boolean>();
 
 		// Try to read form all buffers
 		for (String name : files.keySet()) {
 			TailFile tf = files.get(name);
 
+			// Stop relying on notifications if the directory is no longer watched (e.g. notifications do not work)
+			TailFileMulti tfm = (tf instanceof TailFileMulti ? (TailFileMulti) tf : null);
+			if (tfm != null && tfm.watched) {
+				Path dir = tfm.getPath().getParent();
+				Boolean watched = watchedDirs.get(dir);
+				if (watched == null) {
+					watched = watcher != null && watcher.isWatched(dir);
+					watchedDirs.put(dir, watched);
+				}
+				if (!watched) tfm.setWatched(false);
+			}
+
 			// Try to 'tail'. Any problems? => Remove the entry
 			int bytes = (tf != null ? tf.tail() : -1);
 
 			if (bytes < 0) toRemove.add(name); // Problems? Remove the file from this list
 			else if (bytes > 0) anyOutput = true; // There was an output of 'bytes' number of bytes
+
+			// Update open files
+			if (tfm != null && tfm.isOpen() && (bytes > 0 || !openFiles.containsKey(tfm))) openFiles.put(tfm, Boolean.TRUE);
+		}
+
+		// Too many open files? Close least recently used
+		for (Iterator<TailFileMulti> it = openFiles.keySet().iterator(); openFiles.size() > maxOpenFiles && it.hasNext();) {
+			it.next().closeFile();
+			it.remove();
 		}
 
 		// Remove  entries (if any)
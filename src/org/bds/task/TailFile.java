@@ -6,21 +6,28 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.bds.util.Gpr;
+import org.bds.util.RingBuffer;
 import org.bds.util.Timer;
 
 /**
  * A file to use with 'Tail -f' (i.e. follow file's grow)
  *
+ * Output is read into a bounded buffer, until 'Tail' shows it. If
+ * the buffer overflows, only the most recent output is kept.
+ *
  * @author pcingola
  */
 public abstract class TailFile {
 
 	public static final int MAX_BUFFER_SIZE = 1024 * 1024;
 	public static final int DEFAULT_TAIL = 10;
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
 
 	String inputFileName; // Read (tail -f) from this file
 	boolean showStderr; // Do we show on STDERR? (default STDOUT)
 	boolean debug, verbose;
+	RingBuffer buffer; // Output read, but not shown yet
+	long skipped; // Number of bytes not shown (buffer overflow)
 
 	public static String tail(String fileName) {
 		return tail(fileName, DEFAULT_TAIL);
@@ -120,6 +127,7 @@ public abstract class TailFile {
 	public TailFile(String inputFileName, boolean showStderr) {
 		this.inputFileName = inputFileName;
 		this.showStderr = showStderr;
+		buffer = new RingBuffer(DEFAULT_BUFFER_SIZE);
 	}
 
 	public synchronized void close() {
@@ -128,9 +136,43 @@ public abstract class TailFile {
 
 	/**
 	 * Close files
+	 * @param attemptTail : Read all remaining output before closing
 	 */
 	protected abstract void close(boolean attemptTail);
 
+	/**
+	 * Remove (up to 'max' bytes of) output to be shown
+	 * If some output was lost, a note is added
+	 */
+	public synchronized byte[] drain(int max) {
+		byte[] bytes = buffer.read(max);
+		if (skipped <= 0) return bytes;
+
+		String name = getName();
+		byte[] note = ("\n[... " + skipped + " bytes not shown" + (name != null ? ", see '" + name + "'" : "") + " ...]\n").getBytes();
+		skipped = 0;
+
+		byte[] out = new byte[note.length + bytes.length];
+		System.arraycopy(note, 0, out, 0, note.length);
+		System.arraycopy(bytes, 0, out, note.length, bytes.length);
+		return out;
+	}
+
+	public String getName() {
+		return inputFileName;
+	}
+
+	/**
+	 * Is there any output to show?
+	 */
+	public synchronized boolean hasOutput() {
+		return !buffer.isEmpty() || skipped > 0;
+	}
+
+	public boolean isShowStderr() {
+		return showStderr;
+	}
+
 	public void log(String msg) {
 		Timer.showStdErr(getClass().getSimpleName() + ": " + msg);
 	}
@@ -140,6 +182,13 @@ public abstract class TailFile {
 	 */
 	protected abstract boolean open();
 
+	/**
+	 * Maximum number of bytes kept in memory (output not shown yet)
+	 */
+	public synchronized void setBufferSize(int bufferSize) {
+		if (buffer.capacity() != bufferSize) buffer = new RingBuffer(bufferSize);
+	}
+
 	public void setDebug(boolean debug) {
 		this.debug = debug;
 	}
@@ -149,7 +198,7 @@ public abstract class TailFile {
 	}
 
 	/**
-	 * Check if there is output available on any file
+	 * Read available output into the buffer
 	 * @returns Number of bytes read. Negative number of there were problems
 	 */
 	protected abstract int tail();
@@ -1,27 +1,48 @@
 package org.bds.task;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
 
 /**
  * A file to use with 'Tail'
- * 
+ *
  * Allows to 'follow' thousands of files by not opening the files unless is needed
  * This is to avoid operating systems limits on number of opened file descriptors (see 'ulimit' unix command)
- * 
+ *
+ * The file is kept open between reads, 'Tail' closes the least
+ * recently used files when there are too many open files.
+ *
+ * If the file's directory is 'watched' (file system notifications),
+ * the file is only read after a notification. Otherwise, the file's
+ * size is checked every time.
+ *
  * @author pcingola
  */
 public class TailFileMulti extends TailFile {
 
+	public static final int READ_SIZE = 64 * 1024;
+
 	long inputPos = 0; // Latest position read
 	File inputFile;
+	Path path; // Absolute path
 	boolean exists = false;
+	RandomAccessFile input; // Null if the file is not open
+	boolean watched; // File's directory is watched: Only read file after a notification
+	volatile boolean changed = true; // File was modified (or there is output we could not read yet)
 
 	public TailFileMulti(String inputFileName, boolean showStderr) {
 		super(inputFileName, showStderr);
 		inputFile = new File(inputFileName);
+		path = inputFile.toPath().toAbsolutePath();
+	}
+
+	/**
+	 * File was modified (e.g. notified by a file system watcher)
+	 */
+	public void changed() {
+		changed = true;
 	}
 
 	@Override
@@ -35,69 +56,123 @@ public class TailFileMulti extends TailFile {
 	@Override
 	protected synchronized void close(boolean attemptTail) {
 		try {
-			if (attemptTail) tail();
+			if (attemptTail) read(true);
 		} catch (Exception e) {
 			// Nothing to do
 		}
+		closeFile();
+	}
+
+	/**
+	 * Close file handle (we can re-open it later)
+	 */
+	public synchronized void closeFile() {
+		try {
+			if (input != null) input.close();
+		} catch (IOException e) {
+			// Nothing to do
+		}
+		input = null;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public synchronized boolean isOpen() {
+		return input != null;
 	}
 
 	/**
-	 * Open a file and add buffer to 'buffers'
+	 * Open the file and move to the latest position read
 	 */
 	@Override
 	protected synchronized boolean open() {
-		// We don't really open any file
+		if (input != null) return true;
+		if (!inputFile.exists()) return false; // File does not exists yet, it may be created later
+
+		try {
+			input = new RandomAccessFile(inputFile, "r");
+			input.seek(inputPos);
+			exists = true;
+		} catch (IOException e) {
+			closeFile();
+			return false;
+		}
 		return true;
 	}
 
 	/**
-	 * Check if there is output available on any file
+	 * Read from file into buffer
+	 * @param all : Read all output. If there is too much output, only the
+	 *              latest bytes are kept. Otherwise, read only until the
+	 *              buffer is full (the rest is read later).
 	 * @returns Number of bytes read. Negative number of there were problems
 	 */
-	@Override
-	protected int tail() {
-		if (!exists) {
-			exists = inputFile.exists();
-			if (!exists) return 0;
-		}
-
-		// File size
-		long size = inputFile.length();
-		if (size <= inputPos) return 0;
-
-		int avail = (int) (size - inputPos);
-		int count = 0;
+	protected synchronized int read(boolean all) {
 		try {
-			// Open input
-			FileInputStream fis = new FileInputStream(inputFileName);
-			fis.skip(inputPos);
-			BufferedInputStream input = new BufferedInputStream(fis);
-
-			BufferedOutputStream output = null;
-			avail = input.available();
+			if (!open()) return 0;
+
+			if (all) {
+				// Too much output? Only keep the most recent bytes
+				long excess = (input.length() - inputPos) + buffer.size() - buffer.capacity();
+				if (excess > 0) {
+					int dropBuffer = (int) Math.min(excess, buffer.size());
+					buffer.read(dropBuffer);
+					inputPos += excess - dropBuffer;
+					skipped += excess;
+					input.seek(inputPos);
+				}
+			}
 
-			while (avail > 0) {
-				// Read all available bytes
-				avail = Math.min(avail, MAX_BUFFER_SIZE); // Limit buffer size (some systems return MAX_INT when the file is growing)
-				byte[] bytes = new byte[avail];
-				count = input.read(bytes);
-				inputPos += count;
+			int count = 0;
+			byte[] bytes = new byte[READ_SIZE];
+			while (true) {
+				int len = (all ? READ_SIZE : Math.min(READ_SIZE, buffer.free()));
+				if (len <= 0) {
+					changed = true; // Buffer full: Read the rest later
+					break;
+				}
+
+				int n = input.read(bytes, 0, len);
+				if (n <= 0) break;
+
+				skipped += buffer.write(bytes, 0, n);
+				inputPos += n;
+				count += n;
+			}
 
-				// Show bytes
-				if (showStderr) System.err.write(bytes, 0, count);
-				else System.out.write(bytes, 0, count);
+			return count;
+		} catch (IOException e) {
+			closeFile();
+			return -1;
+		}
+	}
 
-				// Write to output
-				if (output != null) output.write(bytes, 0, count);
+	public void setWatched(boolean watched) {
+		this.watched = watched;
+		if (!watched) changed = true;
+	}
 
-				avail = input.available(); // Something more to read?
+	/**
+	 * Read available output into the buffer
+	 * @returns Number of bytes read. Negative number of there were problems
+	 */
+	@Override
+	protected synchronized int tail() {
+		if (watched) {
+			// Only read after a notification
+			if (!changed) return 0;
+		} else {
+			// Polling: Check file size before reading
+			if (!exists) {
+				exists = inputFile.exists();
+				if (!exists) return 0;
 			}
-
-			// Close input and output
-			input.close();
-		} catch (Exception e) {
-			throw new RuntimeException(e);
+			if (inputFile.length() <= inputPos) return 0;
 		}
-		return count;
+
+		changed = false; // Note: Reset before reading, so we don't miss notifications while reading
+		return read(false);
 	}
 }
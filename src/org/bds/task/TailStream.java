@@ -9,6 +9,10 @@ import org.bds.util.Gpr;
 /**
  * Follow ("tail -f") a stream
  *
+ * Note: Streams are always read (otherwise the process writing
+ * to the stream would block), so if output is not shown fast
+ * enough, the oldest output is dropped.
+ *
  * @author pcingola
  */
 public class TailStream extends TailFile {
@@ -47,6 +51,11 @@ public class TailStream extends TailFile {
 		}
 	}
 
+	@Override
+	public String getName() {
+		return tailId;
+	}
+
 	/**
 	 * Open a file and add buffer to 'buffers'
 	 */
@@ -67,11 +76,11 @@ public class TailStream extends TailFile {
 	}
 
 	/**
-	 * Check if there is output available on any file
+	 * Read available output into the buffer
 	 * @returns Number of bytes read. Negative number of there were problems
 	 */
 	@Override
-	protected int tail() {
+	protected synchronized int tail() {
 		if (!open()) return 0; // Files not opened yet (may be input file does not exists). OK, nothing to do...
 
 		try {
@@ -85,12 +94,9 @@ public class TailStream extends TailFile {
 				// Read all available bytes
 				byte[] bytes = new byte[avail];
 				count = input.read(bytes);
+				if (count > 0) skipped += buffer.write(bytes, 0, count);
 
-				// Show bytes
-				if (showStderr) System.err.write(bytes, 0, count);
-				else System.out.write(bytes, 0, count);
-
-				if (debug) log("Reading '" + (new String(bytes, 0, count)) + "'");
+				if (debug) log("Reading '" + (new String(bytes, 0, Math.max(count, 0))) + "'");
 			}
 
 			return count;
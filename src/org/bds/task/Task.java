@@ -40,6 +40,7 @@ public class Task implements BdsSerialize {
 	protected int bdsLineNum; // Program's line number that created this task (used for reporting errors)
 	protected int exitValue; // Exit (error) code
 	protected int failCount, maxFailCount; // Number of times that this task failed
+	protected int priority; // Scheduling priority (higher priority tasks are dispatched first)
 	protected String id; // Task ID
 	protected String bdsFileName; // Program file that created this task (used for reporting errors)
 	protected String currentDir; // Program's 'current directoy' (cd)
@@ -157,11 +158,10 @@ public class Task implements BdsSerialize {
 	}
 
 	/**
-	 * Create a program file
+	 * Create program file's dir (where all task's files are) and set default file names.
+	 * Note: The program file itself is not created (see 'createProgramFile')
 	 */
-	public void createProgramFile() {
-		if (debug) Timer.showStdErr("Task: Saving file '" + programFileName + "'");
-
+	public void createProgramDir() {
 		// Create dir
 		try {
 			File dir = new File(programFileName);
@@ -174,15 +174,6 @@ public class Task implements BdsSerialize {
 			// Nothing to do
 		}
 
-		// Create file
-		String shell = Config.get().getTaskShell();
-		shell = "#!" + shell + "\n\n" // Shell to use
-				+ "cd '" + currentDir + "'\n" // Add 'cd' to current dir
-				;
-
-		Gpr.toFile(programFileName, shell + programTxt);
-		(new File(programFileName)).setExecutable(true); // Allow execution
-
 		// Set default file names
 		String base = Gpr.removeExt(programFileName);
 		if (stdoutFile == null) stdoutFile = base + ".stdout";
@@ -191,14 +182,17 @@ public class Task implements BdsSerialize {
 	}
 
 	/**
-	 * Remove tmp files on exit
+	 * Create a program file
 	 */
-	public void deleteOnExit() {
-		if (programFileDir != null) (new File(programFileDir)).deleteOnExit(); // Files are deleted in reverse order. So dir has to be first to make sure it is empty when deleted (otherwise it will not be deleted)
-		if (stdoutFile != null) (new File(stdoutFile)).deleteOnExit();
-		if (stderrFile != null) (new File(stderrFile)).deleteOnExit();
-		if (exitCodeFile != null) (new File(exitCodeFile)).deleteOnExit();
-		if (programFileName != null) (new File(programFileName)).deleteOnExit();
+	public void createProgramFile() {
+		if (debug) Timer.showStdErr("Task: Saving file '" + programFileName + "'");
+
+		createProgramDir();
+
+		// Create file
+		String shell = "#!" + Config.get().getTaskShell() + "\n\n"; // Shell to use
+		Gpr.toFile(programFileName, shell + programInline());
+		(new File(programFileName)).setExecutable(true); // Allow execution
 	}
 
 	public void deleteOutputFilesOnExit() {
@@ -299,6 +293,10 @@ public class Task implements BdsSerialize {
 		return maxFailCount;
 	}
 
+	public int getPriority() {
+		return priority;
+	}
+
 	public String getName() {
 		if (taskName != null && !taskName.isEmpty()) return taskName;
 		return Gpr.baseName(id);
@@ -485,6 +483,15 @@ public class Task implements BdsSerialize {
 		return elapsedSecs > timeout;
 	}
 
+	/**
+	 * Program to run: Task's commands, preceded by a 'cd' to the current dir
+	 * (i.e. the program file's contents, without the shell line)
+	 */
+	public String programInline() {
+		return "cd '" + currentDir + "'\n" // Add 'cd' to current dir
+				+ programTxt;
+	}
+
 	/**
 	 * Reset parameters and allow a task to be re-executed
 	 */
@@ -596,6 +603,10 @@ public class Task implements BdsSerialize {
 		this.node = node;
 	}
 
+	public void setPriority(int priority) {
+		this.priority = priority;
+	}
+
 	public void setPid(String pid) {
 		this.pid = pid;
 	}
@@ -610,6 +621,7 @@ public class Task implements BdsSerialize {
 
 	private void setState(TaskState taskState) {
 		this.taskState = taskState;
+		if (isDone()) notifyAll(); // Wake up threads waiting for this task
 	}
 
 	public void setTaskDependency(TaskDependency taskDependency) {
@@ -690,6 +702,9 @@ public class Task implements BdsSerialize {
 			throw new RuntimeException("Unimplemented state: '" + newState + "'");
 		}
 
+		// Output files may have changed
+		if (isDone()) Config.get().getFileMetadataCache().invalidate(getOutputs());
+
 		// Finished OK? Check that output files are OK as well
 		if (isStateFinished()) {
 			// Update failCount if output files failed to be created
@@ -697,6 +712,20 @@ public class Task implements BdsSerialize {
 		}
 	}
 
+	/**
+	 * Temporary files (program, exit code and optionally STDOUT / STDERR)
+	 */
+	public List<String> tmpFiles(boolean stdOutErr) {
+		List<String> files = new ArrayList<String>();
+		if (programFileName != null) files.add(programFileName);
+		if (exitCodeFile != null) files.add(exitCodeFile);
+		if (stdOutErr) {
+			if (stdoutFile != null) files.add(stdoutFile);
+			if (stderrFile != null) files.add(stderrFile);
+		}
+		return files;
+	}
+
 	@Override
 	public String toString() {
 		return toString(verbose, debug);
@@ -757,4 +786,16 @@ public class Task implements BdsSerialize {
 		return sb.toString();
 	}
 
+	/**
+	 * Wait for this task to finish (threads are woken up as soon as the task is done)
+	 * @param timeout : Maximum time to wait (milliseconds)
+	 * @return true if the task is done
+	 */
+	public synchronized boolean waitDone(long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		for (long remaining = timeout; !isDone() && remaining > 0; remaining = end - System.currentTimeMillis())
+			wait(remaining);
+		return isDone();
+	}
+
 }
@@ -0,0 +1,417 @@
+package org.bds.task;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.bds.cluster.host.HostResources;
+import org.bds.data.Data;
+import org.bds.data.DigestDb;
+import org.bds.util.Timer;
+
+/**
+ * Cache task results across runs (memoization)
+ *
+ * A task's key is a digest of its program (after interpolation), its
+ * resources, its output names and its inputs' contents. When a task
+ * having the same key finished successfully in a previous run, its
+ * outputs, STDOUT and STDERR are restored from the cache instead of
+ * running the task again.
+ *
+ * Only tasks having outputs, where all inputs and outputs are local
+ * files, are cached. Each entry is a directory (named after the key):
+ *
+ * 	- 'outputs'          : Output file names (one per line)
+ * 	- '0', '1', ...      : Output files (same order)
+ * 	- 'stdout', 'stderr' : Task's STDOUT and STDERR
+ *
+ * Least recently used entries are removed when the cache exceeds 'maxSize' bytes.
+ *
+ * @author pcingola
+ */
+public class TaskCache {
+
+	public static final String DEFAULT_DIR = ".bds.taskCache"; // Default cache directory (in the current directory)
+	public static final long DEFAULT_MAX_SIZE = 10L * 1024 * 1024 * 1024; // Default maximum cache size (bytes)
+	public static final String DIGEST_ALGORITHM = "SHA-256";
+	public static final String OUTPUTS_FILE = "outputs";
+	public static final String STDOUT_FILE = "stdout";
+	public static final String STDERR_FILE = "stderr";
+	public static final int SHUTDOWN_TIMEOUT = 60; // Maximum time waiting for entries being stored on exit (seconds)
+
+	boolean debug;
+	boolean verbose;
+	boolean hardLink; // Restore outputs using hard links (instead of copying them)
+	String dir;
+	long maxSize, size;
+	LinkedHashMap<String, Long> entries; // Entry sizes by key (in access order)
+	Map<String, String> keyByTaskId; // Keys of tasks being executed (results are stored when they finish)
+	DigestDb digestDb; // Inputs' digests
+	ExecutorService storePool;
+	boolean closed;
+	int hits, misses;
+	int tmpCount; // Temporary directories created
+
+	public TaskCache(String dir, long maxSize, DigestDb digestDb) {
+		this.dir = dir;
+		this.maxSize = maxSize;
+		this.digestDb = digestDb;
+		entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		keyByTaskId = new HashMap<String, String>();
+
+		storePool = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "TaskCache");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		load();
+
+		// Wait for entries being stored on exit
+		Runtime.getRuntime().addShutdownHook(new Thread("TaskCache-close") {
+			@Override
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Wait for entries being stored
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+		}
+
+		storePool.shutdown();
+		try {
+			storePool.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			// Nothing to do
+		}
+	}
+
+	/**
+	 * Copy (or hard link) a file
+	 */
+	void copy(File src, File dst, boolean link) throws IOException {
+		if (dst.getParentFile() != null) dst.getParentFile().mkdirs();
+		if (link) {
+			try {
+				Files.deleteIfExists(dst.toPath());
+				Files.createLink(dst.toPath(), src.toPath());
+				dst.setLastModified(System.currentTimeMillis()); // Restored files are newer than inputs
+				return;
+			} catch (IOException | UnsupportedOperationException e) {
+				// Cannot link (e.g. different file systems): Copy
+			}
+		}
+		Files.copy(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Remove least recently used entries, until the cache fits 'maxSize'
+	 */
+	synchronized void evict() {
+		for (Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator(); it.hasNext() && size > maxSize;) {
+			Map.Entry<String, Long> e = it.next();
+			if (verbose) Timer.showStdErr("TaskCache: Removing entry '" + e.getKey() + "'");
+			rm(new File(dir, e.getKey()));
+			size -= e.getValue();
+			it.remove();
+		}
+	}
+
+	public String getDir() {
+		return dir;
+	}
+
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Is this a local file?
+	 */
+	boolean isLocal(String fileName) {
+		return !Data.factory(fileName).isRemote();
+	}
+
+	/**
+	 * Calculate a task's key
+	 * @return Key or null if the task cannot be cached
+	 */
+	String key(Task task) {
+		List<String> outputs = task.getOutputs();
+		if (outputs == null || outputs.isEmpty()) return null;
+		for (String out : outputs)
+			if (!isLocal(out)) return null;
+
+		List<String> inputs = task.getInputs();
+		Map<String, String> digests = new HashMap<String, String>();
+		if (inputs != null && !inputs.isEmpty()) {
+			for (String in : inputs)
+				if (!isLocal(in)) return null;
+			digests = digestDb.digests(inputs);
+			if (digests == null) return null; // Some inputs cannot be hashed
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("program\t" + task.getProgramTxt() + "\n");
+		HostResources res = task.getResources();
+		if (res != null) sb.append("resources\t" + res.getCpus() + "\t" + res.getMem() + "\t" + res.getTimeout() + "\t" + res.getWallTimeout() + "\n");
+		if (task.getQueue() != null) sb.append("queue\t" + task.getQueue() + "\n");
+		for (String out : outputs)
+			sb.append("output\t" + new File(out).getAbsolutePath() + "\n");
+		for (String in : digests.keySet())
+			sb.append("input\t" + new File(in).getAbsolutePath() + "\t" + digests.get(in) + "\n");
+
+		try {
+			MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+			StringBuilder key = new StringBuilder();
+			for (byte b : md.digest(sb.toString().getBytes(StandardCharsets.UTF_8)))
+				key.append(String.format("%02x", b & 0xff));
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			if (debug) e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Load entries (least recently used first)
+	 */
+	synchronized void load() {
+		File dirs[] = new File(dir).listFiles();
+		if (dirs == null) return;
+
+		Arrays.sort(dirs, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(f1.lastModified(), f2.lastModified());
+			}
+		});
+
+		for (File d : dirs) {
+			if (!d.isDirectory()) continue;
+			if (d.getName().endsWith(".tmp")) {
+				rm(d); // Partially stored entry
+				continue;
+			}
+
+			long entrySize = 0;
+			File files[] = d.listFiles();
+			if (files != null) {
+				for (File f : files)
+					entrySize += f.length();
+			}
+			entries.put(d.getName(), entrySize);
+			size += entrySize;
+		}
+		evict(); // Maximum size may have changed
+
+		if (verbose) Timer.showStdErr("TaskCache: Loaded " + entries.size() + " entries (" + size + " bytes) from '" + dir + "'");
+	}
+
+	/**
+	 * Restore a task's results from the cache
+	 * @return true if the results were restored (the task does not need to run)
+	 */
+	public boolean restore(Task task) {
+		String key = key(task);
+		if (key == null) return false;
+
+		synchronized (this) {
+			if (closed) return false;
+			if (entries.get(key) == null) {
+				// Not found: Results will be stored when the task finishes
+				misses++;
+				keyByTaskId.put(task.getId(), key);
+				return false;
+			}
+			keyByTaskId.remove(task.getId());
+		}
+
+		File entryDir = new File(dir, key);
+		try (BufferedReader in = new BufferedReader(new FileReader(new File(entryDir, OUTPUTS_FILE)))) {
+			// Restore outputs
+			int i = 0;
+			for (String out = in.readLine(); out != null; out = in.readLine())
+				copy(new File(entryDir, "" + i++), new File(out), hardLink);
+
+			// Restore STDOUT and STDERR
+			task.createProgramDir();
+			if (task.getStdoutFile() != null) copy(new File(entryDir, STDOUT_FILE), new File(task.getStdoutFile()), false);
+			if (task.getStderrFile() != null) copy(new File(entryDir, STDERR_FILE), new File(task.getStderrFile()), false);
+		} catch (IOException e) {
+			// Entry is corrupted: Remove it and run the task
+			if (debug) e.printStackTrace();
+			synchronized (this) {
+				Long entrySize = entries.remove(key);
+				if (entrySize != null) size -= entrySize;
+				rm(entryDir);
+				misses++;
+				keyByTaskId.put(task.getId(), key);
+			}
+			return false;
+		}
+
+		entryDir.setLastModified(System.currentTimeMillis()); // Recently used
+		synchronized (this) {
+			hits++;
+		}
+		if (verbose) Timer.showStdErr("TaskCache: Task '" + task.getId() + "' restored from entry '" + key + "'");
+		return true;
+	}
+
+	/**
+	 * Remove a file or directory (recursively)
+	 */
+	void rm(File file) {
+		File files[] = file.listFiles();
+		if (files != null) {
+			for (File f : files)
+				rm(f);
+		}
+		file.delete();
+	}
+
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+	}
+
+	public void setHardLink(boolean hardLink) {
+		this.hardLink = hardLink;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Store a finished task's results (only if it finished successfully).
+	 * Note: STDOUT and STDERR are copied right away (they may be deleted
+	 *       once the task finishes), outputs are copied in background
+	 */
+	public void store(final Task task) {
+		final String key;
+		synchronized (this) {
+			key = keyByTaskId.remove(task.getId());
+			if (key == null || closed || entries.containsKey(key) || !task.isDoneOk()) return; // Not cacheable, restored from the cache or already stored
+		}
+
+		// Copy files to a temporary directory, then rename (so entries are never partially stored)
+		final File tmpDir;
+		synchronized (this) {
+			tmpDir = new File(dir, key + "." + (tmpCount++) + ".tmp");
+		}
+		try {
+			tmpDir.mkdirs();
+			storeStd(task.getStdoutFile(), new File(tmpDir, STDOUT_FILE));
+			storeStd(task.getStderrFile(), new File(tmpDir, STDERR_FILE));
+		} catch (IOException e) {
+			if (debug) e.printStackTrace();
+			rm(tmpDir);
+			return;
+		}
+
+		try {
+			storePool.execute(new Runnable() {
+				@Override
+				public void run() {
+					store(task, key, tmpDir);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rm(tmpDir); // Cache was closed
+		}
+	}
+
+	/**
+	 * Store a task's outputs
+	 */
+	void store(Task task, String key, File tmpDir) {
+		// Only files can be cached
+		long entrySize = 0;
+		for (String out : task.getOutputs()) {
+			File f = new File(out);
+			if (!f.isFile()) {
+				rm(tmpDir);
+				return;
+			}
+			entrySize += f.length();
+		}
+
+		File entryDir = new File(dir, key);
+		try {
+			if (entrySize > maxSize) throw new IOException("Entry too large (" + entrySize + " bytes)");
+
+			int i = 0;
+			try (PrintWriter pw = new PrintWriter(new File(tmpDir, OUTPUTS_FILE))) {
+				for (String out : task.getOutputs()) {
+					copy(new File(out), new File(tmpDir, "" + i++), false);
+					pw.println(new File(out).getAbsolutePath());
+				}
+			}
+
+			// Actual entry size
+			entrySize = 0;
+			for (File f : tmpDir.listFiles())
+				entrySize += f.length();
+
+			if (!tmpDir.renameTo(entryDir)) throw new IOException("Cannot rename '" + tmpDir + "' to '" + entryDir + "'");
+		} catch (IOException e) {
+			if (debug) e.printStackTrace();
+			rm(tmpDir);
+			return;
+		}
+
+		synchronized (this) {
+			entries.put(key, entrySize);
+			size += entrySize;
+			evict();
+		}
+		if (verbose) Timer.showStdErr("TaskCache: Task '" + task.getId() + "' stored in entry '" + key + "'");
+	}
+
+	/**
+	 * Store a task's STDOUT or STDERR (empty if the file does not exist)
+	 */
+	void storeStd(String fileName, File dst) throws IOException {
+		if (fileName != null && new File(fileName).isFile()) copy(new File(fileName), dst, false);
+		else dst.createNewFile();
+	}
+
+}
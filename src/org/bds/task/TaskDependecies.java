@@ -1,8 +1,10 @@
 package org.bds.task;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -10,6 +12,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.bds.Config;
 import org.bds.data.Data;
 import org.bds.lang.ExpressionTask;
 import org.bds.report.Report;
@@ -20,11 +23,15 @@ import org.bds.util.Timer;
 /**
  * Store task and dependency graph
  *
+ * The graph is indexed in both directions: Tasks by output file
+ * (producers) and tasks by input file (consumers). The index is
+ * updated when each task is added.
+ *
  * @author pcingola
  */
 public class TaskDependecies {
 
-	public static final int SLEEP_TIME = 250;
+	public static final int SLEEP_TIME = 250; // Maximum time between report checks while waiting (threads are woken up when tasks finish)
 
 	private static TaskDependecies taskDependecies = new TaskDependecies(); // Global instance (keeps track of all tasks)
 
@@ -32,7 +39,8 @@ public class TaskDependecies {
 	boolean verbose = false;
 	List<Task> tasks; // Sorted list of tasks (need it for serialization purposes)
 	Map<String, Task> tasksById;
-	AutoHashMap<String, List<Task>> tasksByOutput;
+	AutoHashMap<String, List<Task>> tasksByOutput; // Tasks creating each file (producers)
+	AutoHashMap<String, List<Task>> tasksByInput; // Tasks using each file or task ID (consumers)
 	HashMap<String, String> canonicalPath;
 
 	public static TaskDependecies get() {
@@ -49,6 +57,7 @@ public class TaskDependecies {
 	public TaskDependecies() {
 		canonicalPath = new HashMap<String, String>();
 		tasksByOutput = new AutoHashMap<String, List<Task>>(new LinkedList<Task>());
+		tasksByInput = new AutoHashMap<String, List<Task>>(new LinkedList<Task>());
 		tasksById = new HashMap<String, Task>();
 		tasks = new ArrayList<Task>();
 	}
@@ -57,11 +66,13 @@ public class TaskDependecies {
 	 * Add a task
 	 */
 	public synchronized void add(Task task) {
-		// Sanity check: Circular dependency
-		if (isCircular(task)) throw new RuntimeException("Circular dependency on task '" + task.getId() + "'");
-
 		// Add task
-		addTask(task);
+		boolean added = addTask(task);
+
+		// Sanity check: Circular dependency when a 'dep' is executed (e.g. by 'goal')
+		// Note: New tasks are not checked, they can legitimately re-create a file used
+		//       by a previous task (e.g. 'task( out1 <- out2 )' after 'task( out2 <- out1 )')
+		if (!added && !task.isDependency() && isCircular(task)) throw new RuntimeException("Circular dependency on task '" + task.getId() + "'");
 
 		// Find and update task's immediate dependencies (only if the task is to be executed)
 		if (!task.isDependency()) findDirectDependencies(task);
@@ -72,10 +83,11 @@ public class TaskDependecies {
 
 	/**
 	 * Add a task to collections
+	 * @return false if the task was already added
 	 */
-	protected synchronized void addTask(Task task) {
+	protected synchronized boolean addTask(Task task) {
 		// Already added? Nothing to do
-		if (tasksById.containsKey(task.getId())) return;
+		if (tasksById.containsKey(task.getId())) return false;
 
 		// Add task by ID
 		tasksById.put(task.getId(), task);
@@ -90,6 +102,23 @@ public class TaskDependecies {
 			for (String outFile : task.getOutputs())
 				addTaskByOutput(outFile, task);
 		}
+
+		// Add task by input files
+		if (task.getInputs() != null) {
+			for (String inFile : task.getInputs())
+				tasksByInput.getOrCreate(getCanonicalPath(inFile)).add(task);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Add all tasks using 'input' (file or task ID)
+	 */
+	void addConsumers(String input, Set<Task> consumers) {
+		if ((input == null) || input.isEmpty()) return;
+		List<Task> tasks = tasksByInput.get(getCanonicalPath(input));
+		if (tasks != null) consumers.addAll(tasks);
 	}
 
 	/**
@@ -139,65 +168,6 @@ public class TaskDependecies {
 		}
 	}
 
-	/**
-	 * Find 'leaf' nodes (i.e. nodes that do not have dependent tasks)
-	 */
-	Set<String> findLeafNodes(String out) {
-		Set<String> nodes = findNodes(out); // Find all nodes
-
-		// Only add nodes that do not have dependent tasks (i.e. are leaves)
-		Set<String> leaves = new HashSet<String>();
-		for (String n : nodes) {
-			if (!hasTasksByOutput(n)) leaves.add(n);
-		}
-
-		return leaves;
-	}
-
-	/**
-	 * Find all leaf nodes required for goal 'out'
-	 */
-	Set<String> findNodes(String out) {
-		// A set of 'goal' nodes
-		Set<String> goals = new HashSet<String>();
-		goals.add(out);
-
-		// For each goal
-		for (boolean changed = true; changed;) {
-			changed = false;
-
-			// We need a new set to avoid 'concurrent modification' exception
-			Set<String> newGoals = new HashSet<String>();
-			newGoals.addAll(goals);
-
-			// For each goal
-			for (String goal : goals) {
-				// Find all tasks required for this goal
-				List<Task> tasks = getTasksByOutput(goal);
-
-				if (tasks != null) // Add all task's input files
-					for (Task t : tasks) {
-					// Add all input files
-					if (t.getInputs() != null) {
-						for (String in : t.getInputs())
-							changed |= newGoals.add(in); // Add each node
-					}
-
-					// Add all task Ids
-					List<Task> depTasks = t.getDependencies();
-					if (depTasks != null) {
-						for (Task dt : depTasks)
-							changed |= newGoals.add(dt.getId()); // Add each task ID
-					}
-				}
-			}
-
-			goals = newGoals;
-		}
-
-		return goals;
-	}
-
 	/**
 	 * Find canonical path (cache return values)
 	 */
@@ -271,25 +241,24 @@ public class TaskDependecies {
 	 */
 	public synchronized Set<Task> goal(BdsThread bdsThread, String out) {
 		Set<Task> tasks = new HashSet<>();
-		goalRun(bdsThread, out, tasks);
+		goalRun(bdsThread, out, tasks, new GoalResolver(this));
 		return tasks;
 	}
 
 	/**
 	 * Does this goal need to be updated respect to the leaves
 	 */
-	boolean goalNeedsUpdate(String out) {
-		// Find all 'leaf nodes' (files) required for this goal
-		Set<String> leaves = findLeafNodes(out);
+	boolean goalNeedsUpdate(String out, GoalResolver goalResolver) {
+		// Content digests? Each task is checked against its own inputs
+		if (Config.get().getDigestDb() != null) return goalResolver.needsUpdate(out);
+
+		// Find the newest 'leaf node' (file) required for this goal
+		GoalResolver.Leaf leaf = goalResolver.leaf(out);
 		TaskDependency tasDep = new TaskDependency(null);
 		tasDep.addOutput(out);
-		tasDep.addInput(leaves);
+		if (leaf != null) tasDep.addInput(leaf.name);
 
-		if (debug) {
-			Timer.showStdErr("Goal: " + out + "\n\tLeaf nodes:");
-			for (String n : leaves)
-				System.err.println("\t\t'" + n + "'");
-		}
+		if (debug) Timer.showStdErr("Goal: " + out + "\n\tNewest leaf node: " + (leaf != null ? "'" + leaf.name + "'" : "None"));
 
 		return tasDep.depOperator();
 	}
@@ -297,10 +266,10 @@ public class TaskDependecies {
 	/**
 	 * Find all leaf nodes required for goal 'out'
 	 */
-	boolean goalRun(BdsThread bdsThread, String goal, Set<Task> addedTasks) {
+	boolean goalRun(BdsThread bdsThread, String goal, Set<Task> addedTasks, GoalResolver goalResolver) {
 
 		// Check if we really need to update this goal (with respect to the leaf nodes)
-		if (!goalNeedsUpdate(goal)) return false;
+		if (!goalNeedsUpdate(goal, goalResolver)) return false;
 
 		List<Task> tasks = getTasksByOutput(goal);
 		if (tasks == null) return false;
@@ -313,14 +282,14 @@ public class TaskDependecies {
 			// Add file dependencies
 			if (t.getInputs() != null) {
 				for (String in : t.getInputs())
-					goalRun(bdsThread, in, addedTasks);
+					goalRun(bdsThread, in, addedTasks, goalResolver);
 			}
 
 			// Add task dependencies
 			if (t.getDependencies() != null) {
 				for (Task tt : t.getDependencies())
 					if (!addedTasks.contains(tt)) // Not added yet?
-						goalRun(bdsThread, tt.getId(), addedTasks);
+						goalRun(bdsThread, tt.getId(), addedTasks, goalResolver);
 			}
 
 		}
@@ -364,32 +333,43 @@ public class TaskDependecies {
 
 	/**
 	 * Is there a circular dependency for this task?
+	 *
+	 * A circular dependency requires a task using this task's outputs
+	 * (a 'consumer') that is also required by this task. Only tasks
+	 * having consumers need to be checked (this is usually not the case,
+	 * since tasks are added after the tasks they depend on)
+	 *
+	 * Note: The task must already be indexed (see 'addTask')
 	 */
 	boolean isCircular(Task task) {
-		boolean circ = isCircular(task, new HashSet<Task>());
-		return circ;
-	}
-
-	/**
-	 * Is there a circular dependency for this task?
-	 */
-	@SuppressWarnings("unchecked")
-	boolean isCircular(Task task, HashSet<Task> tasks) {
-		if (!tasks.add(task)) return true;
-
-		// Get all input files, find corresponding tasks and recurse
-		if (task.getInputs() != null) {
-			for (String in : task.getInputs()) {
+		// Find consumers (by output files or task ID)
+		Set<Task> consumers = new HashSet<Task>();
+		if (task.getOutputs() != null) {
+			for (String out : task.getOutputs())
+				addConsumers(out, consumers);
+		}
+		addConsumers(task.getId(), consumers);
+		if (consumers.isEmpty()) return false;
+
+		// Is any consumer required by this task?
+		Set<Task> visited = new HashSet<Task>();
+		Deque<Task> pending = new ArrayDeque<Task>();
+		pending.add(task);
+		while (!pending.isEmpty()) {
+			Task t = pending.remove();
+			if (t.getInputs() == null) continue;
+
+			for (String in : t.getInputs()) {
 				List<Task> depTasks = getTasksByOutput(in);
+				if (depTasks == null) continue;
 
-				if (depTasks != null) {
-					for (Task t : depTasks) {
-						HashSet<Task> newTasks = (HashSet<Task>) tasks.clone();
-						if (isCircular(t, newTasks)) return true;
-					}
+				for (Task dt : depTasks) {
+					if (consumers.contains(dt) || dt == task) return true;
+					if (visited.add(dt)) pending.add(dt);
 				}
 			}
 		}
+
 		return false;
 	}
 
@@ -412,14 +392,6 @@ public class TaskDependecies {
 		return tasksById.size();
 	}
 
-	void sleep() {
-		try {
-			Thread.sleep(SLEEP_TIME);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-	}
-
 	/**
 	 * A string of at most 'num' task names of tasks that failed
 	 */
@@ -455,12 +427,22 @@ public class TaskDependecies {
 	 * Wait for one task to finish
 	 * @return true if task finished OK or it was allowed to fail (i.e. canFail = true)
 	 */
-	public synchronized boolean waitTask(String taskId) {
+	public boolean waitTask(String taskId) {
 		if ((taskId == null) || taskId.isEmpty()) return true;
 
 		Task task = getTask(taskId);
 		if (task == null) return false; // No task? We are done!
 
+		return waitTask(task);
+	}
+
+	/**
+	 * Wait for one task to finish
+	 * Note: We don't hold this object's lock while waiting, the
+	 *       thread is woken up as soon as the task is done
+	 * @return true if task finished OK or it was allowed to fail (i.e. canFail = true)
+	 */
+	boolean waitTask(Task task) {
 		// Is task a dependency?
 		if (task.isDependency() && !task.isScheduled()) {
 			if (debug) Timer.showStdErr("Wait: Task '" + task.getId() + "' is dependency and has not been scheduled for execution. Not wating.");
@@ -469,10 +451,14 @@ public class TaskDependecies {
 
 		if (verbose) Timer.showStdErr("Wait: Waiting for task to finish: " + task.getId() + ", state: " + task.getTaskState());
 
-		// Wait for task to finish
-		while (!task.isDone()) {
-			sleep();
-			Report.reportTime();
+		// Wait for task to finish (check reports every now and then)
+		try {
+			while (!task.waitDone(SLEEP_TIME))
+				Report.reportTime();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			Thread.currentThread().interrupt();
+			return false;
 		}
 
 		// Either finished OK or it was allowed to fail
@@ -494,19 +480,15 @@ public class TaskDependecies {
 	 * Wait for all tasks to finish
 	 * @return true if all tasks finished OK or it were allowed to fail (i.e. canFail = true)
 	 */
-	public synchronized boolean waitTasksAll() {
+	public boolean waitTasksAll() {
 		// Wait for all tasks to finish
 		boolean ok = true;
 
 		if (verbose && !isAllTasksDone()) Timer.showStdErr("Waiting for all tasks to finish.");
 
-		// Get all taskIds in a new collection (to avoid concurrent modification
-		LinkedList<String> tids = new LinkedList<>();
-		tids.addAll(getTaskIds());
-
-		// Wait for each task
-		for (String tid : tids)
-			ok &= waitTask(tid);
+		// Wait for each task (use a copy, to avoid concurrent modification)
+		for (Task task : getTasks())
+			if ((task.getId() != null) && !task.getId().isEmpty()) ok &= waitTask(task);
 
 		return ok;
 	}
@@ -4,7 +4,11 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
+import org.bds.Config;
 import org.bds.data.Data;
+import org.bds.data.DigestDb;
+import org.bds.data.FileMetadataCache;
+import org.bds.data.FileMetadataCache.FileMetadata;
 import org.bds.lang.Expression;
 import org.bds.run.BdsThreads;
 import org.bds.util.Timer;
@@ -95,8 +99,9 @@ public class TaskDependency {
 		if (!task.isStateFinished() || outputs == null) return ""; // Nothing to check
 
 		checkOutputs = "";
+		FileMetadataCache metadataCache = Config.get().getFileMetadataCache();
 		for (String fileName : outputs) {
-			Data file = Data.factory(fileName);
+			FileMetadata file = metadataCache.get(fileName);
 			if (!file.exists()) checkOutputs += "Error: Output file '" + fileName + "' does not exist.";
 			else if ((!task.isAllowEmpty()) && (file.size() <= 0)) checkOutputs += "Error: Output file '" + fileName + "' has zero length.";
 		}
@@ -127,9 +132,10 @@ public class TaskDependency {
 		// Calculate minimum modification time
 		//---
 
+		FileMetadataCache metadataCache = Config.get().getFileMetadataCache();
 		long minModifiedLeft = Long.MAX_VALUE;
 		for (String output : outputs) {
-			Data dataOut = Data.factory(output);
+			FileMetadata dataOut = metadataCache.get(output);
 
 			// Any 'left' file does not exists? => We need to build this dependency
 			if (!dataOut.exists()) {
@@ -162,7 +168,7 @@ public class TaskDependency {
 
 		long maxModifiedRight = Long.MIN_VALUE;
 		for (String inout : inputs) {
-			Data dataIn = Data.factory(inout);
+			FileMetadata dataIn = metadataCache.get(inout);
 
 			// Is this file scheduled to be modified by a pending task? => Time will change => We'll need to update
 			List<Task> taskOutList = TaskDependecies.get().getTasksByOutput(inout);
@@ -194,6 +200,16 @@ public class TaskDependency {
 		// I.e. Have all goals been created after the input files?
 		boolean ret = (minModifiedLeft < maxModifiedRight);
 		if (debug) expresison.log("Modification times, minModifiedLeft (" + minModifiedLeft + ") < maxModifiedRight (" + maxModifiedRight + "): " + ret);
+
+		// Content digests? Outputs are up to date if they were created from the same inputs
+		DigestDb digestDb = Config.get().getDigestDb();
+		if (digestDb != null && !outputs.isEmpty() && !inputs.isEmpty()) {
+			Boolean upToDate = digestDb.isUpToDate(outputs, inputs);
+			if (upToDate != null) ret = !upToDate;
+			else if (!ret) digestDb.built(outputs, inputs); // Up to date (by modification times), record digests
+			if (debug && (expresison != null)) expresison.log("Content digests, up to date: " + (upToDate != null ? upToDate : "unknown"));
+		}
+
 		return ret;
 	}
 
@@ -0,0 +1,97 @@
+package org.bds.task;
+
+import org.bds.util.Timer;
+
+/**
+ * Layout of tasks' files (program, STDOUT, STDERR, exit code, etc.)
+ *
+ * By default all files from a bdsThread are created in one directory
+ * (named after the bdsThread ID). Runs having many tasks create millions
+ * of files in that directory, which makes lookups and listings slow on
+ * network / parallel file systems (e.g. NFS, Lustre). Optionally, files
+ * can be distributed in 'fanOut' sub-directories:
+ *
+ * 	- HASH       : Sub-directory is chosen by hashing the task's file name (names
+ * 	               are zero padded, since there are exactly 'fanOut' sub-directories)
+ * 	- SEQUENTIAL : Consecutive tasks share a sub-directory, each one having (at most) 'fanOut'
+ * 	               tasks (names are not padded, since the number of sub-directories is unbounded)
+ *
+ * Note: Everything else (MonitorTask, Tail, Report, checkpoints) uses the
+ *       full paths stored in each task, so it works with any layout.
+ *
+ * @author pcingola
+ */
+public class TaskDirLayout {
+
+	public static final int DEFAULT_FAN_OUT = 256;
+
+	/**
+	 * Available layouts
+	 */
+	public enum Layout {
+		FLAT // All files in one directory
+		, HASH // Files in 'fanOut' sub-directories, by hash of the file name
+		, SEQUENTIAL // Files in sub-directories having 'fanOut' tasks each
+		;
+
+		/**
+		 * Parse a layout name (e.g. 'hash')
+		 * @return Corresponding Layout or FLAT if there is any error
+		 */
+		public static Layout parseSafe(String name) {
+			if (name == null || name.isEmpty()) return FLAT;
+			try {
+				return Layout.valueOf(name.trim().toUpperCase());
+			} catch (Exception e) {
+				Timer.showStdErr("Unknown task directory layout '" + name + "', using 'flat'");
+				return FLAT;
+			}
+		}
+	}
+
+	Layout layout;
+	int fanOut;
+	String format; // Sub-directory name format (HASH layout, zero padded)
+
+	public TaskDirLayout(Layout layout, int fanOut) {
+		this.layout = layout;
+		this.fanOut = Math.max(1, fanOut);
+		format = "%0" + Integer.toString(this.fanOut - 1).length() + "d";
+	}
+
+	public int getFanOut() {
+		return fanOut;
+	}
+
+	public Layout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * Path to a task's files (without extension)
+	 * @param dir : Base directory (bdsThread ID)
+	 * @param name : File name (without extension)
+	 * @param id : Sequential ID
+	 */
+	public String path(String dir, String name, int id) {
+		String subDir = subDir(name, id);
+		return dir + "/" + (subDir == null ? "" : subDir + "/") + name;
+	}
+
+	/**
+	 * Sub-directory for a task's files (null if there is no sub-directory)
+	 */
+	public String subDir(String name, int id) {
+		switch (layout) {
+		case HASH:
+			return String.format(format, Math.floorMod(name.hashCode(), fanOut));
+
+		case SEQUENTIAL:
+			return Integer.toString(Math.max(0, id - 1) / fanOut);
+
+		default:
+			return null;
+		}
+	}
+
+}
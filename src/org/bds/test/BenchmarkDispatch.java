@@ -0,0 +1,67 @@
+package org.bds.test;
+
+import org.bds.Config;
+import org.bds.task.Task;
+import org.bds.util.Timer;
+
+/**
+ * Benchmark: Executioner's scheduling overhead (dispatch latency and throughput)
+ * using 'no-op' tasks, in polling and event driven modes.
+ *
+ * This is not a test case (timings depend on the machine), run it as:
+ *
+ *     java -cp ... org.bds.test.BenchmarkDispatch [numTasks]
+ *
+ * @author pcingola
+ */
+public class BenchmarkDispatch {
+
+	public static void main(String[] args) throws InterruptedException {
+		int numTasks = (args.length > 0 ? Integer.parseInt(args[0]) : 10 * 1000);
+		BenchmarkDispatch benchmark = new BenchmarkDispatch();
+
+		// Throughput: Many tasks in flight
+		int window = 100;
+		benchmark.run(false, numTasks, window);
+		benchmark.run(true, numTasks, window);
+
+		// Latency: Sequential pipeline (one task in flight). Polling
+		// mode is too slow to run all tasks sequentially.
+		benchmark.run(false, 20, 1);
+		benchmark.run(true, 20, 1);
+		benchmark.run(true, numTasks, 1);
+	}
+
+	/**
+	 * Dispatch 'no-op' tasks (keeping at most 'window' tasks in flight)
+	 * @return Tasks per second
+	 */
+	double run(boolean eventDriven, int numTasks, int window) throws InterruptedException {
+		ExecutionerNoOp ex = new ExecutionerNoOp(new Config());
+		ex.setEventDriven(eventDriven);
+		ex.start();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < numTasks; i++) {
+			ex.waitPending(i, window);
+			ex.add(new Task("noop_" + i));
+		}
+		ex.waitPending(numTasks, 1);
+		long elapsed = System.nanoTime() - start;
+		ex.kill();
+
+		if (ex.finished != numTasks) Timer.showStdErr("WARNING: Finished tasks " + ex.finished + ", expected " + numTasks);
+
+		double tasksPerSec = numTasks / (elapsed / 1e9);
+		System.out.println("Dispatch benchmark (" + (eventDriven ? "event driven" : "polling") + "):" //
+				+ "\ttasks: " + numTasks //
+				+ "\tin flight: " + window //
+				+ "\telapsed: " + (elapsed / 1000000) + " ms" //
+				+ "\ttasks/sec: " + String.format("%.1f", tasksPerSec) //
+				+ "\tlatency avg: " + String.format("%.3f", ex.latencySum / 1e6 / numTasks) + " ms" //
+				+ "\tlatency max: " + String.format("%.3f", ex.latencyMax / 1e6) + " ms" //
+		);
+
+		return tasksPerSec;
+	}
+}
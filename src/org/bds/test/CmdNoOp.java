@@ -0,0 +1,33 @@
+package org.bds.test;
+
+import org.bds.osCmd.Cmd;
+
+/**
+ * A command that does nothing
+ *
+ * @author pcingola
+ */
+public class CmdNoOp extends Cmd {
+
+	ExecutionerNoOp executioner;
+
+	public CmdNoOp(String id, ExecutionerNoOp executioner) {
+		super(id, new String[0]);
+		this.executioner = executioner;
+	}
+
+	@Override
+	protected void execCmd() throws Exception {
+		executioner.dispatched(task);
+	}
+
+	@Override
+	protected boolean execPrepare() throws Exception {
+		return true;
+	}
+
+	@Override
+	protected void killCmd() {
+		// Nothing to do
+	}
+}
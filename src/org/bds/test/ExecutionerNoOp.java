@@ -0,0 +1,94 @@
+package org.bds.test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bds.Config;
+import org.bds.cluster.Cluster;
+import org.bds.cluster.host.HostInifinte;
+import org.bds.executioner.Executioner;
+import org.bds.osCmd.Cmd;
+import org.bds.task.Task;
+import org.bds.task.TaskState;
+
+/**
+ * An executioner that runs 'no-op' commands.
+ * Used to measure scheduling overhead (dispatch latency and throughput)
+ *
+ * @author pcingola
+ */
+public class ExecutionerNoOp extends Executioner {
+
+	long latencySum; // Sum of dispatch latencies (nanoseconds)
+	long latencyMax; // Max dispatch latency (nanoseconds)
+	int finished;
+	Map<String, Long> queuedTime = new HashMap<String, Long>(); // Time when each task was queued (nanoseconds)
+
+	public ExecutionerNoOp(Config config) {
+		super(config);
+		cluster = new Cluster();
+		new HostInifinte(cluster);
+	}
+
+	@Override
+	public synchronized void add(Task task) {
+		queuedTime.put(task.getId(), System.nanoTime());
+		super.add(task);
+	}
+
+	@Override
+	protected synchronized Cmd createRunCmd(Task task) {
+		return new CmdNoOp(task.getId(), this);
+	}
+
+	/**
+	 * Command started executing: Update dispatch latency
+	 */
+	synchronized void dispatched(Task task) {
+		long latency = System.nanoTime() - queuedTime.remove(task.getId());
+		latencySum += latency;
+		latencyMax = Math.max(latencyMax, latency);
+	}
+
+	@Override
+	protected synchronized void follow(Task task) {
+		// Nothing to follow
+	}
+
+	@Override
+	protected synchronized void followStop(Task task) {
+		// Nothing to follow
+	}
+
+	@Override
+	public String[] osKillCommand(Task task) {
+		return new String[0];
+	}
+
+	@Override
+	protected synchronized boolean taskUpdateFinished(Task task, TaskState taskState) {
+		boolean ok = super.taskUpdateFinished(task, taskState);
+		if (ok) {
+			finished++;
+			notifyAll();
+		}
+		return ok;
+	}
+
+	/**
+	 * Apply queued state updates
+	 * @return Number of tasks having updates that could not be applied
+	 */
+	synchronized int updateStates() {
+		taskUpdateStates();
+		return taskUpdateStatesPending.size();
+	}
+
+	/**
+	 * Wait until less than 'count' tasks are pending
+	 */
+	synchronized void waitPending(int submitted, int count) throws InterruptedException {
+		while (submitted - finished >= count)
+			wait(10);
+	}
+}
@@ -1,12 +1,24 @@
 package org.bds.test;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 import org.bds.Bds;
 import org.bds.Config;
 import org.bds.executioner.Executioners;
 import org.bds.run.BdsThreads;
+import org.bds.task.Task;
+import org.bds.task.TaskDependency;
+import org.bds.task.TaskState;
+import org.junit.After;
 import org.junit.Before;
 
 /**
@@ -18,6 +30,14 @@ public class TestCasesBase {
 
 	public boolean debug = false;
 	public boolean verbose = false;
+	List<File> tmpDirs = new ArrayList<File>(); // Temporary directories, removed after each test
+
+	@After
+	public void after() {
+		for (File dir : tmpDirs)
+			deleteTree(dir.toPath());
+		tmpDirs.clear();
+	}
 
 	@Before
 	public void before() {
@@ -45,6 +65,63 @@ public class TestCasesBase {
 		bdsTest.checkCompileOk();
 	}
 
+	/**
+	 * Create a config (using test's debug and verbose modes)
+	 */
+	Config config() {
+		Config config = new Config();
+		config.setDebug(debug);
+		config.setVerbose(verbose);
+		return config;
+	}
+
+	/**
+	 * Delete a directory tree
+	 */
+	void deleteTree(Path dir) {
+		if (!Files.exists(dir)) return;
+		try {
+			Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+					Files.delete(d);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					Files.delete(file);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot delete directory '" + dir + "'", e);
+		}
+	}
+
+	/**
+	 * Create a task: 'output <- input'
+	 */
+	Task depTask(String id, String output, String input) {
+		TaskDependency taskDependency = new TaskDependency();
+		taskDependency.addOutput(output);
+		taskDependency.addInput(input);
+
+		Task task = new Task(id);
+		task.setTaskDependency(taskDependency);
+		return task;
+	}
+
+	/**
+	 * Move a task to 'RUNNING' state
+	 */
+	Task running(Task task) {
+		if (task.getTaskState() == TaskState.NONE) task.state(TaskState.SCHEDULED);
+		task.state(TaskState.STARTED);
+		task.state(TaskState.RUNNING);
+		return task;
+	}
+
 	void runAndCheck(int expectedExitCode, String fileName, String varname, Object expectedValue) {
 		BdsTest bdsTest = new BdsTest(fileName, verbose, debug);
 		bdsTest.run();
@@ -198,4 +275,18 @@ public class TestCasesBase {
 		bdsTest.checkRunOk();
 	}
 
+	/**
+	 * Create a temporary directory (removed after the test)
+	 * @return Absolute path
+	 */
+	String tmpDir(String prefix) {
+		try {
+			File dir = Files.createTempDirectory("bds_" + prefix).toFile();
+			tmpDirs.add(dir);
+			return dir.getAbsolutePath();
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot create temporary directory", e);
+		}
+	}
+
 }
@@ -0,0 +1,130 @@
+package org.bds.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.bds.util.CleanupManager;
+import org.bds.util.Gpr;
+import org.junit.Test;
+
+/**
+ * Test cases for removing temporary files (CleanupManager)
+ *
+ * @author pcingola
+ *
+ */
+public class TestCasesCleanup extends TestCasesBase {
+
+	/**
+	 * Cleanup manager: Remove large directory trees on exit, persist
+	 * pending paths and recover them after a crash
+	 */
+	@Test
+	public void test01_cleanupManager() throws InterruptedException {
+		Gpr.debug("Test");
+
+		String base = tmpDir("cleanupManager");
+		String dir = base + "/dirs";
+		String pendingFile = base + "/cleanup.pending";
+
+		// Create a directory tree
+		int numDirs = 3, numFiles = 2500;
+		for (int i = 0; i < numDirs; i++) {
+			File d = new File(dir + "/dir_" + i + "/sub");
+			d.mkdirs();
+			for (int j = 0; j < numFiles; j++)
+				Gpr.toFile(d.getParent() + "/file_" + j + ".txt", "");
+			Gpr.toFile(d + "/file.txt", "");
+		}
+
+		// Paths to remove on exit are persisted
+		CleanupManager cm = new CleanupManager(pendingFile);
+		cm.setVerbose(verbose);
+		cm.rmTreeOnExit(dir);
+		cm.rmTreeOnExit(dir); // Added only once
+		Assert.assertEquals(1, cm.getPendingTrees().size());
+		Assert.assertEquals(CleanupManager.TREE_PREFIX + dir, Gpr.readFile(pendingFile).trim());
+
+		// Background deletion
+		String tmpFile = base + "/delete.txt";
+		Gpr.toFile(tmpFile, "");
+		List<String> toDelete = new ArrayList<String>();
+		toDelete.add(tmpFile);
+		cm.delete(toDelete);
+		for (int i = 0; i < 100 && new File(tmpFile).exists(); i++)
+			Thread.sleep(10);
+		Assert.assertFalse(new File(tmpFile).exists());
+
+		// Close: Everything is removed, including the pending file
+		cm.close();
+		Assert.assertFalse(new File(dir).exists());
+		Assert.assertFalse(new File(pendingFile).exists());
+
+		// A pending file left by a 'crashed' run is recovered
+		String leftOver = base + "/crash";
+		new File(leftOver + "/sub").mkdirs();
+		Gpr.toFile(leftOver + "/sub/file.txt", "");
+		Gpr.toFile(pendingFile, CleanupManager.TREE_PREFIX + leftOver + "\n");
+
+		cm = new CleanupManager(pendingFile);
+		cm.setVerbose(verbose);
+		Assert.assertEquals(1, cm.recover());
+		for (int i = 0; i < 100 && new File(leftOver).exists(); i++)
+			Thread.sleep(10);
+		Assert.assertFalse(new File(leftOver).exists());
+
+		cm.close();
+		Assert.assertFalse(new File(pendingFile).exists());
+	}
+
+	/**
+	 * Cleanup manager: Paths that are not directory trees created by bds
+	 * (e.g. user's 'rmOnExit') are removed the same way File.deleteOnExit()
+	 * does, i.e. directories are only removed if they are empty
+	 */
+	@Test
+	public void test02_cleanupManagerRmOnExit() throws InterruptedException {
+		Gpr.debug("Test");
+
+		String base = tmpDir("cleanupManagerRmOnExit");
+		String pendingFile = base + "/cleanup.pending";
+
+		// Files and directories
+		String file = base + "/file.txt";
+		Gpr.toFile(file, "");
+		String emptyDir = base + "/empty";
+		new File(emptyDir + "/sub").mkdirs();
+		String userDir = base + "/user";
+		new File(userDir).mkdirs();
+		String userFile = userDir + "/keep.txt";
+		Gpr.toFile(userFile, "");
+
+		CleanupManager cm = new CleanupManager(pendingFile);
+		cm.setVerbose(verbose);
+		cm.rmOnExit(file);
+		cm.rmOnExit(emptyDir);
+		cm.rmOnExit(emptyDir + "/sub"); // Removed before its parent directory
+		cm.rmOnExit(userDir);
+		Assert.assertEquals(4, cm.getPending().size());
+		Assert.assertEquals(0, cm.getPendingTrees().size());
+		cm.close();
+
+		// Files and empty directories are removed, non-empty directories are not
+		Assert.assertFalse(new File(file).exists());
+		Assert.assertFalse(new File(emptyDir).exists());
+		Assert.assertTrue(new File(userDir).exists());
+		Assert.assertTrue(new File(userFile).exists());
+
+		// Recover: Non-empty directories are not removed either
+		Gpr.toFile(pendingFile, userDir + "\n");
+		cm = new CleanupManager(pendingFile);
+		cm.setVerbose(verbose);
+		Assert.assertEquals(1, cm.recover());
+		cm.close();
+		Assert.assertTrue(new File(userFile).exists());
+	}
+
+}
@@ -0,0 +1,259 @@
+package org.bds.test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.bds.Config;
+import org.bds.executioner.ClusterStatePoller;
+import org.bds.executioner.ClusterStatePoller.Format;
+import org.bds.executioner.ExecutionerCluster;
+import org.bds.executioner.TaskLogger;
+import org.bds.osCmd.CmdClusterArray;
+import org.bds.task.Task;
+import org.bds.task.TaskState;
+import org.bds.util.Gpr;
+import org.bds.util.Timer;
+import org.junit.Test;
+
+/**
+ * Test cases for cluster executioners (cluster state, killing jobs)
+ *
+ * @author pcingola
+ *
+ */
+public class TestCasesCluster extends TestCasesBase {
+
+	/**
+	 * Cluster state: Parse structured outputs, fall back to columns, adapt polling interval
+	 */
+	@Test
+	public void test01_clusterStatePoller() {
+		Gpr.debug("Test");
+
+		ClusterStatePoller poller = new ClusterStatePoller(new String[] { "true" }, null, Format.TEXT, null);
+		poller.setDebug(debug);
+
+		// SGE's 'qstat -xml'
+		String xml = "<?xml version='1.0'?>\n<job_info>\n<queue_info>\n" //
+				+ "<job_list state=\"running\"><JB_job_number>101</JB_job_number><state>r</state></job_list>\n" //
+				+ "</queue_info>\n<job_info>\n" //
+				+ "<job_list state=\"pending\"><JB_job_number>102</JB_job_number><state>qw</state></job_list>\n" //
+				+ "</job_info>\n</job_info>\n";
+		Map<String, String> jobs = poller.parse(xml, Format.XML);
+		Assert.assertEquals(2, jobs.size());
+		Assert.assertTrue(jobs.get("102").contains("state: qw"));
+
+		// Moab's 'showq --xml' (job ID is an attribute)
+		xml = "<Data><queue option=\"active\"><job JobID=\"2001.server\" State=\"Running\"></job></queue></Data>";
+		jobs = poller.parse(xml, Format.XML);
+		Assert.assertTrue(jobs.containsKey("2001.server"));
+		Assert.assertTrue(jobs.containsKey("2001"));
+
+		// Slurm's 'squeue --json'
+		String json = "{ \"jobs\": [ { \"job_id\": 301, \"job_state\": \"RUNNING\" }, { \"job_id\": 302, \"job_state\": \"PENDING\" } ] }";
+		jobs = poller.parse(json, Format.JSON);
+		Assert.assertEquals(2, jobs.size());
+		Assert.assertTrue(jobs.get("301").contains("job_state: RUNNING"));
+
+		// Invalid structured output
+		Assert.assertNull(poller.parse("Not XML", Format.XML));
+
+		// Structured command fails: Fall back to plain command (columns)
+		String statCommand[] = { "sh", "-c", "echo '401 running'; echo '402 pending'" };
+		String statCommandStructured[] = { "false" };
+		poller = new ClusterStatePoller(statCommand, statCommandStructured, Format.XML, null);
+		poller.setDebug(debug);
+		Assert.assertTrue(poller.poll());
+		Assert.assertTrue(poller.getSnapshot().getJobIds().contains("401"));
+		Assert.assertTrue(poller.getJobInfo("402").contains("pending"));
+
+		// Nothing changed: Poll less often
+		long interval = poller.getInterval();
+		Assert.assertTrue(poller.poll());
+		Assert.assertTrue(poller.getInterval() > interval);
+
+		// Jobs submitted: Poll more often
+		poller.submitted();
+		Assert.assertEquals(ClusterStatePoller.MIN_INTERVAL * 1000L, poller.getInterval());
+	}
+
+	/**
+	 * Kill many cluster jobs: Jobs are killed in batches (one kill command per batch)
+	 */
+	@Test
+	public void test02_clusterKillBatch() {
+		Gpr.debug("Test");
+
+		int numTasks = 250;
+		String killed = tmpDir("clusterKill") + "/killed.txt";
+
+		Config config = config();
+		config.set(Config.CLUSTER_KILL_BATCH_SIZE, "100");
+
+		// Kill command only logs job IDs (one line per batch)
+		final String killCommand[] = { "sh", "-c", "echo \"$@\" >> " + killed, "kill" };
+		ExecutionerCluster ex = new ExecutionerCluster(config) {
+			{
+				clusterKillCommand = killCommand;
+			}
+		};
+
+		for (int i = 0; i < numTasks; i++) {
+			Task task = new Task("task_" + i);
+			task.setPid("" + (1000 + i));
+			ex.getTasksRunning().put(task.getId(), task);
+		}
+		ex.kill();
+
+		// Three batches, all jobs killed
+		String lines[] = Gpr.readFile(killed).trim().split("\n");
+		Assert.assertEquals(3, lines.length);
+
+		Set<String> ids = new HashSet<String>();
+		for (String line : lines)
+			for (String id : line.trim().split("\\s+"))
+				ids.add(id);
+		Assert.assertEquals(numTasks, ids.size());
+		for (int i = 0; i < numTasks; i++)
+			Assert.assertTrue("Job not killed: " + (1000 + i), ids.contains("" + (1000 + i)));
+
+		// PID file entries include the batch size (used by the parent 'bds' process)
+		String pidFile = tmpDir("clusterKill") + "/pidFile.txt";
+		TaskLogger taskLogger = new TaskLogger(pidFile);
+		Task task = new Task("task_pid");
+		task.setPid("2000");
+		taskLogger.add(task, ex);
+		taskLogger.close();
+		Assert.assertEquals("2000\t+\tsh -c echo \"$@\" >> " + killed + " kill\t100\n", Gpr.readFile(pidFile));
+	}
+
+	/**
+	 * Kill a task in an array job: Only the array element is killed,
+	 * the array job is killed when all its tasks are killed
+	 */
+	@Test
+	public void test03_killArrayTask() throws InterruptedException {
+		Gpr.debug("Test");
+
+		String killed = tmpDir("clusterKillArray") + "/killed.txt";
+		Config config = config();
+
+		// Kill command only logs job IDs
+		final String killCommand[] = { "sh", "-c", "echo \"$@\" >> " + killed, "kill" };
+		final List<Task> tasks = new ArrayList<Task>();
+		ExecutionerCluster ex = new ExecutionerCluster(config) {
+			{
+				clusterKillCommand = killCommand;
+				for (int i = 1; i <= 3; i++) {
+					Task task = running(new Task("task_" + i));
+					task.setPid(arrayTaskPid("123", i));
+					tasks.add(task);
+					tasksRunning.put(task.getId(), task);
+				}
+
+				CmdClusterArray cmd = new CmdClusterArray("array", new String[0], tasks, this);
+				cmd.setExecutioner(this);
+				cmd.setHost(cluster.getHosts().get(0));
+				for (Task task : tasks)
+					addCmd(task, cmd);
+			}
+
+			@Override
+			public synchronized void kill(Task task) {
+				super.kill(task);
+				taskUpdateStates();
+			}
+		};
+
+		// Kill one task: Other tasks in the array are still running
+		ex.kill(tasks.get(0));
+		Assert.assertEquals(TaskState.KILLED, tasks.get(0).getTaskState());
+		Assert.assertEquals(TaskState.RUNNING, tasks.get(1).getTaskState());
+		Assert.assertEquals(TaskState.RUNNING, tasks.get(2).getTaskState());
+		Assert.assertEquals("123[1]", waitFile(killed, 1));
+
+		// Kill all other tasks
+		ex.kill(tasks.get(1));
+		ex.kill(tasks.get(2));
+		for (Task task : tasks)
+			Assert.assertEquals(TaskState.KILLED, task.getTaskState());
+		Assert.assertEquals("123[1]\n123[2]", waitFile(killed, 2));
+	}
+
+	/**
+	 * Kill jobs: Number of kill commands running in parallel is limited,
+	 * kill commands are waited for without holding the executioner's lock
+	 */
+	@Test
+	public void test04_clusterKillConcurrency() {
+		Gpr.debug("Test");
+
+		int numTasks = 200;
+		String killed = tmpDir("clusterKill") + "/killed.txt";
+
+		Config config = config();
+		config.set(Config.CLUSTER_KILL_BATCH_SIZE, "10");
+
+		// Kill command logs when it starts and finishes
+		final String killCommand[] = { "sh", "-c", "echo start >> " + killed + "; sleep 0.1; echo end >> " + killed, "kill" };
+		final List<Boolean> lockHeld = new ArrayList<Boolean>();
+		ExecutionerCluster ex = new ExecutionerCluster(config) {
+			{
+				clusterKillCommand = killCommand;
+			}
+
+			@Override
+			protected void waitKillCommands() {
+				lockHeld.add(Thread.holdsLock(this));
+				super.waitKillCommands();
+			}
+		};
+
+		for (int i = 0; i < numTasks; i++) {
+			Task task = new Task("task_" + i);
+			task.setPid("" + (1000 + i));
+			ex.getTasksRunning().put(task.getId(), task);
+		}
+		ex.kill();
+
+		// Lock not held while waiting
+		Assert.assertEquals(1, lockHeld.size());
+		Assert.assertFalse(lockHeld.get(0));
+
+		// All batches finished, at most KILL_THREADS running at the same time
+		int running = 0, maxRunning = 0, batches = 0;
+		for (String line : Gpr.readFile(killed).trim().split("\n")) {
+			if (line.equals("start")) {
+				running++;
+				batches++;
+			} else running--;
+			maxRunning = Math.max(maxRunning, running);
+		}
+		Assert.assertEquals(numTasks / 10, batches);
+		Assert.assertEquals(0, running);
+		Assert.assertTrue("Too many kill commands in parallel: " + maxRunning, maxRunning <= ExecutionerCluster.KILL_THREADS);
+	}
+
+	/**
+	 * Wait until a file has 'numLines' lines (kill commands run in the background)
+	 * @return File's contents
+	 */
+	String waitFile(String fileName, int numLines) throws InterruptedException {
+		Timer timer = new Timer();
+		String content = "";
+		while (timer.elapsed() < 5000) {
+			if (Gpr.exists(fileName)) {
+				content = Gpr.readFile(fileName).trim();
+				if (content.split("\n").length >= numLines) break;
+			}
+			Thread.sleep(10);
+		}
+		return content;
+	}
+
+}
@@ -0,0 +1,262 @@
+package org.bds.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.bds.Config;
+import org.bds.data.Data;
+import org.bds.data.DataHttp;
+import org.bds.data.DigestDb;
+import org.bds.data.FileMetadataCache;
+import org.bds.task.Task;
+import org.bds.task.TaskDependecies;
+import org.bds.task.TaskDependency;
+import org.bds.task.TaskState;
+import org.bds.util.Gpr;
+import org.bds.util.Timer;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test cases for task dependencies (waiting for tasks, dependency graph, file metadata, content digests)
+ *
+ * @author pcingola
+ *
+ */
+public class TestCasesDependencies extends TestCasesBase {
+
+	/**
+	 * Waiting for tasks: Don't hold TaskDependecies' lock and
+	 * wake up as soon as the last task finishes
+	 */
+	@Test
+	public void test01_waitTasksWakeUp() throws InterruptedException {
+		Gpr.debug("Test");
+
+		final TaskDependecies taskDeps = new TaskDependecies();
+		int numTasks = 10;
+		Task tasks[] = new Task[numTasks];
+		for (int i = 0; i < numTasks; i++) {
+			tasks[i] = running(new Task("wait_" + i));
+			taskDeps.add(tasks[i]);
+		}
+
+		// Wait for all tasks in another thread
+		final AtomicInteger ok = new AtomicInteger(-1);
+		final long end[] = new long[1];
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				ok.set(taskDeps.waitTasksAll() ? 1 : 0);
+				end[0] = System.currentTimeMillis();
+			}
+		};
+		waiter.start();
+		Thread.sleep(50);
+
+		// Waiting thread does not hold the lock
+		Assert.assertEquals(numTasks, taskDeps.size());
+		Assert.assertEquals(-1, ok.get());
+
+		// Finish tasks (in reverse order)
+		for (int i = numTasks - 1; i >= 0; i--) {
+			Thread.sleep(10);
+			tasks[i].state(TaskState.FINISHED);
+		}
+		long finished = System.currentTimeMillis();
+
+		waiter.join(10 * TaskDependecies.SLEEP_TIME);
+		Assert.assertEquals(1, ok.get());
+		long latency = end[0] - finished;
+		if (verbose) Timer.showStdErr("Wait latency: " + latency + " ms");
+		Assert.assertTrue("Latency: " + latency + " ms", latency < TaskDependecies.SLEEP_TIME / 2);
+	}
+
+	/**
+	 * Circular dependency checks on a long chain of tasks
+	 */
+	@Test
+	public void test02_circularDependencyIndex() {
+		Gpr.debug("Test");
+
+		// Chain of tasks: file_i <- file_{i-1}
+		String dir = tmpDir("circularDependency");
+		TaskDependecies taskDeps = new TaskDependecies();
+		int numTasks = 5000;
+		for (int i = 1; i <= numTasks; i++)
+			taskDeps.add(depTask("chain_" + i, dir + "/chain_" + i + ".txt", dir + "/chain_" + (i - 1) + ".txt"));
+		Assert.assertEquals(numTasks, taskDeps.size());
+
+		// Close the loop using a 'dep': Not checked until it is executed
+		Task loop = depTask("chain_loop", dir + "/chain_0.txt", dir + "/chain_" + numTasks + ".txt");
+		loop.setDependency(true);
+		taskDeps.add(loop);
+
+		// Executing the 'dep' (e.g. by 'goal'), should find the circular dependency
+		loop.setDependency(false);
+		try {
+			taskDeps.add(loop);
+			Assert.fail("Circular dependency not found");
+		} catch (RuntimeException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Circular dependency on task 'chain_loop'"));
+		}
+
+		// Tasks re-creating a file used by a previous task are not circular
+		TaskDependecies taskDepsSeq = new TaskDependecies();
+		taskDepsSeq.add(depTask("seq_1", dir + "/seq_1.txt", dir + "/seq_0.txt"));
+		taskDepsSeq.add(depTask("seq_2", dir + "/seq_0.txt", dir + "/seq_1.txt"));
+		Assert.assertEquals(2, taskDepsSeq.size());
+
+		// Task having consumers, but no circular dependency
+		Task branch = depTask("chain_branch", dir + "/chain_branch.txt", dir + "/chain_" + (numTasks / 2) + ".txt");
+		taskDeps.add(branch);
+		taskDeps.add(depTask("chain_branch_2", dir + "/chain_branch_2.txt", dir + "/chain_branch.txt"));
+		taskDeps.add(branch);
+	}
+
+	/**
+	 * File metadata cache: Entries are invalidated when a task creating
+	 * the file finishes, when bds deletes the file or when they expire
+	 */
+	@Test
+	public void test03_fileMetadataCache() throws InterruptedException, IOException {
+		Gpr.debug("Test");
+
+		Config config = config();
+		FileMetadataCache cache = config.getFileMetadataCache();
+
+		String dir = tmpDir("fileMetadataCache");
+		String fileName = dir + "/file.txt";
+
+		// Cached: Several tasks check the same file
+		Assert.assertFalse(cache.get(fileName).exists());
+		long misses = cache.getMisses();
+		for (int i = 0; i < 100; i++)
+			Assert.assertFalse(cache.get(fileName).exists());
+		Assert.assertEquals(misses, cache.getMisses());
+
+		// A task creating the file finishes: Entry is invalidated
+		Task task = depTask("metadata_1", fileName, dir + "/file.in.txt");
+		running(task);
+		Gpr.toFile(fileName, "hi");
+		Assert.assertFalse(cache.get(fileName).exists()); // Still cached
+		task.state(TaskState.FINISHED);
+		Assert.assertTrue(task.isDoneOk());
+		Assert.assertTrue(cache.get(fileName).exists());
+		Assert.assertEquals(2, cache.get(fileName).size());
+
+		// Deleted by bds
+		Data.factory(fileName).delete();
+		Assert.assertFalse(cache.get(fileName).exists());
+
+		// Downloaded by bds: Local copy is invalidated
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte body[] = "hello".getBytes();
+				exchange.sendResponseHeaders(200, body.length);
+				exchange.getResponseBody().write(body);
+				exchange.close();
+			}
+		});
+		server.start();
+		try {
+			String localFile = dir + "/downloaded.txt";
+			Assert.assertFalse(cache.get(localFile).exists());
+			DataHttp dataHttp = new DataHttp("http://localhost:" + server.getAddress().getPort() + "/downloaded.txt");
+			Assert.assertTrue(dataHttp.download(localFile));
+			Assert.assertTrue(cache.get(localFile).exists());
+			Assert.assertEquals(5, cache.get(localFile).size());
+		} finally {
+			server.stop(0);
+		}
+
+		// Modified by another process: Entry expires
+		cache = new FileMetadataCache(50);
+		Assert.assertFalse(cache.get(fileName).exists());
+		Gpr.toFile(fileName, "hi");
+		Thread.sleep(100);
+		Assert.assertTrue(cache.get(fileName).exists());
+
+		// No caching
+		cache = new FileMetadataCache(0);
+		Assert.assertTrue(cache.get(fileName).exists());
+		Assert.assertEquals(0, cache.size());
+	}
+
+	/**
+	 * Content digests: Dependencies are up to date if outputs were
+	 * created from inputs having the same contents (regardless of
+	 * modification times)
+	 */
+	@Test
+	public void test04_dependencyDigest() throws InterruptedException {
+		Gpr.debug("Test");
+
+		String dir = tmpDir("dependencyDigest");
+		String dbFile = dir + "/digest.db";
+		String in = dir + "/in.txt";
+		String out = dir + "/out.txt";
+		Gpr.toFile(in, "input");
+		Gpr.toFile(out, "output");
+
+		Config config = config();
+		config.set(Config.DEPENDENCY_DIGEST, "true");
+		config.set(Config.DEPENDENCY_DIGEST_DB, dbFile);
+		config.set(Config.FILE_METADATA_CACHE_TTL, "0");
+		DigestDb digestDb = config.getDigestDb();
+
+		// No information yet
+		List<String> ins = new ArrayList<String>();
+		ins.add(in);
+		List<String> outs = new ArrayList<String>();
+		outs.add(out);
+		Assert.assertNull(digestDb.isUpToDate(outs, ins));
+
+		// Output was created from input
+		digestDb.built(outs, ins);
+		for (int i = 0; i < 100 && digestDb.isUpToDate(outs, ins) == null; i++)
+			Thread.sleep(10);
+		Assert.assertTrue(digestDb.isUpToDate(outs, ins));
+
+		// Same input, duplicated or using a different path (alias)
+		List<String> insAlias = new ArrayList<String>();
+		insAlias.add(in);
+		insAlias.add(dir + "/./in.txt");
+		Assert.assertTrue(digestDb.isUpToDate(outs, insAlias));
+
+		// Input is newer than output (e.g. copied or clock skew), but contents are the same
+		long now = System.currentTimeMillis();
+		new File(out).setLastModified(now - 100 * 1000);
+		new File(in).setLastModified(now);
+		TaskDependency taskDep = new TaskDependency();
+		taskDep.addOutput(out);
+		taskDep.addInput(in);
+		Assert.assertFalse(taskDep.depOperator());
+
+		// Input changed
+		Gpr.toFile(in, "new input");
+		new File(in).setLastModified(now - 200 * 1000);
+		Assert.assertFalse(digestDb.isUpToDate(outs, ins));
+		Assert.assertTrue(taskDep.depOperator());
+
+		// Database is persistent
+		digestDb.close();
+		DigestDb digestDb2 = new DigestDb(dbFile);
+		Assert.assertFalse(digestDb2.isUpToDate(outs, ins));
+		Gpr.toFile(in, "input");
+		Assert.assertTrue(digestDb2.isUpToDate(outs, ins));
+		digestDb2.close();
+	}
+
+}
@@ -1,25 +1,64 @@
 package org.bds.test;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Assert;
 
 import org.bds.Config;
 import org.bds.executioner.CheckTasksRunning;
 import org.bds.executioner.Executioner;
+import org.bds.executioner.ExecutionerLocal;
 import org.bds.executioner.Executioners;
 import org.bds.executioner.Executioners.ExecutionerType;
+import org.bds.executioner.MonitorTask;
+import org.bds.executioner.ReadyQueue;
+import org.bds.executioner.ReadyQueue.TaskPriority;
+import org.bds.executioner.TaskLogger;
+import org.bds.osCmd.Cmd;
+import org.bds.osCmd.CmdLocal;
+import org.bds.osCmd.CmdLocalLauncher;
+import org.bds.osCmd.Exec;
+import org.bds.osCmd.ExecResult;
+import org.bds.osCmd.LocalLauncher;
+import org.bds.osCmd.ProcessReaper;
+import org.bds.task.Task;
+import org.bds.task.TaskDirLayout;
+import org.bds.task.TaskDirLayout.Layout;
+import org.bds.task.TaskState;
+import org.bds.util.DirectoryWatcher;
 import org.bds.util.Gpr;
+import org.bds.util.Timer;
+import org.junit.Assume;
 import org.junit.Test;
 
 /**
- * Quick test cases when creating a new feature...
+ * Test cases for executioners (local executioner, scheduling, monitoring tasks)
  *
  * @author pcingola
  *
  */
 public class TestCasesExecutioners extends TestCasesBase {
 
+	/**
+	 * Local executioner: Show command line used to run a task
+	 */
+	class ExecutionerLocalArgs extends ExecutionerLocal {
+
+		public ExecutionerLocalArgs(Config config) {
+			super(config);
+		}
+
+		String[] commandArgs(Task task) {
+			return createRunCmd(task).getCommandArgs();
+		}
+	}
+
 	@Test
 	public void test01_parsePidQstatRegex() {
 		Gpr.debug("Test");
@@ -57,9 +96,7 @@ public class TestCasesExecutioners extends TestCasesBase {
 		Gpr.debug("Test");
 
 		// Create 'CheckTasksRunning'
-		Config config = new Config();
-		config.setDebug(debug);
-		config.setVerbose(verbose);
+		Config config = config();
 
 		Executioner ex = Executioners.getInstance(config).get(ExecutionerType.LOCAL);
 		CheckTasksRunning ctr = new CheckTasksRunning(config, ex);
@@ -84,4 +121,545 @@ public class TestCasesExecutioners extends TestCasesBase {
 		if (verbose) System.out.println("Done");
 	}
 
+	/**
+	 * Detect exit files, using file system notifications and polling
+	 */
+	void monitorExitFiles(boolean watch) throws InterruptedException {
+		Config config = config();
+
+		final List<String> done = new ArrayList<String>();
+		ExecutionerNoOp ex = new ExecutionerNoOp(config) {
+			@Override
+			public synchronized void taskFinished(Task task, TaskState taskState) {
+				done.add(task.getId() + ":" + task.getExitValue());
+			}
+		};
+
+		MonitorTask monitorTask = new MonitorTask();
+		monitorTask.setDebug(debug);
+		DirectoryWatcher watcher = (watch ? DirectoryWatcher.create() : null);
+		monitorTask.setWatcher(watcher);
+
+		// Create tasks
+		String dir = tmpDir("monitorExitFiles");
+		int numTasks = 100;
+		List<Task> tasks = new ArrayList<Task>();
+		for (int i = 0; i < numTasks; i++) {
+			Task task = new Task("task_" + i, dir + "/task_" + i + ".sh", "true", null, -1);
+			task.createProgramFile();
+			tasks.add(task);
+			monitorTask.add(ex, task);
+		}
+
+		// Nothing finished yet
+		monitorTask.check();
+		Assert.assertEquals(0, done.size());
+
+		// Create exit files
+		for (int i = 0; i < numTasks; i++)
+			Gpr.toFile(tasks.get(i).getExitCodeFile(), (i % 2 == 0 ? "0" : "1"));
+
+		// Wait for all tasks to be detected
+		Timer timer = new Timer();
+		while (done.size() < numTasks && timer.elapsed() < 5 * 1000) {
+			Thread.sleep(MonitorTask.SLEEP_TIME / 10);
+			monitorTask.check();
+		}
+		monitorTask.kill();
+		if (watcher != null) watcher.close();
+
+		Assert.assertEquals(numTasks, done.size());
+		for (int i = 0; i < numTasks; i++)
+			Assert.assertTrue(done.contains("task_" + i + ":" + (i % 2)));
+	}
+
+	/**
+	 * Run commands using a local launcher: Commands 'i' fails if 'i' is odd
+	 */
+	void runLocalLauncher(LocalLauncher launcher, String dir, int numCmds) throws InterruptedException {
+		List<CmdLocalLauncher> cmds = new ArrayList<CmdLocalLauncher>();
+		for (int i = 0; i < numCmds; i++) {
+			String base = dir + "/cmd_" + i;
+			CmdLocalLauncher cmd = new CmdLocalLauncher("cmd_" + i, new String[] { "sh", "-c", "echo hi " + i + "; sleep 0.2; exit " + (i % 2) }, launcher);
+			cmd.setFiles(base + ".stdout", base + ".stderr", base + ".exitCode");
+			cmds.add(cmd);
+			ProcessReaper.get().execute(cmd);
+		}
+
+		// Wait for all commands to finish
+		Timer timer = new Timer();
+		for (CmdLocalLauncher cmd : cmds)
+			while (!cmd.isDone() && timer.elapsed() < 30 * 1000)
+				Thread.sleep(10);
+
+		for (int i = 0; i < numCmds; i++) {
+			CmdLocalLauncher cmd = cmds.get(i);
+			Assert.assertTrue("Command not finished: " + cmd.getCmdId(), cmd.isDone());
+			Assert.assertEquals(i % 2, cmd.getExitValue());
+			Assert.assertEquals("hi " + i + "\n", Gpr.readFile(dir + "/cmd_" + i + ".stdout"));
+		}
+	}
+
+	@Test
+	public void test03_readyQueueDependencies() throws InterruptedException {
+		Gpr.debug("Test");
+		Config config = config();
+
+		ExecutionerNoOp ex = new ExecutionerNoOp(config);
+		ex.start();
+
+		// A task that failed
+		Task taskFailed = new Task("failed");
+		running(taskFailed);
+		taskFailed.setExitValue(1);
+		taskFailed.state(TaskState.ERROR);
+
+		// Chain of tasks: Each one depends on the previous one
+		int numTasks = 1000;
+		Task chain[] = new Task[numTasks];
+		for (int i = 0; i < numTasks; i++) {
+			chain[i] = new Task("chain_" + i);
+			if (i > 0) chain[i].addDependency(chain[i - 1]);
+		}
+
+		// Tasks depending on the failed task (directly and indirectly)
+		Task fail1 = new Task("fail_1");
+		fail1.addDependency(taskFailed);
+		Task fail2 = new Task("fail_2");
+		fail2.addDependency(fail1);
+		fail2.addDependency(chain[0]);
+
+		// Add in reverse order, so no task is ready until the first one is added
+		ex.add(fail2);
+		for (int i = numTasks - 1; i >= 0; i--)
+			ex.add(chain[i]);
+		ex.add(fail1);
+
+		ex.waitPending(numTasks + 2, 1);
+		ex.kill();
+
+		for (int i = 0; i < numTasks; i++)
+			Assert.assertEquals("Task " + chain[i].getId(), TaskState.FINISHED, chain[i].getTaskState());
+		Assert.assertEquals(TaskState.START_FAILED, fail1.getTaskState());
+		Assert.assertEquals(TaskState.START_FAILED, fail2.getTaskState());
+	}
+
+	@Test
+	public void test04_taskPriority() {
+		Gpr.debug("Test");
+		ReadyQueue readyQueue = new ReadyQueue(TaskPriority.CRITICAL_PATH);
+
+		// Independent tasks
+		Task indep1 = new Task("indep_1");
+		Task indep2 = new Task("indep_2");
+
+		// Chain of tasks
+		Task chain1 = new Task("chain_1");
+		Task chain2 = new Task("chain_2");
+		chain2.addDependency(chain1);
+		Task chain3 = new Task("chain_3");
+		chain3.addDependency(chain2);
+
+		// User defined priority
+		Task prio = new Task("prio");
+		prio.setPriority(10);
+
+		readyQueue.add(indep1);
+		readyQueue.add(indep2);
+		readyQueue.add(chain1);
+		readyQueue.add(chain2);
+		readyQueue.add(chain3);
+		readyQueue.add(prio);
+		Assert.assertEquals("[prio, chain_1, indep_1, indep_2]", readyOrder(readyQueue));
+
+		// Run 'prio' and 'chain_1': Next task in the chain is on the critical path
+		readyQueue.remove(prio);
+		readyQueue.remove(chain1);
+		running(chain1);
+		chain1.setExitValue(0);
+		chain1.state(TaskState.FINISHED);
+		readyQueue.taskDone(chain1);
+		Assert.assertTrue(readyQueue.update());
+		Assert.assertEquals("[chain_2, indep_1, indep_2]", readyOrder(readyQueue));
+
+		// Nobody is waiting for 'indep_1': Event is dropped
+		readyQueue.remove(indep1);
+		running(indep1);
+		indep1.setExitValue(0);
+		indep1.state(TaskState.FINISHED);
+		readyQueue.taskDone(indep1);
+		Assert.assertFalse(readyQueue.update());
+	}
+
+	/**
+	 * Task IDs in the order they would be dispatched
+	 */
+	String readyOrder(ReadyQueue readyQueue) {
+		List<String> ids = new ArrayList<String>();
+		for (Task task : readyQueue)
+			ids.add(task.getId());
+		return ids.toString();
+	}
+
+	@Test
+	public void test05_monitorExitFiles() throws InterruptedException {
+		Gpr.debug("Test");
+		monitorExitFiles(true);
+		monitorExitFiles(false);
+	}
+
+	@Test
+	public void test06_processReaper() throws InterruptedException {
+		Gpr.debug("Test");
+
+		// Run many processes: Exit value is i % 4
+		int numCmds = 200;
+		List<CmdLocal> cmds = new ArrayList<CmdLocal>();
+		for (int i = 0; i < numCmds; i++) {
+			CmdLocal cmd = new CmdLocal("cmd_" + i, new String[] { "sh", "-c", "sleep 0.5; exit " + (i % 4) });
+			cmd.setProcessReaper(ProcessReaper.get());
+			cmds.add(cmd);
+			ProcessReaper.get().execute(cmd);
+		}
+
+		// Wait for all processes to finish
+		Timer timer = new Timer();
+		for (CmdLocal cmd : cmds)
+			while (!cmd.isDone() && timer.elapsed() < 30 * 1000)
+				Thread.sleep(10);
+
+		for (int i = 0; i < numCmds; i++) {
+			CmdLocal cmd = cmds.get(i);
+			Assert.assertTrue("Command not finished: " + cmd.getCmdId(), cmd.isDone());
+			Assert.assertEquals(i % 4, cmd.getExitValue());
+			Assert.assertEquals("Command should not run in its own thread", Thread.State.NEW, cmd.getState());
+		}
+	}
+
+	@Test
+	public void test07_localLauncher() throws InterruptedException {
+		Gpr.debug("Test");
+
+		// A launcher implementing the same protocol as 'bds launcher'
+		String dir = tmpDir("localLauncher");
+		String launcherScript = dir + "/launcher.sh";
+		Gpr.toFile(launcherScript, "" //
+				+ "IFS='\t'\n" //
+				+ "echo READY\n" //
+				+ "while read -r req id timeout out err exitf cmd; do\n" //
+				+ "  if [ \"$req\" = RUN ]; then\n" //
+				+ "    ( $cmd > \"$out\" 2> \"$err\" ; c=$? ; echo $c > \"$exitf\" ; [ $c -eq 0 ] && echo \"EXIT\t$id\t0\" || echo \"EXIT\t$id\t1\" ) &\n" //
+				+ "    echo \"PID\t$id\t$!\"\n" //
+				+ "  fi\n" //
+				+ "done\n" //
+				+ "wait\n" //
+		);
+
+		LocalLauncher launcher = LocalLauncher.create(new String[] { "sh", launcherScript }, false);
+		Assert.assertNotNull("Could not start launcher", launcher);
+
+		int numCmds = 100;
+		runLocalLauncher(launcher, dir, numCmds);
+		for (int i = 0; i < numCmds; i++)
+			Assert.assertEquals("" + (i % 2), Gpr.readFile(dir + "/cmd_" + i + ".exitCode").trim());
+
+		launcher.close();
+	}
+
+	/**
+	 * Task state updates arriving out of order (from many threads)
+	 */
+	@Test
+	public void test08_taskUpdateStatesOutOfOrder() throws InterruptedException {
+		Gpr.debug("Test");
+
+		Config config = config();
+		final ExecutionerNoOp ex = new ExecutionerNoOp(config);
+
+		// Send updates in reverse order, from different threads
+		int numTasks = 100;
+		List<Task> tasks = new ArrayList<Task>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < numTasks; i++) {
+			final Task task = new Task("task_" + i);
+			ex.add(task);
+			tasks.add(task);
+
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					ex.taskFinished(task, TaskState.FINISHED);
+					ex.taskRunning(task);
+					ex.taskStarted(task);
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+
+		for (Thread t : threads)
+			t.join();
+
+		// All updates applied in one pass, nothing left pending
+		Assert.assertEquals(0, ex.updateStates());
+		for (Task task : tasks)
+			Assert.assertEquals(TaskState.FINISHED, task.getTaskState());
+		Assert.assertEquals(numTasks, ex.finished);
+	}
+
+	/**
+	 * Slow (or hung) commands checking tasks must not block the main loop
+	 */
+	@Test
+	public void test09_checkTasksRunningBackground() throws InterruptedException {
+		Gpr.debug("Test");
+
+		Config config = config();
+		ExecutionerNoOp ex = new ExecutionerNoOp(config);
+
+		// Check command hangs until released
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger runs = new AtomicInteger();
+		CheckTasksRunning ctr = new CheckTasksRunning(config, ex) {
+			@Override
+			protected boolean runCommand() {
+				runs.incrementAndGet();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				return false;
+			}
+
+			@Override
+			protected boolean shouldCheck() {
+				return true;
+			}
+		};
+
+		// Checks return immediately, only one command runs at a time
+		long start = System.currentTimeMillis();
+		ctr.check();
+		ctr.check();
+		ctr.check();
+		Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+		Thread.sleep(100);
+		Assert.assertEquals(1, runs.get());
+
+		// Command finished: Next check runs a new command
+		release.countDown();
+		Thread.sleep(100);
+		ctr.check();
+		Thread.sleep(100);
+		Assert.assertEquals(2, runs.get());
+
+		// Commands are killed after a timeout
+		List<String> args = new ArrayList<String>();
+		args.add("sleep");
+		args.add("10");
+		start = System.currentTimeMillis();
+		ExecResult res = Exec.exec(args, true, 1);
+		Assert.assertEquals(Exec.EXITCODE_TIMEOUT, res.exitValue);
+		Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+	}
+
+	/**
+	 * PID file entries are buffered and written in groups
+	 */
+	@Test
+	public void test10_taskLoggerGroupCommit() throws InterruptedException {
+		Gpr.debug("Test");
+
+		String pidFile = tmpDir("taskLogger") + "/pidFile.txt";
+
+		Config config = config();
+		ExecutionerNoOp ex = new ExecutionerNoOp(config);
+
+		// Long window: Nothing is written until synced
+		TaskLogger taskLogger = new TaskLogger(pidFile);
+		taskLogger.setFlushWindow(60 * 1000);
+
+		int numTasks = 100;
+		List<Task> tasks = new ArrayList<Task>();
+		for (int i = 0; i < numTasks; i++) {
+			Task task = new Task("task_" + i);
+			task.setPid("" + (1000 + i));
+			tasks.add(task);
+			taskLogger.add(task, ex);
+		}
+		Assert.assertFalse(new File(pidFile).exists());
+
+		taskLogger.sync();
+		Assert.assertEquals(numTasks, Gpr.readFile(pidFile).trim().split("\n").length);
+
+		// Short window: Entries are written without syncing
+		taskLogger.setFlushWindow(10);
+		taskLogger.remove(tasks);
+		Timer timer = new Timer();
+		int lines = 0;
+		while (lines < 2 * numTasks && timer.elapsed() < 5000) {
+			Thread.sleep(10);
+			lines = Gpr.readFile(pidFile).trim().split("\n").length;
+		}
+		Assert.assertEquals(2 * numTasks, lines);
+		Assert.assertTrue(Gpr.readFile(pidFile).endsWith((1000 + numTasks - 1) + "\t-\n"));
+
+		taskLogger.close();
+	}
+
+	/**
+	 * Tasks' files distributed in sub-directories
+	 */
+	@Test
+	public void test11_taskDirLayout() {
+		Gpr.debug("Test");
+
+		// Flat: One directory
+		TaskDirLayout flat = new TaskDirLayout(Layout.FLAT, 256);
+		Assert.assertEquals("thread/task.line_3.id_7", flat.path("thread", "task.line_3.id_7", 7));
+
+		// Hash: Always the same sub-directory for a name, at most 'fanOut' sub-directories
+		TaskDirLayout hash = new TaskDirLayout(Layout.HASH, 16);
+		Set<String> dirs = new HashSet<String>();
+		for (int i = 1; i <= 1000; i++) {
+			String name = "task.line_3.id_" + i;
+			String path = hash.path("thread", name, i);
+			Assert.assertEquals(path, hash.path("thread", name, i));
+			Assert.assertTrue(path.endsWith("/" + name));
+			dirs.add(path.substring(0, path.lastIndexOf('/')));
+		}
+		Assert.assertEquals(16, dirs.size());
+		Assert.assertTrue(dirs.contains("thread/00"));
+		Assert.assertTrue(dirs.contains("thread/15"));
+
+		// Sequential: 'fanOut' consecutive tasks per sub-directory (number of sub-directories is unbounded, no padding)
+		TaskDirLayout seq = new TaskDirLayout(Layout.SEQUENTIAL, 100);
+		Assert.assertEquals("thread/0/task.id_1", seq.path("thread", "task.id_1", 1));
+		Assert.assertEquals("thread/0/task.id_100", seq.path("thread", "task.id_100", 100));
+		Assert.assertEquals("thread/1/task.id_101", seq.path("thread", "task.id_101", 101));
+		Assert.assertEquals("thread/10/task.id_1001", seq.path("thread", "task.id_1001", 1001));
+		Assert.assertEquals("thread/100/task.id_10001", seq.path("thread", "task.id_10001", 10001));
+
+		// Program file's directory is created, other task files are in the same directory
+		String dir = tmpDir("taskDirLayout");
+		Task task = new Task("task_1", hash.path(dir, "task.id_1", 1) + ".sh", "echo hi\n", null, 1);
+		task.createProgramFile();
+		Assert.assertTrue(new File(task.getProgramFileName()).exists());
+		Assert.assertEquals(new File(task.getProgramFileName()).getParent(), new File(task.getExitCodeFile()).getParent());
+		Assert.assertEquals(new File(hash.path(dir, "task.id_1", 1)).getParent(), new File(task.getStdoutFile()).getParent());
+	}
+
+	/**
+	 * Small tasks are run inline (no program file)
+	 */
+	@Test
+	public void test12_taskInline() {
+		Gpr.debug("Test");
+
+		Config config = config();
+		config.set(Config.TASK_INLINE_MAX_SIZE, "1024");
+		ExecutionerLocalArgs ex = new ExecutionerLocalArgs(config);
+
+		// Small task: Program is an argument, no program file is created
+		String dir = tmpDir("taskInline");
+		Task task = new Task("task_1", dir + "/task_1.sh", "echo hi\n", null, 1);
+		task.setCurrentDir(new File(".").getAbsolutePath());
+		String args[] = ex.commandArgs(task);
+		Assert.assertFalse(new File(task.getProgramFileName()).exists());
+		Assert.assertTrue(new File(dir).isDirectory());
+		Assert.assertEquals(dir + "/task_1.exitCode", args[5]);
+		Assert.assertEquals("-c", args[args.length - 2]);
+		Assert.assertEquals(task.programInline(), args[args.length - 1]);
+
+		// Run the shell command (i.e. what 'bds exec' would run)
+		List<String> shellArgs = new ArrayList<String>();
+		for (int i = 6; i < args.length; i++)
+			shellArgs.add(args[i]);
+		ExecResult res = Exec.exec(shellArgs, true);
+		Assert.assertEquals(0, res.exitValue);
+		Assert.assertEquals("hi", res.stdOut.trim());
+
+		// Logging: Program file is created (but still not executed)
+		ex.setLog(true);
+		args = ex.commandArgs(task);
+		Assert.assertTrue(new File(task.getProgramFileName()).exists());
+		Assert.assertEquals(task.programInline(), args[args.length - 1]);
+
+		// Large task: Use a program file
+		StringBuilder program = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+			program.append("echo line " + i + "\n");
+		Task large = new Task("task_2", dir + "/task_2.sh", program.toString(), null, 1);
+		large.setCurrentDir(new File(".").getAbsolutePath());
+		args = ex.commandArgs(large);
+		Assert.assertEquals(large.getProgramFileName(), args[args.length - 1]);
+		Assert.assertTrue(new File(large.getProgramFileName()).exists());
+	}
+
+	/**
+	 * Admission control: Run more tasks than permits (permits are
+	 * released when commands finish, not by the main loop)
+	 */
+	@Test
+	public void test13_admissionControl() throws InterruptedException {
+		Gpr.debug("Test");
+
+		int maxThreads = Config.MAX_NUMBER_OF_RUNNING_THREADS_MIN_VALUE;
+		Config config = config();
+		config.set(Config.MAX_NUMBER_OF_RUNNING_THREADS, "" + maxThreads);
+
+		// Commands block until released: The main loop runs out of permits
+		final CountDownLatch release = new CountDownLatch(1);
+		ExecutionerNoOp ex = new ExecutionerNoOp(config) {
+			@Override
+			protected synchronized Cmd createRunCmd(Task task) {
+				return new CmdNoOp(task.getId(), this) {
+					@Override
+					protected void execCmd() throws Exception {
+						release.await();
+						super.execCmd();
+					}
+				};
+			}
+		};
+		ex.start();
+
+		int numTasks = 120;
+		for (int i = 0; i < numTasks; i++)
+			ex.add(new Task("task_" + i));
+
+		Thread.sleep(200);
+		Assert.assertEquals(0, config.getCmdAdmission().availablePermits());
+		release.countDown();
+
+		Timer timer = new Timer();
+		while (ex.finished < numTasks && timer.elapsed() < 30 * 1000)
+			Thread.sleep(10);
+		ex.kill();
+
+		Assert.assertEquals(numTasks, ex.finished);
+		Assert.assertEquals(maxThreads, config.getCmdAdmission().availablePermits());
+	}
+
+	/**
+	 * Run commands using 'bds launcher' (Go program). Skipped if
+	 * 'bds' is not in the PATH or it does not support 'launcher'
+	 */
+	@Test
+	public void test14_localLauncherBds() throws InterruptedException {
+		Gpr.debug("Test");
+
+		LocalLauncher launcher = LocalLauncher.create(ExecutionerLocal.LOCAL_LAUNCHER_COMMAND, debug);
+		Assume.assumeNotNull(launcher);
+
+		String dir = tmpDir("localLauncherBds");
+		int numCmds = 20;
+		runLocalLauncher(launcher, dir, numCmds);
+		for (int i = 0; i < numCmds; i++)
+			Assert.assertEquals((i % 2 == 0 ? "0" : "exit status 1"), Gpr.readFile(dir + "/cmd_" + i + ".exitCode"));
+
+		launcher.close();
+	}
+
 }
@@ -0,0 +1,218 @@
+package org.bds.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.bds.cluster.ClusterSsh;
+import org.bds.cluster.HostPlacement;
+import org.bds.cluster.HostPlacement.PlacementPolicy;
+import org.bds.cluster.host.Host;
+import org.bds.cluster.host.HostHealthUpdater;
+import org.bds.cluster.host.HostSsh;
+import org.bds.osCmd.SshSessionPool;
+import org.bds.task.Task;
+import org.bds.util.Gpr;
+import org.junit.Test;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * Test cases for ssh clusters (host health, host placement, session pool)
+ *
+ * @author pcingola
+ *
+ */
+public class TestCasesSsh extends TestCasesBase {
+
+	/**
+	 * Session pool that doesn't connect: Connecting blocks until
+	 * all callers reserved a channel, then returns a new session
+	 */
+	class SshSessionPoolConnect extends SshSessionPool {
+
+		CountDownLatch reserved;
+		AtomicInteger connects;
+
+		SshSessionPoolConnect(CountDownLatch reserved, AtomicInteger connects) {
+			this.reserved = reserved;
+			this.connects = connects;
+		}
+
+		@Override
+		protected Session connect(Host host) throws JSchException {
+			connects.incrementAndGet();
+			try {
+				reserved.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return new JSch().getSession(host.getUserName(), host.getHostName(), host.getPort());
+		}
+
+		/**
+		 * Reserve a channel and get its session
+		 */
+		Session reserveSession(Host host) throws JSchException, InterruptedException {
+			PooledSession ps = reserve(host);
+			reserved.countDown();
+			return session(host, ps);
+		}
+	}
+
+	@Test
+	public void test01_hostHealthUpdater() {
+		Gpr.debug("Test");
+
+		// Fake host: Reply to probes without connecting
+		final Map<String, String> outputs = new HashMap<String, String>();
+		outputs.put("uname", "Linux");
+		outputs.put("cat /proc/cpuinfo 2>/dev/null", "processor : 0\nmodel name : Fake CPU\nprocessor : 1");
+		outputs.put("sysctl hw machdep.cpu 2>/dev/null", "");
+		outputs.put("uptime", "10:00  up 1 day, 2 users, load averages: 0.50 0.40 0.30");
+		outputs.put("who", "user1 ttys000\nuser2 ttys001");
+		outputs.put("df -kl", "Filesystem 1K-blocks Used Available Use% Mounted\n/dev/sda1 1000 400 600 40% /");
+		outputs.put("cat /proc/meminfo 2>/dev/null", "MemTotal: 1000 kB\nMemFree: 500 kB\nSwapTotal: 0 kB\nSwapFree: 0 kB");
+		outputs.put("top -l 1 2>/dev/null", "");
+
+		final List<String> probes = new ArrayList<String>();
+		ClusterSsh cluster = new ClusterSsh();
+		HostSsh host = new HostSsh(cluster, "user@fakehost");
+		HostHealthUpdater updater = new HostHealthUpdater(host) {
+			@Override
+			protected String exec(String command) {
+				// Reply: Each command is preceded by "echo '#command'"
+				probes.add(command);
+				StringBuilder sb = new StringBuilder();
+				for (String c : command.split(";")) {
+					if (c.startsWith("echo '#")) sb.append(c.substring(6, c.length() - 1) + "\n");
+					else sb.append(outputs.get(c) + "\n");
+				}
+				return sb.toString();
+			}
+		};
+
+		// First probe: Everything in one command
+		long refresh = cluster.getRefreshTime() * 1000;
+		long now = System.currentTimeMillis();
+		Assert.assertTrue(updater.update(now));
+		Assert.assertEquals(1, probes.size());
+		Assert.assertEquals("Linux", host.getHealth().getSystemType());
+		Assert.assertEquals(2, host.getResources().getCpus());
+		Assert.assertEquals(0.5, host.getHealth().getLoadAvg(), 0.001);
+		Assert.assertEquals(2, host.getHealth().getLoggedInUsersCount());
+		Assert.assertTrue(host.getHealth().isAlive());
+
+		// Nothing to update yet
+		Assert.assertFalse(updater.update(now + 1));
+
+		// Second probe: Only metrics (no system info, no commands for other systems)
+		outputs.put("uptime", "10:00  up 1 day, 2 users, load averages: 4.00 0.40 0.30");
+		Assert.assertTrue(updater.update(now + refresh));
+		String probe = probes.get(probes.size() - 1);
+		Assert.assertTrue(probe.contains("uptime"));
+		Assert.assertTrue(probe.contains("meminfo"));
+		Assert.assertFalse(probe.contains("uname"));
+		Assert.assertFalse(probe.contains("cpuinfo"));
+		Assert.assertFalse(probe.contains("top"));
+		Assert.assertEquals(4.0, host.getHealth().getLoadAvg(), 0.001);
+
+		// Load changed: Probed more often than other metrics (which didn't change)
+		Assert.assertTrue(updater.update(now + refresh + refresh / 2));
+		probe = probes.get(probes.size() - 1);
+		Assert.assertTrue(probe.contains("uptime"));
+		Assert.assertFalse(probe.contains("who"));
+		Assert.assertFalse(probe.contains("df"));
+	}
+
+	/**
+	 * Host placement policies
+	 */
+	@Test
+	public void test02_hostPlacement() {
+		Gpr.debug("Test");
+
+		ClusterSsh cluster = new ClusterSsh();
+		HostSsh big = new HostSsh(cluster, "user@big");
+		big.getResources().setCpus(8);
+		HostSsh small = new HostSsh(cluster, "user@small");
+		small.getResources().setCpus(2);
+		List<Host> hosts = new ArrayList<Host>();
+		hosts.add(big);
+		hosts.add(small);
+
+		Task task = new Task("task1");
+		task.getResources().setCpus(2);
+
+		// Policy names
+		Assert.assertEquals(PlacementPolicy.BEST_FIT, PlacementPolicy.parseSafe("bestFit"));
+		Assert.assertEquals(PlacementPolicy.FIRST_FIT, PlacementPolicy.parseSafe("firstFit"));
+		Assert.assertEquals(PlacementPolicy.FIRST_FIT, PlacementPolicy.parseSafe("nonsense"));
+
+		// First fit: First host in the list
+		Assert.assertEquals(big, HostPlacement.factory(PlacementPolicy.FIRST_FIT).select(task, hosts));
+
+		// Best fit: Tighter host (keep the big host for large tasks)
+		Assert.assertEquals(small, HostPlacement.factory(PlacementPolicy.BEST_FIT).select(task, hosts));
+
+		// Health: Least loaded host
+		HostPlacement health = HostPlacement.factory(PlacementPolicy.HEALTH);
+		Assert.assertEquals(big, health.select(task, hosts));
+
+		// Health: Avoid a host having high load average
+		big.getHealth().setLoadAvg(12.0);
+		Assert.assertEquals(small, health.select(task, hosts));
+	}
+
+	/**
+	 * Ssh session pool: Commands opened while a session is
+	 * connecting share the pending session (only one connection)
+	 */
+	@Test
+	public void test03_sshSessionPoolConnecting() throws Exception {
+		Gpr.debug("Test");
+
+		int numThreads = SshSessionPool.SESSION_MAX_CHANNELS;
+		final CountDownLatch reserved = new CountDownLatch(numThreads);
+		final AtomicInteger connects = new AtomicInteger();
+
+		// Fake pool: Connecting blocks until all callers reserved a channel
+		final SshSessionPoolConnect pool = new SshSessionPoolConnect(reserved, connects);
+		final HostSsh host = new HostSsh(new ClusterSsh(), "user@fakehost");
+
+		final List<Session> sessions = Collections.synchronizedList(new ArrayList<Session>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < numThreads; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						sessions.add(pool.reserveSession(host));
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+
+		for (Thread thread : threads)
+			thread.join(10 * 1000);
+
+		// All callers got the same session, using only one connection
+		Assert.assertEquals(numThreads, sessions.size());
+		Assert.assertEquals(1, connects.get());
+		for (Session session : sessions)
+			Assert.assertSame(sessions.get(0), session);
+	}
+
+}
@@ -1,8 +1,18 @@
 package org.bds.test;
 
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import junit.framework.Assert;
 
+import org.bds.task.Tail;
 import org.bds.task.TailFile;
+import org.bds.util.DirectoryWatcher;
+import org.bds.util.Gpr;
+import org.bds.util.RingBuffer;
+import org.bds.util.Tuple;
 import org.junit.Test;
 
 /**
@@ -13,8 +23,60 @@ import org.junit.Test;
  */
 public class TestCasesTail extends TestCasesBase {
 
+	/**
+	 * A 'tail' that collects output (instead of showing it)
+	 */
+	class TailCollect extends Tail {
+
+		Map<String, StringBuilder> outByName = new HashMap<String, StringBuilder>();
+		int maxOpenFiles;
+
+		String getOutput(String name) {
+			StringBuilder sb = outByName.get(name);
+			return sb != null ? sb.toString() : "";
+		}
+
+		@Override
+		protected synchronized void print(List<Tuple<TailFile, byte[]>> out) {
+			maxOpenFiles = Math.max(maxOpenFiles, numOpenFiles());
+			for (Tuple<TailFile, byte[]> tfout : out) {
+				StringBuilder sb = outByName.get(tfout.first.getName());
+				if (sb == null) {
+					sb = new StringBuilder();
+					outByName.put(tfout.first.getName(), sb);
+				}
+				sb.append(new String(tfout.second));
+			}
+		}
+	}
+
 	public static boolean debug = false;
 
+	/**
+	 * Follow several files, writing to them while 'tail' is running
+	 */
+	void tailFiles(String dir, TailCollect tail, int numFiles, int numLines, int sleepTime) throws InterruptedException {
+		new File(dir).mkdirs();
+		String fileNames[] = new String[numFiles];
+		for (int i = 0; i < numFiles; i++) {
+			fileNames[i] = dir + "/file_" + i + ".stdout";
+			new File(fileNames[i]).delete();
+			tail.add(fileNames[i], false);
+		}
+		tail.start();
+
+		for (int j = 0; j < numLines; j++) {
+			for (int i = 0; i < numFiles; i++)
+				Gpr.toFile(fileNames[i], "file_" + i + "_line_" + j + "\n", true);
+			if (sleepTime > 0) Thread.sleep(sleepTime);
+		}
+		Thread.sleep(2 * Tail.SLEEP_TIME_DEFAULT);
+
+		for (int i = 0; i < numFiles; i++)
+			tail.remove(fileNames[i]);
+		tail.kill();
+	}
+
 	@Test
 	public void test01() {
 		String tail = TailFile.tail("test/tail_01.txt");
@@ -56,4 +118,65 @@ public class TestCasesTail extends TestCasesBase {
 		Assert.assertEquals("line 11\nline 12\nline 13\nline 14\nline 15\nline 16\nline 17\nline 18\nline 19\nline 20\n", tail);
 	}
 
+	@Test
+	public void test07_ringBuffer() {
+		RingBuffer rb = new RingBuffer(10);
+		Assert.assertEquals(0, rb.write("hello".getBytes(), 0, 5));
+		Assert.assertEquals("hello", rb.toString());
+
+		// Overflow: Oldest bytes are dropped
+		Assert.assertEquals(3, rb.write("_world__".getBytes(), 0, 8));
+		Assert.assertEquals("lo_world__", rb.toString());
+
+		// Read some bytes
+		Assert.assertEquals("lo_", new String(rb.read(3)));
+		Assert.assertEquals(3, rb.free());
+
+		// Write more than capacity
+		Assert.assertEquals(7 + 12 - 10, rb.write("0123456789ab".getBytes(), 0, 12));
+		Assert.assertEquals("23456789ab", rb.toString());
+		Assert.assertEquals("23456789ab", new String(rb.read(100)));
+		Assert.assertTrue(rb.isEmpty());
+	}
+
+	@Test
+	public void test08_tailMaxOpenFiles() throws InterruptedException {
+		int numFiles = 10, numLines = 5;
+
+		for (boolean watch : new boolean[] { false, true }) {
+			DirectoryWatcher watcher = (watch ? DirectoryWatcher.create() : null);
+			TailCollect tail = new TailCollect();
+			tail.setMaxOpenFiles(3);
+			tail.setWatcher(watcher);
+			String dir = "tmp/tail_08_" + watch;
+			tailFiles(dir, tail, numFiles, numLines, Tail.SLEEP_TIME_DEFAULT / 2);
+			if (watcher != null) watcher.close();
+
+			// All output is shown, but only a few files are open at the same time
+			Assert.assertTrue("Open files: " + tail.maxOpenFiles, tail.maxOpenFiles <= 3);
+			for (int i = 0; i < numFiles; i++) {
+				StringBuilder expected = new StringBuilder();
+				for (int j = 0; j < numLines; j++)
+					expected.append("file_" + i + "_line_" + j + "\n");
+				Assert.assertEquals(expected.toString(), tail.getOutput(dir + "/file_" + i + ".stdout"));
+			}
+		}
+	}
+
+	@Test
+	public void test09_tailRateLimit() throws InterruptedException {
+		// Limit output: Only the latest output is shown
+		TailCollect tail = new TailCollect();
+		tail.setBufferSize(100);
+		tail.setMaxBytesPerSec(100);
+		String dir = "tmp/tail_09";
+		tailFiles(dir, tail, 1, 1000, 0);
+
+		String out = tail.getOutput(dir + "/file_0.stdout");
+		if (verbose) System.out.println(out);
+		Assert.assertTrue(out.length() < 1000);
+		Assert.assertTrue(out.contains("bytes not shown"));
+		Assert.assertTrue(out.endsWith("file_0_line_999\n"));
+	}
+
 }
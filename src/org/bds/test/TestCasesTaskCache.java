@@ -0,0 +1,188 @@
+package org.bds.test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.bds.Config;
+import org.bds.data.DigestDb;
+import org.bds.osCmd.Cmd;
+import org.bds.task.Task;
+import org.bds.task.TaskCache;
+import org.bds.task.TaskDependency;
+import org.bds.task.TaskState;
+import org.bds.util.Gpr;
+import org.bds.util.Timer;
+import org.junit.Test;
+
+/**
+ * Test cases for the task cache (restoring task results from previous runs)
+ *
+ * @author pcingola
+ *
+ */
+public class TestCasesTaskCache extends TestCasesBase {
+
+	String runDir; // Task files (program, STDOUT, STDERR, etc.)
+
+	/**
+	 * Create a task: 'output <- input'
+	 */
+	Task cacheTask(String id, String program, String output, String input) {
+		TaskDependency taskDependency = new TaskDependency();
+		taskDependency.addOutput(output);
+		taskDependency.addInput(input);
+
+		Task task = new Task(id, runDir + "/" + id + ".sh", program, null, -1);
+		task.setTaskDependency(taskDependency);
+		task.state(TaskState.SCHEDULED);
+		return task;
+	}
+
+	/**
+	 * Task cache: A task having the same program and inputs is restored
+	 * from the cache (instead of running again)
+	 */
+	@Test
+	public void test01_taskCache() throws InterruptedException {
+		Gpr.debug("Test");
+
+		String base = tmpDir("taskCache");
+		String dir = base + "/cache";
+		String in = base + "/in.txt";
+		String out = base + "/out.txt";
+		String program = "cat " + in + " > " + out;
+		runDir = base + "/run";
+		Gpr.toFile(in, "input");
+
+		TaskCache taskCache = new TaskCache(dir, TaskCache.DEFAULT_MAX_SIZE, new DigestDb(dir + "/digests.db"));
+		taskCache.setDebug(debug);
+		taskCache.setVerbose(verbose);
+
+		// Not in cache: Run task
+		Task task = cacheTask("taskCache_1", program, out, in);
+		Assert.assertFalse(taskCache.restore(task));
+		task.createProgramDir();
+		Gpr.toFile(task.getStdoutFile(), "Hello");
+		Gpr.toFile(task.getStderrFile(), "");
+		Gpr.toFile(out, "input");
+		running(task);
+		task.state(TaskState.FINISHED);
+		Assert.assertTrue(task.isDoneOk());
+		taskCache.store(task);
+		for (int i = 0; i < 100 && taskCache.getSize() == 0; i++)
+			Thread.sleep(10);
+		Assert.assertTrue(taskCache.getSize() > 0);
+
+		// Same task in another run: Results are restored
+		new File(out).delete();
+		task = cacheTask("taskCache_2", program, out, in);
+		Assert.assertTrue(taskCache.restore(task));
+		Assert.assertEquals("input", Gpr.readFile(out));
+		Assert.assertEquals("Hello", Gpr.readFile(task.getStdoutFile()));
+		Assert.assertEquals(1, taskCache.getHits());
+
+		// Input changed: Task must run
+		Gpr.toFile(in, "new input");
+		task = cacheTask("taskCache_3", program, out, in);
+		Assert.assertFalse(taskCache.restore(task));
+
+		// Program changed: Task must run
+		Gpr.toFile(in, "input");
+		task = cacheTask("taskCache_4", program + " && echo done", out, in);
+		Assert.assertFalse(taskCache.restore(task));
+
+		// Entries are persistent. Least recently used entries are removed
+		taskCache.close();
+		TaskCache taskCache2 = new TaskCache(dir, TaskCache.DEFAULT_MAX_SIZE, new DigestDb(dir + "/digests.db"));
+		task = cacheTask("taskCache_5", program, out, in);
+		Assert.assertTrue(taskCache2.restore(task));
+		taskCache2.close();
+
+		TaskCache taskCache3 = new TaskCache(dir, 1, new DigestDb(dir + "/digests.db"));
+		Assert.assertEquals(0, taskCache3.getSize());
+		task = cacheTask("taskCache_6", program, out, in);
+		Assert.assertFalse(taskCache3.restore(task));
+		taskCache3.close();
+	}
+
+	/**
+	 * Task cache in an executioner: Results are restored in background, the
+	 * task goes straight to 'finished' (no command, nothing to follow).
+	 * Tasks not found in the cache run as usual
+	 */
+	@Test
+	public void test02_taskCacheExecutioner() throws InterruptedException {
+		Gpr.debug("Test");
+
+		String base = tmpDir("taskCacheExecutioner");
+		String in = base + "/in.txt";
+		String out = base + "/out.txt";
+		String program = "cat " + in + " > " + out;
+		runDir = base + "/run";
+		Gpr.toFile(in, "input");
+
+		Config config = config();
+		config.set(Config.TASK_CACHE, "true");
+		config.set(Config.TASK_CACHE_DIR, base + "/cache");
+		TaskCache taskCache = config.getTaskCache();
+
+		// Results from a previous run
+		Task task = cacheTask("taskCacheEx_1", program, out, in);
+		Assert.assertFalse(taskCache.restore(task));
+		task.createProgramDir();
+		Gpr.toFile(task.getStdoutFile(), "Hello");
+		Gpr.toFile(out, "input");
+		running(task);
+		task.state(TaskState.FINISHED);
+		taskCache.store(task);
+		for (int i = 0; i < 100 && taskCache.getSize() == 0; i++)
+			Thread.sleep(10);
+		Assert.assertTrue(taskCache.getSize() > 0);
+		new File(out).delete();
+
+		// Executioner: Record commands created and tasks followed
+		final Set<String> cmds = Collections.synchronizedSet(new HashSet<String>());
+		final Set<String> followed = Collections.synchronizedSet(new HashSet<String>());
+		ExecutionerNoOp ex = new ExecutionerNoOp(config) {
+			@Override
+			protected synchronized Cmd createRunCmd(Task task) {
+				cmds.add(task.getId());
+				return super.createRunCmd(task);
+			}
+
+			@Override
+			protected synchronized void follow(Task task) {
+				followed.add(task.getId());
+			}
+		};
+		ex.start();
+
+		Task cached = cacheTask("taskCacheEx_2", program, out, in);
+		Task notCached = cacheTask("taskCacheEx_3", program + " && echo done", base + "/out3.txt", in);
+		ex.add(cached);
+		ex.add(notCached);
+
+		Timer timer = new Timer();
+		while ((!cached.isDone() || !notCached.isDone()) && timer.elapsed() < 30 * 1000)
+			Thread.sleep(10);
+		ex.kill();
+
+		// Restored: No command, not followed
+		Assert.assertTrue(cached.isDoneOk());
+		Assert.assertEquals("input", Gpr.readFile(out));
+		Assert.assertEquals("Hello", Gpr.readFile(cached.getStdoutFile()));
+		Assert.assertFalse(cmds.contains(cached.getId()));
+		Assert.assertFalse(followed.contains(cached.getId()));
+
+		// Not in cache: Task runs
+		Assert.assertTrue(notCached.isDone());
+		Assert.assertTrue(cmds.contains(notCached.getId()));
+		Assert.assertTrue(followed.contains(notCached.getId()));
+		taskCache.close();
+	}
+
+}
@@ -15,6 +15,11 @@ import org.junit.runners.Suite.SuiteClasses;
 		TestCasesLang.class, //
 		TestCasesInterpolate.class, //
 		TestCasesExecutioners.class, //
+		TestCasesCluster.class, //
+		TestCasesSsh.class, //
+		TestCasesDependencies.class, //
+		TestCasesCleanup.class, //
+		TestCasesTaskCache.class, //
 		TestCasesRun.class, //
 		TestCasesRun2.class, //
 		TestCasesGraph.class, //
@@ -0,0 +1,404 @@
+package org.bds.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remove temporary files (replaces File.deleteOnExit)
+ *
+ * File.deleteOnExit() keeps every path in memory until the JVM exits
+ * and then deletes them one by one. Runs having millions of task files
+ * use a lot of memory and take a long time to exit. Instead:
+ *
+ * 	- Files that are no longer needed (e.g. a finished task's program
+ * 	  file) are deleted right away, in background threads (see 'delete').
+ * 	- Directories created by bds (e.g. a bdsThread's task directory) are
+ * 	  registered once and removed recursively on exit, using a parallel
+ * 	  walker (see 'rmTreeOnExit').
+ * 	- Other paths (e.g. user's 'rmOnExit', outputs of failed tasks) are
+ * 	  removed on exit the same way File.deleteOnExit() does: directories
+ * 	  are only removed if they are empty (see 'rmOnExit').
+ * 	- Paths to remove on exit are also appended to a 'pending' file, so
+ * 	  if the process crashes they are removed by the next run using the
+ * 	  same pending file (see 'recover').
+ *
+ * @author pcingola
+ */
+public class CleanupManager {
+
+	public static final int DELETE_THREADS = 4; // Threads deleting files in background
+	public static final int WALKER_THREADS = 8; // Threads removing directories on exit
+	public static final int WALKER_CHUNK_SIZE = 1000; // Files deleted by each walker task
+	public static final int SHUTDOWN_TIMEOUT = 60; // Maximum time waiting for background deletions on exit (seconds)
+	public static final String TREE_PREFIX = "tree\t"; // Lines in pending file: Directory tree to remove recursively
+
+	/**
+	 * Delete a directory tree: Files are deleted in chunks, sub-directories in parallel
+	 */
+	@SuppressWarnings("serial")
+	static class DeleteTree extends RecursiveAction {
+		File dir;
+		File files[];
+		int start, end;
+
+		DeleteTree(File dir) {
+			this.dir = dir;
+		}
+
+		DeleteTree(File files[], int start, int end) {
+			this.files = files;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (dir == null) {
+				for (int i = start; i < end; i++)
+					files[i].delete();
+				return;
+			}
+
+			File entries[] = dir.listFiles();
+			if (entries != null) {
+				// Sub-directories (do not follow symbolic links) and files
+				List<File> plain = new ArrayList<File>();
+				List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+				for (File f : entries) {
+					if (f.isDirectory() && !Files.isSymbolicLink(f.toPath())) tasks.add(new DeleteTree(f));
+					else plain.add(f);
+				}
+
+				File plainArray[] = plain.toArray(new File[0]);
+				for (int i = 0; i < plainArray.length; i += WALKER_CHUNK_SIZE)
+					tasks.add(new DeleteTree(plainArray, i, Math.min(i + WALKER_CHUNK_SIZE, plainArray.length)));
+
+				invokeAll(tasks);
+			}
+
+			dir.delete();
+		}
+	}
+
+	boolean debug;
+	boolean verbose;
+	String pendingFile; // Paths to remove on exit (null if not persisted)
+	Set<String> pending; // Paths to remove on exit (directories only if empty)
+	Set<String> pendingTrees; // Directory trees to remove (recursively) on exit
+	PrintWriter pendingOut;
+	RandomAccessFile pendingRaf;
+	FileLock pendingLock; // Lock held while this process owns the pending file
+	boolean pendingDisabled; // Pending file is owned by another process
+	ExecutorService deletePool;
+	boolean closed;
+
+	/**
+	 * Remove paths (files or empty directories), in reverse order
+	 * (i.e. files registered after their directory are removed first).
+	 * Directories are not removed recursively (same as File.deleteOnExit)
+	 */
+	public static void deletePaths(Collection<String> paths) {
+		List<File> files = new ArrayList<File>();
+		List<File> dirs = new ArrayList<File>();
+		for (String path : paths) {
+			File f = new File(path);
+			if (f.isDirectory() && !Files.isSymbolicLink(f.toPath())) dirs.add(f);
+			else files.add(f);
+		}
+
+		// Files are removed in parallel
+		ForkJoinPool pool = new ForkJoinPool(WALKER_THREADS);
+		try {
+			File filesArray[] = files.toArray(new File[0]);
+			List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+			for (int i = 0; i < filesArray.length; i += WALKER_CHUNK_SIZE)
+				tasks.add(new DeleteTree(filesArray, i, Math.min(i + WALKER_CHUNK_SIZE, filesArray.length)));
+
+			for (RecursiveAction t : tasks)
+				pool.execute(t);
+			for (RecursiveAction t : tasks)
+				t.join();
+		} finally {
+			pool.shutdown();
+		}
+
+		// Directories (only if empty)
+		Collections.reverse(dirs);
+		for (File dir : dirs)
+			dir.delete();
+	}
+
+	/**
+	 * Remove directory trees (recursively) using a parallel walker
+	 */
+	public static void deleteTrees(Collection<String> paths) {
+		ForkJoinPool pool = new ForkJoinPool(WALKER_THREADS);
+		try {
+			List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+			List<File> files = new ArrayList<File>();
+			for (String path : paths) {
+				File f = new File(path);
+				if (f.isDirectory() && !Files.isSymbolicLink(f.toPath())) tasks.add(new DeleteTree(f));
+				else files.add(f);
+			}
+
+			File filesArray[] = files.toArray(new File[0]);
+			for (int i = 0; i < filesArray.length; i += WALKER_CHUNK_SIZE)
+				tasks.add(new DeleteTree(filesArray, i, Math.min(i + WALKER_CHUNK_SIZE, filesArray.length)));
+
+			for (RecursiveAction t : tasks)
+				pool.execute(t);
+			for (RecursiveAction t : tasks)
+				t.join();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Create a cleanup manager
+	 * @param pendingFile : File used to persist paths to remove on exit (can be null)
+	 */
+	public CleanupManager(String pendingFile) {
+		this.pendingFile = pendingFile;
+		pending = new LinkedHashSet<String>();
+		pendingTrees = new LinkedHashSet<String>();
+
+		final AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(DELETE_THREADS, DELETE_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CleanupManager-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		pool.allowCoreThreadTimeOut(true); // Idle threads are not kept alive
+		deletePool = pool;
+
+		// Remove pending paths on exit
+		Runtime.getRuntime().addShutdownHook(new Thread("CleanupManager-close") {
+			@Override
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Remove all pending paths, wait for background deletions to finish
+	 */
+	public void close() {
+		Set<String> paths, trees;
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			paths = new LinkedHashSet<String>(pending);
+			trees = new LinkedHashSet<String>(pendingTrees);
+		}
+
+		// Wait for background deletions
+		deletePool.shutdown();
+		try {
+			deletePool.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			// Nothing to do
+		}
+
+		// Remove pending directory trees, files and (empty) directories
+		if (!trees.isEmpty() || !paths.isEmpty()) {
+			if (verbose) Timer.showStdErr("CleanupManager: Deleting " + trees.size() + " directory trees, " + paths.size() + " files / directories");
+			deleteTrees(trees);
+			deletePaths(paths);
+		}
+
+		// Everything was removed: We don't need the pending file any more
+		synchronized (this) {
+			if (pendingOut != null) new File(pendingFile).delete(); // Delete before releasing the lock
+			closePending();
+		}
+	}
+
+	/**
+	 * Close pending file and release lock
+	 */
+	synchronized void closePending() {
+		try {
+			if (pendingOut != null) pendingOut.close();
+			if (pendingLock != null) pendingLock.release();
+			if (pendingRaf != null) pendingRaf.close();
+		} catch (IOException e) {
+			// Nothing to do
+		}
+		pendingOut = null;
+		pendingRaf = null;
+	}
+
+	/**
+	 * Delete files in background (they are no longer needed)
+	 */
+	public void delete(Collection<String> paths) {
+		if (paths == null || paths.isEmpty()) return;
+		final List<String> toDelete = new ArrayList<String>(paths);
+
+		synchronized (this) {
+			if (closed) return; // Files will be removed on exit (if they are pending)
+			deletePool.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (String path : toDelete)
+						new File(path).delete();
+				}
+			});
+		}
+	}
+
+	public synchronized Set<String> getPending() {
+		return new LinkedHashSet<String>(pending);
+	}
+
+	public synchronized Set<String> getPendingTrees() {
+		return new LinkedHashSet<String>(pendingTrees);
+	}
+
+	public String getPendingFile() {
+		return pendingFile;
+	}
+
+	/**
+	 * Open (and lock) pending file
+	 * @return true if this process owns the pending file
+	 */
+	synchronized boolean openPending() {
+		if (pendingOut != null) return true;
+		if (pendingFile == null || pendingDisabled) return false;
+
+		try {
+			pendingRaf = new RandomAccessFile(pendingFile, "rw");
+			FileChannel channel = pendingRaf.getChannel();
+			pendingLock = channel.tryLock();
+			if (pendingLock == null) {
+				// Another process is using this file
+				if (verbose) Timer.showStdErr("CleanupManager: File '" + pendingFile + "' is used by another process, paths to remove on exit will not be persisted");
+				pendingRaf.close();
+				pendingRaf = null;
+				pendingDisabled = true;
+				return false;
+			}
+
+			pendingRaf.seek(pendingRaf.length()); // Append
+			pendingOut = new PrintWriter(new OutputStreamWriter(Channels.newOutputStream(channel)));
+			return true;
+		} catch (IOException | OverlappingFileLockException e) {
+			if (debug) e.printStackTrace();
+			pendingDisabled = true;
+			return false;
+		}
+	}
+
+	/**
+	 * Append a line to the pending file (so it can be removed if we crash)
+	 */
+	synchronized void persist(String line) {
+		if (openPending()) {
+			pendingOut.println(line);
+			pendingOut.flush();
+		}
+	}
+
+	/**
+	 * Remove paths left by a previous run that did not finish cleanly
+	 * (i.e. the pending file exists and no other process owns it).
+	 * Paths are removed in background (and on exit, if they are not
+	 * removed by then)
+	 * @return Number of paths to remove
+	 */
+	public int recover() {
+		final List<String> paths = new ArrayList<String>();
+		final List<String> trees = new ArrayList<String>();
+		synchronized (this) {
+			if (closed || pendingFile == null || !new File(pendingFile).exists()) return 0;
+			if (!openPending()) return 0;
+
+			// Read paths
+			try (BufferedReader in = new BufferedReader(new FileReader(pendingFile))) {
+				for (String line = in.readLine(); line != null; line = in.readLine()) {
+					if (line.startsWith(TREE_PREFIX)) {
+						String tree = line.substring(TREE_PREFIX.length());
+						if (!tree.isEmpty() && pendingTrees.add(tree)) trees.add(tree);
+					} else if (!line.isEmpty() && pending.add(line)) paths.add(line);
+				}
+			} catch (IOException e) {
+				if (debug) e.printStackTrace();
+				return 0;
+			}
+			if (paths.isEmpty() && trees.isEmpty()) return 0;
+
+			deletePool.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (verbose) Timer.showStdErr("CleanupManager: Removing " + trees.size() + " directory trees, " + paths.size() + " files / directories left by a previous run (file '" + pendingFile + "')");
+					deleteTrees(trees);
+					deletePaths(paths);
+				}
+			});
+		}
+
+		return paths.size() + trees.size();
+	}
+
+	/**
+	 * Remove a file or directory on exit.
+	 * Same as File.deleteOnExit(): Directories are only removed if they are empty
+	 */
+	public synchronized void rmOnExit(String path) {
+		if (path == null || closed) return;
+		path = new File(path).getAbsolutePath();
+		if (!pending.add(path)) return; // Already added
+		persist(path);
+	}
+
+	/**
+	 * Remove a directory (recursively) on exit
+	 * Note: Only for directories created by bds (e.g. task directories), never for user's paths
+	 */
+	public synchronized void rmTreeOnExit(String dir) {
+		if (dir == null || closed) return;
+		dir = new File(dir).getAbsolutePath();
+		if (!pendingTrees.add(dir)) return; // Already added
+		persist(TREE_PREFIX + dir);
+	}
+
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+}
@@ -0,0 +1,213 @@
+package org.bds.util;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Watch directories for new (or modified) files, using the
+ * operating system's notifications (e.g. 'inotify')
+ *
+ * Notifications are not delivered for files created by other hosts
+ * on network file systems (e.g. NFS), so directories on those file
+ * systems are not watched (the caller must poll them).
+ *
+ * A single watcher is shared by several users (e.g. exit file
+ * monitor and 'tail'), so each directory is watched only once.
+ * Directories are reference counted: A directory is no longer
+ * watched when all users 'unwatch' it.
+ *
+ * @author pcingola
+ */
+public class DirectoryWatcher implements Runnable {
+
+	/**
+	 * Notified (from the watcher's thread) when a file is created or modified
+	 */
+	public interface DirectoryWatcherListener {
+		/**
+		 * A file was created or modified
+		 * @param path : File's path. If notifications were lost, this is the directory's path (all files in it must be checked)
+		 */
+		public void changed(Path path);
+	}
+
+	// File system types where notifications do not fire for remote changes
+	public static final Set<String> REMOTE_FILE_SYSTEMS = new HashSet<String>(Arrays.asList("nfs", "nfs4", "cifs", "smbfs", "smb2", "afs", "lustre", "gpfs", "ceph", "beegfs", "panfs", "9p", "fuse.sshfs", "fuse.glusterfs"));
+
+	boolean debug = false;
+	WatchService watchService;
+	Map<Path, WatchKey> keyByDir;
+	Map<Path, Integer> countByDir; // Number of 'watch' requests, by directory
+	Set<Path> unwatchable; // Directories that cannot be watched (must be polled)
+	List<DirectoryWatcherListener> listeners;
+	Thread thread;
+
+	/**
+	 * Create a watcher
+	 * @return A watcher or null if the file system does not support it
+	 */
+	public static DirectoryWatcher create() {
+		try {
+			WatchService watchService = FileSystems.getDefault().newWatchService();
+			DirectoryWatcher watcher = new DirectoryWatcher(watchService);
+			watcher.start();
+			return watcher;
+		} catch (IOException | UnsupportedOperationException e) {
+			Timer.showStdErr("Cannot create file watcher, using polling instead: " + e.getMessage());
+			return null;
+		}
+	}
+
+	protected DirectoryWatcher(WatchService watchService) {
+		this.watchService = watchService;
+		keyByDir = new HashMap<Path, WatchKey>();
+		countByDir = new HashMap<Path, Integer>();
+		unwatchable = new HashSet<Path>();
+		listeners = new CopyOnWriteArrayList<DirectoryWatcherListener>();
+	}
+
+	public void addListener(DirectoryWatcherListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Stop watching
+	 */
+	public synchronized void close() {
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			// Nothing to do
+		}
+		keyByDir.clear();
+		countByDir.clear();
+	}
+
+	/**
+	 * Is this file system type a network file system?
+	 */
+	protected boolean isRemote(Path dir) {
+		try {
+			String type = Files.getFileStore(dir).type().toLowerCase();
+			return REMOTE_FILE_SYSTEMS.contains(type) || type.startsWith("nfs");
+		} catch (IOException e) {
+			return true; // Unknown: Assume the worst
+		}
+	}
+
+	/**
+	 * Is this directory being watched?
+	 */
+	public synchronized boolean isWatched(Path dir) {
+		return keyByDir.containsKey(dir);
+	}
+
+	public void removeListener(DirectoryWatcherListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Watcher thread: Wait for events and notify listeners
+	 */
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				Path dir = (Path) key.watchable();
+
+				for (WatchEvent<?> event : key.pollEvents()) {
+					// Events were lost? Report the directory (listeners must check all files in it)
+					Path path = (event.kind() == StandardWatchEventKinds.OVERFLOW ? dir : dir.resolve((Path) event.context()));
+					for (DirectoryWatcherListener listener : listeners)
+						listener.changed(path);
+				}
+
+				key.reset();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// Watcher closed: We are done
+		}
+	}
+
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+	}
+
+	protected void start() {
+		thread = new Thread(this, "DirectoryWatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop watching a directory (once all 'watch' requests have been 'unwatched')
+	 */
+	public synchronized void unwatch(Path dir) {
+		Integer count = countByDir.get(dir);
+		if (count == null) return;
+		if (count > 1) {
+			countByDir.put(dir, count - 1);
+			return;
+		}
+
+		countByDir.remove(dir);
+		WatchKey key = keyByDir.remove(dir);
+		if (key != null) key.cancel();
+		unwatchable.remove(dir);
+	}
+
+	/**
+	 * Mark a directory as 'unwatchable': Notifications are not working on it
+	 */
+	public synchronized void unwatchable(Path dir) {
+		WatchKey key = keyByDir.remove(dir);
+		if (key != null) key.cancel();
+		if (countByDir.containsKey(dir)) unwatchable.add(dir);
+	}
+
+	/**
+	 * Start watching a directory
+	 * Note: Every invocation must be paired with an 'unwatch' invocation
+	 *
+	 * @return true if the directory is being watched, false if it must be polled
+	 */
+	public synchronized boolean watch(Path dir) {
+		Integer count = countByDir.get(dir);
+		countByDir.put(dir, (count != null ? count + 1 : 1));
+
+		if (keyByDir.containsKey(dir)) return true;
+		if (unwatchable.contains(dir)) return false;
+
+		try {
+			if (isRemote(dir)) {
+				if (debug) Gpr.debug("Directory '" + dir + "' is on a network file system, it will be polled");
+				unwatchable.add(dir);
+				return false;
+			}
+
+			WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			keyByDir.put(dir, key);
+			return true;
+		} catch (IOException | ClosedWatchServiceException e) {
+			if (debug) Gpr.debug("Cannot watch directory '" + dir + "', it will be polled: " + e.getMessage());
+			unwatchable.add(dir);
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+package org.bds.util;
+
+/**
+ * A bounded byte buffer that keeps only the most recent bytes.
+ *
+ * Writing to a full buffer drops the oldest bytes. Memory is
+ * allocated lazily (and grown as needed), so empty buffers are cheap.
+ *
+ * @author pcingola
+ */
+public class RingBuffer {
+
+	public static final int INITIAL_SIZE = 4 * 1024;
+
+	int capacity; // Maximum number of bytes
+	byte[] data; // Allocated when needed
+	int start; // Position of the oldest byte
+	int size; // Number of bytes in the buffer
+
+	public RingBuffer(int capacity) {
+		if (capacity <= 0) throw new RuntimeException("Capacity must be a positive number: " + capacity);
+		this.capacity = capacity;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public void clear() {
+		start = size = 0;
+	}
+
+	/**
+	 * Free space (bytes that can be written without dropping old ones)
+	 */
+	public int free() {
+		return capacity - size;
+	}
+
+	/**
+	 * Make sure we have at least 'len' bytes allocated
+	 */
+	protected void grow(int len) {
+		if (data != null && data.length >= len) return;
+
+		int newLen = (data == null ? Math.min(capacity, INITIAL_SIZE) : data.length);
+		while (newLen < len)
+			newLen = Math.min(capacity, 2 * newLen);
+
+		// Copy data (oldest bytes first)
+		byte[] newData = new byte[newLen];
+		if (data != null) copy(newData, 0, size);
+		data = newData;
+		start = 0;
+	}
+
+	/**
+	 * Copy 'len' oldest bytes to 'dst' (does not remove them)
+	 */
+	protected void copy(byte[] dst, int off, int len) {
+		int first = Math.min(len, data.length - start);
+		System.arraycopy(data, start, dst, off, first);
+		if (first < len) System.arraycopy(data, 0, dst, off + first, len - first);
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Remove (up to) 'len' oldest bytes
+	 * @return Bytes removed
+	 */
+	public byte[] read(int len) {
+		len = Math.min(len, size);
+		byte[] bytes = new byte[len];
+		if (len <= 0) return bytes;
+
+		copy(bytes, 0, len);
+		start = (start + len) % data.length;
+		size -= len;
+		if (size == 0) start = 0;
+		return bytes;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Copy of all bytes in the buffer (does not remove them)
+	 */
+	public byte[] toByteArray() {
+		byte[] bytes = new byte[size];
+		if (size > 0) copy(bytes, 0, size);
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return new String(toByteArray());
+	}
+
+	/**
+	 * Add bytes to the buffer, dropping the oldest bytes if needed
+	 * @return Number of bytes dropped
+	 */
+	public int write(byte[] bytes, int off, int len) {
+		if (len <= 0) return 0;
+
+		// Only the latest 'capacity' bytes can be kept
+		int dropped = 0;
+		if (len > capacity) {
+			dropped += len - capacity;
+			off += len - capacity;
+			len = capacity;
+		}
+
+		// Drop oldest bytes
+		int drop = Math.max(0, size + len - capacity);
+		if (drop > 0) {
+			dropped += drop;
+			start = (start + drop) % data.length;
+			size -= drop;
+		}
+
+		// Copy
+		grow(size + len);
+		int pos = (start + size) % data.length;
+		int first = Math.min(len, data.length - pos);
+		System.arraycopy(bytes, off, data, pos, first);
+		if (first < len) System.arraycopy(bytes, off + first, data, 0, len - first);
+		size += len;
+
+		return dropped;
+	}
+
+}
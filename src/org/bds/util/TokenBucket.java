@@ -0,0 +1,79 @@
+package org.bds.util;
+
+/**
+ * A token bucket rate limiter.
+ *
+ * Tokens are added at 'rate' tokens per second, up to 'capacity'
+ * tokens (maximum burst). Each operation consumes one token, if
+ * no token is available the caller blocks until one is added.
+ * Tokens can also be taken in bulk (e.g. one token per byte).
+ *
+ * @author pcingola
+ */
+public class TokenBucket {
+
+	protected double rate; // Tokens per second
+	protected double capacity; // Maximum number of tokens (burst size)
+	protected double tokens; // Tokens currently available
+	protected long latestRefill; // Latest refill time (nanoseconds)
+
+	public TokenBucket(double rate, double capacity) {
+		if (rate <= 0) throw new RuntimeException("Rate must be a positive number: " + rate);
+		this.rate = rate;
+		this.capacity = Math.max(1.0, capacity);
+		tokens = this.capacity;
+		latestRefill = System.nanoTime();
+	}
+
+	/**
+	 * Take one token, block until it is available
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while (!tryAcquire()) {
+			long waitMs = (long) Math.ceil(1000.0 * (1.0 - tokens) / rate);
+			wait(Math.max(1, waitMs));
+		}
+	}
+
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Add tokens according to elapsed time
+	 */
+	protected void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + rate * (now - latestRefill) / 1e9);
+		latestRefill = now;
+	}
+
+	@Override
+	public String toString() {
+		return "TokenBucket(rate: " + rate + "/sec, capacity: " + capacity + ")";
+	}
+
+	/**
+	 * Take one token, if available
+	 * @return true if the token was taken
+	 */
+	public synchronized boolean tryAcquire() {
+		refill();
+		if (tokens < 1.0) return false;
+		tokens -= 1.0;
+		return true;
+	}
+
+	/**
+	 * Take up to 'max' tokens (whatever is available)
+	 * @return Number of tokens taken
+	 */
+	public synchronized long tryAcquire(long max) {
+		refill();
+		long count = Math.min(max, (long) tokens);
+		if (count <= 0) return 0;
+		tokens -= count;
+		return count;
+	}
+
+}